@@ -0,0 +1,176 @@
+package com.emadbarsoum.common;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * The output image options shared by the map only filters:
+ *
+ *     -rawoutput   store the result uncompressed (type=raw) with its width, height, channel_count and depth, so the
+ *                  next job doesn't decode it. Use -compress block to keep the sequence file small.
+ *     -format <jpg, png...>   encode the result with this format instead of the ext of the input image.
+ *     -quality <0-100>   the JPEG or WebP quality, for PNG it is mapped to the compression level.
+ *
+ * The options are stored in the job configuration by configure(), and read back by the mappers. The images of the
+ * Java engine are encoded by JavaImage.encode() with javax.imageio, where -quality only applies to JPEG.
+ */
+public class ImageEncoding
+{
+    public static final String usage = "[-rawoutput] [-format <jpg, png...>] [-quality <0-100>]";
+
+    public static final String rawProperty = "hvision.output.raw";
+    public static final String formatProperty = "hvision.output.format";
+    public static final String qualityProperty = "hvision.output.quality";
+
+    private boolean raw;
+    private String format;
+    private int quality;
+
+    public ImageEncoding(Configuration conf)
+    {
+        this.raw = conf.getBoolean(rawProperty, false);
+        this.format = conf.get(formatProperty);
+        this.quality = conf.getInt(qualityProperty, -1);
+    }
+
+    // Check the values of the output options, if any.
+    public static boolean isValid(CommandParser parser)
+    {
+        if (parser.has("format") && (parser.get("format") == null))
+        {
+            return false;
+        }
+
+        if (parser.has("quality"))
+        {
+            if (parser.get("quality") == null)
+            {
+                return false;
+            }
+
+            int quality = parser.getAsInt("quality");
+            if ((quality < 0) || (quality > 100))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public static void configure(Job job, CommandParser parser)
+    {
+        Configuration conf = job.getConfiguration();
+
+        conf.setBoolean(rawProperty, parser.has("rawoutput"));
+        if (parser.has("format"))
+        {
+            conf.set(formatProperty, parser.get("format").toLowerCase());
+        }
+
+        if (parser.has("quality"))
+        {
+            conf.setInt(qualityProperty, parser.getAsInt("quality"));
+        }
+    }
+
+    public boolean isRaw()
+    {
+        return this.raw;
+    }
+
+    // The JPEG or WebP quality, or -1 for the default of the encoder.
+    public int getQuality()
+    {
+        return this.quality;
+    }
+
+    // The format of an encoded result, the ext of a raw input is the format of its original file.
+    public String getFormat(MetadataParser metadata)
+    {
+        return (this.format != null) ? this.format : metadata.get("ext");
+    }
+
+    // Store the result image, the metadata is updated to describe the returned bytes.
+    public byte[] encode(IplImage image, MetadataParser metadata)
+    {
+        if (this.raw)
+        {
+            byte[] data = new byte[image.imageSize()];
+            image.getByteBuffer().get(data);
+
+            rawMetadata(metadata, image.width(), image.height(), image.nChannels(), image.depth());
+
+            return data;
+        }
+
+        String ext = this.getFormat(metadata);
+
+        CvMat imageMat = cvEncodeImage("." + ext, image, parameters(ext));
+
+        byte[] data = new byte[imageMat.size()];
+        imageMat.getByteBuffer().get(data);
+
+        cvReleaseMat(imageMat);
+
+        encodedMetadata(metadata, ext, image.width(), image.height(), image.nChannels());
+
+        return data;
+    }
+
+    // The result stored uncompressed.
+    public static void rawMetadata(MetadataParser metadata, int width, int height, int channels, int depth)
+    {
+        metadata.put("type", "raw");
+        metadata.put("width", width);
+        metadata.put("height", height);
+        metadata.put("channel_count", channels);
+        metadata.put("depth", depth);
+    }
+
+    // The result stored as compressed, the size and channels are kept only if the input had them.
+    public static void encodedMetadata(MetadataParser metadata, String ext, int width, int height, int channels)
+    {
+        metadata.remove("type");
+        metadata.put("ext", ext);
+        if (metadata.has("width"))
+        {
+            metadata.put("width", width);
+            metadata.put("height", height);
+        }
+
+        if (metadata.has("channel_count"))
+        {
+            metadata.put("channel_count", channels);
+        }
+    }
+
+    // The cvEncodeImage() parameters for the quality, zero terminated.
+    private int[] parameters(String ext)
+    {
+        if (this.quality < 0)
+        {
+            return new int[] {0};
+        }
+
+        if (ext.equals("jpg") || ext.equals("jpeg"))
+        {
+            return new int[] {CV_IMWRITE_JPEG_QUALITY, this.quality, 0};
+        }
+        else if (ext.equals("webp"))
+        {
+            return new int[] {CV_IMWRITE_WEBP_QUALITY, Math.max(this.quality, 1), 0};
+        }
+        else if (ext.equals("png"))
+        {
+            // 100 is the best quality, so the fastest compression.
+            return new int[] {CV_IMWRITE_PNG_COMPRESSION, (100 - this.quality) * 9 / 100, 0};
+        }
+
+        return new int[] {0};
+    }
+}
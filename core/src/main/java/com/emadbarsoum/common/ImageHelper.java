@@ -1,15 +1,73 @@
 package com.emadbarsoum.common;
 
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.opencv_core.*;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
 
 /**
  * A helper class that simplify dealing with JavaCV images.
  */
 public class ImageHelper
 {
+    public static boolean isRaw(MetadataParser metadata)
+    {
+        return metadata.has("type") && metadata.get("type").equals("raw");
+    }
+
+    // Creating IplImage from an image stored in a sequence file, the image is either raw or encoded.
+    public static IplImage createIplImage(byte[] imageData, int length, MetadataParser metadata)
+    {
+        if (isRaw(metadata))
+        {
+            return createIplImageFromRawBytes(imageData, length, metadata);
+        }
+
+        return cvDecodeImage(cvMat(1, length, CV_8UC1, new BytePointer(imageData)));
+    }
+
+    // Same as createIplImage(), but raw images are taken from the given pool instead of being allocated,
+    // they must be released by releaseIplImage() with the same pool.
+    public static IplImage createIplImage(byte[] imageData, int length, MetadataParser metadata, ImagePool pool, TaskAttemptContext context)
+    {
+        if (isRaw(metadata))
+        {
+            return createIplImageFromRawBytes(imageData, length, metadata, pool, context);
+        }
+
+        return cvDecodeImage(cvMat(1, length, CV_8UC1, new BytePointer(imageData)));
+    }
+
+    // Release an image created by createIplImage().
+    public static void releaseIplImage(IplImage image, MetadataParser metadata)
+    {
+        if (isRaw(metadata))
+        {
+            image.release();
+        }
+        else
+        {
+            cvReleaseImage(image);
+        }
+    }
+
+    // Release an image created by createIplImage() with a pool, raw images are given back to the pool.
+    public static void releaseIplImage(IplImage image, MetadataParser metadata, ImagePool pool)
+    {
+        if (isRaw(metadata))
+        {
+            pool.release(image);
+        }
+        else
+        {
+            cvReleaseImage(image);
+        }
+    }
+
     // Creating IplImage from a raw uncompressed image data.
     public static IplImage createIplImageFromRawBytes(byte[] imageData, int length, MetadataParser metadata)
     {
@@ -21,18 +79,52 @@ public class ImageHelper
         return createIplImageFromRawBytes(imageData, length, width, height, channelCount, depth);
     }
 
+    // Creating IplImage from a raw uncompressed image data, the image is taken from the given pool.
+    public static IplImage createIplImageFromRawBytes(byte[] imageData, int length, MetadataParser metadata, ImagePool pool, TaskAttemptContext context)
+    {
+        int width = metadata.getAsInt("width");
+        int height = metadata.getAsInt("height");
+        int channelCount = metadata.getAsInt("channel_count");
+        int depth = metadata.getAsInt("depth");
+
+        IplImage image = pool.acquire(width, height, depth, channelCount, context);
+        copyRawBytes(imageData, length, image);
+
+        return image;
+    }
+
     // Creating IplImage from a raw uncompressed image data.
     public static IplImage createIplImageFromRawBytes(byte[] imageData, int length, int width, int height, int channelCount, int depth)
     {
         IplImage image = IplImage.create(width, height, depth, channelCount);
-
-        ByteBuffer buffer = image.getByteBuffer();
-        byte[] rawBuffer = Arrays.copyOf(imageData, length);
-        buffer.put(rawBuffer);
+        copyRawBytes(imageData, length, image);
 
         return image;
     }
 
+    // Copy raw image data, such as the backing array of a BytesWritable, straight into the native image data.
+    // The data is copied once, the array may be larger than length.
+    public static void copyRawBytes(byte[] imageData, int length, IplImage image)
+    {
+        if (length > image.imageSize())
+        {
+            throw new IllegalArgumentException("The raw image data is larger than the image: " + length + " > " + image.imageSize());
+        }
+
+        image.getByteBuffer().put(imageData, 0, length);
+    }
+
+    // Same as copyRawBytes(), from a buffer such as a view of a memory mapped sequence file.
+    public static void copyRawBytes(ByteBuffer imageData, IplImage image)
+    {
+        if (imageData.remaining() > image.imageSize())
+        {
+            throw new IllegalArgumentException("The raw image data is larger than the image: " + imageData.remaining() + " > " + image.imageSize());
+        }
+
+        image.getByteBuffer().put(imageData.duplicate());
+    }
+
     public static void serializeMat(String name, Mat mat, String path)
     {
         FileStorage storage = new FileStorage(path, FileStorage.WRITE);
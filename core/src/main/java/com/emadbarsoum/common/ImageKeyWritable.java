@@ -0,0 +1,402 @@
+package com.emadbarsoum.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * ImageKeyWritable is the binary key of an image sequence file, it has the same content as the legacy
+ * "name=...;ext=...;..." Text key but with typed fields, so the mappers don't split and parse a string per image.
+ * Any other metadata (label, label_count...) is kept in the extension map.
+ *
+ * toString() returns the legacy metadata, and the keys are sorted by name, ext and path like the Text keys. The
+ * registered raw comparator compares the serialized keys without deserializing them.
+ */
+public class ImageKeyWritable implements WritableComparable<ImageKeyWritable>
+{
+    private String name = "";
+    private String ext = "";
+    private String path = "";
+    private String type = "";
+    private int width = 0;
+    private int height = 0;
+    private int channels = 0;
+    private int depth = 0;
+    private int labelId = -1;
+    private TreeMap<String, String> extensions = new TreeMap<String, String>();
+
+    static
+    {
+        WritableComparator.define(ImageKeyWritable.class, new Comparator());
+    }
+
+    // Needed by Hadoop to deserialize ImageKeyWritable.
+    public ImageKeyWritable()
+    {}
+
+    public ImageKeyWritable(ImageKeyWritable other)
+    {
+        this.name = other.name;
+        this.ext = other.ext;
+        this.path = other.path;
+        this.type = other.type;
+        this.width = other.width;
+        this.height = other.height;
+        this.channels = other.channels;
+        this.depth = other.depth;
+        this.labelId = other.labelId;
+        this.extensions.putAll(other.extensions);
+    }
+
+    public String name()
+    {
+        return this.name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    public String ext()
+    {
+        return this.ext;
+    }
+
+    public void setExt(String ext)
+    {
+        this.ext = ext;
+    }
+
+    public String path()
+    {
+        return this.path;
+    }
+
+    public void setPath(String path)
+    {
+        this.path = path;
+    }
+
+    // "raw" for uncompressed images, empty otherwise.
+    public String type()
+    {
+        return this.type;
+    }
+
+    public void setType(String type)
+    {
+        this.type = type;
+    }
+
+    public boolean isRaw()
+    {
+        return this.type.equals("raw");
+    }
+
+    public int width()
+    {
+        return this.width;
+    }
+
+    public int height()
+    {
+        return this.height;
+    }
+
+    public int channels()
+    {
+        return this.channels;
+    }
+
+    public int depth()
+    {
+        return this.depth;
+    }
+
+    public void setRaw(int width, int height, int channels, int depth)
+    {
+        this.type = "raw";
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.depth = depth;
+    }
+
+    // -1 if the image isn't labeled.
+    public int labelId()
+    {
+        return this.labelId;
+    }
+
+    public void setLabelId(int labelId)
+    {
+        this.labelId = labelId;
+    }
+
+    public Map<String, String> extensions()
+    {
+        return this.extensions;
+    }
+
+    // Fill the key from legacy metadata, the unknown names go to the extension map.
+    public static ImageKeyWritable fromMetadata(MetadataParser metadata)
+    {
+        ImageKeyWritable key = new ImageKeyWritable();
+
+        for (Map.Entry<String, String> nameValue : metadata.entries())
+        {
+            String name = nameValue.getKey();
+            String value = nameValue.getValue();
+
+            if (name.equals("name"))
+            {
+                key.name = value;
+            }
+            else if (name.equals("ext"))
+            {
+                key.ext = value;
+            }
+            else if (name.equals("path"))
+            {
+                key.path = value;
+            }
+            else if (name.equals("type"))
+            {
+                key.type = value;
+            }
+            else if (name.equals("width"))
+            {
+                key.width = Integer.parseInt(value);
+            }
+            else if (name.equals("height"))
+            {
+                key.height = Integer.parseInt(value);
+            }
+            else if (name.equals("channel_count"))
+            {
+                key.channels = Integer.parseInt(value);
+            }
+            else if (name.equals("depth"))
+            {
+                key.depth = Integer.parseInt(value);
+            }
+            else if (name.equals("label_id"))
+            {
+                key.labelId = Integer.parseInt(value);
+            }
+            else
+            {
+                key.extensions.put(name, value);
+            }
+        }
+
+        return key;
+    }
+
+    // The legacy Text key of a sequence file key, a Text key is returned as is.
+    public static Text toText(Writable key)
+    {
+        if (key instanceof Text)
+        {
+            return (Text)key;
+        }
+
+        return new Text(key.toString());
+    }
+
+    // The key as metadata, without building and parsing the metadata string.
+    public MetadataParser toMetadataParser()
+    {
+        MetadataParser metadata = new MetadataParser();
+
+        metadata.put("name", this.name);
+        metadata.put("ext", this.ext);
+
+        if (!this.type.isEmpty())
+        {
+            metadata.put("type", this.type);
+        }
+
+        if (isRaw())
+        {
+            metadata.put("width", this.width);
+            metadata.put("height", this.height);
+            metadata.put("channel_count", this.channels);
+            metadata.put("depth", this.depth);
+        }
+
+        if (this.labelId >= 0)
+        {
+            metadata.put("label_id", this.labelId);
+        }
+
+        for (Map.Entry<String, String> nameValue : this.extensions.entrySet())
+        {
+            metadata.put(nameValue.getKey(), nameValue.getValue());
+        }
+
+        if (!this.path.isEmpty())
+        {
+            metadata.put("path", this.path);
+        }
+
+        return metadata;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        Text.writeString(out, this.name);
+        Text.writeString(out, this.ext);
+        Text.writeString(out, this.path);
+        Text.writeString(out, this.type);
+
+        WritableUtils.writeVInt(out, this.width);
+        WritableUtils.writeVInt(out, this.height);
+        WritableUtils.writeVInt(out, this.channels);
+        WritableUtils.writeVInt(out, this.depth);
+        WritableUtils.writeVInt(out, this.labelId);
+
+        WritableUtils.writeVInt(out, this.extensions.size());
+        for (Map.Entry<String, String> nameValue : this.extensions.entrySet())
+        {
+            Text.writeString(out, nameValue.getKey());
+            Text.writeString(out, nameValue.getValue());
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        this.name = Text.readString(in);
+        this.ext = Text.readString(in);
+        this.path = Text.readString(in);
+        this.type = Text.readString(in);
+
+        this.width = WritableUtils.readVInt(in);
+        this.height = WritableUtils.readVInt(in);
+        this.channels = WritableUtils.readVInt(in);
+        this.depth = WritableUtils.readVInt(in);
+        this.labelId = WritableUtils.readVInt(in);
+
+        this.extensions.clear();
+        int count = WritableUtils.readVInt(in);
+        for (int i = 0; i < count; ++i)
+        {
+            String name = Text.readString(in);
+            this.extensions.put(name, Text.readString(in));
+        }
+    }
+
+    @Override
+    public int compareTo(ImageKeyWritable other)
+    {
+        // Same order as the raw comparator, which is used by the shuffle.
+        try
+        {
+            DataOutputBuffer first = new DataOutputBuffer();
+            DataOutputBuffer second = new DataOutputBuffer();
+            this.write(first);
+            other.write(second);
+
+            return new Comparator().compare(first.getData(), 0, first.getLength(), second.getData(), 0, second.getLength());
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof ImageKeyWritable))
+        {
+            return false;
+        }
+
+        ImageKeyWritable key = (ImageKeyWritable)other;
+        return this.name.equals(key.name)         &&
+               this.ext.equals(key.ext)           &&
+               this.path.equals(key.path)         &&
+               this.type.equals(key.type)         &&
+               (this.width == key.width)          &&
+               (this.height == key.height)        &&
+               (this.channels == key.channels)    &&
+               (this.depth == key.depth)          &&
+               (this.labelId == key.labelId)      &&
+               this.extensions.equals(key.extensions);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = this.name.hashCode();
+        hash = 31 * hash + this.ext.hashCode();
+        hash = 31 * hash + this.path.hashCode();
+
+        return hash;
+    }
+
+    // The legacy metadata, name=...;ext=...;...
+    @Override
+    public String toString()
+    {
+        return toMetadataParser().toMetadata();
+    }
+
+    /**
+     * Compare the serialized keys, by name, ext and path and then by the remaining bytes.
+     */
+    public static class Comparator extends WritableComparator
+    {
+        public Comparator()
+        {
+            super(ImageKeyWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+        {
+            try
+            {
+                int end1 = s1 + l1;
+                int end2 = s2 + l2;
+
+                // name, ext and path.
+                for (int i = 0; i < 3; ++i)
+                {
+                    int size1 = WritableUtils.decodeVIntSize(b1[s1]);
+                    int size2 = WritableUtils.decodeVIntSize(b2[s2]);
+                    int length1 = readVInt(b1, s1);
+                    int length2 = readVInt(b2, s2);
+
+                    int result = compareBytes(b1, s1 + size1, length1, b2, s2 + size2, length2);
+                    if (result != 0)
+                    {
+                        return result;
+                    }
+
+                    s1 += size1 + length1;
+                    s2 += size2 + length2;
+                }
+
+                return compareBytes(b1, s1, end1 - s1, b2, s2, end2 - s2);
+            }
+            catch (IOException e)
+            {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.emadbarsoum.common;
+
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ImagePool keeps the native images that are no longer used, keyed by (width, height, depth, channels), so that
+ * the temporary images of a task are allocated once per size instead of once per record.
+ *
+ * The pooled images are bounded by maxPooledBytes, the least recently used sizes are released first. The most
+ * recently released size is always kept, so that a task decoding large images still reuses its image.
+ * An image must be given back by release() and must not be used after that.
+ */
+public class ImagePool implements AutoCloseable
+{
+    private static final long defaultMaxPooledBytes = 64L * 1024 * 1024;
+
+    private LinkedHashMap<String, ArrayDeque<IplImage>> freeImages = new LinkedHashMap<String, ArrayDeque<IplImage>>(16, 0.75f, true);
+    private long maxPooledBytes;
+    private long pooledBytes = 0;
+    private long allocatedBytes = 0;
+
+    public ImagePool()
+    {
+        this(defaultMaxPooledBytes);
+    }
+
+    public ImagePool(long maxPooledBytes)
+    {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    // Total native bytes allocated by this pool since it was created.
+    public long allocatedBytes()
+    {
+        return this.allocatedBytes;
+    }
+
+    public IplImage acquire(int width, int height, int depth, int channels, TaskAttemptContext context)
+    {
+        ArrayDeque<IplImage> images = this.freeImages.get(key(width, height, depth, channels));
+        if ((images != null) && !images.isEmpty())
+        {
+            IplImage image = images.pop();
+            this.pooledBytes -= image.imageSize();
+
+            NativeMemoryCounter.poolHit(context);
+
+            return image;
+        }
+
+        IplImage image = IplImage.create(width, height, depth, channels);
+
+        this.allocatedBytes += image.imageSize();
+        NativeMemoryCounter.allocated(context, image.imageSize());
+
+        return image;
+    }
+
+    public void release(IplImage image)
+    {
+        if (image == null)
+        {
+            return;
+        }
+
+        String key = key(image.width(), image.height(), image.depth(), image.nChannels());
+        ArrayDeque<IplImage> images = this.freeImages.get(key);
+        if (images == null)
+        {
+            images = new ArrayDeque<IplImage>();
+            this.freeImages.put(key, images);
+        }
+
+        images.push(image);
+        this.pooledBytes += image.imageSize();
+
+        // Evict the least recently used sizes, the size just released is the most recently used.
+        Iterator<Map.Entry<String, ArrayDeque<IplImage>>> iterator = this.freeImages.entrySet().iterator();
+        while ((this.pooledBytes > this.maxPooledBytes) && iterator.hasNext())
+        {
+            Map.Entry<String, ArrayDeque<IplImage>> entry = iterator.next();
+            if (entry.getKey().equals(key))
+            {
+                break;
+            }
+
+            for (IplImage evicted : entry.getValue())
+            {
+                this.pooledBytes -= evicted.imageSize();
+                evicted.release();
+            }
+
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        for (ArrayDeque<IplImage> images : this.freeImages.values())
+        {
+            for (IplImage image : images)
+            {
+                image.release();
+            }
+        }
+
+        this.freeImages.clear();
+        this.pooledBytes = 0;
+    }
+
+    private static String key(int width, int height, int depth, int channels)
+    {
+        return width + "x" + height + "x" + depth + "x" + channels;
+    }
+}
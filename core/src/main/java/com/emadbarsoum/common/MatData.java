@@ -1,19 +1,27 @@
 package com.emadbarsoum.common;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
 import org.bytedeco.javacpp.opencv_core.*;
 
 /**
  * A small container to help convert Mat type to Byte array and vice versa.
+ *
+ * MatData is also a Writable, so it can be stored directly as a value in a sequence file.
  */
-public class MatData
+public class MatData implements Writable
 {
     private int rows;
     private int cols;
     private int type;
     private byte[] data;
 
-    private MatData()
+    // Needed by Hadoop to deserialize MatData.
+    public MatData()
     {}
 
     public int rows()
@@ -44,8 +52,18 @@ public class MatData
         matData.cols = mat.cols();
         matData.type = mat.type();
 
-        matData.data = new byte[mat.rows()*mat.cols()*(int)(mat.elemSize())];
-        mat.getByteBuffer().get(matData.data);
+        // A byte array holds at most 2 GB.
+        long size = (long)mat.rows() * mat.cols() * mat.elemSize();
+        if (size > Integer.MAX_VALUE - 8)
+        {
+            throw new IllegalArgumentException("The Mat is too large for MatData: " + size + " bytes.");
+        }
+
+        matData.data = new byte[(int)size];
+        if (matData.data.length > 0)
+        {
+            mat.getByteBuffer().get(matData.data);
+        }
 
         return matData;
     }
@@ -71,8 +89,37 @@ public class MatData
     public Mat toMat()
     {
         Mat mat = new Mat(this.rows, this.cols, this.type);
-        mat.getByteBuffer().put(this.data);
+        if (this.data.length > 0)
+        {
+            mat.getByteBuffer().put(this.data);
+        }
 
         return mat;
     }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeInt(this.rows);
+        out.writeInt(this.cols);
+        out.writeInt(this.type);
+        out.writeInt(this.data.length);
+        out.write(this.data);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        this.rows = in.readInt();
+        this.cols = in.readInt();
+        this.type = in.readInt();
+
+        int length = in.readInt();
+        if ((this.data == null) || (this.data.length != length))
+        {
+            this.data = new byte[length];
+        }
+
+        in.readFully(this.data);
+    }
 }
@@ -1,9 +1,12 @@
 package com.emadbarsoum.common;
 
+import org.apache.hadoop.io.Writable;
+
 import java.util.HashMap;
 import java.util.InvalidPropertiesFormatException;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Parser for the Key value of the sequence file. Key type is text and will contains metadata.
@@ -11,13 +14,34 @@ import java.util.Map;
 public class MetadataParser
 {
     private String metadata;
-    private Map<String, String> nameValues = new HashMap<String, String>();
+    private Map<String, String> nameValues = new LinkedHashMap<String, String>();
+    private Map<String, Integer> intValues = new HashMap<String, Integer>();
+
+    // Empty metadata, filled with put().
+    public MetadataParser()
+    {
+        this.metadata = "";
+    }
 
     public MetadataParser(String metadata)
     {
         this.metadata = metadata;
     }
 
+    // The metadata of a sequence file key, either a legacy Text key or an ImageKeyWritable.
+    public static MetadataParser from(Writable key) throws InvalidPropertiesFormatException
+    {
+        if (key instanceof ImageKeyWritable)
+        {
+            return ((ImageKeyWritable)key).toMetadataParser();
+        }
+
+        MetadataParser metadata = new MetadataParser(key.toString());
+        metadata.parse();
+
+        return metadata;
+    }
+
     public boolean has(String name)
     {
         return this.nameValues.containsKey(name);
@@ -28,9 +52,22 @@ public class MetadataParser
         return this.nameValues.get(name);
     }
 
+    // The value is parsed once and cached.
     public int getAsInt(String name)
     {
-        return Integer.parseInt(this.nameValues.get(name));
+        Integer value = this.intValues.get(name);
+        if (value == null)
+        {
+            value = Integer.parseInt(this.nameValues.get(name));
+            this.intValues.put(name, value);
+        }
+
+        return value;
+    }
+
+    public Set<Map.Entry<String, String>> entries()
+    {
+        return this.nameValues.entrySet();
     }
 
     public void remove(String name)
@@ -38,37 +75,36 @@ public class MetadataParser
         if (this.has(name))
         {
             this.nameValues.remove(name);
+            this.intValues.remove(name);
         }
     }
 
     public void put(String name, String value)
     {
         this.nameValues.put(name, value);
+        this.intValues.remove(name);
     }
 
     public void put(String name, int value)
     {
         this.nameValues.put(name, Integer.toString(value));
+        this.intValues.put(name, value);
     }
 
     public String toMetadata()
     {
-        String metadata = "";
-        Iterator it = this.nameValues.entrySet().iterator();
-        while (it.hasNext())
+        StringBuilder metadata = new StringBuilder();
+        for (Map.Entry<String, String> nameValue : this.nameValues.entrySet())
         {
-            Map.Entry pairs = (Map.Entry)it.next();
-            if (metadata.isEmpty())
-            {
-                metadata += pairs.getKey() + "=" + pairs.getValue();
-            }
-            else
+            if (metadata.length() > 0)
             {
-                metadata += ";" + pairs.getKey() + "=" + pairs.getValue();
+                metadata.append(';');
             }
+
+            metadata.append(nameValue.getKey()).append('=').append(nameValue.getValue());
         }
 
-        return metadata;
+        return metadata.toString();
     }
 
     public void parse() throws InvalidPropertiesFormatException
@@ -82,7 +118,7 @@ public class MetadataParser
                 throw new InvalidPropertiesFormatException("Invalid metadata...");
             }
 
-            this.nameValues.put(nameValueSplit[0], nameValueSplit[1]);
+            this.put(nameValueSplit[0], nameValueSplit[1]);
         }
     }
 }
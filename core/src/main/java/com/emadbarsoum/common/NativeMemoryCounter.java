@@ -0,0 +1,31 @@
+package com.emadbarsoum.common;
+
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Hadoop counters of the native (OpenCV) memory allocated by the tasks, so that a leak or a missing pool
+ * shows up in the job counters instead of a killed container.
+ */
+public enum NativeMemoryCounter
+{
+    BYTES_ALLOCATED,
+    ALLOCATIONS,
+    POOL_HITS;
+
+    public static void allocated(TaskAttemptContext context, long bytes)
+    {
+        if (context != null)
+        {
+            context.getCounter(BYTES_ALLOCATED).increment(bytes);
+            context.getCounter(ALLOCATIONS).increment(1);
+        }
+    }
+
+    public static void poolHit(TaskAttemptContext context)
+    {
+        if (context != null)
+        {
+            context.getCounter(POOL_HITS).increment(1);
+        }
+    }
+}
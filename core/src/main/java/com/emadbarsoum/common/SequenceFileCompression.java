@@ -0,0 +1,130 @@
+package com.emadbarsoum.common;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.Lz4Codec;
+import org.apache.hadoop.io.compress.SnappyCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.NativeCodeLoader;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The sequence file compression options shared by the tools that write image sequence files and the map only jobs:
+ *
+ *     -compress none|record|block   the SequenceFile compression, none by default.
+ *     -codec deflate|bzip2|snappy|lz4   the compression codec, deflate by default.
+ *     -sync <bytes>   the interval between sync markers, for block compression it is also the size of a block.
+ *
+ * Snappy and LZ4 need the native Hadoop library, without it the codec falls back to deflate, which use
+ * java.util.zip when the native zlib isn't loaded.
+ */
+public class SequenceFileCompression
+{
+    private static final Logger log = LoggerFactory.getLogger(SequenceFileCompression.class);
+
+    public static final String usage = "[-compress none|record|block] [-codec deflate|bzip2|snappy|lz4] [-sync <bytes>]";
+
+    // Check the values of the compression options, if any.
+    public static boolean isValid(CommandParser parser)
+    {
+        if (parser.has("compress"))
+        {
+            String type = parser.get("compress");
+            if ((type == null) || !(type.equals("none") || type.equals("record") || type.equals("block")))
+            {
+                return false;
+            }
+        }
+
+        if (parser.has("codec"))
+        {
+            String codec = parser.get("codec");
+            if ((codec == null) || !(codec.equals("deflate") || codec.equals("bzip2") || codec.equals("snappy") || codec.equals("lz4")))
+            {
+                return false;
+            }
+        }
+
+        if (parser.has("sync") && ((parser.get("sync") == null) || (parser.getAsInt("sync") < 1)))
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    public static CompressionType type(CommandParser parser)
+    {
+        if (!parser.has("compress"))
+        {
+            return CompressionType.NONE;
+        }
+
+        return CompressionType.valueOf(parser.get("compress").toUpperCase());
+    }
+
+    public static CompressionCodec codec(CommandParser parser, Configuration conf)
+    {
+        return codec(parser.has("codec") ? parser.get("codec") : "deflate", conf);
+    }
+
+    public static CompressionCodec codec(String name, Configuration conf)
+    {
+        return ReflectionUtils.newInstance(codecClass(name), conf);
+    }
+
+    public static Class<? extends CompressionCodec> codecClass(String name)
+    {
+        if (name.equals("bzip2"))
+        {
+            return BZip2Codec.class;
+        }
+        else if (name.equals("snappy"))
+        {
+            if (NativeCodeLoader.isNativeCodeLoaded() && NativeCodeLoader.buildSupportsSnappy())
+            {
+                return SnappyCodec.class;
+            }
+
+            log.warn("Snappy needs the native Hadoop library, falling back to deflate.");
+        }
+        else if (name.equals("lz4"))
+        {
+            if (NativeCodeLoader.isNativeCodeLoaded())
+            {
+                return Lz4Codec.class;
+            }
+
+            log.warn("LZ4 needs the native Hadoop library, falling back to deflate.");
+        }
+
+        return DefaultCodec.class;
+    }
+
+    // Set the output compression of a job that write a sequence file.
+    public static void setOutputCompression(Job job, CommandParser parser)
+    {
+        CompressionType type = type(parser);
+        if (type == CompressionType.NONE)
+        {
+            return;
+        }
+
+        FileOutputFormat.setCompressOutput(job, true);
+        FileOutputFormat.setOutputCompressorClass(job, codecClass(parser.has("codec") ? parser.get("codec") : "deflate"));
+        SequenceFileOutputFormat.setOutputCompressionType(job, type);
+
+        // The output format doesn't control the sync markers, but each compressed block starts with one.
+        if (parser.has("sync") && (type == CompressionType.BLOCK))
+        {
+            job.getConfiguration().setInt("io.seqfile.compress.blocksize", parser.getAsInt("sync"));
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.emadbarsoum.common;
+
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Hadoop counters of the time spent by the tasks loading their models (query image, cascade, vocabulary...) versus
+ * the time spent processing the images. The average per image is IMAGE_MICROS / IMAGES, and MODEL_LOADS should be
+ * equal to the number of tasks.
+ */
+public enum TaskTimeCounter
+{
+    MODEL_LOAD_MICROS,
+    MODEL_LOADS,
+    IMAGE_MICROS,
+    IMAGES;
+
+    public static void modelLoaded(TaskAttemptContext context, long startNanos)
+    {
+        context.getCounter(MODEL_LOAD_MICROS).increment((System.nanoTime() - startNanos) / 1000);
+        context.getCounter(MODEL_LOADS).increment(1);
+    }
+
+    public static void imageProcessed(TaskAttemptContext context, long startNanos)
+    {
+        context.getCounter(IMAGE_MICROS).increment((System.nanoTime() - startNanos) / 1000);
+        context.getCounter(IMAGES).increment(1);
+    }
+}
@@ -65,6 +65,26 @@ public final class HVisionDriver
             {
                 com.emadbarsoum.tools.SVMModelsFromSequenceFile.main(remainingArgs);
             }
+            else if (args[0].equals("bowsearch"))
+            {
+                com.emadbarsoum.tools.BOWIndexSearch.main(remainingArgs);
+            }
+            else if (args[0].equals("dupsearch"))
+            {
+                com.emadbarsoum.tools.DuplicateSearch.main(remainingArgs);
+            }
+            else if (args[0].equals("serve"))
+            {
+                com.emadbarsoum.tools.QueryServer.main(remainingArgs);
+            }
+            else if (args[0].equals("iseqbench"))
+            {
+                com.emadbarsoum.tools.SequenceFileBenchmark.main(remainingArgs);
+            }
+            else if (args[0].equals("kernelbench"))
+            {
+                com.emadbarsoum.tools.KernelBenchmark.main(remainingArgs);
+            }
             // Hadoop tasks
             else
             {
@@ -75,14 +95,25 @@ public final class HVisionDriver
                 programDriver.addClass("median", Median.class, "Map task that blur a set of images using Median filter.");
                 programDriver.addClass("thumbnail", Thumbnail.class, "Map task that create thumbnails from a set of images.");
                 programDriver.addClass("findfaces", FindFaces.class, "Map task that find all faces in each image.");
-                programDriver.addClass("color2gray", Gaussian.class, "Map task that convert a set of colored images to monochrome images.");
+                programDriver.addClass("color2gray", Color2Gray.class, "Map task that convert a set of colored images to monochrome images.");
                 programDriver.addClass("dilate", Dilate.class, "Map task that dilate a set of images.");
                 programDriver.addClass("erode", Erode.class, "Map task that erode a set of images.");
+                programDriver.addClass("featurize", Featurize.class, "Map task that compute the search feature of a set of images.");
+                programDriver.addClass("pipeline", Pipeline.class, "Map task that apply a chain of filters to a set of images in a single pass.");
+                programDriver.addClass("tile", Tile.class, "Map task that split a set of images into raw tiles with a halo.");
+                programDriver.addClass("ingest", ImageIngest.class, "Map task that pack a folder of image files into image sequence files.");
 
                 // MapReduce tasks
                 programDriver.addClass("imagesearch", ImageSearch.class, "MapReduce task that performs content based image search using various algorithms.");
                 programDriver.addClass("facestat", FaceStat.class, "MapReduce task that summarize the number of faces per image.");
                 programDriver.addClass("imagesearchtotal", ImageSearchTotalOrder.class, "MapReduce task that performs content based image search using various algorithms. The resulted sequence files can be concatenated.");
+                programDriver.addClass("imagebatchsearch", ImageBatchSearch.class, "MapReduce task that performs content based image search for a set of query images in a single pass.");
+                programDriver.addClass("bowindex", BOWIndex.class, "MapReduce task that build a TF-IDF weighted BOW inverted index.");
+                programDriver.addClass("imagededup", ImageDedup.class, "MapReduce task that find all the near duplicate pairs using perceptual hash.");
+                programDriver.addClass("surfindex", SurfIndex.class, "MapReduce task that build a sharded FLANN index of the SURF descriptors of a set of images.");
+                programDriver.addClass("surfindexsearch", SurfIndexSearch.class, "MapReduce task that search the SURF descriptor index by voting per image.");
+                programDriver.addClass("metastat", MetadataStat.class, "MapReduce task that count the images per value of a metadata entry.");
+                programDriver.addClass("untile", Untile.class, "MapReduce task that stitch the tiles of a set of images back into whole images.");
                 programDriver.addClass("icbowtrain", ImageClassificationBOWTrainer.class, "MapReduce task that performs BOW training using SVM.");
 
                 // Run the task
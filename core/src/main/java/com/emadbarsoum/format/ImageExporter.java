@@ -0,0 +1,223 @@
+package com.emadbarsoum.format;
+
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.MetadataParser;
+import org.bytedeco.javacpp.BytePointer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * ImageExporter writes images to files with a bounded pool of threads, used by idump and isrdump. The stored bytes
+ * of an encoded image are written as is when it is already in the target format, the other images are encoded,
+ * or decoded and re-encoded, by the pool threads.
+ *
+ * The buffers given to the exporter must stay valid until close(), i.e. a copy of a reused value or a view of a
+ * memory mapped file.
+ */
+public class ImageExporter
+{
+    private ThreadPoolExecutor pool;
+    private AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    private AtomicLong written = new AtomicLong();
+
+    public ImageExporter(int threads)
+    {
+        // The queue bounds the images held in memory, when it is full the reading thread writes the image itself.
+        this.pool = new ThreadPoolExecutor(
+            threads,
+            threads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(2 * threads),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    // Write an encoded image, it is re-encoded only if ext isn't the same format as targetExt.
+    public void exportEncoded(final String outputPath, final ByteBuffer data, final String ext, final String targetExt) throws Exception
+    {
+        submit(new Task()
+        {
+            @Override
+            public void run() throws Exception
+            {
+                if (sameFormat(ext, targetExt))
+                {
+                    write(outputPath, data.duplicate());
+                    return;
+                }
+
+                IplImage image = cvDecodeImage(cvMat(1, data.remaining(), CV_8UC1, pointer(data)));
+                if (image == null)
+                {
+                    throw new IOException("Can't decode the image of " + outputPath);
+                }
+
+                try
+                {
+                    encode(outputPath, image, targetExt);
+                }
+                finally
+                {
+                    cvReleaseImage(image);
+                }
+            }
+        });
+    }
+
+    // Encode and write a raw image, the metadata gives its size.
+    public void exportRaw(final String outputPath, final ByteBuffer data, final MetadataParser metadata, final String targetExt) throws Exception
+    {
+        submit(new Task()
+        {
+            @Override
+            public void run() throws Exception
+            {
+                IplImage image = IplImage.create(
+                    metadata.getAsInt("width"),
+                    metadata.getAsInt("height"),
+                    metadata.getAsInt("depth"),
+                    metadata.getAsInt("channel_count"));
+
+                try
+                {
+                    ImageHelper.copyRawBytes(data.duplicate(), image);
+                    encode(outputPath, image, targetExt);
+                }
+                finally
+                {
+                    image.release();
+                }
+            }
+        });
+    }
+
+    // Wait for all the images, and throw the first failure if any. Return the number of images written.
+    public long close() throws Exception
+    {
+        this.pool.shutdown();
+        this.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        if (this.failure.get() != null)
+        {
+            throw this.failure.get();
+        }
+
+        return this.written.get();
+    }
+
+    public static boolean sameFormat(String ext, String targetExt)
+    {
+        return normalize(ext).equals(normalize(targetExt));
+    }
+
+    // A copy of reused bytes, such as the value backing array of a reader, for exportEncoded() or exportRaw().
+    public static ByteBuffer copy(ByteBuffer data)
+    {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+
+        return copy;
+    }
+
+    public static void write(String outputPath, ByteBuffer data) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(outputPath);
+        try
+        {
+            while (data.hasRemaining())
+            {
+                out.getChannel().write(data);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void submit(final Task task) throws Exception
+    {
+        // Stop at the first failure, instead of exporting the remaining images.
+        if (this.failure.get() != null)
+        {
+            throw this.failure.get();
+        }
+
+        this.pool.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    task.run();
+                    written.incrementAndGet();
+                }
+                catch (Exception e)
+                {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+    }
+
+    private static void encode(String outputPath, IplImage image, String targetExt) throws IOException
+    {
+        CvMat imageMat = cvEncodeImage("." + targetExt, image);
+        try
+        {
+            ByteBuffer data = imageMat.getByteBuffer();
+            data.limit(imageMat.size());
+
+            write(outputPath, data);
+        }
+        finally
+        {
+            cvReleaseMat(imageMat);
+        }
+    }
+
+    // A native pointer to the bytes, without copy for a direct buffer such as a memory mapped file.
+    private static BytePointer pointer(ByteBuffer data)
+    {
+        if (data.isDirect())
+        {
+            return new BytePointer(data.duplicate());
+        }
+
+        return new BytePointer(Arrays.copyOfRange(data.array(), data.arrayOffset() + data.position(), data.arrayOffset() + data.limit()));
+    }
+
+    private static String normalize(String ext)
+    {
+        String format = ext.toLowerCase();
+        if (format.equals("jpeg") || format.equals("jpe"))
+        {
+            return "jpg";
+        }
+
+        if (format.equals("tiff"))
+        {
+            return "tif";
+        }
+
+        return format;
+    }
+
+    private interface Task
+    {
+        void run() throws Exception;
+    }
+}
@@ -2,15 +2,21 @@ package com.emadbarsoum.format;
 
 import com.emadbarsoum.common.*;
 import com.emadbarsoum.lib.ImageSearchResultReader;
+import com.emadbarsoum.lib.ImageSequenceFileReader;
 import org.apache.hadoop.conf.Configuration;
 
 import java.io.File;
-
-import static org.bytedeco.javacpp.opencv_highgui.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 /**
  * com.emadbarsoum.format.ImageSearchResultDump
  *
+ * Dump the top images of an image search result. The images are read from their original path, or with -s from
+ * the indexed image sequence file that was searched, and written by a pool of threads (-threads). The stored
+ * bytes are written as is when they are already in the output format (-format, the original format by default).
  */
 public class ImageSearchResultDump
 {
@@ -18,7 +24,7 @@ public class ImageSearchResultDump
     {
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                 ||
-            (parser.getNumberOfArgs() != 3) ||
+            (parser.getNumberOfArgs() < 3)  ||
             !(parser.has("i") && parser.has("o") && parser.has("top")))
         {
             showUsage();
@@ -32,35 +38,104 @@ public class ImageSearchResultDump
             System.exit(2);
         }
 
+        int threads = parser.has("threads") ? parser.getAsInt("threads") : Runtime.getRuntime().availableProcessors();
+        if (threads < 1)
+        {
+            System.out.println("threads must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
         Configuration conf = new Configuration();
         conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
 
         File inputFile = new File(parser.get("i"));
 
+        // Only the metadata of the results is needed, the images are read below.
         ImageSearchResultReader reader = new ImageSearchResultReader(conf);
-
+        reader.setLoadImages(false);
         reader.open(inputFile.getAbsolutePath());
 
-        int fileIndex = 0;
-        while (reader.next())
+        // Read the images from the indexed image sequence file that was searched, if given.
+        ImageSequenceFileReader images = null;
+        if (parser.has("s"))
         {
-            String outputPath = parser.get("o") + "/" + fileIndex + "." + reader.ext();
+            images = new ImageSequenceFileReader(conf);
+            images.open(new File(parser.get("s")).getAbsolutePath());
+            if (!images.hasIndex())
+            {
+                throw new Exception("The image sequence file " + parser.get("s") + " has no index.");
+            }
+        }
 
-            cvSaveImage(outputPath, reader.image());
+        ImageExporter exporter = new ImageExporter(threads);
+        try
+        {
+            int fileIndex = 0;
+            while ((fileIndex < numOfImages) && reader.next())
+            {
+                String targetExt = parser.has("format") ? parser.get("format") : reader.ext();
+                String outputPath = parser.get("o") + "/" + fileIndex + "." + targetExt;
+
+                ++fileIndex;
+
+                if (images != null)
+                {
+                    // Looked up by path, images of different folders can have the same name.
+                    String imageKey = images.indexKey(reader.metadata());
+                    if (!images.getRecord(imageKey))
+                    {
+                        System.out.println("Skipping: " + imageKey + " isn't in " + parser.get("s"));
+                        continue;
+                    }
 
-            ++fileIndex;
+                    // The views of a mapped file stay valid, the value backing array is reused by the reader.
+                    ByteBuffer data = images.isMapped() ? images.data() : ImageExporter.copy(images.data());
+                    if (ImageHelper.isRaw(images.metadata()))
+                    {
+                        exporter.exportRaw(outputPath, data, images.metadata(), targetExt);
+                    }
+                    else
+                    {
+                        exporter.exportEncoded(outputPath, data, images.originalExt(), targetExt);
+                    }
+                }
+                else
+                {
+                    ByteBuffer data;
+                    try
+                    {
+                        data = ByteBuffer.wrap(Files.readAllBytes(Paths.get(reader.path())));
+                    }
+                    catch (IOException e)
+                    {
+                        System.out.println("Skipping: can't read " + reader.path());
+                        continue;
+                    }
 
-            if (fileIndex >= numOfImages)
+                    exporter.exportEncoded(outputPath, data, reader.ext(), targetExt);
+                }
+            }
+        }
+        finally
+        {
+            // The images must be written before the mapped file is closed.
+            try
+            {
+                exporter.close();
+            }
+            finally
             {
-                break;
+                reader.close();
+                if (images != null)
+                {
+                    images.close();
+                }
             }
         }
-
-        reader.close();
     }
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision isrdump -i <input path to sequence file> -o <output folder> -top <number of images>");
+        System.out.println("Usage: hvision isrdump -i <input path to sequence file> -o <output folder> -top <number of images> [-s <indexed image sequence file that was searched>] [-threads <writer threads>] [-format <output image extension, i.e. jpg or png>]");
     }
 }
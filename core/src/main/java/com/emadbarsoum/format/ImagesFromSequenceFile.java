@@ -1,25 +1,21 @@
 package com.emadbarsoum.format;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageHelper;
 import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.lib.ImageSequenceFileReader;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.Text;
-
-import static org.bytedeco.javacpp.opencv_core.*;
-import static org.bytedeco.javacpp.opencv_highgui.*;
 
 /**
  * A simple command line tool that dump all images in a given folder from a Hadoop sequence file.
  *
+ * The images are written by a pool of threads (-threads) while the sequence file is read, see ImageExporter. The
+ * stored bytes of encoded images are written as is, unless -format asks for another format. A local uncompressed
+ * sequence file is memory mapped, so the images are written straight from the mapped file.
+ *
  * Here the main entry point: com.emadbarsoum.format.ImagesFromSequenceFile
  *
  */
@@ -29,88 +25,72 @@ public class ImagesFromSequenceFile
     {
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                 ||
-            (parser.getNumberOfArgs() != 2) ||
+            (parser.getNumberOfArgs() < 2)  ||
             !(parser.has("i") && parser.has("o")))
         {
             showUsage();
             System.exit(2);
         }
 
+        int threads = parser.has("threads") ? parser.getAsInt("threads") : Runtime.getRuntime().availableProcessors();
+        if (threads < 1)
+        {
+            System.out.println("threads must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
         Configuration conf = new Configuration();
         conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
 
         File inputFile = new File(parser.get("i"));
-        Path inputPath = new Path(inputFile.getAbsolutePath());
-
-        SequenceFile.Reader reader = new SequenceFile.Reader(
-                conf,
-                SequenceFile.Reader.file(inputPath));
 
-        Text key = new Text();
-        BytesWritable value = new BytesWritable();
-        IplImage image = null;
+        ImageSequenceFileReader reader = new ImageSequenceFileReader(conf);
+        reader.open(inputFile.getAbsolutePath());
 
-        while (reader.next(key, value))
+        ImageExporter exporter = new ImageExporter(threads);
+        try
         {
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
-
-            String outputPath = parser.get("o") + "/" + metadata.get("name") + "." + metadata.get("ext");
-            if (metadata.has("type") && metadata.get("type").equals("raw"))
+            while (reader.nextRecord())
             {
-                String ext = "." + metadata.get("ext");
-                int width = metadata.getAsInt("width");
-                int height = metadata.getAsInt("height");
-                int channelCount = metadata.getAsInt("channel_count");
-                int depth =  metadata.getAsInt("depth");
+                MetadataParser metadata = reader.metadata();
+
+                String ext = metadata.get("ext");
+                String targetExt = parser.has("format") ? parser.get("format") : ext;
+                String outputPath = parser.get("o") + "/" + metadata.get("name") + "." + targetExt;
 
-                if (image == null)
+                // The views of a mapped file stay valid, the value backing array is reused by the reader.
+                ByteBuffer data = reader.data();
+                if (!reader.isMapped())
                 {
-                    image = IplImage.create(width, height, depth, channelCount);
+                    data = ImageExporter.copy(data);
                 }
-                else if (!((image.width() == width)   &&
-                           (image.height() == height) &&
-                           (image.depth() == depth)   &&
-                           (image.nChannels() == channelCount)))
+
+                if (ImageHelper.isRaw(metadata))
                 {
-                    image.release();
-                    image = IplImage.create(width, height, depth, channelCount);
+                    exporter.exportRaw(outputPath, data, metadata, targetExt);
+                }
+                else
+                {
+                    exporter.exportEncoded(outputPath, data, ext, targetExt);
                 }
-
-                ByteBuffer buffer = image.getByteBuffer();
-                byte[] rawBuffer = Arrays.copyOf(value.getBytes(), value.getLength());
-                buffer.put(rawBuffer);
-
-                CvMat imageMat = cvEncodeImage(ext, image);
-
-                // Write the result...
-                byte[] data = new byte[imageMat.size()];
-                imageMat.getByteBuffer().get(data);
-
-                DataOutputStream out = new DataOutputStream(new FileOutputStream(outputPath));
-                out.write(data, 0, data.length);
-                out.close();
-
-                cvReleaseMat(imageMat);
-            }
-            else
-            {
-                DataOutputStream out = new DataOutputStream(new FileOutputStream(outputPath));
-                out.write(value.getBytes(), 0, value.getLength());
-                out.close();
             }
         }
-
-        if (image != null)
+        finally
         {
-            image.release();
+            // The images must be written before the mapped file is closed.
+            try
+            {
+                exporter.close();
+            }
+            finally
+            {
+                reader.close();
+            }
         }
-
-        reader.close();
     }
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision idump -i <input path to sequence file> -o <output folder>");
+        System.out.println("Usage: hvision idump -i <input path to sequence file> -o <output folder> [-threads <writer threads>] [-format <output image extension, i.e. jpg or png>]");
     }
 }
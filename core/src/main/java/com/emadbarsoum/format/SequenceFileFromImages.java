@@ -1,40 +1,73 @@
 package com.emadbarsoum.format;
 
 import java.io.File;
-import java.io.FilenameFilter;
-import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.SequenceFileCompression;
 import com.emadbarsoum.lib.ImageSequenceFileWriter;
-import com.google.common.io.Files;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.Text;
-
-import static org.bytedeco.javacpp.opencv_core.*;
-import static org.bytedeco.javacpp.opencv_highgui.*;
 
 /**
  * A simple command line tool that convert all images in a given folder into Hadoop sequence file.
  *
+ * The images are read, and decoded with -raw, by a pool of threads (-threads) while one thread per output file
+ * append them. With -shards N the images are spread round robin over N sequence files written in parallel, in
+ * this case the output path is a folder. Each sequence file has its images in the order of the folder walk.
+ * With -index each sequence file has a sidecar index to read its images by name, see ImageSequenceFileIndex.
+ * With -columnar each output is an ImageColumnarFile container instead of a sequence file.
+ *
  * Here the main entry point: com.emadbarsoum.format.SequenceFileFromImages
  */
 public class SequenceFileFromImages
 {
+    // Mark the end of the images of a shard, it is never run.
+    private static final Future<ImageSequenceFileWriter.Record> endOfImages = new FutureTask<ImageSequenceFileWriter.Record>(
+        new Callable<ImageSequenceFileWriter.Record>()
+        {
+            @Override
+            public ImageSequenceFileWriter.Record call()
+            {
+                return null;
+            }
+        });
+
+    private static final long progressSeconds = 10;
+
     public static void main(String[] args) throws Exception
     {
         boolean compressed = true;
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                 ||
             (parser.getNumberOfArgs() < 2)  ||
-            !(parser.has("i") && parser.has("o")))
+            !(parser.has("i") && parser.has("o")) ||
+            !SequenceFileCompression.isValid(parser))
         {
             showUsage();
             System.exit(2);
         }
 
+        int shards = parser.has("shards") ? parser.getAsInt("shards") : 1;
+        int threads = parser.has("threads") ? parser.getAsInt("threads") : Runtime.getRuntime().availableProcessors();
+        if ((shards < 1) || (threads < 1))
+        {
+            System.out.println("shards and threads must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
         // Should we store the images uncompressed in the sequence file.
         if (parser.has("raw"))
         {
@@ -45,45 +78,236 @@ public class SequenceFileFromImages
         conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
 
         File outputFile = new File(parser.get("o"));
+        if (shards > 1)
+        {
+            outputFile.mkdirs();
+        }
 
-        ImageSequenceFileWriter writer = new ImageSequenceFileWriter(conf, compressed);
+        // Store the metadata as ImageKeyWritable instead of Text.
+        boolean binaryKey = parser.has("binarykey");
 
-        writer.create(outputFile.getAbsolutePath());
+        if (parser.has("sync"))
+        {
+            conf.setInt("io.seqfile.compress.blocksize", parser.getAsInt("sync"));
+        }
 
-        // Iterate through image files only.
-        FilenameFilter fileNameFilter = new FilenameFilter()
+        ImageSequenceFileWriter[] writers = new ImageSequenceFileWriter[shards];
+        for (int shard = 0; shard < shards; ++shard)
+        {
+            writers[shard] = new ImageSequenceFileWriter(conf, compressed, binaryKey);
+            writers[shard].setCompression(SequenceFileCompression.type(parser), SequenceFileCompression.codec(parser, conf));
+            writers[shard].setIndexed(parser.has("index"));
+            writers[shard].setColumnar(parser.has("columnar"));
+            if (parser.has("sync"))
+            {
+                writers[shard].setSyncInterval(parser.getAsInt("sync"));
+            }
+
+            if (shards == 1)
+            {
+                writers[shard].create(outputFile.getAbsolutePath());
+            }
+            else
+            {
+                writers[shard].create(new File(outputFile, String.format("part-%05d", shard)).getAbsolutePath());
+            }
+        }
+
+        final Progress progress = new Progress();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(new Runnable()
         {
             @Override
-            public boolean accept(File dir, String name)
+            public void run()
+            {
+                progress.report("Progress");
+            }
+        }, progressSeconds, progressSeconds, TimeUnit.SECONDS);
+
+        // Each shard has its queue of pending images, in order, its size bounds the images held in memory.
+        ExecutorService loaders = Executors.newFixedThreadPool(threads);
+        ExecutorService shardWriters = Executors.newFixedThreadPool(shards);
+        ArrayList<BlockingQueue<Future<ImageSequenceFileWriter.Record>>> queues = new ArrayList<BlockingQueue<Future<ImageSequenceFileWriter.Record>>>();
+        ArrayList<Future<?>> shardResults = new ArrayList<Future<?>>();
+        for (int shard = 0; shard < shards; ++shard)
+        {
+            BlockingQueue<Future<ImageSequenceFileWriter.Record>> queue = new ArrayBlockingQueue<Future<ImageSequenceFileWriter.Record>>(2 * threads);
+
+            queues.add(queue);
+            shardResults.add(shardWriters.submit(new ShardWriter(writers[shard], queue, progress)));
+        }
+
+        try
+        {
+            // Walk the folders in order, sub folders only with -recursive.
+            long index = 0;
+            ArrayDeque<File> folders = new ArrayDeque<File>();
+            folders.push(new File(parser.get("i")));
+            while (!folders.isEmpty())
             {
-                if (name.lastIndexOf('.') > 0)
+                File[] files = folders.pop().listFiles();
+                if (files == null)
                 {
-                    int lastIndex = name.lastIndexOf('.');
-                    String str = name.substring(lastIndex).toLowerCase();
+                    continue;
+                }
 
-                    if (str.equals(".jpg") || str.equals(".jpeg") || str.equals(".png"))
+                Arrays.sort(files);
+                for (int i = files.length - 1; i >= 0; --i)
+                {
+                    if (files[i].isDirectory() && !files[i].isHidden() && parser.has("recursive"))
                     {
-                        return true;
+                        folders.push(files[i]);
                     }
                 }
-                return false;
+
+                for (final File file : files)
+                {
+                    if (!file.isFile() || file.isHidden() || !isImage(file.getName()))
+                    {
+                        continue;
+                    }
+
+                    int shard = (int)(index % shards);
+                    final ImageSequenceFileWriter writer = writers[shard];
+                    Future<ImageSequenceFileWriter.Record> record = loaders.submit(new Callable<ImageSequenceFileWriter.Record>()
+                    {
+                        @Override
+                        public ImageSequenceFileWriter.Record call() throws Exception
+                        {
+                            return writer.load(file, null);
+                        }
+                    });
+
+                    handOff(queues.get(shard), record, shardResults.get(shard));
+                    ++index;
+                }
+            }
+
+            for (int shard = 0; shard < shards; ++shard)
+            {
+                handOff(queues.get(shard), endOfImages, shardResults.get(shard));
             }
-        };
 
-        File[] files = new File(parser.get("i")).listFiles(fileNameFilter);
-        for (File file : files)
+            for (Future<?> shardResult : shardResults)
+            {
+                shardResult.get();
+            }
+        }
+        finally
+        {
+            reporter.shutdownNow();
+            loaders.shutdownNow();
+            shardWriters.shutdownNow();
+
+            for (ImageSequenceFileWriter writer : writers)
+            {
+                writer.close();
+            }
+        }
+
+        progress.report("Done");
+    }
+
+    // Give an image to the writer of a shard, and fail instead of blocking if the writer failed.
+    private static void handOff(BlockingQueue<Future<ImageSequenceFileWriter.Record>> queue,
+                                Future<ImageSequenceFileWriter.Record> record,
+                                Future<?> shardResult) throws Exception
+    {
+        while (!queue.offer(record, 1, TimeUnit.SECONDS))
+        {
+            if (shardResult.isDone())
+            {
+                shardResult.get();
+            }
+        }
+    }
+
+    private static boolean isImage(String name)
+    {
+        if (name.lastIndexOf('.') > 0)
+        {
+            int lastIndex = name.lastIndexOf('.');
+            String str = name.substring(lastIndex).toLowerCase();
+
+            if (str.equals(".jpg") || str.equals(".jpeg") || str.equals(".png"))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append the images of a shard in the order they were queued.
+     */
+    private static class ShardWriter implements Callable<Void>
+    {
+        private ImageSequenceFileWriter writer;
+        private BlockingQueue<Future<ImageSequenceFileWriter.Record>> queue;
+        private Progress progress;
+
+        public ShardWriter(ImageSequenceFileWriter writer, BlockingQueue<Future<ImageSequenceFileWriter.Record>> queue, Progress progress)
+        {
+            this.writer = writer;
+            this.queue = queue;
+            this.progress = progress;
+        }
+
+        @Override
+        public Void call() throws Exception
         {
-            if (file.isFile() && !file.isHidden())
+            while (true)
             {
-                writer.append(file);
+                Future<ImageSequenceFileWriter.Record> future = this.queue.take();
+                if (future == endOfImages)
+                {
+                    return null;
+                }
+
+                ImageSequenceFileWriter.Record record;
+                try
+                {
+                    record = future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    // An image that can't be read is skipped, like the files that aren't images.
+                    System.out.println("Skipping: " + e.getCause().getMessage());
+                    this.progress.skipped.incrementAndGet();
+                    continue;
+                }
+
+                if (record != null)
+                {
+                    this.writer.append(record);
+                    this.progress.images.incrementAndGet();
+                }
             }
         }
+    }
+
+    /**
+     * The number of images written so far, shared by the shard writers.
+     */
+    private static class Progress
+    {
+        private final long start = System.nanoTime();
+        private final AtomicLong images = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
 
-        writer.close();
+        public void report(String status)
+        {
+            double seconds = Math.max((System.nanoTime() - this.start) / 1e9, 1e-3);
+            System.out.format("%s: %d images, %.1f images/sec, %d skipped.\n",
+                status,
+                this.images.get(),
+                this.images.get() / seconds,
+                this.skipped.get());
+        }
     }
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision iseq -i <input path to folder of images> -o <output path for sequence file> [-raw]");
+        System.out.println("Usage: hvision iseq -i <input path to folder of images> -o <output path for sequence file, a folder with -shards> [-raw] [-binarykey] [-index] [-columnar] [-recursive] [-threads <reader threads>] [-shards <number of sequence files>] " + SequenceFileCompression.usage);
     }
 }
@@ -0,0 +1,129 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImagePool;
+import org.apache.hadoop.mapreduce.*;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import java.nio.FloatBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * BOWImageSimilarity compute similarity between 2 images using their Bag of Words histogram.
+ *
+ * The feature of an image is its BOW descriptor stored in a 1 x clusterCount CV_32F Mat, and the distance
+ * is 1 - cosine similarity between the 2 descriptors.
+ */
+public class BOWImageSimilarity implements ImageSimilarity
+{
+    // The cluster count is used for training only, the vocabulary define the number of words.
+    private static final int unusedClusterCount = 2;
+
+    private BOWCluster bowCluster;
+    private int wordCount;
+    private ImagePool imagePool = new ImagePool();
+
+    public int getWordCount()
+    {
+        return this.wordCount;
+    }
+
+    public BOWImageSimilarity(String vocabularyPath)
+    {
+        this.bowCluster = new BOWCluster(unusedClusterCount);
+        this.bowCluster.load(vocabularyPath);
+        this.wordCount = this.bowCluster.getVocabulary().rows();
+    }
+
+    public double computeDistance(IplImage image1, IplImage image2, TaskAttemptContext context)
+    {
+        Mat feature1 = computeFeature(image1, context);
+        Mat feature2 = computeFeature(image2, context);
+
+        double distance = computeDistance(feature1, feature2, context);
+
+        feature1.release();
+        feature2.release();
+
+        return distance;
+    }
+
+    public Mat computeFeature(IplImage image, TaskAttemptContext context)
+    {
+        IplImage grayImage = this.imagePool.acquire(image.width(), image.height(), IPL_DEPTH_8U, 1, context);
+
+        // Convert the input image into a gray image.
+        if (image.nChannels() == 1)
+        {
+            cvCopy(image, grayImage);
+        }
+        else
+        {
+            cvCvtColor(image, grayImage, CV_BGR2GRAY);
+        }
+
+        Mat imageMat = new Mat(grayImage.asCvMat());
+        this.bowCluster.compute(imageMat);
+
+        Mat feature = this.bowCluster.getBowDescriptor();
+        if (feature.rows() == 0)
+        {
+            // No keypoint in the image, so no visual word.
+            feature = new Mat(1, this.wordCount, CV_32F);
+            FloatBuffer featureBuf = feature.getFloatBuffer();
+            for (int i = 0; i < this.wordCount; ++i)
+            {
+                featureBuf.put(i, 0.0f);
+            }
+        }
+
+        this.imagePool.release(grayImage);
+
+        if (context != null)
+        {
+            context.progress();
+        }
+
+        return feature;
+    }
+
+    public double computeDistance(Mat feature1, Mat feature2, TaskAttemptContext context)
+    {
+        return computeDistance(feature1.getFloatBuffer(), feature2.getFloatBuffer());
+    }
+
+    @Override
+    public void close()
+    {
+        this.imagePool.close();
+    }
+
+    // Cosine distance between 2 BOW histograms.
+    public static double computeDistance(FloatBuffer bow1, FloatBuffer bow2)
+    {
+        int count = Math.min(bow1.remaining(), bow2.remaining());
+        int offset1 = bow1.position();
+        int offset2 = bow2.position();
+
+        double dot = 0.0;
+        double norm1 = 0.0;
+        double norm2 = 0.0;
+        for (int i = 0; i < count; ++i)
+        {
+            float value1 = bow1.get(offset1 + i);
+            float value2 = bow2.get(offset2 + i);
+
+            dot += value1 * value2;
+            norm1 += value1 * value1;
+            norm2 += value2 * value2;
+        }
+
+        if ((norm1 == 0.0) || (norm2 == 0.0))
+        {
+            return 1.0;
+        }
+
+        return Math.max(1.0 - dot / Math.sqrt(norm1 * norm2), 0.0);
+    }
+}
@@ -0,0 +1,75 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CombineImageInputFormat reads image files (jpg, jpeg and png) directly, many small files per split, so a folder
+ * of images doesn't need one map task per image. Each record is a whole image, see ImageFileRecordReader.
+ *
+ * The input folders are read recursively, and the split size is set by setMaxSplitSize() or
+ * mapreduce.input.fileinputformat.split.maxsize.
+ */
+public class CombineImageInputFormat extends CombineFileInputFormat<Text, BytesWritable>
+{
+    public static final String recursiveProperty = "mapreduce.input.fileinputformat.input.dir.recursive";
+
+    public static boolean isImage(Path path)
+    {
+        String name = path.getName().toLowerCase();
+        if (name.startsWith(".") || name.startsWith("_"))
+        {
+            return false;
+        }
+
+        return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png");
+    }
+
+    // Only the image files, the directories are walked by FileInputFormat.
+    public static List<FileStatus> imageFiles(List<FileStatus> files)
+    {
+        List<FileStatus> images = new ArrayList<FileStatus>();
+        for (FileStatus file : files)
+        {
+            if (file.isFile() && isImage(file.getPath()))
+            {
+                images.add(file);
+            }
+        }
+
+        return images;
+    }
+
+    @Override
+    protected List<FileStatus> listStatus(JobContext job) throws IOException
+    {
+        job.getConfiguration().setBoolean(recursiveProperty, true);
+
+        return imageFiles(super.listStatus(job));
+    }
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path file)
+    {
+        return false;
+    }
+
+    @Override
+    public RecordReader<Text, BytesWritable> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException
+    {
+        return new CombineFileRecordReader<Text, BytesWritable>((CombineFileSplit)split, context, ImageFileRecordReader.class);
+    }
+}
@@ -1,7 +1,9 @@
 package com.emadbarsoum.lib;
 
+import com.emadbarsoum.common.ImagePool;
 import org.apache.hadoop.mapreduce.*;
 
+import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacpp.opencv_core.*;
 import org.bytedeco.javacpp.opencv_objdetect.*;
 
@@ -14,10 +16,15 @@ import static org.bytedeco.javacpp.opencv_objdetect.*;
 
 /**
  * FaceDetection given a trained model, facedetection will find all faces in the image.
+ *
+ * The model is loaded once by load() (or by the first Detect), and kept with its memory storage until close().
  */
-public class FaceDetection
+public class FaceDetection implements AutoCloseable
 {
     private String model;
+    private CvHaarClassifierCascade cascade;
+    private CvMemStorage storage;
+    private ImagePool imagePool = new ImagePool();
     private IplImage resultImage;
     private int faceCount;
     private ArrayList<Rectangle> faceLocations = new ArrayList<Rectangle>();
@@ -29,14 +36,39 @@ public class FaceDetection
 
     public void setModel(String model)
     {
+        if ((this.model != null) && !this.model.equals(model))
+        {
+            releaseCascade();
+        }
+
         this.model = model;
     }
 
+    public void load() throws Exception
+    {
+        if ((this.model == null) || this.model.isEmpty())
+        {
+            throw new Exception("Model must be set before calling load.");
+        }
+
+        if (this.cascade == null)
+        {
+            Pointer cascadePointer = cvLoad(this.model);
+            if (cascadePointer == null)
+            {
+                throw new Exception("Failed to load the model " + this.model + ".");
+            }
+
+            this.cascade = new CvHaarClassifierCascade(cascadePointer);
+        }
+    }
+
     public int count()
     {
         return this.faceCount;
     }
 
+    // The result image is owned by FaceDetection, it is valid until the next Detect or close.
     public IplImage getResultImage()
     {
         return this.resultImage;
@@ -54,24 +86,41 @@ public class FaceDetection
             throw new Exception("Model must be set before calling Detect.");
         }
 
+        // Load the classifier, only the first time.
+        load();
+
+        releaseResultImage();
         this.resultImage = image.clone();
-        IplImage grayImage = IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1);
+
+        IplImage grayImage = this.imagePool.acquire(image.width(), image.height(), IPL_DEPTH_8U, 1, context);
 
         // Convert the input image into a gray image.
-        cvCvtColor(image, grayImage, CV_BGR2GRAY);
+        if (image.nChannels() == 1)
+        {
+            cvCopy(image, grayImage);
+        }
+        else
+        {
+            cvCvtColor(image, grayImage, CV_BGR2GRAY);
+        }
 
         if (context != null)
         {
             context.progress();
         }
 
-        CvMemStorage storage = CvMemStorage.create();
+        // The faces of the previous image are dropped, the memory blocks are kept.
+        if (this.storage == null)
+        {
+            this.storage = CvMemStorage.create();
+        }
 
-        // Load the classifier.
-        CvHaarClassifierCascade cascade = new CvHaarClassifierCascade(cvLoad(this.model));
+        cvClearMemStorage(this.storage);
 
         // Detect all faces in the image.
-        CvSeq faces = cvHaarDetectObjects(grayImage, cascade, storage, 1.1, 1, 0);
+        CvSeq faces = cvHaarDetectObjects(grayImage, this.cascade, this.storage, 1.1, 1, 0);
+
+        this.imagePool.release(grayImage);
 
         if (context != null)
         {
@@ -94,4 +143,37 @@ public class FaceDetection
             context.progress();
         }
     }
+
+    @Override
+    public void close()
+    {
+        releaseResultImage();
+        releaseCascade();
+
+        if (this.storage != null)
+        {
+            cvReleaseMemStorage(this.storage);
+            this.storage = null;
+        }
+
+        this.imagePool.close();
+    }
+
+    private void releaseResultImage()
+    {
+        if (this.resultImage != null)
+        {
+            cvReleaseImage(this.resultImage);
+            this.resultImage = null;
+        }
+    }
+
+    private void releaseCascade()
+    {
+        if (this.cascade != null)
+        {
+            cvReleaseHaarClassifierCascade(this.cascade);
+            this.cascade = null;
+        }
+    }
 }
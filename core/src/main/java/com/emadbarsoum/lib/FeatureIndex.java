@@ -0,0 +1,339 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.MatData;
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * FeatureIndex is a local, memory-mapped copy of a feature sequence file generated by featurize, so that it can be
+ * scanned without any job startup and without loading the features into the Java heap. Only fixed size float
+ * features are supported (hist and bow).
+ *
+ * The index is a folder that contains:
+ *   features.bin  - count x dimension floats, one row per image.
+ *   metadata.idx  - count + 1 longs, the offset of the metadata of each image in metadata.bin.
+ *   metadata.bin  - the UTF-8 metadata of all images.
+ *   index.properties - method, dimension, count and byte order, written last so a partial index is never opened.
+ */
+public class FeatureIndex implements Closeable
+{
+    private static final String featuresFileName = "features.bin";
+    private static final String metadataIndexFileName = "metadata.idx";
+    private static final String metadataFileName = "metadata.bin";
+    private static final String propertiesFileName = "index.properties";
+
+    private String method;
+    private int dimension;
+    private int count;
+    private int rowsPerSegment;
+    private ArrayList<FloatBuffer> segments = new ArrayList<FloatBuffer>();
+    private LongBuffer metadataOffsets;
+    private RandomAccessFile metadataFile;
+
+    private FeatureIndex()
+    {}
+
+    public String method()
+    {
+        return this.method;
+    }
+
+    public int dimension()
+    {
+        return this.dimension;
+    }
+
+    public int count()
+    {
+        return this.count;
+    }
+
+    public static boolean exists(File folder)
+    {
+        return new File(folder, propertiesFileName).isFile();
+    }
+
+    // Convert a feature sequence file (a single file or a job output folder) into a local index folder.
+    public static void build(Configuration conf, Path featureStore, File folder) throws IOException
+    {
+        if (!folder.isDirectory() && !folder.mkdirs())
+        {
+            throw new IOException("Failed to create " + folder.getPath());
+        }
+
+        new File(folder, propertiesFileName).delete();
+
+        DataOutputStream features = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(folder, featuresFileName)), 1 << 20));
+        DataOutputStream metadataOffsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(folder, metadataIndexFileName)), 1 << 20));
+        DataOutputStream metadata = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(folder, metadataFileName)), 1 << 20));
+
+        String method = null;
+        int dimension = -1;
+        int count = 0;
+        long metadataOffset = 0;
+
+        try
+        {
+            FileSystem fs = featureStore.getFileSystem(conf);
+            for (FileStatus status : fs.listStatus(featureStore))
+            {
+                String name = status.getPath().getName();
+                if (status.isDirectory() || name.startsWith("_") || name.startsWith("."))
+                {
+                    continue;
+                }
+
+                SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()));
+
+                try
+                {
+                    Text key = new Text();
+                    MatData value = new MatData();
+                    while (reader.next(key, value))
+                    {
+                        MetadataParser parser = new MetadataParser(key.toString());
+                        parser.parse();
+
+                        String featureMethod = parser.get("feature");
+                        if ((featureMethod == null) || !(featureMethod.equals("hist") || featureMethod.equals("bow")))
+                        {
+                            throw new IOException("Only hist and bow feature stores can be indexed.");
+                        }
+
+                        int featureDimension = value.getBytes().length / 4;
+                        if (method == null)
+                        {
+                            method = featureMethod;
+                            dimension = featureDimension;
+                        }
+                        else if (!method.equals(featureMethod) || (dimension != featureDimension))
+                        {
+                            throw new IOException("All the features of the index must have the same method and size.");
+                        }
+
+                        features.write(value.getBytes());
+
+                        byte[] metadataBytes = key.toString().getBytes("UTF-8");
+                        metadataOffsets.writeLong(metadataOffset);
+                        metadata.write(metadataBytes);
+                        metadataOffset += metadataBytes.length;
+
+                        ++count;
+                    }
+                }
+                finally
+                {
+                    reader.close();
+                }
+            }
+
+            metadataOffsets.writeLong(metadataOffset);
+        }
+        finally
+        {
+            features.close();
+            metadataOffsets.close();
+            metadata.close();
+        }
+
+        if (count == 0)
+        {
+            throw new IOException("The feature store is empty.");
+        }
+
+        // Mat data are stored using the native byte order of the machine that ran featurize.
+        Properties properties = new Properties();
+        properties.setProperty("method", method);
+        properties.setProperty("dimension", Integer.toString(dimension));
+        properties.setProperty("count", Integer.toString(count));
+        properties.setProperty("byteOrder", ByteOrder.nativeOrder().toString());
+
+        OutputStream out = new FileOutputStream(new File(folder, propertiesFileName));
+        try
+        {
+            properties.store(out, "HVision feature index");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    public static FeatureIndex open(File folder) throws IOException
+    {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(new File(folder, propertiesFileName));
+        try
+        {
+            properties.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        FeatureIndex index = new FeatureIndex();
+        index.method = properties.getProperty("method");
+        index.dimension = Integer.parseInt(properties.getProperty("dimension"));
+        index.count = Integer.parseInt(properties.getProperty("count"));
+
+        ByteOrder byteOrder = properties.getProperty("byteOrder").equals(ByteOrder.BIG_ENDIAN.toString()) ?
+            ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        // A mapping is limited to 2GB, so the features are mapped in segments of whole rows.
+        long rowSize = (long)index.dimension * 4;
+        index.rowsPerSegment = (int)Math.max(Integer.MAX_VALUE / rowSize, 1);
+
+        RandomAccessFile featuresFile = new RandomAccessFile(new File(folder, featuresFileName), "r");
+        try
+        {
+            FileChannel channel = featuresFile.getChannel();
+            for (long row = 0; row < index.count; row += index.rowsPerSegment)
+            {
+                long rows = Math.min(index.rowsPerSegment, index.count - row);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, row * rowSize, rows * rowSize);
+
+                index.segments.add(segment.order(byteOrder).asFloatBuffer());
+            }
+
+            RandomAccessFile metadataIndexFile = new RandomAccessFile(new File(folder, metadataIndexFileName), "r");
+            try
+            {
+                FileChannel metadataIndexChannel = metadataIndexFile.getChannel();
+                index.metadataOffsets = metadataIndexChannel.map(FileChannel.MapMode.READ_ONLY, 0, metadataIndexChannel.size()).asLongBuffer();
+            }
+            finally
+            {
+                metadataIndexFile.close();
+            }
+        }
+        finally
+        {
+            // The mappings stay valid after the file is closed.
+            featuresFile.close();
+        }
+
+        index.metadataFile = new RandomAccessFile(new File(folder, metadataFileName), "r");
+
+        return index;
+    }
+
+    public String metadata(int row) throws IOException
+    {
+        long start = this.metadataOffsets.get(row);
+        long end = this.metadataOffsets.get(row + 1);
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)(end - start));
+        FileChannel channel = this.metadataFile.getChannel();
+        while (buffer.hasRemaining())
+        {
+            // Positional read, so it is safe to call from multiple threads.
+            if (channel.read(buffer, start + buffer.position()) < 0)
+            {
+                throw new EOFException();
+            }
+        }
+
+        return new String(buffer.array(), "UTF-8");
+    }
+
+    // Scan all the features using the given number of parallel tasks, and return the best top rows.
+    public ArrayList<TopResults.Result<Integer>> search(final FloatBuffer query, final int top, ExecutorService executor, int parallelism) throws Exception
+    {
+        List<Callable<TopResults<Integer>>> tasks = new ArrayList<Callable<TopResults<Integer>>>();
+
+        for (int i = 0; i < this.segments.size(); ++i)
+        {
+            final FloatBuffer segment = this.segments.get(i);
+            final int firstRow = i * this.rowsPerSegment;
+            final int rows = segment.capacity() / this.dimension;
+            final int rowsPerTask = (rows + parallelism - 1) / parallelism;
+
+            for (int start = 0; start < rows; start += rowsPerTask)
+            {
+                final int taskStart = start;
+                final int taskEnd = Math.min(start + rowsPerTask, rows);
+
+                tasks.add(new Callable<TopResults<Integer>>()
+                {
+                    @Override
+                    public TopResults<Integer> call()
+                    {
+                        return scan(segment.duplicate(), query.duplicate(), firstRow, taskStart, taskEnd, top);
+                    }
+                });
+            }
+        }
+
+        TopResults<Integer> topResults = new TopResults<Integer>(top);
+        for (Future<TopResults<Integer>> future : executor.invokeAll(tasks))
+        {
+            for (TopResults.Result<Integer> result : future.get().sorted())
+            {
+                if (topResults.accept(result.distance()))
+                {
+                    topResults.offer(result.distance(), result.item());
+                }
+            }
+        }
+
+        return topResults.sorted();
+    }
+
+    private TopResults<Integer> scan(FloatBuffer features, FloatBuffer query, int firstRow, int start, int end, int top)
+    {
+        TopResults<Integer> topResults = new TopResults<Integer>(top);
+        boolean histogram = this.method.equals("hist");
+
+        for (int row = start; row < end; ++row)
+        {
+            // Moving forward, so the limit is always set before the position.
+            features.limit((row + 1) * this.dimension);
+            features.position(row * this.dimension);
+
+            double distance = histogram ?
+                HistogramImageSimilarity.computeDistance(features, query) :
+                BOWImageSimilarity.computeDistance(features, query);
+
+            if (topResults.accept(distance))
+            {
+                topResults.offer(distance, firstRow + row);
+            }
+        }
+
+        return topResults;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        // The mapped segments are released by the garbage collector.
+        this.segments.clear();
+        this.metadataOffsets = null;
+
+        if (this.metadataFile != null)
+        {
+            this.metadataFile.close();
+            this.metadataFile = null;
+        }
+    }
+}
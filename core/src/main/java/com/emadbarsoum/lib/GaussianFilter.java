@@ -0,0 +1,53 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImagePool;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * GaussianFilter blur an image in place with a Gaussian kernel, same as the gaussian job.
+ */
+public class GaussianFilter implements ImageFilter
+{
+    private int size;
+    private double sigma;
+
+    public GaussianFilter(int size, double sigma)
+    {
+        if ((size < 1) || (size % 2 == 0))
+        {
+            throw new IllegalArgumentException("The Gaussian kernel size must be odd and positive: " + size);
+        }
+
+        this.size = size;
+        this.sigma = sigma;
+    }
+
+    @Override
+    public String name()
+    {
+        return "gaussian";
+    }
+
+    @Override
+    public int radius()
+    {
+        return this.size / 2;
+    }
+
+    @Override
+    public boolean resizes()
+    {
+        return false;
+    }
+
+    @Override
+    public IplImage apply(IplImage image, ImagePool pool, TaskAttemptContext context)
+    {
+        cvSmooth(image, image, CV_GAUSSIAN, this.size, this.size, this.sigma, this.sigma);
+
+        return image;
+    }
+}
@@ -0,0 +1,46 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImagePool;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * GrayFilter convert a BGR image into a gray image, same as the color2gray job. A gray image is left as is.
+ */
+public class GrayFilter implements ImageFilter
+{
+    @Override
+    public String name()
+    {
+        return "gray";
+    }
+
+    @Override
+    public int radius()
+    {
+        return 0;
+    }
+
+    @Override
+    public boolean resizes()
+    {
+        return false;
+    }
+
+    @Override
+    public IplImage apply(IplImage image, ImagePool pool, TaskAttemptContext context)
+    {
+        if (image.nChannels() == 1)
+        {
+            return image;
+        }
+
+        IplImage grayImage = pool.acquire(image.width(), image.height(), IPL_DEPTH_8U, 1, context);
+        cvCvtColor(image, grayImage, CV_BGR2GRAY);
+
+        return grayImage;
+    }
+}
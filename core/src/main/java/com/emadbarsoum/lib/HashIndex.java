@@ -0,0 +1,155 @@
+package com.emadbarsoum.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * HashIndex is a multi-index hashing table of 64-bit perceptual hashes. Each hash is split into 4
+ * substrings of 16 bits, and each substring is indexed in its own table. If two hashes are within
+ * Hamming distance r, at least one of their substrings is within r / 4, so a search only probes the
+ * substrings around the query substrings and verifies the candidates with a popcount.
+ */
+public class HashIndex<T>
+{
+    public static final int chunkCount = 4;
+    public static final int chunkBits = 16;
+    private static final int chunkMask = (1 << chunkBits) - 1;
+
+    private ArrayList<Long> hashes = new ArrayList<Long>();
+    private ArrayList<T> items = new ArrayList<T>();
+    private int[][][] tables = new int[chunkCount][][];
+    private int[][] tableSizes = new int[chunkCount][];
+
+    public HashIndex()
+    {
+        for (int i = 0; i < chunkCount; ++i)
+        {
+            this.tables[i] = new int[1 << chunkBits][];
+            this.tableSizes[i] = new int[1 << chunkBits];
+        }
+    }
+
+    public int size()
+    {
+        return this.items.size();
+    }
+
+    public void add(long hash, T item)
+    {
+        int index = this.items.size();
+
+        this.hashes.add(hash);
+        this.items.add(item);
+
+        for (int i = 0; i < chunkCount; ++i)
+        {
+            int chunk = chunk(hash, i);
+            int[] bucket = this.tables[i][chunk];
+            int bucketSize = this.tableSizes[i][chunk];
+
+            if (bucket == null)
+            {
+                bucket = new int[2];
+                this.tables[i][chunk] = bucket;
+            }
+            else if (bucketSize == bucket.length)
+            {
+                int[] newBucket = new int[bucket.length * 2];
+                System.arraycopy(bucket, 0, newBucket, 0, bucketSize);
+                bucket = newBucket;
+                this.tables[i][chunk] = bucket;
+            }
+
+            bucket[bucketSize] = index;
+            this.tableSizes[i][chunk] = bucketSize + 1;
+        }
+    }
+
+    // Return all the items within Hamming distance radius of the hash, sorted by distance.
+    // The distance of each result is the Hamming distance.
+    public ArrayList<TopResults.Result<T>> search(long hash, int radius)
+    {
+        if (this.items.isEmpty())
+        {
+            return new ArrayList<TopResults.Result<T>>();
+        }
+
+        TopResults<T> sortedResults = new TopResults<T>(this.items.size());
+        BitSet visited = new BitSet(this.items.size());
+        int chunkRadius = radius / chunkCount;
+
+        for (int i = 0; i < chunkCount; ++i)
+        {
+            for (int chunk : neighbors(chunk(hash, i), chunkRadius))
+            {
+                int[] bucket = this.tables[i][chunk];
+                int bucketSize = this.tableSizes[i][chunk];
+
+                for (int j = 0; j < bucketSize; ++j)
+                {
+                    int index = bucket[j];
+                    if (visited.get(index))
+                    {
+                        continue;
+                    }
+
+                    visited.set(index);
+
+                    int distance = hammingDistance(hash, this.hashes.get(index));
+                    if (distance <= radius)
+                    {
+                        sortedResults.offer(distance, this.items.get(index));
+                    }
+                }
+            }
+        }
+
+        return sortedResults.sorted();
+    }
+
+    public static int hammingDistance(long hash1, long hash2)
+    {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    // The index-th 16-bit substring of the hash, starting from the most significant bits.
+    public static int chunk(long hash, int index)
+    {
+        return (int)(hash >>> ((chunkCount - 1 - index) * chunkBits)) & chunkMask;
+    }
+
+    // All the 16-bit values within Hamming distance radius of value, including value itself.
+    public static int[] neighbors(int value, int radius)
+    {
+        int count = 0;
+        long combinations = 1;
+        for (int i = 0; i <= Math.min(radius, chunkBits); ++i)
+        {
+            count += combinations;
+            combinations = combinations * (chunkBits - i) / (i + 1);
+        }
+
+        int[] result = new int[count];
+        int size = addNeighbors(value, 0, Math.min(radius, chunkBits), result, 0);
+
+        return (size == count) ? result : Arrays.copyOf(result, size);
+    }
+
+    private static int addNeighbors(int value, int firstBit, int radius, int[] result, int size)
+    {
+        result[size++] = value;
+        if (radius == 0)
+        {
+            return size;
+        }
+
+        // Flip bits in increasing order so each neighbor is generated once.
+        for (int bit = firstBit; bit < chunkBits; ++bit)
+        {
+            size = addNeighbors(value ^ (1 << bit), bit + 1, radius - 1, result, size);
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,69 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * HashedImage is the image metadata and its 64-bit perceptual hash, used by imagededup to
+ * compare the images that share a hash bucket. A probe is a hash without its image, sent to the
+ * neighbor buckets so that the metadata of an image is only written to its own buckets.
+ */
+public class HashedImage implements Writable
+{
+    private Text image = new Text();
+    private long hash;
+
+    public HashedImage()
+    {}
+
+    public HashedImage(HashedImage other)
+    {
+        this.image.set(other.image);
+        this.hash = other.hash;
+    }
+
+    public Text image()
+    {
+        return this.image;
+    }
+
+    public long hash()
+    {
+        return this.hash;
+    }
+
+    public boolean isProbe()
+    {
+        return this.image.getLength() == 0;
+    }
+
+    public void set(Text image, long hash)
+    {
+        this.image.set(image);
+        this.hash = hash;
+    }
+
+    public void setProbe(long hash)
+    {
+        this.image.clear();
+        this.hash = hash;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        this.image.write(out);
+        out.writeLong(this.hash);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        this.image.readFields(in);
+        this.hash = in.readLong();
+    }
+}
@@ -1,18 +1,29 @@
 package com.emadbarsoum.lib;
 
+import com.emadbarsoum.common.ImagePool;
+import com.emadbarsoum.common.NativeMemoryCounter;
 import org.apache.hadoop.mapreduce.*;
 import org.bytedeco.javacpp.helper.opencv_core.*;
 import org.bytedeco.javacpp.opencv_core.*;
 
+import java.nio.FloatBuffer;
+
 import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_imgproc.*;
 
 /**
  * HistogramImageSimilarity compute similarity between 2 images using histogram.
+ *
+ * The feature of an image is its normalized histogram stored in a 1 x numberOfBins CV_32F Mat.
+ *
+ * The channel planes and the histogram are kept between calls, so only the returned feature is allocated per image.
  */
 public class HistogramImageSimilarity implements ImageSimilarity
 {
     private int numberOfBins = 128;
+    private ImagePool imagePool = new ImagePool();
+    private CvHistogram hist;
+    private int histBins = 0;
 
     public int getNumberOfBins()
     {
@@ -29,48 +40,129 @@ public class HistogramImageSimilarity implements ImageSimilarity
 
     public double computeDistance(IplImage image1, IplImage image2, TaskAttemptContext context)
     {
-        float minRange = 0.0f;
-        float maxRange = 255.0f;
-        int dims = 1;
-        int[] sizes = new int[]{this.numberOfBins};
-        int histType = CV_HIST_ARRAY;
-        float[] minMax = new float[]{minRange, maxRange};
-        float[][] ranges = new float[][]{minMax};
+        Mat feature1 = computeFeature(image1, context);
+        Mat feature2 = computeFeature(image2, context);
 
-        IplImageArray image1Split = splitChannels(image1);
-        CvHistogram hist1 = cvCreateHist(dims, sizes, histType, ranges, 1);
-        cvCalcHist(image1Split, hist1, 0, null);
-        cvNormalizeHist(hist1, 1.0);
+        double distance = computeDistance(feature1, feature2, context);
 
-        if (context != null)
+        feature1.release();
+        feature2.release();
+
+        return distance;
+    }
+
+    public Mat computeFeature(IplImage image, TaskAttemptContext context)
+    {
+        CvHistogram hist = getHistogram(context);
+
+        // cvCalcHist clear the histogram first, because accumulate is 0.
+        IplImage[] channels = splitChannels(image, context);
+        cvCalcHist(new IplImageArray(channels), hist, 0, null);
+        cvNormalizeHist(hist, 1.0);
+
+        if (channels[0] != image)
         {
-            context.progress();
+            for (IplImage channel : channels)
+            {
+                this.imagePool.release(channel);
+            }
         }
 
-        IplImageArray image2Split = splitChannels(image2);
-        CvHistogram hist2 = cvCreateHist(dims, sizes, histType, ranges, 1);
-        cvCalcHist(image2Split, hist2, 0, null);
-        cvNormalizeHist(hist2, 1.0);
+        Mat feature = new Mat(1, this.numberOfBins, CV_32F);
+        FloatBuffer featureBuffer = feature.getFloatBuffer();
+        for (int i = 0; i < this.numberOfBins; ++i)
+        {
+            featureBuffer.put(i, (float)cvGetReal1D(hist.bins(), i));
+        }
 
         if (context != null)
         {
             context.progress();
         }
 
-        return Math.max(1.0 - cvCompareHist(hist1, hist2, CV_COMP_INTERSECT), 0.0);
+        return feature;
+    }
+
+    public double computeDistance(Mat feature1, Mat feature2, TaskAttemptContext context)
+    {
+        return computeDistance(feature1.getFloatBuffer(), feature2.getFloatBuffer());
+    }
+
+    // Histogram intersection distance, equivalent to CV_COMP_INTERSECT on normalized histograms.
+    public static double computeDistance(FloatBuffer hist1, FloatBuffer hist2)
+    {
+        int count = Math.min(hist1.remaining(), hist2.remaining());
+        int offset1 = hist1.position();
+        int offset2 = hist2.position();
+
+        double intersection = 0.0;
+        for (int i = 0; i < count; ++i)
+        {
+            intersection += Math.min(hist1.get(offset1 + i), hist2.get(offset2 + i));
+        }
+
+        return Math.max(1.0 - intersection, 0.0);
     }
 
-    private IplImageArray splitChannels(IplImage image)
+    @Override
+    public void close()
     {
-        CvSize size = image.cvSize();
+        if (this.hist != null)
+        {
+            cvReleaseHist(this.hist);
+            this.hist = null;
+        }
+
+        this.imagePool.close();
+    }
+
+    // The histogram is created once, and again only if the number of bins changed.
+    private CvHistogram getHistogram(TaskAttemptContext context)
+    {
+        if ((this.hist != null) && (this.histBins == this.numberOfBins))
+        {
+            return this.hist;
+        }
+
+        if (this.hist != null)
+        {
+            cvReleaseHist(this.hist);
+        }
+
+        float minRange = 0.0f;
+        float maxRange = 255.0f;
+        int dims = 1;
+        int[] sizes = new int[]{this.numberOfBins};
+        int histType = CV_HIST_ARRAY;
+        float[] minMax = new float[]{minRange, maxRange};
+        float[][] ranges = new float[][]{minMax};
+
+        this.hist = cvCreateHist(dims, sizes, histType, ranges, 1);
+        this.histBins = this.numberOfBins;
+
+        NativeMemoryCounter.allocated(context, 4L * this.numberOfBins);
+
+        return this.hist;
+    }
+
+    // The planes come from the pool and must be given back, a single channel image is used as is.
+    private IplImage[] splitChannels(IplImage image, TaskAttemptContext context)
+    {
+        if (image.nChannels() == 1)
+        {
+            return new IplImage[]{image};
+        }
+
+        int width = image.width();
+        int height = image.height();
         int depth = image.depth();
 
-        IplImage channel0 = IplImage.create(size, depth, 1);
-        IplImage channel1 = IplImage.create(size, depth, 1);
-        IplImage channel2 = IplImage.create(size, depth, 1);
+        IplImage channel0 = this.imagePool.acquire(width, height, depth, 1, context);
+        IplImage channel1 = this.imagePool.acquire(width, height, depth, 1, context);
+        IplImage channel2 = this.imagePool.acquire(width, height, depth, 1, context);
 
         cvSplit(image, channel0, channel1, channel2, null);
 
-        return new IplImageArray(channel0, channel1, channel2);
+        return new IplImage[]{channel0, channel1, channel2};
     }
 }
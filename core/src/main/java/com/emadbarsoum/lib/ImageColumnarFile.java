@@ -0,0 +1,85 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * ImageColumnarFile is the layout of a columnar image container, a folder with two columns:
+ *
+ *     metadata   a sequence file of the image keys (Text or ImageKeyWritable), each value is the Pointer of the
+ *                image bytes in the payload file.
+ *     payload    the image bytes, encoded or raw, one after the other.
+ *
+ * So a job or a tool that only needs the metadata (labels, face count...) reads the small metadata file and never
+ * the images. The container is written by ImageSequenceFileWriter.setColumnar() and read by ImageColumnarReader or
+ * ImageColumnarInputFormat.
+ */
+public class ImageColumnarFile
+{
+    public static final String metadataName = "metadata";
+    public static final String payloadName = "payload";
+
+    public static Path metadataPath(Path container)
+    {
+        return new Path(container, metadataName);
+    }
+
+    public static Path payloadPath(Path container)
+    {
+        return new Path(container, payloadName);
+    }
+
+    // The payload file next to a metadata file.
+    public static Path payloadOf(Path metadataPath)
+    {
+        return new Path(metadataPath.getParent(), payloadName);
+    }
+
+    /**
+     * The offset and the length of an image in the payload file.
+     */
+    public static class Pointer implements Writable
+    {
+        private long offset;
+        private int length;
+
+        public Pointer()
+        {
+        }
+
+        public Pointer(long offset, int length)
+        {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long offset()
+        {
+            return this.offset;
+        }
+
+        public int length()
+        {
+            return this.length;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException
+        {
+            WritableUtils.writeVLong(out, this.offset);
+            WritableUtils.writeVInt(out, this.length);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException
+        {
+            this.offset = WritableUtils.readVLong(in);
+            this.length = WritableUtils.readVInt(in);
+        }
+    }
+}
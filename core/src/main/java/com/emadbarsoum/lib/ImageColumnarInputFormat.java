@@ -0,0 +1,64 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ImageColumnarInputFormat reads ImageColumnarFile containers, the input paths are containers or folders of
+ * containers. The records are the same as an image sequence file, the key is the metadata (Text or
+ * ImageKeyWritable) and the value is the image bytes.
+ *
+ * The splits are splits of the metadata files. With setReadPayload(job, false) only the metadata column is read
+ * and the values are empty, for the jobs that only need the metadata.
+ */
+public class ImageColumnarInputFormat extends FileInputFormat<Writable, BytesWritable>
+{
+    public static final String readPayloadProperty = "hvision.columnar.read.payload";
+
+    public static void setReadPayload(Job job, boolean readPayload)
+    {
+        job.getConfiguration().setBoolean(readPayloadProperty, readPayload);
+    }
+
+    @Override
+    protected List<FileStatus> listStatus(JobContext job) throws IOException
+    {
+        job.getConfiguration().setBoolean(CombineImageInputFormat.recursiveProperty, true);
+
+        // Only the metadata column, the payload is read by the record reader.
+        List<FileStatus> metadataFiles = new ArrayList<FileStatus>();
+        for (FileStatus file : super.listStatus(job))
+        {
+            if (file.isFile() && file.getPath().getName().equals(ImageColumnarFile.metadataName))
+            {
+                metadataFiles.add(file);
+            }
+        }
+
+        return metadataFiles;
+    }
+
+    @Override
+    protected long getFormatMinSplitSize()
+    {
+        return SequenceFile.SYNC_INTERVAL;
+    }
+
+    @Override
+    public RecordReader<Writable, BytesWritable> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException
+    {
+        return new ImageColumnarRecordReader();
+    }
+}
@@ -0,0 +1,88 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.CommandParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+
+/**
+ * ImageColumnarOutputFormat writes the images of a job as ImageColumnarFile containers, one container folder per
+ * task (i.e. part-m-00000/metadata and part-m-00000/payload). The output compression of the job applies to the
+ * metadata column only, the image bytes are stored as is.
+ *
+ * The map only jobs select it with -columnar.
+ */
+public class ImageColumnarOutputFormat extends FileOutputFormat<Writable, BytesWritable>
+{
+    public static final String usage = "[-columnar]";
+
+    // Set the output format of a job that write images, from the -columnar option.
+    public static void setOutputFormat(Job job, CommandParser parser)
+    {
+        if (parser.has("columnar"))
+        {
+            job.setOutputFormatClass(ImageColumnarOutputFormat.class);
+        }
+        else
+        {
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        }
+    }
+
+    @Override
+    public RecordWriter<Writable, BytesWritable> getRecordWriter(TaskAttemptContext context) throws IOException, InterruptedException
+    {
+        Configuration conf = context.getConfiguration();
+        Path container = getDefaultWorkFile(context, "");
+
+        CompressionType compressionType = CompressionType.NONE;
+        CompressionCodec codec = null;
+        if (getCompressOutput(context))
+        {
+            compressionType = SequenceFileOutputFormat.getOutputCompressionType(context);
+            codec = ReflectionUtils.newInstance(getOutputCompressorClass(context, DefaultCodec.class), conf);
+        }
+
+        final SequenceFile.Writer metadataWriter = SequenceFile.createWriter(
+            conf,
+            SequenceFile.Writer.file(ImageColumnarFile.metadataPath(container)),
+            SequenceFile.Writer.keyClass(context.getOutputKeyClass()),
+            SequenceFile.Writer.valueClass(ImageColumnarFile.Pointer.class),
+            SequenceFile.Writer.compression(compressionType, codec));
+
+        final FSDataOutputStream payload = container.getFileSystem(conf).create(ImageColumnarFile.payloadPath(container), false);
+
+        return new RecordWriter<Writable, BytesWritable>()
+        {
+            @Override
+            public void write(Writable key, BytesWritable value) throws IOException
+            {
+                ImageColumnarFile.Pointer pointer = new ImageColumnarFile.Pointer(payload.getPos(), value.getLength());
+                payload.write(value.getBytes(), 0, value.getLength());
+
+                metadataWriter.append(key, pointer);
+            }
+
+            @Override
+            public void close(TaskAttemptContext context) throws IOException
+            {
+                metadataWriter.close();
+                payload.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,147 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * ImageColumnarReader provide a simple interface to read an ImageColumnarFile container. next() only reads the
+ * metadata column, the image bytes are read from the payload column when bytes() or image() is called, so a scan
+ * of the metadata never reads the images.
+ */
+public class ImageColumnarReader
+{
+    private Configuration conf = null;
+    private SequenceFile.Reader reader = null;
+    private FSDataInputStream payload = null;
+    private Writable key = null;
+    private ImageColumnarFile.Pointer pointer = new ImageColumnarFile.Pointer();
+    private MetadataParser metadata = null;
+    private BytesWritable value = new BytesWritable();
+    private boolean valueRead = false;
+    private IplImage image = null;
+    private MetadataParser imageMetadata = null;
+
+    public ImageColumnarReader(Configuration conf)
+    {
+        if (conf == null)
+        {
+            throw new IllegalArgumentException("conf can't be null");
+        }
+
+        this.conf = conf;
+    }
+
+    public MetadataParser metadata()
+    {
+        return this.metadata;
+    }
+
+    public String name()
+    {
+        return this.metadata.get("name");
+    }
+
+    public Writable key()
+    {
+        return this.key;
+    }
+
+    // Read the metadata of the next image, its bytes are only read on demand.
+    public boolean next() throws Exception
+    {
+        if (this.reader == null)
+        {
+            throw new Exception("Invalid State: open() must be called before next().");
+        }
+
+        if (this.reader.next(this.key, this.pointer))
+        {
+            this.metadata = MetadataParser.from(this.key);
+            this.valueRead = false;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    // The bytes of the current image, encoded or raw, read from the payload column.
+    public BytesWritable bytes() throws IOException
+    {
+        if (!this.valueRead)
+        {
+            // The value backing array is reused, it is only grown for larger images.
+            this.value.setSize(this.pointer.length());
+            this.payload.readFully(this.pointer.offset(), this.value.getBytes(), 0, this.pointer.length());
+            this.valueRead = true;
+        }
+
+        return this.value;
+    }
+
+    // The current image, valid until the next call to image() or close().
+    public IplImage image() throws IOException
+    {
+        BytesWritable bytes = bytes();
+
+        releaseImage();
+
+        this.image = ImageHelper.createIplImage(bytes.getBytes(), bytes.getLength(), this.metadata);
+        this.imageMetadata = this.metadata;
+
+        return this.image;
+    }
+
+    public void open(String containerPath) throws IOException
+    {
+        close();
+
+        Path container = new Path(containerPath);
+
+        this.reader = new SequenceFile.Reader(
+            this.conf,
+            SequenceFile.Reader.file(ImageColumnarFile.metadataPath(container)));
+
+        // Either a legacy Text key or an ImageKeyWritable.
+        this.key = (Writable)ReflectionUtils.newInstance(this.reader.getKeyClass(), this.conf);
+
+        this.payload = container.getFileSystem(this.conf).open(ImageColumnarFile.payloadPath(container));
+    }
+
+    public void close() throws IOException
+    {
+        releaseImage();
+
+        if (this.reader != null)
+        {
+            this.reader.close();
+            this.reader = null;
+        }
+
+        if (this.payload != null)
+        {
+            this.payload.close();
+            this.payload = null;
+        }
+    }
+
+    private void releaseImage()
+    {
+        if (this.image != null)
+        {
+            ImageHelper.releaseIplImage(this.image, this.imageMetadata);
+            this.image = null;
+        }
+    }
+}
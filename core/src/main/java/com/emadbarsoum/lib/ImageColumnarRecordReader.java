@@ -0,0 +1,82 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileRecordReader;
+
+import java.io.IOException;
+
+/**
+ * ImageColumnarRecordReader reads a split of the metadata column of an ImageColumnarFile container, and the bytes
+ * of each image from the payload column unless only the metadata is read, see ImageColumnarInputFormat.
+ */
+public class ImageColumnarRecordReader extends RecordReader<Writable, BytesWritable>
+{
+    private SequenceFileRecordReader<Writable, ImageColumnarFile.Pointer> metadataReader = new SequenceFileRecordReader<Writable, ImageColumnarFile.Pointer>();
+    private FSDataInputStream payload = null;
+    private BytesWritable value = new BytesWritable();
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException
+    {
+        this.metadataReader.initialize(split, context);
+
+        if (context.getConfiguration().getBoolean(ImageColumnarInputFormat.readPayloadProperty, true))
+        {
+            Path payloadPath = ImageColumnarFile.payloadOf(((FileSplit)split).getPath());
+            this.payload = payloadPath.getFileSystem(context.getConfiguration()).open(payloadPath);
+        }
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException
+    {
+        if (!this.metadataReader.nextKeyValue())
+        {
+            return false;
+        }
+
+        if (this.payload != null)
+        {
+            ImageColumnarFile.Pointer pointer = this.metadataReader.getCurrentValue();
+
+            // The value backing array is reused, it is only grown for larger images.
+            this.value.setSize(pointer.length());
+            this.payload.readFully(pointer.offset(), this.value.getBytes(), 0, pointer.length());
+        }
+
+        return true;
+    }
+
+    @Override
+    public Writable getCurrentKey() throws IOException, InterruptedException
+    {
+        return this.metadataReader.getCurrentKey();
+    }
+
+    @Override
+    public BytesWritable getCurrentValue() throws IOException, InterruptedException
+    {
+        return this.value;
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException
+    {
+        return this.metadataReader.getProgress();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.metadataReader.close();
+        IOUtils.closeStream(this.payload);
+    }
+}
@@ -0,0 +1,52 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.MatData;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * ImageFeature is the image metadata and its feature, used to send the features of several images
+ * to the same reducer.
+ */
+public class ImageFeature implements Writable
+{
+    private Text image = new Text();
+    private MatData feature = new MatData();
+
+    public ImageFeature()
+    {}
+
+    public ImageFeature(Text image, MatData feature)
+    {
+        this.image.set(image);
+        this.feature = feature;
+    }
+
+    public Text image()
+    {
+        return this.image;
+    }
+
+    public MatData feature()
+    {
+        return this.feature;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        this.image.write(out);
+        this.feature.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        this.image.readFields(in);
+        this.feature.readFields(in);
+    }
+}
@@ -0,0 +1,128 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.IOException;
+
+/**
+ * ImageFileRecordReader reads a whole image file as a single record, the key is the same metadata as an image
+ * sequence file (name, ext and path) and the value is the encoded image bytes.
+ *
+ * It reads either the FileSplit of ImageInputFormat, or one file of a CombineFileSplit as required by
+ * CombineFileRecordReader.
+ */
+public class ImageFileRecordReader extends RecordReader<Text, BytesWritable>
+{
+    private Path path;
+    private long length;
+    private TaskAttemptContext context;
+    private Text key = new Text();
+    private BytesWritable value = new BytesWritable();
+    private boolean done = false;
+
+    public ImageFileRecordReader()
+    {
+    }
+
+    public ImageFileRecordReader(CombineFileSplit split, TaskAttemptContext context, Integer index)
+    {
+        this.path = split.getPath(index);
+        this.length = split.getLength(index);
+        this.context = context;
+    }
+
+    // The image sequence file metadata of an image file.
+    public static String metadata(Path path)
+    {
+        String fileName = path.getName();
+        int pos = fileName.lastIndexOf(".");
+
+        MetadataParser metadata = new MetadataParser();
+        metadata.put("name", (pos > 0) ? fileName.substring(0, pos) : fileName);
+        metadata.put("ext", (pos > 0) ? fileName.substring(pos + 1).toLowerCase() : "");
+        metadata.put("path", path.toString());
+
+        return metadata.toMetadata();
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException
+    {
+        // The file of a CombineFileSplit is already set by the constructor.
+        if (this.path == null)
+        {
+            FileSplit fileSplit = (FileSplit)split;
+
+            this.path = fileSplit.getPath();
+            this.length = fileSplit.getLength();
+            this.context = context;
+        }
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException
+    {
+        if (this.done)
+        {
+            return false;
+        }
+
+        if (this.length > Integer.MAX_VALUE)
+        {
+            throw new IOException("The image " + this.path + " is too large.");
+        }
+
+        byte[] data = new byte[(int)this.length];
+
+        FileSystem fs = this.path.getFileSystem(this.context.getConfiguration());
+        FSDataInputStream in = fs.open(this.path);
+        try
+        {
+            IOUtils.readFully(in, data, 0, data.length);
+        }
+        finally
+        {
+            IOUtils.closeStream(in);
+        }
+
+        this.key.set(metadata(this.path));
+        this.value.set(data, 0, data.length);
+        this.done = true;
+
+        return true;
+    }
+
+    @Override
+    public Text getCurrentKey() throws IOException, InterruptedException
+    {
+        return this.key;
+    }
+
+    @Override
+    public BytesWritable getCurrentValue() throws IOException, InterruptedException
+    {
+        return this.value;
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException
+    {
+        return this.done ? 1.0f : 0.0f;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+    }
+}
@@ -0,0 +1,25 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImagePool;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Base interface for ImageFilter, a stage of the pipeline job, see ImageFilterFactory for the stages and their
+ * parameters.
+ */
+public interface ImageFilter
+{
+    // The name of the stage, i.e. gaussian, used by the stage time counters.
+    public String name();
+
+    // The number of pixels around each pixel that the stage reads, the halo it consumes on a tile (see ImageTiles).
+    public int radius();
+
+    // True when the stage changes the size of the image, such a stage can't be applied to a tile.
+    public boolean resizes();
+
+    // Filter the image in place when possible. When the size or the number of channels change the result is a new
+    // image taken from the pool, and the given image is left to the caller.
+    public IplImage apply(IplImage image, ImagePool pool, TaskAttemptContext context);
+}
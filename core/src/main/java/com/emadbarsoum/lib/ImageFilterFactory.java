@@ -0,0 +1,78 @@
+package com.emadbarsoum.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ImageFilterFactory create the ImageFilter of a stage given in the command line, the parameters follow the name
+ * separated by ':'
+ *
+ *     gray
+ *     gaussian[:size[:sigma]]   3 and 1.0 by default.
+ *     median[:size]   3 by default.
+ *     erode[:iterations] and dilate[:iterations]   1 by default.
+ *     thumbnail[:size]   120 by default.
+ *
+ * A chain is a comma separated list of stages, i.e. gray,gaussian:5:1.5,erode:2,thumbnail:256
+ */
+public class ImageFilterFactory
+{
+    public static ImageFilter create(String stage)
+    {
+        String[] parts = stage.trim().split(":");
+        String name = parts[0];
+
+        if (name.equals("gray"))
+        {
+            return new GrayFilter();
+        }
+        else if (name.equals("gaussian"))
+        {
+            return new GaussianFilter(intParameter(parts, 1, 3), doubleParameter(parts, 2, 1.0));
+        }
+        else if (name.equals("median"))
+        {
+            return new MedianFilter(intParameter(parts, 1, 3));
+        }
+        else if (name.equals("erode"))
+        {
+            return new MorphologyFilter(true, intParameter(parts, 1, 1));
+        }
+        else if (name.equals("dilate"))
+        {
+            return new MorphologyFilter(false, intParameter(parts, 1, 1));
+        }
+        else if (name.equals("thumbnail"))
+        {
+            return new ThumbnailFilter(intParameter(parts, 1, 120));
+        }
+
+        throw new IllegalArgumentException("Unknown filter: " + stage);
+    }
+
+    public static List<ImageFilter> createChain(String chain)
+    {
+        if ((chain == null) || chain.trim().isEmpty())
+        {
+            throw new IllegalArgumentException("The chain has no stage.");
+        }
+
+        List<ImageFilter> filters = new ArrayList<ImageFilter>();
+        for (String stage : chain.split(","))
+        {
+            filters.add(create(stage));
+        }
+
+        return filters;
+    }
+
+    private static int intParameter(String[] parts, int index, int defaultValue)
+    {
+        return (parts.length > index) ? Integer.parseInt(parts[index]) : defaultValue;
+    }
+
+    private static double doubleParameter(String[] parts, int index, double defaultValue)
+    {
+        return (parts.length > index) ? Double.parseDouble(parts[index]) : defaultValue;
+    }
+}
@@ -0,0 +1,100 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.CommandParser;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * ImageInputFormat reads image files (jpg, jpeg and png) directly, one image per split, so a job can run on a
+ * folder of images without converting it first with iseq. The records are the same as an image sequence file,
+ * the key is the Text metadata (name, ext and path) and the value is the encoded image bytes.
+ *
+ * The input folders are read recursively. For many small images CombineImageInputFormat packs several images per
+ * split. The jobs select their input format with:
+ *
+ *     -inputformat sequence|image|combine|columnar   image sequence files by default.
+ *     -splitsize <MB>   the size of a combine split, 256 MB by default.
+ *
+ * columnar reads ImageColumnarFile containers.
+ */
+public class ImageInputFormat extends FileInputFormat<Text, BytesWritable>
+{
+    public static final String usage = "[-inputformat sequence|image|combine|columnar] [-splitsize <MB per combined split>]";
+
+    // Check the values of the input format options, if any.
+    public static boolean isValid(CommandParser parser)
+    {
+        if (parser.has("inputformat"))
+        {
+            String format = parser.get("inputformat");
+            if ((format == null) || !(format.equals("sequence") || format.equals("image") || format.equals("combine") || format.equals("columnar")))
+            {
+                return false;
+            }
+        }
+
+        if (parser.has("splitsize") && ((parser.get("splitsize") == null) || (parser.getAsInt("splitsize") < 1)))
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    // Set the input format of a job that read images, from the -inputformat option.
+    public static void setInputFormat(Job job, CommandParser parser)
+    {
+        String format = parser.has("inputformat") ? parser.get("inputformat") : "sequence";
+        if (format.equals("image"))
+        {
+            job.setInputFormatClass(ImageInputFormat.class);
+        }
+        else if (format.equals("combine"))
+        {
+            job.setInputFormatClass(CombineImageInputFormat.class);
+
+            long splitSize = (parser.has("splitsize") ? parser.getAsInt("splitsize") : 256) * 1024L * 1024L;
+            CombineImageInputFormat.setMaxInputSplitSize(job, splitSize);
+        }
+        else if (format.equals("columnar"))
+        {
+            job.setInputFormatClass(ImageColumnarInputFormat.class);
+        }
+        else
+        {
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+        }
+    }
+
+    @Override
+    protected List<FileStatus> listStatus(JobContext job) throws IOException
+    {
+        job.getConfiguration().setBoolean(CombineImageInputFormat.recursiveProperty, true);
+
+        return CombineImageInputFormat.imageFiles(super.listStatus(job));
+    }
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path file)
+    {
+        return false;
+    }
+
+    @Override
+    public RecordReader<Text, BytesWritable> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException
+    {
+        return new ImageFileRecordReader();
+    }
+}
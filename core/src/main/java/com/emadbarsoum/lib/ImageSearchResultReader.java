@@ -15,6 +15,9 @@ import static org.bytedeco.javacpp.opencv_highgui.*;
 /**
  * ImageSearchResultReader provide a simple interface to read images from the result sequence
  * file of image search MapReduce.
+ *
+ * The images are loaded from their original path, or from the indexed image sequence file that was searched if
+ * it is given to open().
  */
 public class ImageSearchResultReader
 {
@@ -24,6 +27,9 @@ public class ImageSearchResultReader
     private String name;
     private String ext;
     private String path;
+    private MetadataParser metadata;
+    private ImageSequenceFileReader images = null;
+    private boolean loadImages = true;
 
     public String name()
     {
@@ -40,11 +46,23 @@ public class ImageSearchResultReader
         return this.path;
     }
 
+    // The metadata of the result, i.e. to find the image in an indexed image sequence file.
+    public MetadataParser metadata()
+    {
+        return this.metadata;
+    }
+
     public IplImage image()
     {
         return this.image;
     }
 
+    // Only read the metadata of the results when false, image() is then null. True by default.
+    public void setLoadImages(boolean loadImages)
+    {
+        this.loadImages = loadImages;
+    }
+
     public ImageSearchResultReader(Configuration conf)
     {
         if (conf == null)
@@ -73,13 +91,27 @@ public class ImageSearchResultReader
             this.name = metadata.get("name");
             this.ext = metadata.get("ext");
             this.path = metadata.get("path");
+            this.metadata = metadata;
 
-            if (this.image != null)
+            if (!this.loadImages)
             {
-                cvReleaseImage(this.image);
+                return true;
             }
 
-            this.image = cvLoadImage(this.path);
+            if (this.images != null)
+            {
+                // The image is owned by the image sequence file reader.
+                this.image = this.images.get(this.images.indexKey(metadata)) ? this.images.image() : null;
+            }
+            else
+            {
+                if (this.image != null)
+                {
+                    cvReleaseImage(this.image);
+                }
+
+                this.image = cvLoadImage(this.path);
+            }
 
             return true;
         }
@@ -96,14 +128,34 @@ public class ImageSearchResultReader
                 SequenceFile.Reader.file(new Path(inputPath)));
     }
 
+    // Read the images by path from an indexed image sequence file instead of their original path.
+    public void open(String inputPath, String imagesPath) throws Exception
+    {
+        open(inputPath);
+
+        this.images = new ImageSequenceFileReader(this.conf);
+        this.images.open(imagesPath);
+        if (!this.images.hasIndex())
+        {
+            close();
+            throw new Exception("The image sequence file " + imagesPath + " has no index.");
+        }
+    }
+
     public void close() throws IOException
     {
-        if (this.image != null)
+        if (this.images != null)
+        {
+            this.images.close();
+            this.images = null;
+        }
+        else if (this.image != null)
         {
             cvReleaseImage(this.image);
-            this.image = null;
         }
 
+        this.image = null;
+
         if (this.reader != null)
         {
             this.reader.close();
@@ -0,0 +1,162 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * ImageSequenceFileIndex is the sidecar index of an image sequence file, "<sequence file>.idx", a sequence file of
+ * the image keys, sorted, and the position of each image in the image sequence file. It is written by
+ * ImageSequenceFileWriter and loaded by ImageSequenceFileReader to find an image by key with a binary search.
+ *
+ * The key of an image is its path, see key(), since images of different folders often have the same name (i.e.
+ * iseq -recursive).
+ *
+ * For block compressed sequence files the position is the sync marker of the block of the image.
+ */
+public class ImageSequenceFileIndex
+{
+    private ArrayList<Entry> entries = new ArrayList<Entry>();
+    private String[] keys = null;
+    private long[] positions = null;
+
+    public static String indexPath(String sequenceFilePath)
+    {
+        return sequenceFilePath + ".idx";
+    }
+
+    // The key of an image given its metadata, the path, or the name for an image without path.
+    public static String key(MetadataParser metadata)
+    {
+        String path = metadata.get("path");
+        return (path != null) ? path : metadata.get("name");
+    }
+
+    // Add an image while writing, the entries are sorted by write().
+    public void add(String key, long position)
+    {
+        this.entries.add(new Entry(key, position));
+    }
+
+    public int size()
+    {
+        return (this.keys != null) ? this.keys.length : this.entries.size();
+    }
+
+    // The position of the first image with this key, or -1 if there is none.
+    public long position(String key)
+    {
+        if (this.keys == null)
+        {
+            throw new IllegalStateException("The index must be read before searching it.");
+        }
+
+        int index = Arrays.binarySearch(this.keys, key);
+        if (index < 0)
+        {
+            return -1;
+        }
+
+        // Several images can have the same key, the first one in the sequence file wins.
+        while ((index > 0) && this.keys[index - 1].equals(key))
+        {
+            --index;
+        }
+
+        return this.positions[index];
+    }
+
+    public void write(Configuration conf, String sequenceFilePath) throws IOException
+    {
+        // Stable, so the images with the same key stay in the sequence file order.
+        Collections.sort(this.entries);
+
+        SequenceFile.Writer writer = SequenceFile.createWriter(
+            conf,
+            SequenceFile.Writer.file(new Path(indexPath(sequenceFilePath))),
+            SequenceFile.Writer.keyClass(Text.class),
+            SequenceFile.Writer.valueClass(LongWritable.class));
+
+        try
+        {
+            Text key = new Text();
+            LongWritable value = new LongWritable();
+            for (Entry entry : this.entries)
+            {
+                key.set(entry.key);
+                value.set(entry.position);
+                writer.append(key, value);
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    // Load the index of an image sequence file, return null if it has none.
+    public static ImageSequenceFileIndex read(Configuration conf, String sequenceFilePath) throws IOException
+    {
+        Path path = new Path(indexPath(sequenceFilePath));
+        FileSystem fs = path.getFileSystem(conf);
+        if (!fs.exists(path))
+        {
+            return null;
+        }
+
+        ImageSequenceFileIndex index = new ImageSequenceFileIndex();
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+        try
+        {
+            Text key = new Text();
+            LongWritable value = new LongWritable();
+            while (reader.next(key, value))
+            {
+                index.add(key.toString(), value.get());
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        index.keys = new String[index.entries.size()];
+        index.positions = new long[index.entries.size()];
+        for (int i = 0; i < index.keys.length; ++i)
+        {
+            index.keys[i] = index.entries.get(i).key;
+            index.positions[i] = index.entries.get(i).position;
+        }
+
+        index.entries = null;
+
+        return index;
+    }
+
+    private static class Entry implements Comparable<Entry>
+    {
+        private String key;
+        private long position;
+
+        public Entry(String key, long position)
+        {
+            this.key = key;
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(Entry other)
+        {
+            return this.key.compareTo(other.key);
+        }
+    }
+}
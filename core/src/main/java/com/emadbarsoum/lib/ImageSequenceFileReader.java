@@ -1,16 +1,17 @@
 package com.emadbarsoum.lib;
 
+import com.emadbarsoum.common.ImageHelper;
 import com.emadbarsoum.common.MetadataParser;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.bytedeco.javacpp.BytePointer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_highgui.*;
@@ -18,14 +19,27 @@ import static org.bytedeco.javacpp.opencv_highgui.*;
 /**
  * ImageSequenceFileReader provide a simple interface to read images from an image
  * sequence file.
+ *
+ * If the sequence file has a sidecar index, written by ImageSequenceFileWriter.setIndexed(), seek() and get()
+ * find an image by its path (see indexKey()) in O(log n) instead of reading the whole file.
+ *
+ * Uncompressed sequence files on the local file system are read through MappedSequenceFileReader, the images are
+ * decoded or copied straight from the mapped file, unless setMapped(false) is called before open().
  */
 public class ImageSequenceFileReader
 {
     private Configuration conf = null;
     private SequenceFile.Reader reader = null;
     private IplImage image = null;
+    private Writable key = null;
+    private BytesWritable value = new BytesWritable();
     private String name;
     private String ext;
+    private MetadataParser metadata = null;
+    private ImageSequenceFileIndex index = null;
+    private boolean pending = false;
+    private boolean mapped = true;
+    private MappedSequenceFileReader mappedReader = null;
 
     public String name()
     {
@@ -42,6 +56,39 @@ public class ImageSequenceFileReader
         return this.image;
     }
 
+    public MetadataParser metadata()
+    {
+        return this.metadata;
+    }
+
+    // The stored bytes of the current image, encoded or raw. Unless isMapped(), they are only valid until the
+    // next record is read.
+    public ByteBuffer data()
+    {
+        if (this.mappedReader != null)
+        {
+            return MappedSequenceFileReader.bytesWritableBytes(this.mappedReader.value());
+        }
+
+        return ByteBuffer.wrap(this.value.getBytes(), 0, this.value.getLength());
+    }
+
+    public boolean isMapped()
+    {
+        return this.mappedReader != null;
+    }
+
+    // Read local uncompressed sequence files through a memory mapped file, true by default.
+    public void setMapped(boolean mapped)
+    {
+        this.mapped = mapped;
+    }
+
+    public boolean hasIndex()
+    {
+        return this.index != null;
+    }
+
     public ImageSequenceFileReader(Configuration conf)
     {
         if (conf == null)
@@ -54,69 +101,215 @@ public class ImageSequenceFileReader
 
     public boolean next() throws Exception
     {
-        if (this.reader == null)
+        if (!nextRecord())
         {
-            throw new Exception("Invalid State: open() must be called before next().");
+            return false;
         }
 
-        Text key = new Text();
-        BytesWritable value = new BytesWritable();
-
-        if (this.reader.next(key, value))
+        // The stored bytes, a view of the mapped file or of the value backing array.
+        ByteBuffer data = data();
+        if (ImageHelper.isRaw(this.metadata))
         {
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            int width = this.metadata.getAsInt("width");
+            int height = this.metadata.getAsInt("height");
+            int channelCount = this.metadata.getAsInt("channel_count");
+            int depth =  this.metadata.getAsInt("depth");
 
-            this.name = metadata.get("name");
-            this.ext = metadata.get("ext");
+            if (this.image == null)
+            {
+                this.image = IplImage.create(width, height, depth, channelCount);
+            }
+            else if (!((this.image.width() == width)   &&
+                       (this.image.height() == height) &&
+                       (this.image.depth() == depth)   &&
+                       (this.image.nChannels() == channelCount)))
+            {
+                this.image.release();
+                this.image = IplImage.create(width, height, depth, channelCount);
+            }
 
-            if (metadata.has("type") && metadata.get("type").equals("raw"))
+            // Copy straight from the mapped file or the value backing array into the native image.
+            ImageHelper.copyRawBytes(data, this.image);
+        }
+        else
+        {
+            if (this.image != null)
             {
-                int width = metadata.getAsInt("width");
-                int height = metadata.getAsInt("height");
-                int channelCount = metadata.getAsInt("channel_count");
-                int depth =  metadata.getAsInt("depth");
+                this.image.release();
+            }
 
-                if (this.image == null)
-                {
-                    this.image = IplImage.create(width, height, depth, channelCount);
-                }
-                else if (!((this.image.width() == width)   &&
-                           (this.image.height() == height) &&
-                           (this.image.depth() == depth)   &&
-                           (this.image.nChannels() == channelCount)))
-                {
-                    this.image.release();
-                    this.image = IplImage.create(width, height, depth, channelCount);
-                }
+            // A mapped file is decoded without copy.
+            BytePointer pointer = data.isDirect() ? new BytePointer(data) : new BytePointer(this.value.getBytes());
+            this.image = cvDecodeImage(cvMat(1, data.remaining(), CV_8UC1, pointer));
+        }
+
+        return true;
+    }
+
+    // Read the metadata and the stored bytes of the next image without decoding it, see metadata() and data().
+    public boolean nextRecord() throws Exception
+    {
+        if ((this.reader == null) && (this.mappedReader == null))
+        {
+            throw new Exception("Invalid State: open() must be called before next().");
+        }
 
-                ByteBuffer buffer = this.image.getByteBuffer();
-                byte[] rawBuffer = Arrays.copyOf(value.getBytes(), value.getLength());
-                buffer.put(rawBuffer);
+        // The key and value are reused, so the value backing array is only grown for larger images.
+        Writable key = this.key;
+        BytesWritable value = this.value;
+
+        // The key of the image found by seek() is already read.
+        boolean hasNext;
+        if (this.pending)
+        {
+            this.pending = false;
+            if (this.mappedReader == null)
+            {
+                this.reader.getCurrentValue(value);
             }
-            else
+
+            hasNext = true;
+        }
+        else if (this.mappedReader != null)
+        {
+            hasNext = this.mappedReader.next();
+            if (hasNext)
             {
-                if (this.image != null)
+                this.mappedReader.readKey(key);
+            }
+        }
+        else
+        {
+            hasNext = this.reader.next(key, value);
+        }
+
+        if (hasNext)
+        {
+            this.metadata = MetadataParser.from(key);
+
+            this.name = this.metadata.get("name");
+            this.ext = this.metadata.get("ext");
+        }
+
+        return hasNext;
+    }
+
+    // The key in the index of the image with this metadata, i.e. of a search result, for seek() and get().
+    public String indexKey(MetadataParser metadata) throws Exception
+    {
+        if (this.index == null)
+        {
+            throw new Exception("Invalid State: the sequence file has no index.");
+        }
+
+        return ImageSequenceFileIndex.key(metadata);
+    }
+
+    // Move to the first image with this index key, so the next call to next() read it. Return false if there is none.
+    public boolean seek(String key) throws Exception
+    {
+        if ((this.reader == null) && (this.mappedReader == null))
+        {
+            throw new Exception("Invalid State: open() must be called before seek().");
+        }
+
+        if (this.index == null)
+        {
+            throw new Exception("Invalid State: the sequence file has no index.");
+        }
+
+        this.pending = false;
+
+        long position = this.index.position(key);
+        if (position < 0)
+        {
+            return false;
+        }
+
+        if (this.mappedReader != null)
+        {
+            this.mappedReader.seek(position);
+            while (this.mappedReader.next())
+            {
+                this.mappedReader.readKey(this.key);
+                if (key.equals(ImageSequenceFileIndex.key(MetadataParser.from(this.key))))
                 {
-                    this.image.release();
+                    this.pending = true;
+                    return true;
                 }
-
-                this.image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
             }
 
-            return true;
+            return false;
+        }
+
+        // A block is only readable from its sync marker, the image is then one of the records of the block.
+        if (this.reader.isBlockCompressed())
+        {
+            this.reader.sync(position);
+        }
+        else
+        {
+            this.reader.seek(position);
+        }
+
+        // Only the keys are read until the image is found.
+        while (this.reader.next(this.key))
+        {
+            if (key.equals(ImageSequenceFileIndex.key(MetadataParser.from(this.key))))
+            {
+                this.pending = true;
+                return true;
+            }
         }
 
         return false;
     }
 
+    // Read the first image with this index key, return false if there is none.
+    public boolean get(String key) throws Exception
+    {
+        return seek(key) && next();
+    }
+
+    // Same as get() without decoding the image, see nextRecord().
+    public boolean getRecord(String key) throws Exception
+    {
+        return seek(key) && nextRecord();
+    }
+
     public void open(String inputPath) throws IOException
     {
         close();
 
-        this.reader = new SequenceFile.Reader(
-            this.conf,
-            SequenceFile.Reader.file(new Path(inputPath)));
+        Path path = new Path(inputPath);
+        if (this.mapped)
+        {
+            this.mappedReader = MappedSequenceFileReader.openLocal(this.conf, path, BytesWritable.class);
+        }
+
+        // Either a legacy Text key or an ImageKeyWritable.
+        if (this.mappedReader != null)
+        {
+            try
+            {
+                this.key = (Writable)ReflectionUtils.newInstance(this.conf.getClassByName(this.mappedReader.keyClassName()), this.conf);
+            }
+            catch (ClassNotFoundException e)
+            {
+                close();
+                throw new IOException(e);
+            }
+        }
+        else
+        {
+            this.reader = new SequenceFile.Reader(
+                this.conf,
+                SequenceFile.Reader.file(path));
+
+            this.key = (Writable)ReflectionUtils.newInstance(this.reader.getKeyClass(), this.conf);
+        }
+
+        this.index = ImageSequenceFileIndex.read(this.conf, inputPath);
     }
 
     public void close() throws IOException
@@ -132,5 +325,14 @@ public class ImageSequenceFileReader
             this.reader.close();
             this.reader = null;
         }
+
+        if (this.mappedReader != null)
+        {
+            this.mappedReader.close();
+            this.mappedReader = null;
+        }
+
+        this.index = null;
+        this.pending = false;
     }
 }
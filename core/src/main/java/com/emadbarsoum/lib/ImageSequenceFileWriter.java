@@ -1,15 +1,21 @@
 package com.emadbarsoum.lib;
 
+import com.emadbarsoum.common.ImageKeyWritable;
+import com.emadbarsoum.common.MetadataParser;
 import com.google.common.io.Files;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CompressionCodec;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Map;
 
 import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_highgui.*;
@@ -17,14 +23,40 @@ import static org.bytedeco.javacpp.opencv_highgui.*;
 /**
  * ImageSequenceFileWriter provide a simple interface to create an image sequence file,
  * write images to a sequence file and append an existing image sequence file.
+ *
+ * The keys are either the legacy "name=...;ext=..." Text metadata or ImageKeyWritable (binaryKey).
+ *
+ * compressed means the images are stored encoded (i.e. JPEG) instead of raw, the sequence file itself can
+ * also be record or block compressed with setCompression(), which is most useful for raw images.
+ *
+ * With setIndexed() a sidecar ImageSequenceFileIndex is written on close(), so ImageSequenceFileReader can seek
+ * to an image by its path.
+ *
+ * With setColumnar() the output is an ImageColumnarFile container instead, a folder with the metadata and the
+ * image bytes in separate files.
  */
 public class ImageSequenceFileWriter
 {
     private boolean compressed = false;
+    private boolean binaryKey = false;
     private Configuration conf = null;
     private SequenceFile.Writer writer = null;
+    private SequenceFile.CompressionType compressionType = SequenceFile.CompressionType.NONE;
+    private CompressionCodec codec = null;
+    private long syncInterval = 0;
+    private long lastSync = 0;
+    private boolean indexed = false;
+    private ImageSequenceFileIndex index = null;
+    private String outputPath = null;
+    private boolean columnar = false;
+    private FSDataOutputStream payload = null;
 
     public ImageSequenceFileWriter(Configuration conf, boolean compressed)
+    {
+        this(conf, compressed, false);
+    }
+
+    public ImageSequenceFileWriter(Configuration conf, boolean compressed, boolean binaryKey)
     {
         if (conf == null)
         {
@@ -33,6 +65,32 @@ public class ImageSequenceFileWriter
 
         this.conf = conf;
         this.compressed = compressed;
+        this.binaryKey = binaryKey;
+    }
+
+    // The compression of the sequence file, must be called before create().
+    public void setCompression(SequenceFile.CompressionType compressionType, CompressionCodec codec)
+    {
+        this.compressionType = compressionType;
+        this.codec = codec;
+    }
+
+    // Write a sync marker at least every syncInterval bytes, 0 keeps the SequenceFile default.
+    public void setSyncInterval(long syncInterval)
+    {
+        this.syncInterval = syncInterval;
+    }
+
+    // Write the sidecar index of the image names, must be called before create().
+    public void setIndexed(boolean indexed)
+    {
+        this.indexed = indexed;
+    }
+
+    // Write an ImageColumnarFile container instead of a sequence file, must be called before create().
+    public void setColumnar(boolean columnar)
+    {
+        this.columnar = columnar;
     }
 
     public void append(String imageFilePath) throws Exception
@@ -57,6 +115,53 @@ public class ImageSequenceFileWriter
             throw new Exception("Invalid State: create() must be called before append().");
         }
 
+        Record record = load(imageFile, additionMetadata);
+        if (record != null)
+        {
+            append(record);
+        }
+    }
+
+    // Append an image loaded by load().
+    public void append(Record record) throws IOException
+    {
+        if (this.index != null)
+        {
+            this.index.add(ImageSequenceFileIndex.key(MetadataParser.from(record.key)), this.writer.getLength());
+        }
+
+        if (this.payload != null)
+        {
+            // Only the position of the image bytes goes with the metadata.
+            ImageColumnarFile.Pointer pointer = new ImageColumnarFile.Pointer(this.payload.getPos(), record.value.getLength());
+            this.payload.write(record.value.getBytes(), 0, record.value.getLength());
+
+            this.writer.append(record.key, pointer);
+        }
+        else
+        {
+            this.writer.append(record.key, record.value);
+        }
+
+        if ((this.syncInterval > 0) && (this.writer.getLength() - this.lastSync >= this.syncInterval))
+        {
+            this.writer.sync();
+            this.lastSync = this.writer.getLength();
+        }
+    }
+
+    // Read and, for raw images, decode an image file into a sequence file record. It doesn't use the sequence file,
+    // so several threads can load images while a single thread append them. Return null if the file has no extension.
+    public Record load(File imageFile, String additionMetadata) throws Exception
+    {
+        String fileName = imageFile.getName();
+
+        int pos = fileName.lastIndexOf(".");
+        if (pos <= 0)
+        {
+            return null;
+        }
+
         int width = 0;
         int height = 0;
         int channelCount = 0;
@@ -70,6 +175,10 @@ public class ImageSequenceFileWriter
         else
         {
             IplImage image = cvLoadImage(imageFile.getAbsolutePath());
+            if (image == null)
+            {
+                throw new IOException("Can't load the image " + imageFile.getAbsolutePath());
+            }
 
             width = image.width();
             height = image.height();
@@ -83,42 +192,66 @@ public class ImageSequenceFileWriter
             cvReleaseImage(image);
         }
 
-        String name;
-        String extension;
-        String fileName = imageFile.getName();
-        String metadata;
+        MetadataParser metadata = new MetadataParser();
+        metadata.put("name", fileName.substring(0, pos));
+        metadata.put("ext", fileName.substring(pos + 1, fileName.length()).toLowerCase());
+        if (!compressed)
+        {
+            metadata.put("type", "raw");
+            metadata.put("width", width);
+            metadata.put("height", height);
+            metadata.put("channel_count", channelCount);
+            metadata.put("depth", depth);
+        }
 
-        int pos = fileName.lastIndexOf(".");
-        if (pos > 0)
+        if ((additionMetadata != null) && !additionMetadata.isEmpty())
         {
-            name = fileName.substring(0, pos);
-            extension = fileName.substring(pos + 1, fileName.length()).toLowerCase();
-            metadata = "name=" + name + ";ext=" + extension;
-            if (!compressed)
-            {
-                metadata += ";type=raw" + ";width=" + width + ";height=" + height + ";channel_count=" + channelCount + ";depth=" + depth;
-            }
+            MetadataParser additionParser = new MetadataParser(additionMetadata);
+            additionParser.parse();
 
-            if ((additionMetadata != null) && !additionMetadata.isEmpty())
+            for (Map.Entry<String, String> nameValue : additionParser.entries())
             {
-                metadata += ";" + additionMetadata;
+                metadata.put(nameValue.getKey(), nameValue.getValue());
             }
+        }
 
-            metadata += ";path=" + imageFile.getAbsolutePath();
+        metadata.put("path", imageFile.getAbsolutePath());
 
-            writer.append(new Text(metadata), new BytesWritable(fileData));
+        Writable key;
+        if (this.binaryKey)
+        {
+            key = ImageKeyWritable.fromMetadata(metadata);
+        }
+        else
+        {
+            key = new Text(metadata.toMetadata());
         }
+
+        return new Record(key, new BytesWritable(fileData));
     }
 
     public void create(String outputPath) throws IOException
     {
         close();
 
+        Path path = new Path(outputPath);
+        if (this.columnar)
+        {
+            Path container = path;
+            path = ImageColumnarFile.metadataPath(container);
+            this.payload = container.getFileSystem(this.conf).create(ImageColumnarFile.payloadPath(container));
+        }
+
         this.writer = SequenceFile.createWriter(
                 conf,
-                SequenceFile.Writer.file(new Path(outputPath)),
-                SequenceFile.Writer.keyClass(Text.class),
-                SequenceFile.Writer.valueClass(BytesWritable.class));
+                SequenceFile.Writer.file(path),
+                SequenceFile.Writer.keyClass(this.binaryKey ? ImageKeyWritable.class : Text.class),
+                SequenceFile.Writer.valueClass(this.columnar ? ImageColumnarFile.Pointer.class : BytesWritable.class),
+                SequenceFile.Writer.compression(this.compressionType, this.codec));
+
+        this.lastSync = 0;
+        this.outputPath = path.toString();
+        this.index = this.indexed ? new ImageSequenceFileIndex() : null;
     }
 
     public void close() throws IOException
@@ -128,5 +261,42 @@ public class ImageSequenceFileWriter
             this.writer.close();
             this.writer = null;
         }
+
+        if (this.payload != null)
+        {
+            this.payload.close();
+            this.payload = null;
+        }
+
+        if (this.index != null)
+        {
+            this.index.write(this.conf, this.outputPath);
+            this.index = null;
+        }
+    }
+
+    /**
+     * An image ready to be appended, the key is Text or ImageKeyWritable.
+     */
+    public static class Record
+    {
+        private Writable key;
+        private BytesWritable value;
+
+        public Record(Writable key, BytesWritable value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        public Writable key()
+        {
+            return this.key;
+        }
+
+        public BytesWritable value()
+        {
+            return this.value;
+        }
     }
 }
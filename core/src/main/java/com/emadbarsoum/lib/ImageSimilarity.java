@@ -6,8 +6,21 @@ import org.bytedeco.javacpp.opencv_core.*;
 /**
  * Base interface for ImageSimilarity
  * which compute similarity between 2 images using various algorithms.
+ *
+ * The distance can also be computed from precomputed features, so that the feature of an image
+ * can be extracted once (i.e. by the featurize job) and compared many times.
+ *
+ * An implementation may keep native buffers between calls, so it must be closed once it is no longer used.
  */
-public interface ImageSimilarity
+public interface ImageSimilarity extends AutoCloseable
 {
     public double computeDistance(IplImage image1, IplImage image2, TaskAttemptContext context);
+
+    public Mat computeFeature(IplImage image, TaskAttemptContext context);
+
+    public double computeDistance(Mat feature1, Mat feature2, TaskAttemptContext context);
+
+    // Release the native buffers kept by the implementation.
+    @Override
+    public void close();
 }
@@ -0,0 +1,43 @@
+package com.emadbarsoum.lib;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_nonfree;
+
+/**
+ * ImageSimilarityFactory create the ImageSimilarity implementation that match the method name
+ * given in the command line (hist, surf, bow or dhash).
+ */
+public class ImageSimilarityFactory
+{
+    // An unknown method falls back to hist in create(), so the command lines check the name first.
+    public static boolean isValid(String method)
+    {
+        return (method != null) &&
+               (method.equals("hist") || method.equals("surf") || method.equals("bow") || method.equals("dhash"));
+    }
+
+    public static ImageSimilarity create(String method)
+    {
+        if ((method != null) && method.equals("surf"))
+        {
+            // Needed for SURF feature.
+            Loader.load(opencv_nonfree.class);
+
+            return new SurfImageSimilarity();
+        }
+        else if ((method != null) && method.equals("bow"))
+        {
+            // Needed for SURF feature.
+            Loader.load(opencv_nonfree.class);
+
+            // The BOW cluster is added to the distributed cache with "bowClusterFile" symbolic link.
+            return new BOWImageSimilarity("bowClusterFile");
+        }
+        else if ((method != null) && method.equals("dhash"))
+        {
+            return new PerceptualHashImageSimilarity();
+        }
+
+        return new HistogramImageSimilarity();
+    }
+}
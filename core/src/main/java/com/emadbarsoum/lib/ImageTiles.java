@@ -0,0 +1,226 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ImageTiles splits a large image into tiles, each with a halo of the pixels around it, so a filter can process
+ * each tile independently of the others (in other map tasks or threads) and the tiles can be stitched back without
+ * seams. A filter with a kernel radius r is exact on the inside of a tile as long as the halo is at least r, the
+ * halo is clipped at the borders of the image where the filter handles the border as for the whole image.
+ *
+ * A tile is stored as a raw image record of the tile and its halo, the metadata of the image has the tile fields:
+ *
+ *     name=<image name>_<tile index>;tile_of=<image name>;tile_index;tile_count
+ *     tile_x;tile_y;tile_width;tile_height   the inside of the tile in the image.
+ *     halo_left;halo_top   the position of the inside of the tile in the record.
+ *     image_width;image_height   the size of the whole image.
+ *     halo   the halo left valid, decreased by the radius of each filter applied to the tile.
+ *
+ * Every tile keeps the path of its image, so the tiles of an image are grouped by imageKey, not by their name.
+ */
+public class ImageTiles
+{
+    public static final String counterGroup = "Image Tiles";
+    public static final String smallHaloCounter = "Tiles with a too small halo";
+
+    // The largest image untile stitches back: the raw bytes must fit in an IplImage (int imageSize) and be read back
+    // into a BytesWritable, which grows its capacity to 3 / 2 of the size.
+    public static final long maxImageBytes = (Integer.MAX_VALUE / 3) * 2;
+
+    /**
+     * The inside of a tile in the image, and its halo on each side.
+     */
+    public static class Tile
+    {
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        public final int left;
+        public final int top;
+        public final int right;
+        public final int bottom;
+
+        public Tile(int x, int y, int width, int height, int left, int top, int right, int bottom)
+        {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        // The tile with its halo, as stored.
+        public int outerX()
+        {
+            return this.x - this.left;
+        }
+
+        public int outerY()
+        {
+            return this.y - this.top;
+        }
+
+        public int outerWidth()
+        {
+            return this.left + this.width + this.right;
+        }
+
+        public int outerHeight()
+        {
+            return this.top + this.height + this.bottom;
+        }
+    }
+
+    // Split an image into tiles of tileSize x tileSize (smaller on the right and bottom), row by row.
+    public static List<Tile> split(int imageWidth, int imageHeight, int tileSize, int halo)
+    {
+        if ((tileSize < 1) || (halo < 0))
+        {
+            throw new IllegalArgumentException("Invalid tile size " + tileSize + " or halo " + halo);
+        }
+
+        List<Tile> tiles = new ArrayList<Tile>();
+        for (int y = 0; y < imageHeight; y += tileSize)
+        {
+            for (int x = 0; x < imageWidth; x += tileSize)
+            {
+                int width = Math.min(tileSize, imageWidth - x);
+                int height = Math.min(tileSize, imageHeight - y);
+
+                tiles.add(new Tile(x, y, width, height,
+                                   Math.min(halo, x),
+                                   Math.min(halo, y),
+                                   Math.min(halo, imageWidth - x - width),
+                                   Math.min(halo, imageHeight - y - height)));
+            }
+        }
+
+        return tiles;
+    }
+
+    // The size of the raw bytes of an image, with rows aligned to 4 bytes like an IplImage.
+    public static long rawSize(int width, int height, int channels, int depth)
+    {
+        long rowSize = ((long)width * channels * ((depth & 0xff) / 8) + 3) & ~3L;
+        return rowSize * height;
+    }
+
+    public static boolean isTile(MetadataParser metadata)
+    {
+        return metadata.has("tile_of");
+    }
+
+    // The key that groups the tiles of an image with each other, and with nothing else: the path of the image, which
+    // every tile keeps, since two images from different folders can have the same name. The name of the image when
+    // there is no path.
+    public static String imageKey(MetadataParser metadata)
+    {
+        if (metadata.has("path"))
+        {
+            return metadata.get("path");
+        }
+
+        return isTile(metadata) ? metadata.get("tile_of") : metadata.get("name");
+    }
+
+    // Add the tile fields to a copy of the image metadata, the path stays the last entry.
+    public static void toMetadata(Tile tile, int index, int count, int imageWidth, int imageHeight, int halo, MetadataParser metadata)
+    {
+        String path = metadata.get("path");
+        metadata.remove("path");
+
+        String name = metadata.get("name");
+        metadata.put("name", name + "_" + index);
+        metadata.put("tile_of", name);
+        metadata.put("tile_index", index);
+        metadata.put("tile_count", count);
+        metadata.put("tile_x", tile.x);
+        metadata.put("tile_y", tile.y);
+        metadata.put("tile_width", tile.width);
+        metadata.put("tile_height", tile.height);
+        metadata.put("halo_left", tile.left);
+        metadata.put("halo_top", tile.top);
+        metadata.put("image_width", imageWidth);
+        metadata.put("image_height", imageHeight);
+        metadata.put("halo", halo);
+
+        if (path != null)
+        {
+            metadata.put("path", path);
+        }
+    }
+
+    // The inside of a tile from its metadata, the right and bottom halo are what is left of the record.
+    public static Tile fromMetadata(MetadataParser metadata)
+    {
+        int width = metadata.getAsInt("tile_width");
+        int height = metadata.getAsInt("tile_height");
+        int left = metadata.getAsInt("halo_left");
+        int top = metadata.getAsInt("halo_top");
+
+        return new Tile(metadata.getAsInt("tile_x"),
+                        metadata.getAsInt("tile_y"),
+                        width,
+                        height,
+                        left,
+                        top,
+                        metadata.getAsInt("width") - left - width,
+                        metadata.getAsInt("height") - top - height);
+    }
+
+    // Remove the tile fields, the metadata is the one of the whole image again.
+    public static void toImageMetadata(MetadataParser metadata)
+    {
+        String path = metadata.get("path");
+        metadata.remove("path");
+
+        metadata.put("name", metadata.get("tile_of"));
+        metadata.put("width", metadata.getAsInt("image_width"));
+        metadata.put("height", metadata.getAsInt("image_height"));
+
+        String[] tileFields = {"tile_of", "tile_index", "tile_count", "tile_x", "tile_y", "tile_width", "tile_height",
+                               "halo_left", "halo_top", "image_width", "image_height", "halo"};
+        for (String field : tileFields)
+        {
+            metadata.remove(field);
+        }
+
+        if (path != null)
+        {
+            metadata.put("path", path);
+        }
+    }
+
+    // A filter of the given radius was applied to a tile, the pixels of the halo within the radius aren't valid
+    // anymore. The tiles whose halo was too small are counted, they will have seams once stitched.
+    public static void consumeHalo(MetadataParser metadata, int radius, TaskAttemptContext context)
+    {
+        if (!consumeHalo(metadata, radius))
+        {
+            context.getCounter(counterGroup, smallHaloCounter).increment(1);
+        }
+    }
+
+    // Same as above without the counter, for a caller that applies several filters and counts a tile once. Return
+    // false when the halo was too small for the radius.
+    public static boolean consumeHalo(MetadataParser metadata, int radius)
+    {
+        if (!isTile(metadata))
+        {
+            return true;
+        }
+
+        int halo = metadata.getAsInt("halo") - radius;
+        metadata.put("halo", Math.max(halo, 0));
+
+        return halo >= 0;
+    }
+}
@@ -0,0 +1,62 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageEncoding;
+import com.emadbarsoum.common.MetadataParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+import java.io.IOException;
+
+/**
+ * JavaFilter is the map of the map only filters with -engine java: it decodes the image into a JavaImage, applies a
+ * kernel of JavaKernels, consumes the halo of a tile and writes the result, raw or encoded. Each mapper (or mapper
+ * thread) has its own JavaFilter, so the images and the buffers of the kernels are reused from one image to the next.
+ * The encoded images still go through javax.imageio, which allocates its own images.
+ */
+public class JavaFilter
+{
+    public interface Kernel
+    {
+        // Filter input, in place or into output, and return the result.
+        JavaImage apply(JavaKernels kernels, JavaImage input, JavaImage output);
+    }
+
+    private JavaKernels kernels;
+    private ImageEncoding encoding;
+    private JavaImage input = new JavaImage();
+    private JavaImage output = new JavaImage();
+
+    private JavaFilter(JavaKernels kernels, ImageEncoding encoding)
+    {
+        this.kernels = kernels;
+        this.encoding = encoding;
+    }
+
+    // The Java engine of a mapper, null when the job runs the OpenCV engine.
+    public static JavaFilter create(Configuration conf)
+    {
+        JavaKernels kernels = JavaKernels.create(conf);
+        return (kernels != null) ? new JavaFilter(kernels, new ImageEncoding(conf)) : null;
+    }
+
+    // Filter one image, radius is the number of pixels around each pixel that the kernel reads.
+    public void map(BytesWritable value, MetadataParser metadata, int radius, Kernel kernel, TaskInputOutputContext<?, ?, Text, BytesWritable> context) throws IOException, InterruptedException
+    {
+        this.input.decode(value.getBytes(), value.getLength(), metadata);
+
+        context.setStatus("Status: Image loaded");
+        context.progress();
+
+        JavaImage result = kernel.apply(this.kernels, this.input, this.output);
+
+        // A tile has less valid halo left for the next filter.
+        ImageTiles.consumeHalo(metadata, radius, context);
+
+        // Write the result, raw or encoded.
+        context.write(new Text(metadata.toMetadata()), new BytesWritable(result.encode(this.encoding, metadata)));
+
+        context.setStatus("Status: map completed");
+    }
+}
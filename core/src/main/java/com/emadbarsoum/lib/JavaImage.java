@@ -0,0 +1,243 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImageEncoding;
+import com.emadbarsoum.common.MetadataParser;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * JavaImage is an 8 bit image in a Java byte array, the input and output of the pure Java kernels (JavaKernels).
+ * The pixels are interleaved (BGR for color images) and each row is aligned to 4 bytes, the same layout as an
+ * IplImage, so a raw image of a sequence file is copied as is and the raw results are read by the OpenCV jobs.
+ *
+ * The array is reused, it only grows, so a mapper keeps its images from one record to the next. Encoded images
+ * are decoded and encoded with javax.imageio, so the Java engine doesn't need the native OpenCV libraries.
+ */
+public class JavaImage
+{
+    private int width;
+    private int height;
+    private int channels;
+    private int stride;
+    private byte[] data = new byte[0];
+    private int[] row = new int[0];
+
+    public JavaImage()
+    {
+    }
+
+    public JavaImage(int width, int height, int channels)
+    {
+        this.reset(width, height, channels);
+    }
+
+    // Set the size of the image, the content is undefined.
+    public void reset(int width, int height, int channels)
+    {
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.stride = (width * channels + 3) & ~3;
+
+        if (this.data.length < this.size())
+        {
+            this.data = new byte[this.size()];
+        }
+    }
+
+    public int width()
+    {
+        return this.width;
+    }
+
+    public int height()
+    {
+        return this.height;
+    }
+
+    public int channels()
+    {
+        return this.channels;
+    }
+
+    // The number of bytes between two rows.
+    public int stride()
+    {
+        return this.stride;
+    }
+
+    public int size()
+    {
+        return this.stride * this.height;
+    }
+
+    // The pixels, the array may be larger than size().
+    public byte[] data()
+    {
+        return this.data;
+    }
+
+    // Load an image of a sequence file, an encoded image is decoded to BGR like cvDecodeImage.
+    public void decode(byte[] imageData, int length, MetadataParser metadata) throws IOException
+    {
+        // Checked here instead of ImageHelper.isRaw(), so the OpenCV classes aren't needed.
+        if (metadata.has("type") && metadata.get("type").equals("raw"))
+        {
+            if (metadata.has("depth") && (metadata.getAsInt("depth") != 8))
+            {
+                throw new IOException("The Java engine supports 8 bit images only, the depth is " + metadata.get("depth"));
+            }
+
+            this.reset(metadata.getAsInt("width"), metadata.getAsInt("height"), metadata.getAsInt("channel_count"));
+            if (length > this.size())
+            {
+                throw new IOException("The raw image data is larger than the image: " + length + " > " + this.size());
+            }
+
+            System.arraycopy(imageData, 0, this.data, 0, length);
+            return;
+        }
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData, 0, length));
+        if (image == null)
+        {
+            throw new IOException("Unsupported image format: " + metadata.get("ext"));
+        }
+
+        this.reset(image.getWidth(), image.getHeight(), 3);
+
+        int rowSize = this.width * 3;
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR)
+        {
+            byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < this.height; ++y)
+            {
+                System.arraycopy(pixels, y * rowSize, this.data, y * this.stride, rowSize);
+            }
+        }
+        else if (image.getType() == BufferedImage.TYPE_BYTE_GRAY)
+        {
+            // Read the raster, getRGB() would convert the linear gray to sRGB.
+            byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < this.height; ++y)
+            {
+                int src = y * this.width;
+                int dst = y * this.stride;
+                for (int x = 0; x < this.width; ++x)
+                {
+                    byte gray = pixels[src + x];
+                    this.data[dst++] = gray;
+                    this.data[dst++] = gray;
+                    this.data[dst++] = gray;
+                }
+            }
+        }
+        else
+        {
+            if (this.row.length < this.width)
+            {
+                this.row = new int[this.width];
+            }
+
+            int[] row = this.row;
+            for (int y = 0; y < this.height; ++y)
+            {
+                image.getRGB(0, y, this.width, 1, row, 0, this.width);
+
+                int dst = y * this.stride;
+                for (int x = 0; x < this.width; ++x)
+                {
+                    int rgb = row[x];
+                    this.data[dst++] = (byte)rgb;
+                    this.data[dst++] = (byte)(rgb >> 8);
+                    this.data[dst++] = (byte)(rgb >> 16);
+                }
+            }
+        }
+    }
+
+    // The raw bytes of the image, as stored with type=raw.
+    public byte[] toRaw()
+    {
+        return Arrays.copyOf(this.data, this.size());
+    }
+
+    // Encode the image with the format of the given extension, quality is the JPEG quality (0-100) or -1 for the
+    // default of the encoder.
+    public byte[] encode(String ext, int quality) throws IOException
+    {
+        if ((this.channels != 1) && (this.channels != 3))
+        {
+            throw new IOException("The Java engine encodes gray and BGR images only, the image has " + this.channels + " channels.");
+        }
+
+        BufferedImage image = new BufferedImage(this.width, this.height, (this.channels == 1) ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+        byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+
+        int rowSize = this.width * this.channels;
+        for (int y = 0; y < this.height; ++y)
+        {
+            System.arraycopy(this.data, y * this.stride, pixels, y * rowSize, rowSize);
+        }
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(ext);
+        if (!writers.hasNext())
+        {
+            throw new IOException("Unsupported image format: " + ext);
+        }
+
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if ((quality >= 0) && (ext.equals("jpg") || ext.equals("jpeg")))
+        {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality / 100.0f);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageOutputStream stream = ImageIO.createImageOutputStream(output);
+        try
+        {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally
+        {
+            writer.dispose();
+            stream.close();
+        }
+
+        return output.toByteArray();
+    }
+
+    // Store the image with the output options of the job, like ImageEncoding.encode() for an IplImage, the metadata
+    // is updated to describe the returned bytes.
+    public byte[] encode(ImageEncoding encoding, MetadataParser metadata) throws IOException
+    {
+        if (encoding.isRaw())
+        {
+            // 8 is IPL_DEPTH_8U.
+            ImageEncoding.rawMetadata(metadata, this.width, this.height, this.channels, 8);
+
+            return this.toRaw();
+        }
+
+        String ext = encoding.getFormat(metadata);
+        byte[] data = this.encode(ext, encoding.getQuality());
+
+        ImageEncoding.encodedMetadata(metadata, ext, this.width, this.height, this.channels);
+
+        return data;
+    }
+}
@@ -0,0 +1,562 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.CommandParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+
+import java.util.Arrays;
+
+/**
+ * JavaKernels is a pure Java engine for the basic filters, an alternative to the OpenCV calls of the map only jobs
+ * that doesn't cross JNI nor allocate native images. The kernels work on JavaImage, 8 bit interleaved pixels in a
+ * byte array, and keep their intermediate planes (int and byte arrays) from one call to the next, so an instance
+ * per mapper (or per mapper thread) doesn't allocate once the images stop growing.
+ *
+ * The inner loops are plain loops over primitive arrays with the border handled by precomputed offsets, for the
+ * JIT to unroll and vectorize. The borders follow OpenCV: reflect 101 for the Gaussian filter, replicate for the
+ * median filter and the morphology. The Gaussian filter is computed in fixed point, so it can differ from cvSmooth
+ * by one level.
+ *
+ * The jobs select the engine with:
+ *
+ *     -engine opencv|java   opencv by default.
+ */
+public class JavaKernels
+{
+    public static final String usage = "[-engine opencv|java]";
+    public static final String engineProperty = "hvision.engine";
+
+    // The precision of the fixed point weights of each pass of a separable filter.
+    private static final int weightBits = 11;
+    private static final int weightOne = 1 << weightBits;
+
+    // The intermediate planes, they only grow.
+    private int[] rowPlane = new int[0];
+    private byte[] bytePlane = new byte[0];
+    private int[] histogram = new int[256];
+
+    // The tables of the last call, computed again only when the size changes.
+    private int[] weights = new int[0];
+    private int weightsSize = 0;
+    private double weightsSigma = 0.0;
+    private int[] columnBorder = new int[0];
+    private int[] rowBorder = new int[0];
+    private AreaWeights columnWeights = new AreaWeights();
+    private AreaWeights rowWeights = new AreaWeights();
+
+    // Check the value of the engine option, if any.
+    public static boolean isValid(CommandParser parser)
+    {
+        if (parser.has("engine"))
+        {
+            String engine = parser.get("engine");
+            if ((engine == null) || !(engine.equals("opencv") || engine.equals("java")))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public static void configure(Job job, CommandParser parser)
+    {
+        job.getConfiguration().set(engineProperty, parser.has("engine") ? parser.get("engine") : "opencv");
+    }
+
+    // The kernels of a mapper, or null to use OpenCV.
+    public static JavaKernels create(Configuration conf)
+    {
+        return conf.get(engineProperty, "opencv").equals("java") ? new JavaKernels() : null;
+    }
+
+    // The Gaussian kernel of cvSmooth(CV_GAUSSIAN), in fixed point with a sum of exactly weightOne.
+    public static int[] gaussianWeights(int size, double sigma)
+    {
+        if (sigma <= 0)
+        {
+            sigma = 0.3 * ((size - 1) * 0.5 - 1) + 0.8;
+        }
+
+        double[] kernel = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; ++i)
+        {
+            double x = i - (size - 1) * 0.5;
+            kernel[i] = Math.exp(-(x * x) / (2 * sigma * sigma));
+            sum += kernel[i];
+        }
+
+        int[] weights = new int[size];
+        int total = 0;
+        for (int i = 0; i < size; ++i)
+        {
+            weights[i] = (int)Math.round(kernel[i] / sum * weightOne);
+            total += weights[i];
+        }
+
+        // The rounding error goes to the center.
+        weights[size / 2] += weightOne - total;
+
+        return weights;
+    }
+
+    // The Gaussian blur of cvSmooth(src, dst, CV_GAUSSIAN, size, size, sigma, sigma), src and dst may be the same.
+    public void gaussian(JavaImage src, JavaImage dst, int size, double sigma)
+    {
+        if ((size != this.weightsSize) || (sigma != this.weightsSigma))
+        {
+            this.weights = gaussianWeights(size, sigma);
+            this.weightsSize = size;
+            this.weightsSigma = sigma;
+        }
+
+        int[] weights = this.weights;
+        int radius = size / 2;
+
+        int width = src.width();
+        int height = src.height();
+        int channels = src.channels();
+        int rowSize = width * channels;
+        int stride = src.stride();
+        byte[] in = src.data();
+
+        // Horizontal pass into the int plane, the offsets of the padded row handle the border.
+        int[] plane = this.rowPlane(rowSize * height);
+        int[] columns = this.columnBorder = reflect101(this.columnBorder, width, radius);
+        for (int y = 0; y < height; ++y)
+        {
+            int row = y * stride;
+            int out = y * rowSize;
+            for (int x = 0; x < width; ++x)
+            {
+                for (int c = 0; c < channels; ++c)
+                {
+                    int sum = 0;
+                    for (int k = 0; k < size; ++k)
+                    {
+                        sum += weights[k] * (in[row + columns[x + k] * channels + c] & 0xff);
+                    }
+
+                    plane[out++] = sum;
+                }
+            }
+        }
+
+        // Vertical pass into the output.
+        dst.reset(width, height, channels);
+        byte[] result = dst.data();
+        int[] rows = this.rowBorder = reflect101(this.rowBorder, height, radius);
+        int rounding = 1 << (2 * weightBits - 1);
+        for (int y = 0; y < height; ++y)
+        {
+            int out = y * dst.stride();
+            for (int i = 0; i < rowSize; ++i)
+            {
+                long sum = 0;
+                for (int k = 0; k < size; ++k)
+                {
+                    sum += (long)weights[k] * plane[rows[y + k] * rowSize + i];
+                }
+
+                result[out + i] = (byte)((sum + rounding) >> (2 * weightBits));
+            }
+        }
+    }
+
+    // The median filter of cvSmooth(src, dst, CV_MEDIAN, size), src and dst must be different.
+    //
+    // Huang's sliding histogram: the window moves by one column per pixel, so only 2 * size pixels change, and the
+    // median moves from the previous one with the count of the values below it.
+    public void median(JavaImage src, JavaImage dst, int size)
+    {
+        if (src == dst)
+        {
+            throw new IllegalArgumentException("The median filter can't be computed in place.");
+        }
+
+        int radius = size / 2;
+        int half = (size * size) / 2;
+
+        int width = src.width();
+        int height = src.height();
+        int channels = src.channels();
+        int stride = src.stride();
+        byte[] in = src.data();
+
+        dst.reset(width, height, channels);
+        byte[] out = dst.data();
+
+        int[] hist = this.histogram;
+        int[] columns = this.columnBorder = replicate(this.columnBorder, width, radius);
+        int[] rows = this.rowBorder = replicate(this.rowBorder, height, radius);
+        for (int c = 0; c < channels; ++c)
+        {
+            for (int y = 0; y < height; ++y)
+            {
+                Arrays.fill(hist, 0);
+                for (int k = 0; k < size; ++k)
+                {
+                    int row = rows[y + k] * stride;
+                    for (int j = 0; j < size; ++j)
+                    {
+                        ++hist[in[row + columns[j] * channels + c] & 0xff];
+                    }
+                }
+
+                // The median is the value m with at most half of the values below it, and more than half below
+                // or equal to it.
+                int median = 0;
+                int below = 0;
+                while (below + hist[median] <= half)
+                {
+                    below += hist[median];
+                    ++median;
+                }
+
+                out[y * dst.stride() + c] = (byte)median;
+
+                for (int x = 1; x < width; ++x)
+                {
+                    int leaving = columns[x - 1] * channels + c;
+                    int entering = columns[x + size - 1] * channels + c;
+                    for (int k = 0; k < size; ++k)
+                    {
+                        int row = rows[y + k] * stride;
+
+                        int value = in[row + leaving] & 0xff;
+                        --hist[value];
+                        if (value < median)
+                        {
+                            --below;
+                        }
+
+                        value = in[row + entering] & 0xff;
+                        ++hist[value];
+                        if (value < median)
+                        {
+                            ++below;
+                        }
+                    }
+
+                    while (below > half)
+                    {
+                        --median;
+                        below -= hist[median];
+                    }
+
+                    while (below + hist[median] <= half)
+                    {
+                        below += hist[median];
+                        ++median;
+                    }
+
+                    out[y * dst.stride() + x * channels + c] = (byte)median;
+                }
+            }
+        }
+    }
+
+    // The erosion of cvErode() with the default 3x3 rectangle, src and dst may be the same.
+    public void erode(JavaImage src, JavaImage dst, int iterations)
+    {
+        this.morphology(src, dst, iterations, true);
+    }
+
+    // The dilation of cvDilate() with the default 3x3 rectangle, src and dst may be the same.
+    public void dilate(JavaImage src, JavaImage dst, int iterations)
+    {
+        this.morphology(src, dst, iterations, false);
+    }
+
+    // The rectangle is separable: the minimum (or maximum) of the rows, then of the columns. The border is
+    // replicated, which is the same as ignoring the pixels outside of the image.
+    private void morphology(JavaImage src, JavaImage dst, int iterations, boolean erode)
+    {
+        int width = src.width();
+        int height = src.height();
+        int channels = src.channels();
+        int stride = src.stride();
+
+        dst.reset(width, height, channels);
+
+        byte[] plane = this.bytePlane(stride * height);
+        for (int iteration = 0; iteration < iterations; ++iteration)
+        {
+            byte[] in = (iteration == 0) ? src.data() : dst.data();
+            byte[] out = dst.data();
+
+            for (int y = 0; y < height; ++y)
+            {
+                int row = y * stride;
+                for (int x = 0; x < width; ++x)
+                {
+                    int left = row + Math.max(x - 1, 0) * channels;
+                    int center = row + x * channels;
+                    int right = row + Math.min(x + 1, width - 1) * channels;
+                    for (int c = 0; c < channels; ++c)
+                    {
+                        plane[center + c] = (byte)extreme(in[left + c] & 0xff, in[center + c] & 0xff, in[right + c] & 0xff, erode);
+                    }
+                }
+            }
+
+            int rowSize = width * channels;
+            for (int y = 0; y < height; ++y)
+            {
+                int up = Math.max(y - 1, 0) * stride;
+                int row = y * stride;
+                int down = Math.min(y + 1, height - 1) * stride;
+                for (int i = 0; i < rowSize; ++i)
+                {
+                    out[row + i] = (byte)extreme(plane[up + i] & 0xff, plane[row + i] & 0xff, plane[down + i] & 0xff, erode);
+                }
+            }
+        }
+    }
+
+    private static int extreme(int a, int b, int c, boolean minimum)
+    {
+        return minimum ? Math.min(a, Math.min(b, c)) : Math.max(a, Math.max(b, c));
+    }
+
+    // The gray image of cvCvtColor(src, dst, CV_BGR2GRAY), with the same fixed point coefficients.
+    public void gray(JavaImage src, JavaImage dst)
+    {
+        int width = src.width();
+        int height = src.height();
+        byte[] in = src.data();
+
+        dst.reset(width, height, 1);
+        byte[] out = dst.data();
+
+        if (src.channels() == 1)
+        {
+            for (int y = 0; y < height; ++y)
+            {
+                System.arraycopy(in, y * src.stride(), out, y * dst.stride(), width);
+            }
+
+            return;
+        }
+
+        int channels = src.channels();
+        for (int y = 0; y < height; ++y)
+        {
+            int pixel = y * src.stride();
+            int row = y * dst.stride();
+            for (int x = 0; x < width; ++x)
+            {
+                int b = in[pixel] & 0xff;
+                int g = in[pixel + 1] & 0xff;
+                int r = in[pixel + 2] & 0xff;
+
+                out[row + x] = (byte)((b * 1868 + g * 9617 + r * 4899 + (1 << 13)) >> 14);
+                pixel += channels;
+            }
+        }
+    }
+
+    // Resize src into dst, already set to the target size, by averaging the area of src covered by each pixel of
+    // dst, like cvResize(CV_INTER_AREA) when shrinking.
+    public void resizeArea(JavaImage src, JavaImage dst)
+    {
+        int channels = src.channels();
+        int sourceWidth = src.width();
+        int sourceHeight = src.height();
+        int targetWidth = dst.width();
+        int targetHeight = dst.height();
+        byte[] in = src.data();
+
+        dst.reset(targetWidth, targetHeight, channels);
+        byte[] out = dst.data();
+
+        AreaWeights columns = this.columnWeights;
+        AreaWeights rows = this.rowWeights;
+        columns.set(sourceWidth, targetWidth);
+        rows.set(sourceHeight, targetHeight);
+
+        // Horizontal pass of all the source rows into the int plane.
+        int rowSize = targetWidth * channels;
+        int[] plane = this.rowPlane(rowSize * sourceHeight);
+        for (int y = 0; y < sourceHeight; ++y)
+        {
+            int row = y * src.stride();
+            int index = y * rowSize;
+            for (int x = 0; x < targetWidth; ++x)
+            {
+                int end = columns.start[x + 1];
+                for (int c = 0; c < channels; ++c)
+                {
+                    int sum = 0;
+                    for (int k = columns.start[x]; k < end; ++k)
+                    {
+                        sum += columns.weight[k] * (in[row + columns.source[k] * channels + c] & 0xff);
+                    }
+
+                    plane[index++] = sum;
+                }
+            }
+        }
+
+        int rounding = 1 << (2 * weightBits - 1);
+        for (int y = 0; y < targetHeight; ++y)
+        {
+            int row = y * dst.stride();
+            int end = rows.start[y + 1];
+            for (int i = 0; i < rowSize; ++i)
+            {
+                long sum = 0;
+                for (int k = rows.start[y]; k < end; ++k)
+                {
+                    sum += (long)rows.weight[k] * plane[rows.source[k] * rowSize + i];
+                }
+
+                out[row + i] = (byte)Math.min((sum + rounding) >> (2 * weightBits), 255);
+            }
+        }
+    }
+
+    /**
+     * The source pixels of each target pixel along one axis, and their fixed point weights, the covered fraction of
+     * each source pixel. The weights of a target pixel sum to weightOne. The arrays only grow, and set() keeps them
+     * when the sizes didn't change.
+     */
+    private static class AreaWeights
+    {
+        private int[] start = new int[0];
+        private int[] source = new int[0];
+        private int[] weight = new int[0];
+        private int sourceSize = -1;
+        private int targetSize = -1;
+
+        public void set(int sourceSize, int targetSize)
+        {
+            if ((sourceSize == this.sourceSize) && (targetSize == this.targetSize))
+            {
+                return;
+            }
+
+            this.sourceSize = sourceSize;
+            this.targetSize = targetSize;
+
+            double scale = (double)sourceSize / targetSize;
+
+            int length = targetSize * ((int)Math.ceil(scale) + 2);
+            if (this.start.length < targetSize + 1)
+            {
+                this.start = new int[targetSize + 1];
+            }
+
+            if (this.source.length < length)
+            {
+                this.source = new int[length];
+                this.weight = new int[length];
+            }
+
+            int count = 0;
+            for (int t = 0; t < targetSize; ++t)
+            {
+                this.start[t] = count;
+
+                double from = t * scale;
+                double to = Math.min((t + 1) * scale, sourceSize);
+
+                int total = 0;
+                int largest = count;
+                for (int s = (int)from; s < to; ++s)
+                {
+                    double covered = Math.min(to, s + 1) - Math.max(from, s);
+                    int w = (int)Math.round(covered / (to - from) * weightOne);
+                    if (w == 0)
+                    {
+                        continue;
+                    }
+
+                    this.source[count] = s;
+                    this.weight[count] = w;
+                    if (w > this.weight[largest])
+                    {
+                        largest = count;
+                    }
+
+                    total += w;
+                    ++count;
+                }
+
+                // The rounding error goes to the largest weight.
+                this.weight[largest] += weightOne - total;
+            }
+
+            this.start[targetSize] = count;
+        }
+    }
+
+    // The index of the source pixel for each position of a row padded by radius on each side, border reflect 101.
+    // Written into index, or a larger array if it is too small.
+    private static int[] reflect101(int[] index, int size, int radius)
+    {
+        int length = size + 2 * radius;
+        if (index.length < length)
+        {
+            index = new int[length];
+        }
+
+        for (int i = 0; i < length; ++i)
+        {
+            int p = i - radius;
+            if (size == 1)
+            {
+                p = 0;
+            }
+            else
+            {
+                while ((p < 0) || (p >= size))
+                {
+                    p = (p < 0) ? -p : 2 * (size - 1) - p;
+                }
+            }
+
+            index[i] = p;
+        }
+
+        return index;
+    }
+
+    // Same as reflect101(), with the border replicated.
+    private static int[] replicate(int[] index, int size, int radius)
+    {
+        int length = size + 2 * radius;
+        if (index.length < length)
+        {
+            index = new int[length];
+        }
+
+        for (int i = 0; i < length; ++i)
+        {
+            index[i] = Math.min(Math.max(i - radius, 0), size - 1);
+        }
+
+        return index;
+    }
+
+    private int[] rowPlane(int size)
+    {
+        if (this.rowPlane.length < size)
+        {
+            this.rowPlane = new int[size];
+        }
+
+        return this.rowPlane;
+    }
+
+    private byte[] bytePlane(int size)
+    {
+        if (this.bytePlane.length < size)
+        {
+            this.bytePlane = new byte[size];
+        }
+
+        return this.bytePlane;
+    }
+}
@@ -0,0 +1,347 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * MappedSequenceFileReader reads an uncompressed sequence file on the local file system through a memory mapped
+ * window, instead of SequenceFile.Reader. The key and the value of each record are views of the mapped file, in
+ * their serialized form, so a scan doesn't copy or allocate per record and is bounded by the page cache bandwidth.
+ *
+ * The file is mapped by windows of windowSize bytes (256 MB by default), a window always holds a whole record, so
+ * files larger than 2 GB are supported. Record and block compressed sequence files aren't supported, see
+ * openLocal().
+ */
+public class MappedSequenceFileReader implements Closeable
+{
+    public static final long defaultWindowSize = 256L * 1024L * 1024L;
+
+    private static final byte[] magic = {'S', 'E', 'Q', 6};
+    private static final int syncSize = 16;
+    private static final int syncEscape = -1;
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long fileLength;
+    private long windowSize;
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long windowEnd = 0;
+
+    private String keyClassName;
+    private String valueClassName;
+    private boolean compressed;
+    private byte[] sync = new byte[syncSize];
+    private byte[] syncCheck = new byte[syncSize];
+    private long position;
+
+    private ByteBuffer key = null;
+    private ByteBuffer value = null;
+    private byte[] keyBytes = new byte[256];
+    private DataInputBuffer keyInput = new DataInputBuffer();
+
+    public MappedSequenceFileReader(File file) throws IOException
+    {
+        this(file, defaultWindowSize);
+    }
+
+    public MappedSequenceFileReader(File file, long windowSize) throws IOException
+    {
+        if (windowSize < 1)
+        {
+            throw new IllegalArgumentException("windowSize must be greater than or equal to 1.");
+        }
+
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.fileLength = this.channel.size();
+        this.windowSize = Math.min(windowSize, Integer.MAX_VALUE);
+
+        try
+        {
+            readHeader();
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    // Open a sequence file with a mapped reader if it is local, uncompressed and has this value class, otherwise
+    // return null and the caller should use SequenceFile.Reader.
+    public static MappedSequenceFileReader openLocal(Configuration conf, Path path, Class<?> valueClass) throws IOException
+    {
+        String scheme = path.toUri().getScheme();
+        if (scheme == null)
+        {
+            scheme = path.getFileSystem(conf).getUri().getScheme();
+        }
+
+        if (!"file".equals(scheme))
+        {
+            return null;
+        }
+
+        MappedSequenceFileReader reader = new MappedSequenceFileReader(new File(path.toUri().getPath()));
+        if (reader.isCompressed() || !reader.valueClassName().equals(valueClass.getName()))
+        {
+            reader.close();
+            return null;
+        }
+
+        return reader;
+    }
+
+    public String keyClassName()
+    {
+        return this.keyClassName;
+    }
+
+    public String valueClassName()
+    {
+        return this.valueClassName;
+    }
+
+    public boolean isCompressed()
+    {
+        return this.compressed;
+    }
+
+    // The position of the next record, can be given to seek().
+    public long getPosition()
+    {
+        return this.position;
+    }
+
+    // Move to a record boundary or a sync marker, such as a position from an ImageSequenceFileIndex.
+    public void seek(long position)
+    {
+        this.position = position;
+    }
+
+    // The serialized key of the current record, valid until close().
+    public ByteBuffer key()
+    {
+        return this.key;
+    }
+
+    // The serialized value of the current record, valid until close().
+    public ByteBuffer value()
+    {
+        return this.value;
+    }
+
+    public boolean next() throws IOException
+    {
+        if (this.compressed)
+        {
+            throw new IOException("Only uncompressed sequence files can be mapped.");
+        }
+
+        while (this.position + 4 <= this.fileLength)
+        {
+            int recordLength = readInt(this.position);
+            if (recordLength == syncEscape)
+            {
+                map(this.position + 4, syncSize).get(this.syncCheck);
+                if (!Arrays.equals(this.sync, this.syncCheck))
+                {
+                    throw new IOException("File is corrupt, invalid sync marker at " + this.position);
+                }
+
+                this.position += 4 + syncSize;
+                continue;
+            }
+
+            int keyLength = readInt(this.position + 4);
+            if ((recordLength < 0) || (keyLength < 0) || (keyLength > recordLength))
+            {
+                throw new IOException("File is corrupt, invalid record at " + this.position);
+            }
+
+            ByteBuffer record = map(this.position + 8, recordLength);
+
+            record.limit(keyLength);
+            this.key = record.slice();
+
+            record.limit(recordLength);
+            record.position(keyLength);
+            this.value = record.slice();
+
+            this.position += 8 + recordLength;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    // Deserialize the current key, its bytes are copied once into a reused buffer.
+    public void readKey(Writable writable) throws IOException
+    {
+        int length = this.key.remaining();
+        if (this.keyBytes.length < length)
+        {
+            this.keyBytes = new byte[Math.max(length, 2 * this.keyBytes.length)];
+        }
+
+        this.key.duplicate().get(this.keyBytes, 0, length);
+        this.keyInput.reset(this.keyBytes, length);
+        writable.readFields(this.keyInput);
+    }
+
+    // The bytes of a serialized BytesWritable, without copy.
+    public static ByteBuffer bytesWritableBytes(ByteBuffer serialized)
+    {
+        ByteBuffer buffer = serialized.duplicate();
+        int length = buffer.getInt();
+        buffer.limit(buffer.position() + length);
+
+        return buffer.slice();
+    }
+
+    // The UTF-8 bytes of a serialized Text, without copy.
+    public static ByteBuffer textBytes(ByteBuffer serialized)
+    {
+        ByteBuffer buffer = serialized.duplicate();
+        int length = readVInt(buffer);
+        buffer.limit(buffer.position() + length);
+
+        return buffer.slice();
+    }
+
+    public static String text(ByteBuffer serialized)
+    {
+        return utf8.decode(textBytes(serialized)).toString();
+    }
+
+    // Same encoding as WritableUtils.readVInt(), the buffer position is moved after the value.
+    public static int readVInt(ByteBuffer buffer)
+    {
+        byte first = buffer.get();
+        int size = WritableUtils.decodeVIntSize(first);
+        if (size == 1)
+        {
+            return first;
+        }
+
+        long value = 0;
+        for (int i = 0; i < size - 1; ++i)
+        {
+            value = (value << 8) | (buffer.get() & 0xFF);
+        }
+
+        return (int)(WritableUtils.isNegativeVInt(first) ? (value ^ -1L) : value);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.window = null;
+        this.key = null;
+        this.value = null;
+
+        if (this.file != null)
+        {
+            this.file.close();
+            this.file = null;
+            this.channel = null;
+        }
+    }
+
+    private void readHeader() throws IOException
+    {
+        ByteBuffer header = map(0, (int)Math.min(this.fileLength, this.windowSize));
+        try
+        {
+            for (byte b : magic)
+            {
+                if (header.get() != b)
+                {
+                    throw new IOException("Not a sequence file of version 6.");
+                }
+            }
+
+            this.keyClassName = readString(header);
+            this.valueClassName = readString(header);
+            this.compressed = (header.get() != 0);
+
+            // Block compression implies compression.
+            header.get();
+            if (this.compressed)
+            {
+                readString(header);
+            }
+
+            // The metadata, a count then pairs of Text.
+            int count = header.getInt();
+            for (int i = 0; i < 2 * count; ++i)
+            {
+                readString(header);
+            }
+
+            header.get(this.sync);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new EOFException("The sequence file header is truncated.");
+        }
+
+        this.position = header.position();
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        int length = readVInt(buffer);
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        buffer.position(buffer.position() + length);
+
+        return utf8.decode(bytes).toString();
+    }
+
+    private int readInt(long position) throws IOException
+    {
+        return map(position, 4).getInt();
+    }
+
+    // A view of length bytes at position, the window is moved if they aren't all mapped.
+    private ByteBuffer map(long position, int length) throws IOException
+    {
+        if ((position < this.windowStart) || (position + length > this.windowEnd) || (this.window == null))
+        {
+            long size = Math.min(Math.max(this.windowSize, length), this.fileLength - position);
+            if (size < length)
+            {
+                throw new EOFException("The sequence file is truncated at " + position);
+            }
+
+            this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            this.windowStart = position;
+            this.windowEnd = position + size;
+        }
+
+        ByteBuffer buffer = this.window.duplicate();
+        buffer.position((int)(position - this.windowStart));
+        buffer.limit(buffer.position() + length);
+
+        return buffer.slice();
+    }
+}
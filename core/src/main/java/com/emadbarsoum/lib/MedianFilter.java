@@ -0,0 +1,51 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImagePool;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * MedianFilter blur an image in place with a median filter, same as the median job.
+ */
+public class MedianFilter implements ImageFilter
+{
+    private int size;
+
+    public MedianFilter(int size)
+    {
+        if ((size < 1) || (size % 2 == 0))
+        {
+            throw new IllegalArgumentException("The median kernel size must be odd and positive: " + size);
+        }
+
+        this.size = size;
+    }
+
+    @Override
+    public String name()
+    {
+        return "median";
+    }
+
+    @Override
+    public int radius()
+    {
+        return this.size / 2;
+    }
+
+    @Override
+    public boolean resizes()
+    {
+        return false;
+    }
+
+    @Override
+    public IplImage apply(IplImage image, ImagePool pool, TaskAttemptContext context)
+    {
+        cvSmooth(image, image, CV_MEDIAN, this.size, 0, 0.0, 0.0);
+
+        return image;
+    }
+}
@@ -0,0 +1,62 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImagePool;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * MorphologyFilter erode or dilate an image in place with the default 3x3 element, iterations times, same as the
+ * erode and dilate jobs.
+ */
+public class MorphologyFilter implements ImageFilter
+{
+    private boolean erode;
+    private int iterations;
+
+    public MorphologyFilter(boolean erode, int iterations)
+    {
+        if (iterations < 1)
+        {
+            throw new IllegalArgumentException("The number of iterations must be greater than or equal to 1: " + iterations);
+        }
+
+        this.erode = erode;
+        this.iterations = iterations;
+    }
+
+    @Override
+    public String name()
+    {
+        return this.erode ? "erode" : "dilate";
+    }
+
+    @Override
+    public int radius()
+    {
+        // Each iteration reads one pixel around with the 3x3 element.
+        return this.iterations;
+    }
+
+    @Override
+    public boolean resizes()
+    {
+        return false;
+    }
+
+    @Override
+    public IplImage apply(IplImage image, ImagePool pool, TaskAttemptContext context)
+    {
+        if (this.erode)
+        {
+            cvErode(image, image, null, this.iterations);
+        }
+        else
+        {
+            cvDilate(image, image, null, this.iterations);
+        }
+
+        return image;
+    }
+}
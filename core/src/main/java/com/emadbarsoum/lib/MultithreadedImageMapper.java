@@ -0,0 +1,369 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.CommandParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * MultithreadedImageMapper runs several instances of an image mapper in one map task, each in its own thread, so
+ * a task can use all the cores of a node instead of one. Each thread has its own mapper instance, created and set
+ * up as in a single threaded task, so the native images of its ImagePool, a classifier or a search model are never
+ * shared between the threads. The jobs select it with:
+ *
+ *     -threads <N>   the number of mapper threads per map task, 1 (single threaded) by default.
+ *     -ordered   write the results in the order of the input records, otherwise in the order they are done.
+ *
+ * Without -ordered the threads run in Hadoop's MultithreadedMapper. With -ordered the results of each record are
+ * buffered until all the previous records are written, at most 4 records per thread are in flight. The results
+ * written outside of map(), such as in cleanup(), are written last.
+ *
+ * Each thread holds its own model and images, so the task memory (mapreduce.map.memory.mb) should grow with -threads.
+ */
+public class MultithreadedImageMapper<K1, V1, K2, V2> extends Mapper<K1, V1, K2, V2>
+{
+    public static final String usage = "[-threads <mapper threads per task>] [-ordered]";
+
+    public static final String threadsProperty = "hvision.mapper.threads";
+    public static final String mapperClassProperty = "hvision.mapper.class";
+
+    // The number of records in flight per thread with -ordered.
+    private static final int recordsPerThread = 4;
+
+    private Context outer;
+    private Configuration conf;
+    private int window;
+
+    // The next input record, and the next record to write.
+    private long nextSequence = 0;
+    private long nextOutput = 0;
+    private boolean finished = false;
+    private TreeMap<Long, Record> done = new TreeMap<Long, Record>();
+    private Throwable failure;
+
+    // Check the values of the thread options, if any.
+    public static boolean isValid(CommandParser parser)
+    {
+        if (parser.has("threads") && ((parser.get("threads") == null) || (parser.getAsInt("threads") < 1)))
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    // Set the mapper of a job, run by -threads threads per task if requested.
+    @SuppressWarnings("unchecked")
+    public static void setMapperClass(Job job, Class<? extends Mapper<?, ?, ?, ?>> mapperClass, CommandParser parser)
+    {
+        int threads = parser.has("threads") ? parser.getAsInt("threads") : 1;
+        if (threads <= 1)
+        {
+            job.setMapperClass(mapperClass);
+        }
+        else if (parser.has("ordered"))
+        {
+            job.setMapperClass(MultithreadedImageMapper.class);
+            job.getConfiguration().setClass(mapperClassProperty, mapperClass, Mapper.class);
+            job.getConfiguration().setInt(threadsProperty, threads);
+        }
+        else
+        {
+            job.setMapperClass(MultithreadedMapper.class);
+            MultithreadedMapper.setMapperClass(job, (Class<? extends Mapper<Object, Object, Object, Object>>)(Class<?>)mapperClass);
+            MultithreadedMapper.setNumberOfThreads(job, threads);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run(Context context) throws IOException, InterruptedException
+    {
+        this.outer = context;
+        this.conf = context.getConfiguration();
+
+        int threads = this.conf.getInt(threadsProperty, 1);
+        this.window = recordsPerThread * threads;
+
+        Class<Mapper<K1, V1, K2, V2>> mapperClass = (Class<Mapper<K1, V1, K2, V2>>)(Class<?>)this.conf.getClass(mapperClassProperty, Mapper.class, Mapper.class);
+
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < threads; ++i)
+        {
+            workers.add(new Worker(ReflectionUtils.newInstance(mapperClass, this.conf)));
+        }
+
+        for (Worker worker : workers)
+        {
+            worker.start();
+        }
+
+        try
+        {
+            for (Worker worker : workers)
+            {
+                worker.join();
+            }
+        }
+        finally
+        {
+            for (Worker worker : workers)
+            {
+                worker.interrupt();
+            }
+        }
+
+        if (this.failure != null)
+        {
+            if (this.failure instanceof IOException)
+            {
+                throw (IOException)this.failure;
+            }
+            else if (this.failure instanceof InterruptedException)
+            {
+                throw (InterruptedException)this.failure;
+            }
+
+            throw new IOException("A mapper thread failed.", this.failure);
+        }
+
+        for (Worker worker : workers)
+        {
+            worker.tail.write(context);
+        }
+    }
+
+    // The next input record of a worker, null at the end of the input or if a worker failed.
+    private synchronized Record fetch(Worker worker) throws IOException, InterruptedException
+    {
+        while ((this.nextSequence - this.nextOutput >= this.window) && (this.failure == null))
+        {
+            this.wait();
+        }
+
+        if (this.finished || (this.failure != null) || !this.outer.nextKeyValue())
+        {
+            this.finished = true;
+            return null;
+        }
+
+        // The input reader reuse its key and value, each worker has its own copies.
+        worker.key = ReflectionUtils.copy(this.conf, this.outer.getCurrentKey(), worker.key);
+        worker.value = ReflectionUtils.copy(this.conf, this.outer.getCurrentValue(), worker.value);
+
+        return new Record(this.nextSequence++);
+    }
+
+    // Write the results of a record, and of the following records that were waiting for it.
+    private synchronized void complete(Record record) throws IOException, InterruptedException
+    {
+        this.done.put(record.sequence, record);
+
+        Record next;
+        while ((next = this.done.remove(this.nextOutput)) != null)
+        {
+            next.write(this.outer);
+            ++this.nextOutput;
+        }
+
+        this.notifyAll();
+    }
+
+    private synchronized void fail(Throwable e)
+    {
+        if (this.failure == null)
+        {
+            this.failure = e;
+        }
+
+        this.notifyAll();
+    }
+
+    private synchronized float progress() throws IOException, InterruptedException
+    {
+        return this.outer.getProgress();
+    }
+
+    /**
+     * The results written by the mapper for one input record.
+     */
+    private class Record
+    {
+        private long sequence;
+        private List<K2> keys = new ArrayList<K2>();
+        private List<V2> values = new ArrayList<V2>();
+
+        public Record(long sequence)
+        {
+            this.sequence = sequence;
+        }
+
+        // The mapper may reuse its output objects, so the results are copied.
+        @SuppressWarnings("unchecked")
+        public void add(K2 key, V2 value) throws IOException
+        {
+            this.keys.add(ReflectionUtils.copy(conf, key, (K2)ReflectionUtils.newInstance(key.getClass(), conf)));
+            this.values.add(ReflectionUtils.copy(conf, value, (V2)ReflectionUtils.newInstance(value.getClass(), conf)));
+        }
+
+        public void write(Context context) throws IOException, InterruptedException
+        {
+            for (int i = 0; i < this.keys.size(); ++i)
+            {
+                context.write(this.keys.get(i), this.values.get(i));
+            }
+        }
+    }
+
+    /**
+     * A thread that runs its own mapper instance on the records it fetches.
+     */
+    private class Worker extends Thread
+    {
+        private Mapper<K1, V1, K2, V2> mapper;
+        private Mapper<K1, V1, K2, V2>.Context context;
+        private K1 key;
+        private V1 value;
+
+        // The record being mapped, and the results written outside of map().
+        private Record current;
+        private Record tail = new Record(-1);
+
+        public Worker(Mapper<K1, V1, K2, V2> mapper) throws IOException, InterruptedException
+        {
+            this.mapper = mapper;
+
+            MapContext<K1, V1, K2, V2> mapContext = new MapContextImpl<K1, V1, K2, V2>(
+                conf,
+                outer.getTaskAttemptID(),
+                new WorkerReader(),
+                new WorkerWriter(),
+                outer.getOutputCommitter(),
+                new WorkerReporter(),
+                outer.getInputSplit());
+
+            this.context = new WrappedMapper<K1, V1, K2, V2>().getMapContext(mapContext);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                this.mapper.run(this.context);
+            }
+            catch (Throwable e)
+            {
+                fail(e);
+            }
+        }
+
+        private class WorkerReader extends RecordReader<K1, V1>
+        {
+            @Override
+            public void initialize(InputSplit split, TaskAttemptContext context)
+            {
+            }
+
+            @Override
+            public boolean nextKeyValue() throws IOException, InterruptedException
+            {
+                // The mapper asks for the next record once it is done with the current one.
+                if (current != null)
+                {
+                    complete(current);
+                }
+
+                current = fetch(Worker.this);
+
+                return current != null;
+            }
+
+            @Override
+            public K1 getCurrentKey()
+            {
+                return key;
+            }
+
+            @Override
+            public V1 getCurrentValue()
+            {
+                return value;
+            }
+
+            @Override
+            public float getProgress() throws IOException, InterruptedException
+            {
+                return progress();
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        }
+
+        private class WorkerWriter extends RecordWriter<K2, V2>
+        {
+            @Override
+            public void write(K2 key, V2 value) throws IOException
+            {
+                (current != null ? current : tail).add(key, value);
+            }
+
+            @Override
+            public void close(TaskAttemptContext context)
+            {
+            }
+        }
+
+        private class WorkerReporter extends StatusReporter
+        {
+            @Override
+            public Counter getCounter(Enum<?> name)
+            {
+                return outer.getCounter(name);
+            }
+
+            @Override
+            public Counter getCounter(String group, String name)
+            {
+                return outer.getCounter(group, name);
+            }
+
+            @Override
+            public void progress()
+            {
+                outer.progress();
+            }
+
+            @Override
+            public float getProgress()
+            {
+                return outer.getProgress();
+            }
+
+            @Override
+            public void setStatus(String status)
+            {
+                outer.setStatus(status);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImagePool;
+import org.apache.hadoop.mapreduce.*;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * PerceptualHashImageSimilarity compute similarity between 2 images using a 64-bit difference hash (dHash).
+ *
+ * The image is converted to gray and shrunk to 9 x 8, and each bit of the hash tells if a pixel is brighter
+ * than its right neighbor. Near duplicate images (resized, recompressed, slightly edited) have hashes within
+ * a small Hamming distance. The feature is the hash stored in a 1 x 8 CV_8U Mat (most significant byte first),
+ * and the distance is the Hamming distance divided by 64.
+ */
+public class PerceptualHashImageSimilarity implements ImageSimilarity
+{
+    public static final int hashBits = 64;
+    private static final int hashWidth = 8;
+    private static final int hashHeight = 8;
+
+    private ImagePool imagePool = new ImagePool();
+
+    public PerceptualHashImageSimilarity()
+    {}
+
+    public double computeDistance(IplImage image1, IplImage image2, TaskAttemptContext context)
+    {
+        return (double)HashIndex.hammingDistance(computeHash(image1, context), computeHash(image2, context)) / hashBits;
+    }
+
+    public Mat computeFeature(IplImage image, TaskAttemptContext context)
+    {
+        long hash = computeHash(image, context);
+
+        if (context != null)
+        {
+            context.progress();
+        }
+
+        return toMat(hash);
+    }
+
+    public double computeDistance(Mat feature1, Mat feature2, TaskAttemptContext context)
+    {
+        return (double)HashIndex.hammingDistance(toHash(feature1), toHash(feature2)) / hashBits;
+    }
+
+    @Override
+    public void close()
+    {
+        this.imagePool.close();
+    }
+
+    // Compute the hash of a single image, without keeping any buffer.
+    public static long computeHash(IplImage image)
+    {
+        PerceptualHashImageSimilarity imageSimilarity = new PerceptualHashImageSimilarity();
+        try
+        {
+            return imageSimilarity.computeHash(image, null);
+        }
+        finally
+        {
+            imageSimilarity.close();
+        }
+    }
+
+    public long computeHash(IplImage image, TaskAttemptContext context)
+    {
+        IplImage grayImage = this.imagePool.acquire(image.width(), image.height(), IPL_DEPTH_8U, 1, context);
+        IplImage smallImage = this.imagePool.acquire(hashWidth + 1, hashHeight, IPL_DEPTH_8U, 1, context);
+
+        // Convert the input image into a gray image.
+        if (image.nChannels() == 1)
+        {
+            cvCopy(image, grayImage);
+        }
+        else
+        {
+            cvCvtColor(image, grayImage, CV_BGR2GRAY);
+        }
+
+        cvResize(grayImage, smallImage, CV_INTER_AREA);
+
+        ByteBuffer pixels = smallImage.getByteBuffer();
+        int widthStep = smallImage.widthStep();
+
+        long hash = 0;
+        for (int y = 0; y < hashHeight; ++y)
+        {
+            for (int x = 0; x < hashWidth; ++x)
+            {
+                int left = pixels.get(y * widthStep + x) & 0xFF;
+                int right = pixels.get(y * widthStep + x + 1) & 0xFF;
+
+                hash = (hash << 1) | ((left > right) ? 1 : 0);
+            }
+        }
+
+        this.imagePool.release(smallImage);
+        this.imagePool.release(grayImage);
+
+        return hash;
+    }
+
+    public static Mat toMat(long hash)
+    {
+        Mat feature = new Mat(1, hashBits / 8, CV_8U);
+        ByteBuffer featureBuf = feature.getByteBuffer();
+        for (int i = 0; i < hashBits / 8; ++i)
+        {
+            featureBuf.put(i, (byte)(hash >>> ((hashBits / 8 - 1 - i) * 8)));
+        }
+
+        return feature;
+    }
+
+    public static long toHash(Mat feature)
+    {
+        return toHash(feature.getByteBuffer());
+    }
+
+    public static long toHash(ByteBuffer featureBuf)
+    {
+        long hash = 0;
+        for (int i = 0; i < hashBits / 8; ++i)
+        {
+            hash = (hash << 8) | (featureBuf.get(featureBuf.position() + i) & 0xFF);
+        }
+
+        return hash;
+    }
+}
@@ -0,0 +1,57 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Posting is one entry of the BOW inverted index, the image metadata and the TF-IDF weight
+ * of the visual word in that image.
+ */
+public class Posting implements Writable
+{
+    private Text image = new Text();
+    private float weight;
+
+    public Posting()
+    {}
+
+    public Posting(String image, float weight)
+    {
+        this.image.set(image);
+        this.weight = weight;
+    }
+
+    public Posting(Posting other)
+    {
+        this.image.set(other.image);
+        this.weight = other.weight;
+    }
+
+    public Text image()
+    {
+        return this.image;
+    }
+
+    public float weight()
+    {
+        return this.weight;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        this.image.write(out);
+        out.writeFloat(this.weight);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        this.image.readFields(in);
+        this.weight = in.readFloat();
+    }
+}
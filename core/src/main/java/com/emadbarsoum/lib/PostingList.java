@@ -0,0 +1,79 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * PostingList is the value of the BOW inverted index, it contains the IDF of a visual word and
+ * all the images that contain it.
+ */
+public class PostingList implements Writable
+{
+    private float idf;
+    private ArrayList<Posting> postings = new ArrayList<Posting>();
+
+    public PostingList()
+    {}
+
+    public float idf()
+    {
+        return this.idf;
+    }
+
+    public void setIdf(float idf)
+    {
+        this.idf = idf;
+    }
+
+    public ArrayList<Posting> postings()
+    {
+        return this.postings;
+    }
+
+    public void add(Posting posting)
+    {
+        this.postings.add(posting);
+    }
+
+    public int size()
+    {
+        return this.postings.size();
+    }
+
+    public void clear()
+    {
+        this.idf = 0.0f;
+        this.postings.clear();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeFloat(this.idf);
+        out.writeInt(this.postings.size());
+        for (Posting posting : this.postings)
+        {
+            posting.write(out);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        this.idf = in.readFloat();
+
+        int count = in.readInt();
+        this.postings.clear();
+        this.postings.ensureCapacity(count);
+        for (int i = 0; i < count; ++i)
+        {
+            Posting posting = new Posting();
+            posting.readFields(in);
+            this.postings.add(posting);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * QueryDistance is a composite key of a query id and a distance, it sorts by query id first and then
+ * by distance. So that the result of a batch search is one ranked list per query.
+ *
+ * The hash code depends only on the query id, so the default HashPartitioner send all the results
+ * of one query to the same reducer.
+ */
+public class QueryDistance implements WritableComparable<QueryDistance>
+{
+    private Text queryId = new Text();
+    private double distance;
+
+    public QueryDistance()
+    {}
+
+    public QueryDistance(String queryId, double distance)
+    {
+        set(queryId, distance);
+    }
+
+    public void set(String queryId, double distance)
+    {
+        this.queryId.set(queryId);
+        this.distance = distance;
+    }
+
+    public String getQueryId()
+    {
+        return this.queryId.toString();
+    }
+
+    public double getDistance()
+    {
+        return this.distance;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        this.queryId.write(out);
+        out.writeDouble(this.distance);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        this.queryId.readFields(in);
+        this.distance = in.readDouble();
+    }
+
+    @Override
+    public int compareTo(QueryDistance other)
+    {
+        int ret = this.queryId.compareTo(other.queryId);
+        if (ret != 0)
+        {
+            return ret;
+        }
+
+        return Double.compare(this.distance, other.distance);
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        if (other instanceof QueryDistance)
+        {
+            return compareTo((QueryDistance)other) == 0;
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.queryId.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.queryId.toString() + "\t" + this.distance;
+    }
+
+    /**
+     * Compare QueryDistance in its serialized form, to avoid deserializing the keys during the sort.
+     */
+    public static class Comparator extends WritableComparator
+    {
+        public Comparator()
+        {
+            super(QueryDistance.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+        {
+            try
+            {
+                // Skip the Text length prefix, the same as Text.Comparator.
+                int prefix1 = WritableUtils.decodeVIntSize(b1[s1]);
+                int prefix2 = WritableUtils.decodeVIntSize(b2[s2]);
+                int length1 = readVInt(b1, s1);
+                int length2 = readVInt(b2, s2);
+
+                int ret = compareBytes(b1, s1 + prefix1, length1, b2, s2 + prefix2, length2);
+                if (ret != 0)
+                {
+                    return ret;
+                }
+
+                return Double.compare(readDouble(b1, s1 + prefix1 + length1), readDouble(b2, s2 + prefix2 + length2));
+            }
+            catch (IOException e)
+            {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    static
+    {
+        WritableComparator.define(QueryDistance.class, new Comparator());
+    }
+}
@@ -1,5 +1,7 @@
 package com.emadbarsoum.lib;
 
+import com.emadbarsoum.common.ImagePool;
+import com.emadbarsoum.common.NativeMemoryCounter;
 import org.apache.hadoop.mapreduce.*;
 import org.bytedeco.javacpp.opencv_core.*;
 import org.bytedeco.javacpp.opencv_legacy.*;
@@ -13,17 +15,23 @@ import static org.bytedeco.javacpp.opencv_legacy.*;
 
 /**
  * SurfImageSimilarity compute similarity between 2 images using SURF feature.
+ *
+ * The feature of an image is its SURF descriptors stored in a N x 128 CV_32F Mat, one row per keypoint.
+ *
+ * The gray image, the SURF memory storage, the FLANN index and the knn result Mats are kept between calls,
+ * so only the returned feature is allocated per image.
  */
 public class SurfImageSimilarity implements ImageSimilarity
 {
     private CvSURFParams params = new CvSURFParams();
+    private ImagePool imagePool = new ImagePool();
+    private CvMemStorage storage;
     private Index flannIndex = null;
     private IndexParams indexParams = null;
     private SearchParams searchParams = null;
-    private Mat image1Mat;
-    private Mat image2Mat;
     private Mat indicesMat;
     private Mat distancesMat;
+    private int knnCapacity = 0;
     private double threshold = 0.6;
 
     public void setThreshold(double value)
@@ -43,54 +51,61 @@ public class SurfImageSimilarity implements ImageSimilarity
 
     public double computeDistance(IplImage image1, IplImage image2, TaskAttemptContext context)
     {
-        CvSeq keypoints1   = new CvSeq(null);
-        CvSeq descriptors1 = new CvSeq(null);
-        CvSeq keypoints2   = new CvSeq(null);
-        CvSeq descriptors2 = new CvSeq(null);
+        Mat feature1 = computeFeature(image1, context);
+        Mat feature2 = computeFeature(image2, context);
 
-        IplImage image1Gray = cvCreateImage(cvSize(image1.width(), image1.height()), IPL_DEPTH_8U, 1);
-        IplImage image2Gray = cvCreateImage(cvSize(image2.width(), image2.height()), IPL_DEPTH_8U, 1);
+        double distance = computeDistance(feature1, feature2, context);
 
-        // Convert input images into a Gray images...
-        cvCvtColor(image1, image1Gray, CV_BGR2GRAY);
-        cvCvtColor(image2, image2Gray, CV_BGR2GRAY);
+        feature1.release();
+        feature2.release();
 
-        CvMemStorage storage1 = CvMemStorage.create();
-        cvClearMemStorage(storage1);
-        cvExtractSURF(image1Gray, null, keypoints1, descriptors1, storage1, params, 0);
+        return distance;
+    }
 
-        if (context != null)
+    public Mat computeFeature(IplImage image, TaskAttemptContext context)
+    {
+        CvSeq keypoints   = new CvSeq(null);
+        CvSeq descriptors = new CvSeq(null);
+
+        IplImage imageGray = this.imagePool.acquire(image.width(), image.height(), IPL_DEPTH_8U, 1, context);
+
+        // Convert input image into a Gray image...
+        if (image.nChannels() == 1)
         {
-            context.progress();
+            cvCopy(image, imageGray);
+        }
+        else
+        {
+            cvCvtColor(image, imageGray, CV_BGR2GRAY);
+        }
+
+        // The keypoints and descriptors of the previous image are dropped, the memory blocks are kept.
+        if (this.storage == null)
+        {
+            this.storage = CvMemStorage.create();
+            NativeMemoryCounter.allocated(context, this.storage.block_size());
         }
 
-        CvMemStorage storage2 = CvMemStorage.create();
-        cvClearMemStorage(storage2);
-        cvExtractSURF(image2Gray, null, keypoints2, descriptors2, storage2, params, 0);
+        cvClearMemStorage(this.storage);
+        cvExtractSURF(imageGray, null, keypoints, descriptors, this.storage, params, 0);
 
         if (context != null)
         {
             context.progress();
         }
 
-        int total1 = descriptors1.total();
-        int size1 = descriptors1.elem_size();
-        CvSURFPoint[] image1Keypoints = new CvSURFPoint[total1];
-        FloatBuffer[] image1Descriptors = new FloatBuffer[total1];
-        for (int i = 0; i < total1; i++)
-        {
-            image1Keypoints[i] = new CvSURFPoint(cvGetSeqElem(keypoints1, i));
-            image1Descriptors[i] = cvGetSeqElem(descriptors1, i).capacity(size1).asByteBuffer().asFloatBuffer();
-        }
+        int total = descriptors.total();
+        int size = descriptors.elem_size();
 
-        int total2 = descriptors2.total();
-        int size2 = descriptors2.elem_size();
-        CvSURFPoint[] image2Keypoints = new CvSURFPoint[total2];
-        FloatBuffer[] image2Descriptors = new FloatBuffer[total2];
-        for (int i = 0; i < total2; i++)
+        // Copy descriptors into Mat object.
+        Mat feature = new Mat(total, size / 4, CV_32F);
+        if (total > 0)
         {
-            image2Keypoints[i] = new CvSURFPoint(cvGetSeqElem(keypoints2, i));
-            image2Descriptors[i] = cvGetSeqElem(descriptors2, i).capacity(size2).asByteBuffer().asFloatBuffer();
+            FloatBuffer featureBuf = feature.getFloatBuffer();
+            for (int i = 0; i < total; i++)
+            {
+                featureBuf.put(cvGetSeqElem(descriptors, i).capacity(size).asByteBuffer().asFloatBuffer());
+            }
         }
 
         if (context != null)
@@ -98,54 +113,84 @@ public class SurfImageSimilarity implements ImageSimilarity
             context.progress();
         }
 
-        int total    = Math.min(total1, total2);
-        int length1  = image1Descriptors[0].capacity();
-        int length2  = image2Descriptors[0].capacity();
+        this.imagePool.release(imageGray);
 
-        image1Mat    = new Mat(total1, length1, CV_32F);
-        image2Mat    = new Mat(total2, length2, CV_32F);
-        indicesMat   = new Mat(total,        2, CV_32S);
-        distancesMat = new Mat(total,        2, CV_32F);
+        return feature;
+    }
 
-        // Copy descriptor into Mat object.
-        FloatBuffer image1Buf = this.image1Mat.getFloatBuffer();
-        for (int i = 0; i < image1Descriptors.length; i++)
+    public double computeDistance(Mat feature1, Mat feature2, TaskAttemptContext context)
+    {
+        int total = Math.min(feature1.rows(), feature2.rows());
+        if (total == 0)
         {
-            image1Buf.put(image1Descriptors[i]);
+            return 1.0;
         }
 
-        FloatBuffer image2Buf = this.image2Mat.getFloatBuffer();
-        for (int i = 0; i < image2Descriptors.length; i++)
+        if (this.flannIndex == null)
         {
-            image2Buf.put(image2Descriptors[i]);
+            this.flannIndex   = new Index();
+            this.indexParams  = new KDTreeIndexParams(4);
+            this.searchParams = new SearchParams(64, 0, true);
         }
 
+        // The knn result Mats only grow, a view of the needed rows is given to FLANN.
+        if (feature2.rows() > this.knnCapacity)
+        {
+            // Release resets the capacity, so the doubling is computed first.
+            int capacity = Math.max(feature2.rows(), 2 * this.knnCapacity);
+            releaseKnnMats();
+
+            this.knnCapacity  = capacity;
+            this.indicesMat   = new Mat(this.knnCapacity, 2, CV_32S);
+            this.distancesMat = new Mat(this.knnCapacity, 2, CV_32F);
+
+            NativeMemoryCounter.allocated(context, 16L * this.knnCapacity);
+        }
+
+        double percentageOfMatches = computePercentageOfMatches(feature1, feature2, total);
+
         if (context != null)
         {
             context.progress();
         }
 
-        this.flannIndex   = new Index();
-        this.indexParams  = new KDTreeIndexParams(4);
-        this.searchParams = new SearchParams(64, 0, true);
+        return Math.max(1.0 - percentageOfMatches, 0.0);
+    }
 
-        double percentageOfMatches = computePercentageOfMatches(total);
+    @Override
+    public void close()
+    {
+        releaseKnnMats();
 
-        if (context != null)
+        if (this.storage != null)
         {
-            context.progress();
+            cvReleaseMemStorage(this.storage);
+            this.storage = null;
         }
 
-        cvReleaseImage(image1Gray);
-        cvReleaseImage(image2Gray);
+        this.imagePool.close();
+    }
 
-        return Math.max(1.0 - percentageOfMatches, 0.0);
+    private void releaseKnnMats()
+    {
+        if (this.indicesMat != null)
+        {
+            this.indicesMat.release();
+            this.distancesMat.release();
+        }
+
+        this.indicesMat = null;
+        this.distancesMat = null;
+        this.knnCapacity = 0;
     }
 
-    private double computePercentageOfMatches(int totalCount)
+    private double computePercentageOfMatches(Mat feature1, Mat feature2, int totalCount)
     {
-        this.flannIndex.build(this.image1Mat, this.indexParams, FLANN_DIST_L2);
-        this.flannIndex.knnSearch(this.image2Mat, this.indicesMat, this.distancesMat, 2, this.searchParams);
+        Mat indices = this.indicesMat.rowRange(0, feature2.rows());
+        Mat distances = this.distancesMat.rowRange(0, feature2.rows());
+
+        this.flannIndex.build(feature1, this.indexParams, FLANN_DIST_L2);
+        this.flannIndex.knnSearch(feature2, indices, distances, 2, this.searchParams);
 
         // IntBuffer indicesBuf = indicesMat.getIntBuffer();
         int matchesCount = 0;
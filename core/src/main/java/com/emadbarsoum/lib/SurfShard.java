@@ -0,0 +1,107 @@
+package com.emadbarsoum.lib;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * SurfShard is one part of the SURF descriptor index created by surfindex: the name of its side files, the size of
+ * its N x cols CV_32F descriptors, the image of each descriptor row, and the image metadata.
+ *
+ * The descriptors themselves are stored in the side file "<name>.desc" (the raw rows), and the FLANN index in
+ * "<name>.flann", next to the shards, so a record stays small however large the part is.
+ */
+public class SurfShard implements Writable
+{
+    private String name = "";
+    private int rows;
+    private int cols;
+    private int[] descriptorImages = new int[0];
+    private ArrayList<String> images = new ArrayList<String>();
+
+    public SurfShard()
+    {}
+
+    public SurfShard(String name, int rows, int cols, int[] descriptorImages, ArrayList<String> images)
+    {
+        this.name = name;
+        this.rows = rows;
+        this.cols = cols;
+        this.descriptorImages = descriptorImages;
+        this.images = images;
+    }
+
+    // The name of the side files of the part, without extension.
+    public String name()
+    {
+        return this.name;
+    }
+
+    public int rows()
+    {
+        return this.rows;
+    }
+
+    public int cols()
+    {
+        return this.cols;
+    }
+
+    // The index in images() of the image of each descriptor row.
+    public int[] descriptorImages()
+    {
+        return this.descriptorImages;
+    }
+
+    public ArrayList<String> images()
+    {
+        return this.images;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException
+    {
+        Text.writeString(out, this.name);
+        out.writeInt(this.rows);
+        out.writeInt(this.cols);
+
+        out.writeInt(this.descriptorImages.length);
+        for (int image : this.descriptorImages)
+        {
+            out.writeInt(image);
+        }
+
+        out.writeInt(this.images.size());
+        for (String image : this.images)
+        {
+            Text.writeString(out, image);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException
+    {
+        this.name = Text.readString(in);
+        this.rows = in.readInt();
+        this.cols = in.readInt();
+
+        int count = in.readInt();
+        this.descriptorImages = new int[count];
+        for (int i = 0; i < count; ++i)
+        {
+            this.descriptorImages[i] = in.readInt();
+        }
+
+        int imageCount = in.readInt();
+        this.images.clear();
+        this.images.ensureCapacity(imageCount);
+        for (int i = 0; i < imageCount; ++i)
+        {
+            this.images.add(Text.readString(in));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.emadbarsoum.lib;
+
+import com.emadbarsoum.common.ImagePool;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * ThumbnailFilter resize an image so its largest side is size pixels, keeping the aspect ratio, same as the
+ * thumbnail job.
+ */
+public class ThumbnailFilter implements ImageFilter
+{
+    private int size;
+
+    public ThumbnailFilter(int size)
+    {
+        if (size < 1)
+        {
+            throw new IllegalArgumentException("The thumbnail size must be greater than or equal to 1: " + size);
+        }
+
+        this.size = size;
+    }
+
+    @Override
+    public String name()
+    {
+        return "thumbnail";
+    }
+
+    @Override
+    public int radius()
+    {
+        return 0;
+    }
+
+    @Override
+    public boolean resizes()
+    {
+        return true;
+    }
+
+    @Override
+    public IplImage apply(IplImage image, ImagePool pool, TaskAttemptContext context)
+    {
+        int w = this.size;
+        int h = this.size;
+        if (image.width() > image.height())
+        {
+            h = Math.max((w * image.height()) / image.width(), 1);
+        }
+        else
+        {
+            w = Math.max((h * image.width()) / image.height(), 1);
+        }
+
+        IplImage targetImage = pool.acquire(w, h, image.depth(), image.nChannels(), context);
+        cvResize(image, targetImage);
+
+        return targetImage;
+    }
+}
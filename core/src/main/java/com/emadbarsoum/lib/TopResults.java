@@ -0,0 +1,117 @@
+package com.emadbarsoum.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * TopResults keep the K results with the smallest distance, using a bounded max heap. So that
+ * a mapper can keep only its best K results in memory, and emit them at the end of the task.
+ */
+public class TopResults<T>
+{
+    /**
+     * A single result, the distance and the item attached to it.
+     */
+    public static class Result<T>
+    {
+        private double distance;
+        private T item;
+
+        public Result(double distance, T item)
+        {
+            this.distance = distance;
+            this.item = item;
+        }
+
+        public double distance()
+        {
+            return this.distance;
+        }
+
+        public T item()
+        {
+            return this.item;
+        }
+    }
+
+    private int capacity;
+    private PriorityQueue<Result<T>> heap;
+
+    public TopResults(int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("capacity must be greater than or equal to 1.");
+        }
+
+        this.capacity = capacity;
+
+        // The head of the heap is the worst result, so it is the one to drop.
+        this.heap = new PriorityQueue<Result<T>>(capacity, new Comparator<Result<T>>()
+        {
+            @Override
+            public int compare(Result<T> result1, Result<T> result2)
+            {
+                return Double.compare(result2.distance, result1.distance);
+            }
+        });
+    }
+
+    public int capacity()
+    {
+        return this.capacity;
+    }
+
+    public int size()
+    {
+        return this.heap.size();
+    }
+
+    // Return true if a result with this distance would be kept, use it to avoid creating the item for nothing.
+    public boolean accept(double distance)
+    {
+        return (this.heap.size() < this.capacity) || (distance < this.heap.peek().distance);
+    }
+
+    // Return the result that was dropped to make room for the new one, or null.
+    public Result<T> offer(double distance, T item)
+    {
+        if (!accept(distance))
+        {
+            return new Result<T>(distance, item);
+        }
+
+        Result<T> dropped = null;
+        if (this.heap.size() >= this.capacity)
+        {
+            dropped = this.heap.poll();
+        }
+
+        this.heap.add(new Result<T>(distance, item));
+
+        return dropped;
+    }
+
+    // Return the results sorted from the smallest to the largest distance.
+    public ArrayList<Result<T>> sorted()
+    {
+        ArrayList<Result<T>> results = new ArrayList<Result<T>>(this.heap);
+        Collections.sort(results, new Comparator<Result<T>>()
+        {
+            @Override
+            public int compare(Result<T> result1, Result<T> result2)
+            {
+                return Double.compare(result1.distance, result2.distance);
+            }
+        });
+
+        return results;
+    }
+
+    public void clear()
+    {
+        this.heap.clear();
+    }
+}
@@ -0,0 +1,168 @@
+package com.emadbarsoum.map;
+
+import java.io.IOException;
+import java.net.URI;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImagePool;
+import com.emadbarsoum.common.MatData;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.SequenceFileCompression;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageSimilarity;
+import com.emadbarsoum.lib.ImageSimilarityFactory;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Featurize is a Map task that compute the feature of each image in a sequence file of images,
+ * using the same algorithm as image search (histogram, SURF, BOW or perceptual hash). The output is a feature sequence file,
+ * in which the key is the image metadata plus "feature=<method>" and the value is the feature as MatData.
+ *
+ * The feature sequence file can be given to imagesearch instead of the images, so that the corpus
+ * doesn't need to be decoded and featurized for every query.
+ *
+ * Entry: com.emadbarsoum.map.Featurize
+ */
+public class Featurize extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(Featurize.class);
+
+    public static class FeaturizeMapper extends Mapper<Writable, BytesWritable, Text, MatData>
+    {
+        private ImageSimilarity imageSimilarity;
+        private String method;
+        private ImagePool imagePool = new ImagePool();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            Configuration conf = context.getConfiguration();
+
+            this.method = conf.get("method", "hist");
+            this.imageSimilarity = ImageSimilarityFactory.create(this.method);
+        }
+
+        @Override
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
+        {
+            MetadataParser metadata = MetadataParser.from(key);
+
+            IplImage image = ImageHelper.createIplImage(value.getBytes(), value.getLength(), metadata, this.imagePool, context);
+
+            context.setStatus("Status: Image loaded");
+            context.progress();
+
+            Mat feature = this.imageSimilarity.computeFeature(image, context);
+            ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+
+            // The feature replace the image, so the value is no longer a raw image.
+            metadata.remove("type");
+            metadata.put("feature", this.method);
+
+            context.write(new Text(metadata.toMetadata()), MatData.create(feature));
+
+            feature.release();
+
+            context.setStatus("Status: map completed");
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.imageSimilarity.close();
+            this.imagePool.close();
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        if (parser.has("m"))
+        {
+            conf.set("method", parser.get("m"));
+        }
+        else
+        {
+            conf.set("method", "hist");
+        }
+
+        Job job = Job.getInstance(conf, "Featurize");
+        job.setJarByClass(Featurize.class);
+
+        MultithreadedImageMapper.setMapperClass(job, FeaturizeMapper.class, parser);
+        job.setNumReduceTasks(0);
+
+        // Input Output format
+        ImageInputFormat.setInputFormat(job, parser);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(MatData.class);
+
+        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        // Optional compression of the output sequence file.
+        SequenceFileCompression.setOutputCompression(job, parser);
+
+        // BOW feature need the BOW cluster file, use symbolic link "bowClusterFile" to support
+        // different platform formats and protocols.
+        if (parser.has("cf"))
+        {
+            job.addCacheFile(new URI(parser.get("cf") + "#bowClusterFile"));
+        }
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 2) ||
+            !(parser.has(nonOptional))     ||
+            !ImageInputFormat.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser) ||
+            !SequenceFileCompression.isValid(parser))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        if (parser.has("m") && parser.get("m").equals("bow") && !parser.has("cf"))
+        {
+            System.out.println("bow method requires a BOW cluster file (-cf).");
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new Featurize(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision featurize -i <input path of the sequence file> -o <output path for feature sequence file> [-m <hist, surf, bow or dhash>] [-cf <BOW cluster file>] " + ImageInputFormat.usage + " " + MultithreadedImageMapper.usage + " " + SequenceFileCompression.usage);
+    }
+}
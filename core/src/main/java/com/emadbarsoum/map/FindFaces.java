@@ -2,22 +2,26 @@ package com.emadbarsoum.map;
 
 import com.emadbarsoum.common.CommandParser;
 import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImagePool;
 import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.SequenceFileCompression;
+import com.emadbarsoum.common.TaskTimeCounter;
 import com.emadbarsoum.lib.FaceDetection;
+import com.emadbarsoum.lib.ImageColumnarOutputFormat;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
-import org.bytedeco.javacpp.BytePointer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,88 +43,101 @@ public class FindFaces extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(FindFaces.class);
 
-    public static class FindFacesMapper extends Mapper<Text, BytesWritable, Text, BytesWritable>
+    public static class FindFacesMapper extends Mapper<Writable, BytesWritable, Text, BytesWritable>
     {
+        private FaceDetection detector;
+        private ImagePool imagePool = new ImagePool();
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        protected void setup(Context context) throws IOException, InterruptedException
         {
-            Configuration conf = context.getConfiguration();
-
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
-
             URI[] uriPaths = context.getCacheFiles();
-            if (uriPaths.length > 0)
+            if ((uriPaths == null) || (uriPaths.length == 0))
             {
-                boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-                IplImage image;
-                FaceDetection detector = new FaceDetection();
+                return;
+            }
 
-                detector.setModel("faceModelFile");
-                if (isRaw)
-                {
-                    int width = metadata.getAsInt("width");
-                    int height = metadata.getAsInt("height");
-                    int channelCount = metadata.getAsInt("channel_count");
-                    int depth =  metadata.getAsInt("depth");
-
-                    image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                        value.getLength(),
-                        width,
-                        height,
-                        channelCount,
-                        depth);
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
-                else
-                {
-                    image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
+            // The cascade is loaded once per task.
+            long start = System.nanoTime();
 
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
+            this.detector = new FaceDetection();
+            this.detector.setModel("faceModelFile");
 
-                try
-                {
-                    detector.Detect(image, context);
+            try
+            {
+                this.detector.load();
+            }
+            catch (Exception e)
+            {
+                throw new IOException(e);
+            }
 
-                    if (detector.count() > 0)
-                    {
-                        CvMat imageMat = cvEncodeImage("." + metadata.get("ext"), detector.getResultImage());
+            TaskTimeCounter.modelLoaded(context, start);
+            context.setStatus("Status: Model loaded");
+        }
 
-                        // Write the result...
-                        byte[] data = new byte[imageMat.size()];
-                        imageMat.getByteBuffer().get(data);
+        @Override
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
+        {
+            if (this.detector == null)
+            {
+                return;
+            }
 
-                        // The result stored as compressed.
-                        metadata.remove("type");
+            long start = System.nanoTime();
 
-                        // Store face count.
-                        metadata.put("facecount", detector.count());
+            MetadataParser metadata = MetadataParser.from(key);
 
-                        context.write(new Text(metadata.toMetadata()), new BytesWritable(data));
+            IplImage image = ImageHelper.createIplImage(value.getBytes(), value.getLength(), metadata, this.imagePool, context);
 
-                        cvReleaseMat(imageMat);
-                    }
-                }
-                catch (Exception e)
-                {
-                    //TODO: log error.
-                }
+            context.setStatus("Status: Image loaded");
+            context.progress();
 
-                context.setStatus("Status: map completed");
+            try
+            {
+                this.detector.Detect(image, context);
 
-                if (isRaw)
-                {
-                    image.release();
-                }
-                else
+                if (this.detector.count() > 0)
                 {
-                    cvReleaseImage(image);
+                    CvMat imageMat = cvEncodeImage("." + metadata.get("ext"), this.detector.getResultImage());
+
+                    // Write the result...
+                    byte[] data = new byte[imageMat.size()];
+                    imageMat.getByteBuffer().get(data);
+
+                    // The result stored as compressed.
+                    metadata.remove("type");
+
+                    // Store face count.
+                    metadata.put("facecount", this.detector.count());
+
+                    context.write(new Text(metadata.toMetadata()), new BytesWritable(data));
+
+                    cvReleaseMat(imageMat);
                 }
             }
+            catch (Exception e)
+            {
+                //TODO: log error.
+            }
+
+            context.setStatus("Status: map completed");
+
+            ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+
+            TaskTimeCounter.imageProcessed(context, start);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            if (this.detector != null)
+            {
+                this.detector.close();
+                this.detector = null;
+            }
+
+            this.imagePool.close();
         }
     }
 
@@ -134,12 +151,12 @@ public class FindFaces extends Configured implements Tool
         Job job = Job.getInstance(conf, "Find Faces");
         job.setJarByClass(Gaussian.class);
 
-        job.setMapperClass(FindFacesMapper.class);
+        MultithreadedImageMapper.setMapperClass(job, FindFacesMapper.class, parser);
         job.setNumReduceTasks(0);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
-        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        ImageInputFormat.setInputFormat(job, parser);
+        ImageColumnarOutputFormat.setOutputFormat(job, parser);
 
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(BytesWritable.class);
@@ -147,6 +164,9 @@ public class FindFaces extends Configured implements Tool
         FileInputFormat.addInputPath(job, new Path(parser.get("i")));
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
+        // Optional compression of the output sequence file.
+        SequenceFileCompression.setOutputCompression(job, parser);
+
         // Add the model XML file to the distributed cache.
         // Use symbolic link "faceModelFile" to support different platform formats
         // and protocols.
@@ -162,7 +182,10 @@ public class FindFaces extends Configured implements Tool
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                ||
             (parser.getNumberOfArgs() < 3) ||
-            !(parser.has(nonOptional)))
+            !(parser.has(nonOptional))     ||
+            !ImageInputFormat.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser) ||
+            !SequenceFileCompression.isValid(parser))
         {
             showUsage();
             System.exit(2);
@@ -173,6 +196,6 @@ public class FindFaces extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision findfaces -i <input path of the sequence file> -o <output path for sequence file> -m <model path>");
+        System.out.println("Usage: hvision findfaces -i <input path of the sequence file> -o <output path for sequence file> -m <model path> " + ImageInputFormat.usage + " " + ImageColumnarOutputFormat.usage + " " + MultithreadedImageMapper.usage + " " + SequenceFileCompression.usage);
     }
 }
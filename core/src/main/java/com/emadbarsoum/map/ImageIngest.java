@@ -0,0 +1,238 @@
+package com.emadbarsoum.map;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageKeyWritable;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.SequenceFileCompression;
+import com.emadbarsoum.lib.CombineImageInputFormat;
+import com.emadbarsoum.lib.ImageColumnarOutputFormat;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.bytedeco.javacpp.*;
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * ImageIngest is a Map task that packs the image files of a folder on HDFS, including its sub folders, into
+ * image sequence files with the same metadata as iseq, so the ingestion runs on the cluster instead of a single
+ * machine. The small image files are combined into splits of -splitsize MB, one output sequence file per split.
+ *
+ * With -raw the images are decoded and stored uncompressed, and with -labeled the sub folder of the input folder that
+ * contains each image, at any depth, is its label, like iseqlab.
+ *
+ * Entry: com.emadbarsoum.map.ImageIngest
+ */
+public class ImageIngest extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(ImageIngest.class);
+
+    public static class ImageIngestMapper extends Mapper<Text, BytesWritable, Writable, BytesWritable>
+    {
+        private boolean raw;
+        private boolean binaryKey;
+        private List<String> labels;
+        private String inputFolder;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            Configuration conf = context.getConfiguration();
+
+            this.raw = conf.getBoolean("raw", false);
+            this.binaryKey = conf.getBoolean("binary_key", false);
+            this.labels = conf.get("labels") == null ? null : Arrays.asList(conf.getStrings("labels"));
+            this.inputFolder = conf.get("input_folder");
+        }
+
+        @Override
+        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        {
+            MetadataParser metadata = MetadataParser.from(key);
+
+            // The path is the last entry, same as iseq.
+            String path = metadata.get("path");
+            metadata.remove("path");
+
+            BytesWritable imageData = value;
+            if (this.raw)
+            {
+                IplImage image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
+                if (image == null)
+                {
+                    context.getCounter("Image Ingest", "Skipped images").increment(1);
+                    return;
+                }
+
+                context.setStatus("Status: Image loaded");
+                context.progress();
+
+                byte[] data = new byte[image.imageSize()];
+                image.getByteBuffer().get(data);
+
+                metadata.put("type", "raw");
+                metadata.put("width", image.width());
+                metadata.put("height", image.height());
+                metadata.put("channel_count", image.nChannels());
+                metadata.put("depth", image.depth());
+
+                cvReleaseImage(image);
+
+                imageData = new BytesWritable(data);
+            }
+
+            if (this.labels != null)
+            {
+                String label = labelOf(new Path(path), this.inputFolder);
+                int labelId = (label == null) ? -1 : this.labels.indexOf(label);
+                if (labelId < 0)
+                {
+                    context.getCounter("Image Ingest", "Skipped images").increment(1);
+                    return;
+                }
+
+                metadata.put("label", label);
+                metadata.put("label_id", labelId);
+                metadata.put("label_count", this.labels.size());
+            }
+
+            metadata.put("path", path);
+
+            if (this.binaryKey)
+            {
+                context.write(ImageKeyWritable.fromMetadata(metadata), imageData);
+            }
+            else
+            {
+                context.write(new Text(metadata.toMetadata()), imageData);
+            }
+
+            context.getCounter("Image Ingest", "Images").increment(1);
+            context.setStatus("Status: map completed");
+        }
+
+        // The label of an image is the first folder below the input folder, the input is walked recursively so the
+        // image can be in a nested folder of its label. Null for an image directly in the input folder.
+        private static String labelOf(Path path, String inputFolder)
+        {
+            Path folder = path.getParent();
+            while ((folder != null) && (folder.getParent() != null))
+            {
+                if (folder.getParent().toUri().getPath().equals(inputFolder))
+                {
+                    return folder.getName();
+                }
+
+                folder = folder.getParent();
+            }
+
+            return null;
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        boolean binaryKey = parser.has("binarykey");
+        conf.setBoolean("raw", parser.has("raw"));
+        conf.setBoolean("binary_key", binaryKey);
+
+        Path inputPath = new Path(parser.get("i"));
+
+        // The labels are the sub folders of the input folder, sorted so the label ids are stable.
+        if (parser.has("labeled"))
+        {
+            ArrayList<String> labels = new ArrayList<String>();
+            FileSystem fs = inputPath.getFileSystem(conf);
+            conf.set("input_folder", fs.makeQualified(inputPath).toUri().getPath());
+
+            for (FileStatus status : fs.listStatus(inputPath))
+            {
+                if (status.isDirectory() && !status.getPath().getName().startsWith("."))
+                {
+                    labels.add(status.getPath().getName());
+                }
+            }
+
+            Collections.sort(labels);
+            conf.setStrings("labels", labels.toArray(new String[labels.size()]));
+        }
+
+        Job job = Job.getInstance(conf, "Image Ingest");
+        job.setJarByClass(ImageIngest.class);
+
+        MultithreadedImageMapper.setMapperClass(job, ImageIngestMapper.class, parser);
+        job.setNumReduceTasks(0);
+
+        // Input Output format
+        job.setInputFormatClass(CombineImageInputFormat.class);
+        ImageColumnarOutputFormat.setOutputFormat(job, parser);
+
+        long splitSize = (parser.has("splitsize") ? parser.getAsInt("splitsize") : 256) * 1024L * 1024L;
+        CombineImageInputFormat.setMaxInputSplitSize(job, splitSize);
+
+        job.setOutputKeyClass(binaryKey ? ImageKeyWritable.class : Text.class);
+        job.setOutputValueClass(BytesWritable.class);
+
+        FileInputFormat.addInputPath(job, inputPath);
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        // Optional compression of the output sequence file.
+        SequenceFileCompression.setOutputCompression(job, parser);
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 2) ||
+            !(parser.has(nonOptional))     ||
+            !MultithreadedImageMapper.isValid(parser) ||
+            !SequenceFileCompression.isValid(parser))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        if (parser.has("splitsize") && (parser.getAsInt("splitsize") < 1))
+        {
+            System.out.println("splitsize must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new ImageIngest(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision ingest -i <input folder of images> -o <output path for sequence files> [-raw] [-labeled] [-binarykey] [-splitsize <MB per sequence file>] " + ImageColumnarOutputFormat.usage + " " + MultithreadedImageMapper.usage + " " + SequenceFileCompression.usage);
+    }
+}
@@ -3,19 +3,28 @@ package com.emadbarsoum.map;
 import java.io.IOException;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoding;
 import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImagePool;
 import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.SequenceFileCompression;
+import com.emadbarsoum.lib.ImageColumnarOutputFormat;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageTiles;
+import com.emadbarsoum.lib.JavaFilter;
+import com.emadbarsoum.lib.JavaImage;
+import com.emadbarsoum.lib.JavaKernels;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.slf4j.Logger;
@@ -35,33 +44,47 @@ public class Median extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(Median.class);
 
-    public static class MedianMapper extends Mapper<Text, BytesWritable, Text, BytesWritable>
+    public static class MedianMapper extends Mapper<Writable, BytesWritable, Text, BytesWritable>
     {
+        private ImagePool imagePool = new ImagePool();
+        private ImageEncoding encoding;
+        private JavaFilter javaFilter;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.encoding = new ImageEncoding(context.getConfiguration());
+            this.javaFilter = JavaFilter.create(context.getConfiguration());
+        }
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
         {
             Configuration conf = context.getConfiguration();
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            MetadataParser metadata = MetadataParser.from(key);
 
             boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-            int size = conf.getInt("size", 3);
+            final int size = conf.getInt("size", 3);
+            // The pure Java engine, without native images.
+            if (this.javaFilter != null)
+            {
+                this.javaFilter.map(value, metadata, size / 2, new JavaFilter.Kernel()
+                    {
+                        public JavaImage apply(JavaKernels kernels, JavaImage input, JavaImage output)
+                        {
+                            kernels.median(input, output, size);
+                            return output;
+                        }
+                    }, context);
+                return;
+            }
+
             IplImage image;
 
             if (isRaw)
             {
-                int width = metadata.getAsInt("width");
-                int height = metadata.getAsInt("height");
-                int channelCount = metadata.getAsInt("channel_count");
-                int depth =  metadata.getAsInt("depth");
-
-                image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                        value.getLength(),
-                        width,
-                        height,
-                        channelCount,
-                        depth);
+                image = ImageHelper.createIplImageFromRawBytes(value.getBytes(), value.getLength(), metadata, this.imagePool, context);
 
                 context.setStatus("Status: Image loaded");
                 context.progress();
@@ -76,30 +99,31 @@ public class Median extends Configured implements Tool
 
             cvSmooth(image, image, CV_MEDIAN, size, 0, 0.0, 0.0);
 
-            CvMat imageMat = cvEncodeImage("." + metadata.get("ext"), image);
+            // A tile has less valid halo left for the next filter.
+            ImageTiles.consumeHalo(metadata, size / 2, context);
 
-            // Write the result...
-            byte[] data = new byte[imageMat.size()];
-            imageMat.getByteBuffer().get(data);
-
-            // The result stored as compressed.
-            metadata.remove("type");
+            // Write the result, raw or encoded.
+            byte[] data = this.encoding.encode(image, metadata);
 
             context.write(new Text(metadata.toMetadata()), new BytesWritable(data));
 
-            cvReleaseMat(imageMat);
-
             context.setStatus("Status: map completed");
 
             if (isRaw)
             {
-                image.release();
+                this.imagePool.release(image);
             }
             else
             {
                 cvReleaseImage(image);
             }
         }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.imagePool.close();
+        }
     }
 
     @Override
@@ -114,12 +138,12 @@ public class Median extends Configured implements Tool
         Job job = Job.getInstance(conf, "Median Blur");
         job.setJarByClass(Median.class);
 
-        job.setMapperClass(MedianMapper.class);
+        MultithreadedImageMapper.setMapperClass(job, MedianMapper.class, parser);
         job.setNumReduceTasks(0);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
-        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        ImageInputFormat.setInputFormat(job, parser);
+        ImageColumnarOutputFormat.setOutputFormat(job, parser);
 
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(BytesWritable.class);
@@ -127,6 +151,11 @@ public class Median extends Configured implements Tool
         FileInputFormat.addInputPath(job, new Path(parser.get("i")));
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
+        // The filter engine, raw or encoded output images, and optional compression of the output sequence file.
+        ImageEncoding.configure(job, parser);
+        JavaKernels.configure(job, parser);
+        SequenceFileCompression.setOutputCompression(job, parser);
+
         boolean ret = job.waitForCompletion(true);
         return ret ? 0 : 1;
     }
@@ -137,7 +166,12 @@ public class Median extends Configured implements Tool
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                ||
             (parser.getNumberOfArgs() < 3) ||
-            !(parser.has(nonOptional)))
+            !(parser.has(nonOptional))     ||
+            !ImageInputFormat.isValid(parser) ||
+            !ImageEncoding.isValid(parser) ||
+            !JavaKernels.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser) ||
+            !SequenceFileCompression.isValid(parser))
         {
             showUsage();
             System.exit(2);
@@ -154,6 +188,6 @@ public class Median extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision median -i <input path of the sequence file> -o <output path for sequence file> -size <kernel size>");
+        System.out.println("Usage: hvision median -i <input path of the sequence file> -o <output path for sequence file> -size <kernel size> " + ImageInputFormat.usage + " " + ImageColumnarOutputFormat.usage + " " + ImageEncoding.usage + " " + JavaKernels.usage + " " + MultithreadedImageMapper.usage + " " + SequenceFileCompression.usage);
     }
 }
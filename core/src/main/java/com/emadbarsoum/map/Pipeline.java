@@ -0,0 +1,247 @@
+package com.emadbarsoum.map;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoding;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImagePool;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.SequenceFileCompression;
+import com.emadbarsoum.common.TaskTimeCounter;
+import com.emadbarsoum.lib.ImageColumnarOutputFormat;
+import com.emadbarsoum.lib.ImageFilter;
+import com.emadbarsoum.lib.ImageFilterFactory;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageTiles;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.bytedeco.javacpp.*;
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * Pipeline is a Map task that apply a chain of filters to all the images in the sequence file, i.e.
+ * gray,gaussian:5:1.5,erode:2,thumbnail:256 (see ImageFilterFactory). Each image is decoded once, all the stages
+ * are applied on the native image, in place when possible, and the result is encoded once, instead of running one
+ * job and writing one intermediate sequence file per filter.
+ *
+ * The time of the decode, of each stage and of the encode is reported in the "Pipeline Stage Micros" counters, an
+ * image that can't be decoded is skipped and counted in "Skipped images".
+ *
+ * The tiles of the tile job are filtered like the other images, each stage consumes its radius from the halo of the
+ * tile, and a tile whose halo was too small for the chain is counted once. A chain that resizes the images
+ * (thumbnail) fails on a tile, untile couldn't put the tile back in its image.
+ *
+ * Entry: com.emadbarsoum.map.Pipeline
+ */
+public class Pipeline extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(Pipeline.class);
+
+    public static final String counterGroup = "Pipeline";
+    public static final String stageCounterGroup = "Pipeline Stage Micros";
+
+    public static class PipelineMapper extends Mapper<Writable, BytesWritable, Text, BytesWritable>
+    {
+        private ImagePool imagePool = new ImagePool();
+        private List<ImageFilter> filters;
+        private ImageEncoding encoding;
+        private boolean resizes;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.filters = ImageFilterFactory.createChain(context.getConfiguration().get("chain"));
+            this.encoding = new ImageEncoding(context.getConfiguration());
+
+            for (ImageFilter filter : this.filters)
+            {
+                this.resizes |= filter.resizes();
+            }
+        }
+
+        @Override
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
+        {
+            long start = System.nanoTime();
+
+            MetadataParser metadata = MetadataParser.from(key);
+            boolean isRaw = ImageHelper.isRaw(metadata);
+
+            if (ImageTiles.isTile(metadata) && this.resizes)
+            {
+                throw new IOException("The chain resizes the images, it can't be applied to the tile " + metadata.get("name") + ", untile the images first.");
+            }
+
+            IplImage image;
+            if (isRaw)
+            {
+                image = ImageHelper.createIplImageFromRawBytes(value.getBytes(), value.getLength(), metadata, this.imagePool, context);
+            }
+            else
+            {
+                image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
+            }
+
+            if (image == null)
+            {
+                log.warn("Can't decode the image " + metadata.get("name") + ", it is skipped.");
+                context.getCounter(counterGroup, "Skipped images").increment(1);
+                return;
+            }
+
+            context.setStatus("Status: Image loaded");
+            context.progress();
+
+            long stageStart = stageTime(context, "0 decode", start);
+
+            // The decoded image isn't from the pool, all the images created by the stages are.
+            boolean pooled = isRaw;
+            boolean seamless = true;
+            for (int i = 0; i < this.filters.size(); ++i)
+            {
+                ImageFilter filter = this.filters.get(i);
+
+                IplImage result = filter.apply(image, this.imagePool, context);
+                if (result != image)
+                {
+                    release(image, pooled);
+                    image = result;
+                    pooled = true;
+                }
+
+                seamless &= ImageTiles.consumeHalo(metadata, filter.radius());
+
+                stageStart = stageTime(context, (i + 1) + " " + filter.name(), stageStart);
+                context.progress();
+            }
+
+            if (!seamless)
+            {
+                context.getCounter(ImageTiles.counterGroup, ImageTiles.smallHaloCounter).increment(1);
+            }
+
+            // Write the result, raw or encoded.
+            byte[] data = this.encoding.encode(image, metadata);
+
+            context.write(new Text(metadata.toMetadata()), new BytesWritable(data));
+
+            release(image, pooled);
+
+            stageTime(context, (this.filters.size() + 1) + " encode", stageStart);
+            context.setStatus("Status: map completed");
+
+            TaskTimeCounter.imageProcessed(context, start);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.imagePool.close();
+        }
+
+        private void release(IplImage image, boolean pooled)
+        {
+            if (pooled)
+            {
+                this.imagePool.release(image);
+            }
+            else
+            {
+                cvReleaseImage(image);
+            }
+        }
+
+        // Add the time since start to the counter of a stage, and return the start of the next stage.
+        private static long stageTime(Context context, String stage, long start)
+        {
+            long end = System.nanoTime();
+            context.getCounter(stageCounterGroup, stage).increment((end - start) / 1000);
+
+            return end;
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        conf.set("chain", parser.get("chain"));
+
+        Job job = Job.getInstance(conf, "Pipeline");
+        job.setJarByClass(Pipeline.class);
+
+        MultithreadedImageMapper.setMapperClass(job, PipelineMapper.class, parser);
+        job.setNumReduceTasks(0);
+
+        // Input Output format
+        ImageInputFormat.setInputFormat(job, parser);
+        ImageColumnarOutputFormat.setOutputFormat(job, parser);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(BytesWritable.class);
+
+        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        // Raw or encoded output images, and optional compression of the output sequence file.
+        ImageEncoding.configure(job, parser);
+        SequenceFileCompression.setOutputCompression(job, parser);
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o", "chain"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 3) ||
+            !(parser.has(nonOptional))     ||
+            !ImageInputFormat.isValid(parser) ||
+            !ImageEncoding.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser) ||
+            !SequenceFileCompression.isValid(parser))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        // Check the chain before submitting the job.
+        try
+        {
+            ImageFilterFactory.createChain(parser.get("chain"));
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println("Invalid chain: " + e.getMessage());
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new Pipeline(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision pipeline -i <input path of the sequence file> -o <output path for sequence file> -chain <stages, i.e. gray,gaussian:5:1.5,erode:2,thumbnail:256> " + ImageInputFormat.usage + " " + ImageColumnarOutputFormat.usage + " " + ImageEncoding.usage + " " + MultithreadedImageMapper.usage + " " + SequenceFileCompression.usage);
+    }
+}
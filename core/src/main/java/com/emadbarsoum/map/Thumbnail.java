@@ -3,19 +3,27 @@ package com.emadbarsoum.map;
 import java.io.IOException;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoding;
 import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImagePool;
 import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.SequenceFileCompression;
+import com.emadbarsoum.lib.ImageColumnarOutputFormat;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.JavaFilter;
+import com.emadbarsoum.lib.JavaImage;
+import com.emadbarsoum.lib.JavaKernels;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.slf4j.Logger;
@@ -37,35 +45,61 @@ public class Thumbnail extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(Thumbnail.class);
 
-    public static class ThumbnailMapper extends Mapper<Text, BytesWritable, Text, BytesWritable>
+    public static class ThumbnailMapper extends Mapper<Writable, BytesWritable, Text, BytesWritable>
     {
+        private ImagePool imagePool = new ImagePool();
+        private ImageEncoding encoding;
+        private JavaFilter javaFilter;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.encoding = new ImageEncoding(context.getConfiguration());
+            this.javaFilter = JavaFilter.create(context.getConfiguration());
+        }
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
         {
             Configuration conf = context.getConfiguration();
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            MetadataParser metadata = MetadataParser.from(key);
             boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
 
-            int size = conf.getInt("size", 120);
+            final int size = conf.getInt("size", 120);
             int w = size;
             int h = size;
 
+            // The pure Java engine, without native images.
+            if (this.javaFilter != null)
+            {
+                this.javaFilter.map(value, metadata, 0, new JavaFilter.Kernel()
+                    {
+                        public JavaImage apply(JavaKernels kernels, JavaImage input, JavaImage output)
+                        {
+                            int width = size;
+                            int height = size;
+                            if (input.width() > input.height())
+                            {
+                                height = Math.max((width * input.height()) / input.width(), 1);
+                            }
+                            else
+                            {
+                                width = Math.max((height * input.width()) / input.height(), 1);
+                            }
+
+                            output.reset(width, height, input.channels());
+                            kernels.resizeArea(input, output);
+                            return output;
+                        }
+                    }, context);
+                return;
+            }
+
             IplImage sourceImage;
             if (isRaw)
             {
-                int width = metadata.getAsInt("width");
-                int height = metadata.getAsInt("height");
-                int channelCount = metadata.getAsInt("channel_count");
-                int depth =  metadata.getAsInt("depth");
-
-                sourceImage = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                    value.getLength(),
-                    width,
-                    height,
-                    channelCount,
-                    depth);
+                sourceImage = ImageHelper.createIplImageFromRawBytes(value.getBytes(), value.getLength(), metadata, this.imagePool, context);
 
                 context.setStatus("Status: Image loaded");
                 context.progress();
@@ -80,40 +114,39 @@ public class Thumbnail extends Configured implements Tool
 
             if (sourceImage.width() > sourceImage.height())
             {
-                h = (w * sourceImage.height()) / sourceImage.width();
+                h = Math.max((w * sourceImage.height()) / sourceImage.width(), 1);
             }
             else
             {
-                w = (h * sourceImage.width()) / sourceImage.height();
+                w = Math.max((h * sourceImage.width()) / sourceImage.height(), 1);
             }
 
-            IplImage targetImage = IplImage.create(w, h, sourceImage.depth(), sourceImage.nChannels());
+            IplImage targetImage = this.imagePool.acquire(w, h, sourceImage.depth(), sourceImage.nChannels(), context);
 
             cvResize(sourceImage, targetImage);
-            CvMat targetImageMat = cvEncodeImage("." + metadata.get("ext"), targetImage);
-
-            // Write the result...
-            byte[] data = new byte[targetImageMat.size()];
-            targetImageMat.getByteBuffer().get(data);
-
-            // The result stored as compressed.
-            metadata.remove("type");
+            // Write the result, raw or encoded.
+            byte[] data = this.encoding.encode(targetImage, metadata);
 
             context.write(new Text(metadata.toMetadata()), new BytesWritable(data));
 
-            cvReleaseMat(targetImageMat);
-            targetImage.release();
+            this.imagePool.release(targetImage);
             context.setStatus("Status: map completed");
 
             if (isRaw)
             {
-                sourceImage.release();
+                this.imagePool.release(sourceImage);
             }
             else
             {
                 cvReleaseImage(sourceImage);
             }
         }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.imagePool.close();
+        }
     }
 
     @Override
@@ -128,12 +161,12 @@ public class Thumbnail extends Configured implements Tool
         Job job = Job.getInstance(conf, "Thumbnail Creation");
         job.setJarByClass(Thumbnail.class);
 
-        job.setMapperClass(ThumbnailMapper.class);
+        MultithreadedImageMapper.setMapperClass(job, ThumbnailMapper.class, parser);
         job.setNumReduceTasks(0);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
-        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        ImageInputFormat.setInputFormat(job, parser);
+        ImageColumnarOutputFormat.setOutputFormat(job, parser);
 
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(BytesWritable.class);
@@ -141,6 +174,11 @@ public class Thumbnail extends Configured implements Tool
         FileInputFormat.addInputPath(job, new Path(parser.get("i")));
         FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
 
+        // The filter engine, raw or encoded output images, and optional compression of the output sequence file.
+        ImageEncoding.configure(job, parser);
+        JavaKernels.configure(job, parser);
+        SequenceFileCompression.setOutputCompression(job, parser);
+
         boolean ret = job.waitForCompletion(true);
         return ret ? 0 : 1;
     }
@@ -151,7 +189,12 @@ public class Thumbnail extends Configured implements Tool
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                 ||
             (parser.getNumberOfArgs() < 3) ||
-            !(parser.has(nonOptional)))
+            !(parser.has(nonOptional))     ||
+            !ImageInputFormat.isValid(parser) ||
+            !ImageEncoding.isValid(parser) ||
+            !JavaKernels.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser) ||
+            !SequenceFileCompression.isValid(parser))
         {
             showUsage();
             System.exit(2);
@@ -162,6 +205,6 @@ public class Thumbnail extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision thumbnail -i <input path of the sequence file> -o <output path for sequence file> -size <resolution>");
+        System.out.println("Usage: hvision thumbnail -i <input path of the sequence file> -o <output path for sequence file> -size <resolution> " + ImageInputFormat.usage + " " + ImageColumnarOutputFormat.usage + " " + ImageEncoding.usage + " " + JavaKernels.usage + " " + MultithreadedImageMapper.usage + " " + SequenceFileCompression.usage);
     }
 }
@@ -0,0 +1,178 @@
+package com.emadbarsoum.map;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImagePool;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.SequenceFileCompression;
+import com.emadbarsoum.lib.ImageColumnarOutputFormat;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageTiles;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.bytedeco.javacpp.*;
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Tile is a Map task that split each image of a sequence file into raw tiles of -size pixels with a halo of -halo
+ * pixels around them, see ImageTiles. The filters (gaussian, median, erode and dilate) then process the tiles as
+ * any raw image, so a very large image is filtered in pieces across the map tasks and threads, and untile stitches
+ * the tiles back. The halo must be at least the sum of the kernel radius of the filters applied to the tiles.
+ *
+ * Entry: com.emadbarsoum.map.Tile
+ */
+public class Tile extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(Tile.class);
+
+    public static class TileMapper extends Mapper<Writable, BytesWritable, Text, BytesWritable>
+    {
+        private ImagePool imagePool = new ImagePool();
+        private int tileSize;
+        private int halo;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            Configuration conf = context.getConfiguration();
+
+            this.tileSize = conf.getInt("tile_size", 1024);
+            this.halo = conf.getInt("halo", 16);
+        }
+
+        @Override
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
+        {
+            MetadataParser metadata = MetadataParser.from(key);
+
+            IplImage image = ImageHelper.createIplImage(value.getBytes(), value.getLength(), metadata, this.imagePool, context);
+            if (image == null)
+            {
+                context.getCounter(ImageTiles.counterGroup, "Skipped images").increment(1);
+                return;
+            }
+
+            context.setStatus("Status: Image loaded");
+            context.progress();
+
+            List<ImageTiles.Tile> tiles = ImageTiles.split(image.width(), image.height(), this.tileSize, this.halo);
+            for (int i = 0; i < tiles.size(); ++i)
+            {
+                ImageTiles.Tile tile = tiles.get(i);
+
+                IplImage tileImage = this.imagePool.acquire(tile.outerWidth(), tile.outerHeight(), image.depth(), image.nChannels(), context);
+
+                cvSetImageROI(image, cvRect(tile.outerX(), tile.outerY(), tile.outerWidth(), tile.outerHeight()));
+                cvCopy(image, tileImage);
+                cvResetImageROI(image);
+
+                byte[] data = new byte[tileImage.imageSize()];
+                tileImage.getByteBuffer().get(data);
+
+                MetadataParser tileMetadata = new MetadataParser(metadata.toMetadata());
+                tileMetadata.parse();
+
+                tileMetadata.put("type", "raw");
+                tileMetadata.put("width", tileImage.width());
+                tileMetadata.put("height", tileImage.height());
+                tileMetadata.put("channel_count", tileImage.nChannels());
+                tileMetadata.put("depth", tileImage.depth());
+                ImageTiles.toMetadata(tile, i, tiles.size(), image.width(), image.height(), this.halo, tileMetadata);
+
+                context.write(new Text(tileMetadata.toMetadata()), new BytesWritable(data));
+
+                this.imagePool.release(tileImage);
+                context.getCounter(ImageTiles.counterGroup, "Tiles").increment(1);
+                context.progress();
+            }
+
+            context.setStatus("Status: map completed");
+
+            ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.imagePool.close();
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        conf.setInt("tile_size", parser.getAsInt("size"));
+        conf.setInt("halo", parser.has("halo") ? parser.getAsInt("halo") : 16);
+
+        Job job = Job.getInstance(conf, "Image Tiling");
+        job.setJarByClass(Tile.class);
+
+        MultithreadedImageMapper.setMapperClass(job, TileMapper.class, parser);
+        job.setNumReduceTasks(0);
+
+        // Input Output format
+        ImageInputFormat.setInputFormat(job, parser);
+        ImageColumnarOutputFormat.setOutputFormat(job, parser);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(BytesWritable.class);
+
+        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        // Optional compression of the output sequence file.
+        SequenceFileCompression.setOutputCompression(job, parser);
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o", "size"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 3) ||
+            !(parser.has(nonOptional))     ||
+            !ImageInputFormat.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser) ||
+            !SequenceFileCompression.isValid(parser))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        if ((parser.getAsInt("size") < 1) || (parser.has("halo") && (parser.getAsInt("halo") < 0)))
+        {
+            System.out.println("size must be greater than or equal to 1, and halo greater than or equal to 0.");
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new Tile(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision tile -i <input path of the sequence file> -o <output path for the sequence file of tiles> -size <tile size in pixel> [-halo <halo in pixel, default 16>] " + ImageInputFormat.usage + " " + ImageColumnarOutputFormat.usage + " " + MultithreadedImageMapper.usage + " " + SequenceFileCompression.usage);
+    }
+}
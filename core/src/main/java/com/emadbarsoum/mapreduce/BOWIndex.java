@@ -0,0 +1,375 @@
+package com.emadbarsoum.mapreduce;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.MatData;
+import com.emadbarsoum.lib.Posting;
+import com.emadbarsoum.lib.PostingList;
+import com.emadbarsoum.map.Featurize;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.reduce.IntSumReducer;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ *
+ * A MapReduce task, that takes a BOW xml file contains the BOW cluster and a sequence file that is composed of a
+ * database of images. And it builds a TF-IDF weighted inverted index, in which each visual word points to the list of
+ * images that contain it. The index can be searched by bowsearch, which only reads the posting lists of the visual
+ * words of the query image.
+ *
+ * BOWIndex runs 3 jobs:
+ *   1. Compute the BOW descriptor of each image (featurize -m bow), output to <o>/features.
+ *   2. Count the number of images that contain each visual word (document frequency), output to <o>/df.
+ *   3. Build the inverted index, visual word -> (IDF, list of (image, normalized TF-IDF weight)), output to <o>/index
+ *      as MapFile so that a posting list can be read by visual word. The posting list of a frequent word is split into
+ *      several values with the same key (-chunk postings each), and the words in more than -maxdf of the images are
+ *      dropped as stop words.
+ *
+ * Entry: com.emadbarsoum.mapreduce.BOWIndex
+ *
+ */
+public class BOWIndex extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(BOWIndex.class);
+
+    public static final int defaultMaxPostings = 100000;
+
+    public static class DocumentFrequencyMapper extends Mapper<Text, MatData, IntWritable, IntWritable>
+    {
+        private final static IntWritable one = new IntWritable(1);
+        private IntWritable word = new IntWritable();
+
+        @Override
+        public void map(Text key, MatData value, Context context) throws IOException,InterruptedException
+        {
+            FloatBuffer bow = asFloatBuffer(value);
+            for (int i = 0; i < bow.capacity(); ++i)
+            {
+                if (bow.get(i) > 0.0f)
+                {
+                    this.word.set(i);
+                    context.write(this.word, one);
+                }
+            }
+        }
+    }
+
+    public static class BOWIndexMapper extends Mapper<Text, MatData, IntWritable, Posting>
+    {
+        private float[] idf;
+        private IntWritable word = new IntWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.idf = readIdf(context.getConfiguration());
+        }
+
+        @Override
+        public void map(Text key, MatData value, Context context) throws IOException,InterruptedException
+        {
+            FloatBuffer bow = asFloatBuffer(value);
+            int count = Math.min(bow.capacity(), this.idf.length);
+
+            // TF-IDF weights normalized to unit length, so that the score of the search is the cosine similarity.
+            float[] weights = new float[count];
+            double norm = 0.0;
+            for (int i = 0; i < count; ++i)
+            {
+                weights[i] = bow.get(i) * this.idf[i];
+                norm += weights[i] * weights[i];
+            }
+
+            if (norm == 0.0)
+            {
+                return;
+            }
+
+            norm = Math.sqrt(norm);
+
+            String image = key.toString();
+            for (int i = 0; i < count; ++i)
+            {
+                if (weights[i] > 0.0f)
+                {
+                    this.word.set(i);
+                    context.write(this.word, new Posting(image, (float)(weights[i] / norm)));
+                }
+            }
+        }
+    }
+
+    public static class BOWIndexReducer extends Reducer<IntWritable, Posting, IntWritable, PostingList>
+    {
+        private PostingList postingList = new PostingList();
+        private float[] idf;
+        private int maxPostings;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.idf = readIdf(context.getConfiguration());
+            this.maxPostings = context.getConfiguration().getInt("max_postings", defaultMaxPostings);
+        }
+
+        @Override
+        public void reduce(IntWritable key, Iterable<Posting> values, Context context) throws IOException, InterruptedException
+        {
+            // The posting list of a frequent word is written as several values of at most maxPostings postings,
+            // with the same key, so that the reducer never holds the whole list.
+            float wordIdf = this.idf[key.get()];
+            this.postingList.clear();
+            for (Posting val : values)
+            {
+                // Hadoop reuse the value object.
+                this.postingList.add(new Posting(val));
+                if (this.postingList.size() == this.maxPostings)
+                {
+                    write(key, wordIdf, context);
+                }
+            }
+
+            if (this.postingList.size() > 0)
+            {
+                write(key, wordIdf, context);
+            }
+        }
+
+        private void write(IntWritable key, float wordIdf, Context context) throws IOException, InterruptedException
+        {
+            this.postingList.setIdf(wordIdf);
+            context.write(key, this.postingList);
+            context.getCounter("BOW Index", "Posting lists").increment(1);
+
+            this.postingList.clear();
+        }
+    }
+
+    // The IDF of each visual word, from the document frequency in the task working folder. The words that are in more
+    // than max_document_frequency of the images are stop words, their IDF is 0 so they aren't indexed.
+    private static float[] readIdf(Configuration conf) throws IOException
+    {
+        long imageCount = conf.getLong("image_count", 1);
+        int wordCount = conf.getInt("word_count", 0);
+        long maxFrequency = (long)Math.floor(conf.getFloat("max_document_frequency", 1.0f) * imageCount);
+
+        float[] idf = new float[wordCount];
+
+        // The document frequency is a small sequence file in the task working folder.
+        Configuration localConf = new Configuration(conf);
+        localConf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+        SequenceFile.Reader reader = new SequenceFile.Reader(
+            localConf,
+            SequenceFile.Reader.file(new Path(new File("documentFrequencyFile").toURI())));
+
+        IntWritable word = new IntWritable();
+        IntWritable frequency = new IntWritable();
+        while (reader.next(word, frequency))
+        {
+            if (word.get() >= wordCount)
+            {
+                continue;
+            }
+
+            if (frequency.get() <= maxFrequency)
+            {
+                idf[word.get()] = computeIdf(imageCount, frequency.get());
+            }
+        }
+
+        reader.close();
+
+        return idf;
+    }
+
+    public static float computeIdf(long imageCount, long frequency)
+    {
+        if (frequency <= 0)
+        {
+            return 0.0f;
+        }
+
+        return (float)Math.log((double)imageCount / (double)frequency);
+    }
+
+    private static FloatBuffer asFloatBuffer(MatData matData)
+    {
+        // Mat data are stored using the native byte order.
+        return ByteBuffer.wrap(matData.getBytes()).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        Path outputPath = new Path(parser.get("o"));
+        Path featuresPath = new Path(outputPath, "features");
+        Path documentFrequencyPath = new Path(outputPath, "df");
+        Path indexPath = new Path(outputPath, "index");
+
+        // 1. BOW descriptor of each image.
+        conf.set("method", "bow");
+
+        Job featurizeJob = Job.getInstance(conf, "BOW Index Featurize");
+        featurizeJob.setJarByClass(BOWIndex.class);
+
+        featurizeJob.setMapperClass(Featurize.FeaturizeMapper.class);
+        featurizeJob.setNumReduceTasks(0);
+
+        featurizeJob.setInputFormatClass(SequenceFileInputFormat.class);
+        featurizeJob.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+        featurizeJob.setOutputKeyClass(Text.class);
+        featurizeJob.setOutputValueClass(MatData.class);
+
+        FileInputFormat.addInputPath(featurizeJob, new Path(parser.get("i")));
+        FileOutputFormat.setOutputPath(featurizeJob, featuresPath);
+
+        // Use symbolic link "bowClusterFile" to support different platform formats
+        // and protocols.
+        featurizeJob.addCacheFile(new URI(parser.get("cf") + "#bowClusterFile"));
+
+        if (!featurizeJob.waitForCompletion(true))
+        {
+            return 1;
+        }
+
+        // 2. Document frequency of each visual word, a single reducer so it is a single small file.
+        Job documentFrequencyJob = Job.getInstance(conf, "BOW Index Document Frequency");
+        documentFrequencyJob.setJarByClass(BOWIndex.class);
+
+        documentFrequencyJob.setMapperClass(DocumentFrequencyMapper.class);
+        documentFrequencyJob.setCombinerClass(IntSumReducer.class);
+        documentFrequencyJob.setReducerClass(IntSumReducer.class);
+        documentFrequencyJob.setNumReduceTasks(1);
+
+        documentFrequencyJob.setInputFormatClass(SequenceFileInputFormat.class);
+        documentFrequencyJob.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+        documentFrequencyJob.setOutputKeyClass(IntWritable.class);
+        documentFrequencyJob.setOutputValueClass(IntWritable.class);
+
+        FileInputFormat.addInputPath(documentFrequencyJob, featuresPath);
+        FileOutputFormat.setOutputPath(documentFrequencyJob, documentFrequencyPath);
+
+        if (!documentFrequencyJob.waitForCompletion(true))
+        {
+            return 1;
+        }
+
+        long imageCount = documentFrequencyJob.getCounters().findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue();
+
+        // 3. Inverted index.
+        int wordCount = parser.has("c") ? parser.getAsInt("c") : readWordCount(conf, new Path(documentFrequencyPath, "part-r-00000"));
+        conf.setLong("image_count", imageCount);
+        conf.setInt("word_count", wordCount);
+        if (parser.has("maxdf"))
+        {
+            conf.setFloat("max_document_frequency", (float)parser.getAsDouble("maxdf"));
+        }
+
+        if (parser.has("chunk"))
+        {
+            conf.setInt("max_postings", parser.getAsInt("chunk"));
+        }
+
+        Job indexJob = Job.getInstance(conf, "BOW Index");
+        indexJob.setJarByClass(BOWIndex.class);
+
+        indexJob.setMapperClass(BOWIndexMapper.class);
+        indexJob.setReducerClass(BOWIndexReducer.class);
+
+        indexJob.setInputFormatClass(SequenceFileInputFormat.class);
+        indexJob.setOutputFormatClass(MapFileOutputFormat.class);
+
+        indexJob.setMapOutputKeyClass(IntWritable.class);
+        indexJob.setMapOutputValueClass(Posting.class);
+
+        indexJob.setOutputKeyClass(IntWritable.class);
+        indexJob.setOutputValueClass(PostingList.class);
+
+        FileInputFormat.addInputPath(indexJob, featuresPath);
+        FileOutputFormat.setOutputPath(indexJob, indexPath);
+
+        // Use symbolic link "documentFrequencyFile" to support different platform formats
+        // and protocols.
+        indexJob.addCacheFile(new URI(new Path(documentFrequencyPath, "part-r-00000").toString() + "#documentFrequencyFile"));
+
+        boolean ret = indexJob.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    // The number of visual words is the largest word id that appear in the document frequency plus one.
+    private static int readWordCount(Configuration conf, Path documentFrequencyPath) throws IOException
+    {
+        SequenceFile.Reader reader = new SequenceFile.Reader(
+            conf,
+            SequenceFile.Reader.file(documentFrequencyPath));
+
+        int wordCount = 0;
+        IntWritable word = new IntWritable();
+        IntWritable frequency = new IntWritable();
+        while (reader.next(word, frequency))
+        {
+            wordCount = Math.max(wordCount, word.get() + 1);
+        }
+
+        reader.close();
+
+        return wordCount;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o", "cf"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 3) ||
+            !parser.has(nonOptional))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        if ((parser.has("maxdf") && (parser.getAsDouble("maxdf") <= 0.0)) ||
+            (parser.has("chunk") && (parser.getAsInt("chunk") < 1)))
+        {
+            System.out.println("maxdf must be greater than 0 and chunk greater than or equal to 1.");
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new BOWIndex(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision bowindex -i <input path of the sequence file> -cf <BOW cluster file> -o <output folder for the index> [-c <cluster count>] [-maxdf <max fraction of the images of an indexed word, default 1>] [-chunk <max postings per index value, default " + defaultMaxPostings + ">]");
+    }
+}
@@ -2,8 +2,12 @@ package com.emadbarsoum.mapreduce;
 
 import com.emadbarsoum.common.CommandParser;
 import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImagePool;
 import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.TaskTimeCounter;
 import com.emadbarsoum.lib.FaceDetection;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
@@ -12,11 +16,9 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
-import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.opencv_core.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,85 +38,97 @@ public class FaceStat extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(FaceStat.class);
 
-    public static class FaceStatMapper extends Mapper<Text, BytesWritable, IntWritable, IntWritable>
+    public static class FaceStatMapper extends Mapper<Writable, BytesWritable, IntWritable, IntWritable>
     {
         private final static IntWritable one = new IntWritable(1);
+        private FaceDetection detector;
+        private ImagePool imagePool = new ImagePool();
 
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        protected void setup(Context context) throws IOException, InterruptedException
         {
-            context.setStatus("Status: map started");
+            URI[] uriPaths = context.getCacheFiles();
+            if ((uriPaths == null) || (uriPaths.length == 0))
+            {
+                return;
+            }
 
-            Configuration conf = context.getConfiguration();
+            // The cascade is loaded once per task.
+            long start = System.nanoTime();
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            this.detector = new FaceDetection();
+            this.detector.setModel("faceModelFile");
 
-            context.setStatus("Status: Metadata parsed");
+            try
+            {
+                this.detector.load();
+            }
+            catch (Exception e)
+            {
+                throw new IOException(e);
+            }
 
-            URI[] uriPaths = context.getCacheFiles();
-            if (uriPaths.length > 0)
+            TaskTimeCounter.modelLoaded(context, start);
+            context.setStatus("Status: Model loaded");
+        }
+
+        @Override
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
+        {
+            if (this.detector == null)
             {
-                boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-                IplImage image;
-                FaceDetection detector = new FaceDetection();
+                return;
+            }
 
-                detector.setModel("faceModelFile");
-                if (isRaw)
-                {
-                    int width = metadata.getAsInt("width");
-                    int height = metadata.getAsInt("height");
-                    int channelCount = metadata.getAsInt("channel_count");
-                    int depth =  metadata.getAsInt("depth");
-
-                    image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                        value.getLength(),
-                        width,
-                        height,
-                        channelCount,
-                        depth);
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
-                else
-                {
-                    image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
+            long start = System.nanoTime();
 
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
+            context.setStatus("Status: map started");
 
-                try
-                {
-                    detector.Detect(image, context);
-
-                    // Count 0 to 3 people, more than that will be bucket into Crowd.
-                    if (detector.count() < 4)
-                    {
-                        context.write(new IntWritable(detector.count()), one);
-                    }
-                    else
-                    {
-                        context.write(new IntWritable(100), one);
-                    }
-                }
-                catch (Exception e)
-                {
-                    //TODO: log error.
-                }
+            MetadataParser metadata = MetadataParser.from(key);
+
+            context.setStatus("Status: Metadata parsed");
 
-                context.setStatus("Status: map completed");
+            IplImage image = ImageHelper.createIplImage(value.getBytes(), value.getLength(), metadata, this.imagePool, context);
 
-                if (isRaw)
+            context.setStatus("Status: Image loaded");
+            context.progress();
+
+            try
+            {
+                this.detector.Detect(image, context);
+
+                // Count 0 to 3 people, more than that will be bucket into Crowd.
+                if (this.detector.count() < 4)
                 {
-                    image.release();
+                    context.write(new IntWritable(this.detector.count()), one);
                 }
                 else
                 {
-                    cvReleaseImage(image);
+                    context.write(new IntWritable(100), one);
                 }
             }
+            catch (Exception e)
+            {
+                //TODO: log error.
+            }
+
+            context.setStatus("Status: map completed");
+
+            ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+
+            TaskTimeCounter.imageProcessed(context, start);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            if (this.detector != null)
+            {
+                this.detector.close();
+                this.detector = null;
+            }
+
+            this.imagePool.close();
         }
     }
 
@@ -163,11 +177,11 @@ public class FaceStat extends Configured implements Tool
         Job job = Job.getInstance(conf, "Face Stat");
         job.setJarByClass(ImageSearch.class);
 
-        job.setMapperClass(FaceStatMapper.class);
+        MultithreadedImageMapper.setMapperClass(job, FaceStatMapper.class, parser);
         job.setReducerClass(FaceStatReducer.class);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
+        ImageInputFormat.setInputFormat(job, parser);
 
         job.setMapOutputKeyClass(IntWritable.class);
         job.setMapOutputValueClass(IntWritable.class);
@@ -193,7 +207,9 @@ public class FaceStat extends Configured implements Tool
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                ||
             (parser.getNumberOfArgs() < 3) ||
-            !parser.has(nonOptional))
+            !parser.has(nonOptional)       ||
+            !ImageInputFormat.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser))
         {
             showUsage();
             System.exit(2);
@@ -204,6 +220,6 @@ public class FaceStat extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision facestat -i <input path of the sequence file> -o <output path for sequence file> -m <model path>");
+        System.out.println("Usage: hvision facestat -i <input path of the sequence file> -o <output path for sequence file> -m <model path> " + ImageInputFormat.usage + " " + MultithreadedImageMapper.usage);
     }
 }
@@ -0,0 +1,331 @@
+package com.emadbarsoum.mapreduce;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageKeyWritable;
+import com.emadbarsoum.common.ImagePool;
+import com.emadbarsoum.common.MatData;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.TaskTimeCounter;
+import com.emadbarsoum.lib.*;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ *
+ * A MapReduce task, that takes a set of query images and a sequence file that is composed of a database of images.
+ * The database is read once, and every image is compared to all the query images. The result is one list per query
+ * sorted from the most similar to the least similar image, the key of the result is (query, distance), where the query
+ * is the path of the query image, or its name and extension when it has no path.
+ *
+ * The query set is either an HVision sequence file or a local folder of images, which is converted to a sequence
+ * file before submitting the job, and deleted once it is done. The input can be an image sequence file or a feature sequence file generated by
+ * featurize.
+ *
+ * Entry: com.emadbarsoum.mapreduce.ImageBatchSearch
+ *
+ */
+public class ImageBatchSearch extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(ImageBatchSearch.class);
+
+    public static class ImageBatchSearchMapper extends Mapper<Writable, Writable, QueryDistance, Text>
+    {
+        private ImageSimilarity imageSimilarity;
+        private String method;
+        private ArrayList<String> queryIds = new ArrayList<String>();
+        private ArrayList<Mat> queryFeatures = new ArrayList<Mat>();
+        private QueryDistance outputKey = new QueryDistance();
+        private ImagePool imagePool = new ImagePool();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            long start = System.nanoTime();
+
+            Configuration conf = context.getConfiguration();
+
+            this.method = conf.get("method", "hist");
+            this.imageSimilarity = ImageSimilarityFactory.create(this.method);
+
+            URI[] uriPaths = context.getCacheFiles();
+            if ((uriPaths == null) || (uriPaths.length == 0))
+            {
+                throw new IOException("The query set is missing from the distributed cache.");
+            }
+
+            // The query set is a sequence file in the task working folder, so it is read using the local file system.
+            ImageSequenceFileReader reader = new ImageSequenceFileReader(conf);
+
+            try
+            {
+                reader.open(new File("querySetFile").toURI().toString());
+                while (reader.next())
+                {
+                    this.queryIds.add(queryId(reader.metadata()));
+                    this.queryFeatures.add(this.imageSimilarity.computeFeature(reader.image(), context));
+
+                    context.progress();
+                }
+            }
+            catch (IOException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new IOException("Failed to load the query set.", e);
+            }
+            finally
+            {
+                reader.close();
+            }
+
+            TaskTimeCounter.modelLoaded(context, start);
+            context.setStatus("Status: " + this.queryIds.size() + " query images loaded");
+        }
+
+        // The id of a query in the result: its path, or its name and extension, since two queries can have the same name.
+        private static String queryId(MetadataParser metadata)
+        {
+            if (metadata.has("path"))
+            {
+                return metadata.get("path");
+            }
+
+            return metadata.has("ext") ? metadata.get("name") + "." + metadata.get("ext") : metadata.get("name");
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException,InterruptedException
+        {
+            long start = System.nanoTime();
+
+            context.setStatus("Status: map started");
+
+            MetadataParser metadata = MetadataParser.from(key);
+
+            Mat feature;
+            if (value instanceof MatData)
+            {
+                // Precomputed feature store, generated by featurize.
+                if (metadata.has("feature") && !metadata.get("feature").equals(this.method))
+                {
+                    throw new IOException("The feature store was computed using " + metadata.get("feature") +
+                        " but the search method is " + this.method + ".");
+                }
+
+                feature = ((MatData)value).toMat();
+            }
+            else
+            {
+                BytesWritable imageData = (BytesWritable)value;
+                IplImage image = ImageHelper.createIplImage(imageData.getBytes(), imageData.getLength(), metadata, this.imagePool, context);
+
+                context.setStatus("Status: Image loaded");
+                context.progress();
+
+                feature = this.imageSimilarity.computeFeature(image, context);
+
+                ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+            }
+
+            // One pass over the image for all queries.
+            for (int i = 0; i < this.queryIds.size(); ++i)
+            {
+                double distance = this.imageSimilarity.computeDistance(feature, this.queryFeatures.get(i), context);
+
+                this.outputKey.set(this.queryIds.get(i), distance);
+                context.write(this.outputKey, ImageKeyWritable.toText(key));
+            }
+
+            feature.release();
+
+            context.setStatus("Status: map completed");
+
+            TaskTimeCounter.imageProcessed(context, start);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            for (Mat queryFeature : this.queryFeatures)
+            {
+                queryFeature.release();
+            }
+
+            this.queryFeatures.clear();
+            this.queryIds.clear();
+
+            this.imageSimilarity.close();
+            this.imagePool.close();
+        }
+    }
+
+    public static class ImageBatchSearchReducer extends Reducer<QueryDistance, Text, QueryDistance, Text>
+    {
+        @Override
+        public void reduce(QueryDistance key, Iterable<Text> values, Context context) throws IOException, InterruptedException
+        {
+            for (Text val : values)
+            {
+                context.write(key, val);
+            }
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        if (parser.has("m"))
+        {
+            conf.set("method", parser.get("m"));
+        }
+        else
+        {
+            conf.set("method", "hist");
+        }
+
+        Path querySetPath = createQuerySet(conf, parser.get("qs"), parser.get("o"));
+
+        Job job = Job.getInstance(conf, "Image Batch Search");
+        job.setJarByClass(ImageBatchSearch.class);
+
+        MultithreadedImageMapper.setMapperClass(job, ImageBatchSearchMapper.class, parser);
+        job.setReducerClass(ImageBatchSearchReducer.class);
+
+        // Input Output format
+        ImageInputFormat.setInputFormat(job, parser);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+        job.setMapOutputKeyClass(QueryDistance.class);
+        job.setMapOutputValueClass(Text.class);
+
+        job.setOutputKeyClass(QueryDistance.class);
+        job.setOutputValueClass(Text.class);
+
+        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        // Use symbolic link "querySetFile" to support different platform formats
+        // and protocols.
+        job.addCacheFile(new URI(querySetPath.toString() + "#querySetFile"));
+
+        // BOW method need the BOW cluster file, use symbolic link "bowClusterFile".
+        if (parser.has("cf"))
+        {
+            job.addCacheFile(new URI(parser.get("cf") + "#bowClusterFile"));
+        }
+
+        boolean ret;
+        try
+        {
+            ret = job.waitForCompletion(true);
+        }
+        finally
+        {
+            // The sequence file packed from a folder of query images is only needed by the job.
+            if (!querySetPath.toString().equals(parser.get("qs")))
+            {
+                querySetPath.getFileSystem(conf).delete(querySetPath, true);
+            }
+        }
+
+        return ret ? 0 : 1;
+    }
+
+    // If the query set is a local folder of images, pack it into a temporary sequence file next to the output.
+    private static Path createQuerySet(Configuration conf, String querySet, String output) throws Exception
+    {
+        File querySetFolder = new File(querySet);
+        if (!querySetFolder.isDirectory())
+        {
+            return new Path(querySet);
+        }
+
+        // Iterate through image files only.
+        FilenameFilter fileNameFilter = new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                if (name.lastIndexOf('.') > 0)
+                {
+                    int lastIndex = name.lastIndexOf('.');
+                    String str = name.substring(lastIndex).toLowerCase();
+
+                    if (str.equals(".jpg") || str.equals(".jpeg") || str.equals(".png"))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+
+        Path querySetPath = new Path(output + "_queries");
+
+        ImageSequenceFileWriter writer = new ImageSequenceFileWriter(conf, true);
+        writer.create(querySetPath.toString());
+
+        File[] files = querySetFolder.listFiles(fileNameFilter);
+        for (File file : files)
+        {
+            if (file.isFile() && !file.isHidden())
+            {
+                writer.append(file);
+            }
+        }
+
+        writer.close();
+
+        return querySetPath;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o", "qs"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 3) ||
+            !parser.has(nonOptional)       ||
+            !ImageInputFormat.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new ImageBatchSearch(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision imagebatchsearch -i <input path of the sequence file> -qs <query sequence file or folder of query images> -o <output path for the result> [-m <hist, surf, bow or dhash>] [-cf <BOW cluster file>] " + ImageInputFormat.usage + " " + MultithreadedImageMapper.usage);
+    }
+}
@@ -44,113 +44,118 @@ public class ImageClassificationBOWTrainer extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(ImageClassificationBOWTrainer.class);
 
-    public static class ImageClassificationBOWTrainerMapper extends Mapper<Text, BytesWritable, IntWritable, Tuple>
+    public static class ImageClassificationBOWTrainerMapper extends Mapper<Writable, BytesWritable, IntWritable, Tuple>
     {
+        private BOWCluster bowCluster;
+        private ImagePool imagePool = new ImagePool();
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        protected void setup(Context context) throws IOException, InterruptedException
         {
+            URI[] uriPaths = context.getCacheFiles();
+            if ((uriPaths == null) || (uriPaths.length == 0))
+            {
+                return;
+            }
+
+            // The vocabulary is loaded once per task.
+            long start = System.nanoTime();
+
             // Needed for SURF feature.
             Loader.load(opencv_nonfree.class);
 
-            context.setStatus("Status: map started");
+            // The cluster count is used for training only, the vocabulary define the number of words.
+            this.bowCluster = new BOWCluster(context.getConfiguration().getInt("cluster_count", 2));
+            this.bowCluster.load("bowClusterFile");
 
-            Configuration conf = context.getConfiguration();
+            TaskTimeCounter.modelLoaded(context, start);
+            context.setStatus("Status: BOW Cluster loaded");
+        }
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+        @Override
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
+        {
+            if (this.bowCluster == null)
+            {
+                return;
+            }
+
+            long start = System.nanoTime();
+
+            context.setStatus("Status: map started");
+
+            MetadataParser metadata = MetadataParser.from(key);
 
             String label = metadata.get("label");
             int labelId = metadata.getAsInt("label_id");
             int labelCount = metadata.getAsInt("label_count");
-            int clusterCount = conf.getInt("cluster_count", labelCount);
-
-            BOWCluster bowCluster = new BOWCluster(clusterCount);
 
             context.setStatus("Status: Metadata parsed");
 
-            URI[] uriPaths = context.getCacheFiles();
-            if (uriPaths.length > 0)
-            {
-                boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-                IplImage image;
-
-                bowCluster.load("bowClusterFile");
-                context.setStatus("Status: BOW Cluster loaded");
-                context.progress();
-
-                if (isRaw)
-                {
-                    image = ImageHelper.createIplImageFromRawBytes(value.getBytes(), value.getLength(), metadata);
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
-                else
-                {
-                    image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
+            IplImage image = ImageHelper.createIplImage(value.getBytes(), value.getLength(), metadata, this.imagePool, context);
 
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
+            context.setStatus("Status: Image loaded");
+            context.progress();
 
-                IplImage grayImage = IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1);
+            IplImage grayImage = this.imagePool.acquire(image.width(), image.height(), IPL_DEPTH_8U, 1, context);
 
-                // Convert the input image into a gray image.
-                cvCvtColor(image, grayImage, CV_BGR2GRAY);
+            // Convert the input image into a gray image.
+            cvCvtColor(image, grayImage, CV_BGR2GRAY);
 
-                Mat imageMat = new Mat(grayImage.asCvMat());
-                bowCluster.compute(imageMat);
-                MatData matData = MatData.create(bowCluster.getBowDescriptor());
+            Mat imageMat = new Mat(grayImage.asCvMat());
+            this.bowCluster.compute(imageMat);
+            MatData matData = MatData.create(this.bowCluster.getBowDescriptor());
+            this.bowCluster.getBowDescriptor().release();
 
-                context.setStatus("Status: BOW descriptor Computed");
-                context.progress();
+            this.imagePool.release(grayImage);
 
-                for (int i = 0; i < labelCount; ++i)
-                {
-                    if (i == labelId)
-                    {
-                        Writable[] writables =
-                            {
-                                new BytesWritable(matData.getBytes()),
-                                new IntWritable(matData.rows()),
-                                new IntWritable(matData.cols()),
-                                new IntWritable(matData.type()),
-                                new Text(label),
-                                new IntWritable(1)
-                            };
-
-                        context.write(new IntWritable(i), new Tuple(writables));
-                    }
-                    else
-                    {
-                        Writable[] writables =
-                            {
-                                new BytesWritable(matData.getBytes()),
-                                new IntWritable(matData.rows()),
-                                new IntWritable(matData.cols()),
-                                new IntWritable(matData.type()),
-                                new Text(""),
-                                new IntWritable(-1)
-                            };
-
-                        context.write(new IntWritable(i), new Tuple(writables));
-                    }
-
-                    grayImage.release();
-                }
+            context.setStatus("Status: BOW descriptor Computed");
+            context.progress();
 
-                context.setStatus("Status: map completed");
-
-                // Releasing the images...
-                if (isRaw)
+            for (int i = 0; i < labelCount; ++i)
+            {
+                if (i == labelId)
                 {
-                    image.release();
+                    Writable[] writables =
+                        {
+                            new BytesWritable(matData.getBytes()),
+                            new IntWritable(matData.rows()),
+                            new IntWritable(matData.cols()),
+                            new IntWritable(matData.type()),
+                            new Text(label),
+                            new IntWritable(1)
+                        };
+
+                    context.write(new IntWritable(i), new Tuple(writables));
                 }
                 else
                 {
-                    cvReleaseImage(image);
+                    Writable[] writables =
+                        {
+                            new BytesWritable(matData.getBytes()),
+                            new IntWritable(matData.rows()),
+                            new IntWritable(matData.cols()),
+                            new IntWritable(matData.type()),
+                            new Text(""),
+                            new IntWritable(-1)
+                        };
+
+                    context.write(new IntWritable(i), new Tuple(writables));
                 }
             }
+
+            context.setStatus("Status: map completed");
+
+            // Releasing the image...
+            ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+
+            TaskTimeCounter.imageProcessed(context, start);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.imagePool.close();
         }
     }
 
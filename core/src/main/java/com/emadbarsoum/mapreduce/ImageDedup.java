@@ -0,0 +1,454 @@
+package com.emadbarsoum.mapreduce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageKeyWritable;
+import com.emadbarsoum.common.ImagePool;
+import com.emadbarsoum.common.MatData;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.lib.HashIndex;
+import com.emadbarsoum.lib.HashedImage;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
+import com.emadbarsoum.lib.PerceptualHashImageSimilarity;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ *
+ * A MapReduce task, that finds all the pairs of near duplicate images in a sequence file, which are the pairs whose
+ * 64-bit perceptual hashes (dHash) are within Hamming distance r.
+ *
+ * It uses the same multi-index hashing as HashIndex: each hash is split into 4 substrings of 16 bits, and a pair within
+ * distance r has at least one substring within r / 4. ImageDedup runs 2 jobs:
+ *   1. The mapper writes each image once to each of its 4 buckets (substring index, substring value) as a member, and
+ *      only its hash as a probe to the neighbor buckets within r / 4. The reducer compares the members of a bucket with
+ *      each other, and the probes with the members, and writes each close pair as (smaller hash, image of the larger
+ *      hash) from the bucket of its first close substring only. It also writes each image under its own hash.
+ *   2. The candidates are grouped by hash, which joins the images of a hash with their close images.
+ * A bucket keeps at most -maxbucket members (10000 by default), the larger buckets (i.e. many blank images) are counted
+ * in "Oversized buckets" and their extra images aren't compared.
+ *
+ * The input can be an image sequence file or a feature sequence file generated by featurize -m dhash. The output is
+ * a sequence file of (image, duplicate image) pairs, the duplicate metadata contains "hamming=<distance>".
+ *
+ * Entry: com.emadbarsoum.mapreduce.ImageDedup
+ *
+ */
+public class ImageDedup extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(ImageDedup.class);
+
+    public static final String counterGroup = "Image Dedup";
+    public static final int defaultMaxBucket = 10000;
+
+    public static class ImageDedupMapper extends Mapper<Writable, Writable, IntWritable, HashedImage>
+    {
+        private int chunkRadius;
+        private PerceptualHashImageSimilarity imageSimilarity = new PerceptualHashImageSimilarity();
+        private IntWritable bucket = new IntWritable();
+        private HashedImage hashedImage = new HashedImage();
+        private HashedImage probe = new HashedImage();
+        private ImagePool imagePool = new ImagePool();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.chunkRadius = context.getConfiguration().getInt("radius", 4) / HashIndex.chunkCount;
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException,InterruptedException
+        {
+            context.setStatus("Status: map started");
+
+            MetadataParser metadata = MetadataParser.from(key);
+
+            long hash;
+            if (value instanceof MatData)
+            {
+                // Precomputed feature store, generated by featurize.
+                if (!metadata.has("feature") || !metadata.get("feature").equals("dhash"))
+                {
+                    throw new IOException("The feature store must be computed using dhash.");
+                }
+
+                Mat feature = ((MatData)value).toMat();
+                hash = PerceptualHashImageSimilarity.toHash(feature);
+                feature.release();
+            }
+            else
+            {
+                BytesWritable imageData = (BytesWritable)value;
+                IplImage image = ImageHelper.createIplImage(imageData.getBytes(), imageData.getLength(), metadata, this.imagePool, context);
+
+                context.setStatus("Status: Image loaded");
+
+                hash = this.imageSimilarity.computeHash(image, context);
+
+                ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+            }
+
+            this.hashedImage.set(ImageKeyWritable.toText(key), hash);
+            this.probe.setProbe(hash);
+
+            // The image in its own buckets, and only its hash in the neighbor buckets.
+            for (int i = 0; i < HashIndex.chunkCount; ++i)
+            {
+                int home = HashIndex.chunk(hash, i);
+                for (int chunk : HashIndex.neighbors(home, this.chunkRadius))
+                {
+                    this.bucket.set((i << HashIndex.chunkBits) | chunk);
+                    context.write(this.bucket, (chunk == home) ? this.hashedImage : this.probe);
+                }
+            }
+
+            context.setStatus("Status: map completed");
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.imageSimilarity.close();
+            this.imagePool.close();
+        }
+    }
+
+    public static class ImageDedupReducer extends Reducer<IntWritable, HashedImage, LongWritable, HashedImage>
+    {
+        private int radius;
+        private int chunkRadius;
+        private int maxBucket;
+        private ArrayList<HashedImage> members = new ArrayList<HashedImage>();
+        private long[] probes = new long[16];
+        private LongWritable hash = new LongWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.radius = context.getConfiguration().getInt("radius", 4);
+            this.chunkRadius = this.radius / HashIndex.chunkCount;
+            this.maxBucket = context.getConfiguration().getInt("max_bucket", defaultMaxBucket);
+        }
+
+        @Override
+        public void reduce(IntWritable key, Iterable<HashedImage> values, Context context) throws IOException, InterruptedException
+        {
+            int bucketIndex = key.get() >>> HashIndex.chunkBits;
+
+            this.members.clear();
+            int probeCount = 0;
+            int skipped = 0;
+            for (HashedImage val : values)
+            {
+                if (val.isProbe())
+                {
+                    if (probeCount == this.probes.length)
+                    {
+                        this.probes = Arrays.copyOf(this.probes, probeCount * 2);
+                    }
+
+                    this.probes[probeCount++] = val.hash();
+                    continue;
+                }
+
+                // Each image under its own hash, once.
+                if (bucketIndex == 0)
+                {
+                    this.hash.set(val.hash());
+                    context.write(this.hash, val);
+                }
+
+                if (this.members.size() < this.maxBucket)
+                {
+                    // Hadoop reuse the value object.
+                    this.members.add(new HashedImage(val));
+                }
+                else
+                {
+                    ++skipped;
+                }
+            }
+
+            if (skipped > 0)
+            {
+                log.warn("The bucket " + key + " has more than " + this.maxBucket + " images, " + skipped + " of them aren't compared.");
+                context.getCounter(counterGroup, "Oversized buckets").increment(1);
+            }
+
+            // The members share the substring of the bucket, the pairs with the same hash are joined by the second job.
+            for (int i = 0; i < this.members.size(); ++i)
+            {
+                for (int j = i + 1; j < this.members.size(); ++j)
+                {
+                    HashedImage first = this.members.get(i);
+                    HashedImage second = this.members.get(j);
+                    if (first.hash() == second.hash())
+                    {
+                        continue;
+                    }
+
+                    if (first.hash() > second.hash())
+                    {
+                        first = this.members.get(j);
+                        second = this.members.get(i);
+                    }
+
+                    writeCandidate(first.hash(), second, bucketIndex, context);
+                }
+
+                context.progress();
+            }
+
+            // A probe has a different substring, each pair is seen from both of its buckets, only the probe of the
+            // smaller hash writes it. The probes of the images with the same hash are compared once.
+            Arrays.sort(this.probes, 0, probeCount);
+            for (int i = 0; i < probeCount; ++i)
+            {
+                if ((i > 0) && (this.probes[i] == this.probes[i - 1]))
+                {
+                    continue;
+                }
+
+                for (HashedImage member : this.members)
+                {
+                    if (this.probes[i] < member.hash())
+                    {
+                        writeCandidate(this.probes[i], member, bucketIndex, context);
+                    }
+                }
+
+                context.progress();
+            }
+
+            this.members.clear();
+        }
+
+        // A close pair reaches every bucket of the substrings that are close, only the first of them writes it.
+        private void writeCandidate(long smallerHash, HashedImage image, int bucketIndex, Context context) throws IOException, InterruptedException
+        {
+            if ((HashIndex.hammingDistance(smallerHash, image.hash()) > this.radius) ||
+                (firstMatchingChunk(smallerHash, image.hash()) != bucketIndex))
+            {
+                return;
+            }
+
+            this.hash.set(smallerHash);
+            context.write(this.hash, image);
+        }
+
+        private int firstMatchingChunk(long hash1, long hash2)
+        {
+            for (int i = 0; i < HashIndex.chunkCount; ++i)
+            {
+                if (Integer.bitCount(HashIndex.chunk(hash1, i) ^ HashIndex.chunk(hash2, i)) <= this.chunkRadius)
+                {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+    }
+
+    public static class DuplicatePairReducer extends Reducer<LongWritable, HashedImage, Text, Text>
+    {
+        private int maxBucket;
+        private ArrayList<Text> images = new ArrayList<Text>();
+        private Map<Text, Long> duplicates = new HashMap<Text, Long>();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.maxBucket = context.getConfiguration().getInt("max_bucket", defaultMaxBucket);
+        }
+
+        @Override
+        public void reduce(LongWritable key, Iterable<HashedImage> values, Context context) throws IOException, InterruptedException
+        {
+            // The images of this hash, and the images of the larger hashes close to it. The same pair can be written
+            // by several images of this hash, the map removes the copies.
+            this.images.clear();
+            this.duplicates.clear();
+            int skipped = 0;
+            for (HashedImage val : values)
+            {
+                if (val.hash() != key.get())
+                {
+                    this.duplicates.put(new Text(val.image()), val.hash());
+                }
+                else if (this.images.size() < this.maxBucket)
+                {
+                    this.images.add(new Text(val.image()));
+                }
+                else
+                {
+                    ++skipped;
+                }
+            }
+
+            if (skipped > 0)
+            {
+                log.warn("The hash " + key + " has more than " + this.maxBucket + " images, " + skipped + " of them aren't compared.");
+                context.getCounter(counterGroup, "Oversized buckets").increment(1);
+            }
+
+            for (int i = 0; i < this.images.size(); ++i)
+            {
+                for (int j = i + 1; j < this.images.size(); ++j)
+                {
+                    writePair(this.images.get(i), this.images.get(j), 0, context);
+                }
+
+                for (Map.Entry<Text, Long> duplicate : this.duplicates.entrySet())
+                {
+                    writePair(this.images.get(i), duplicate.getKey(), HashIndex.hammingDistance(key.get(), duplicate.getValue()), context);
+                }
+
+                context.progress();
+            }
+
+            this.images.clear();
+            this.duplicates.clear();
+        }
+
+        private void writePair(Text first, Text second, int distance, Context context) throws IOException, InterruptedException
+        {
+            if (first.compareTo(second) > 0)
+            {
+                Text swap = first;
+                first = second;
+                second = swap;
+            }
+
+            MetadataParser metadata = new MetadataParser(second.toString());
+            metadata.parse();
+            metadata.put("hamming", Integer.toString(distance));
+
+            context.write(first, new Text(metadata.toMetadata()));
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        conf.setInt("radius", parser.has("r") ? parser.getAsInt("r") : 4);
+        conf.setInt("max_bucket", parser.has("maxbucket") ? parser.getAsInt("maxbucket") : defaultMaxBucket);
+
+        Path outputPath = new Path(parser.get("o"));
+        Path candidatesPath = new Path(outputPath.getParent(), outputPath.getName() + "_candidates");
+
+        // 1. The close pairs of hashes, from the buckets of the substrings.
+        Job candidatesJob = Job.getInstance(conf, "Image Dedup Candidates");
+        candidatesJob.setJarByClass(ImageDedup.class);
+
+        MultithreadedImageMapper.setMapperClass(candidatesJob, ImageDedupMapper.class, parser);
+        candidatesJob.setReducerClass(ImageDedupReducer.class);
+
+        // Input Output format
+        ImageInputFormat.setInputFormat(candidatesJob, parser);
+        candidatesJob.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+        candidatesJob.setMapOutputKeyClass(IntWritable.class);
+        candidatesJob.setMapOutputValueClass(HashedImage.class);
+
+        candidatesJob.setOutputKeyClass(LongWritable.class);
+        candidatesJob.setOutputValueClass(HashedImage.class);
+
+        FileInputFormat.addInputPath(candidatesJob, new Path(parser.get("i")));
+        FileOutputFormat.setOutputPath(candidatesJob, candidatesPath);
+
+        boolean ret = candidatesJob.waitForCompletion(true);
+
+        // 2. The pairs of images, joined by hash.
+        if (ret)
+        {
+            Job pairJob = Job.getInstance(conf, "Image Dedup");
+            pairJob.setJarByClass(ImageDedup.class);
+
+            pairJob.setMapperClass(Mapper.class);
+            pairJob.setReducerClass(DuplicatePairReducer.class);
+
+            pairJob.setInputFormatClass(SequenceFileInputFormat.class);
+            pairJob.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+            pairJob.setMapOutputKeyClass(LongWritable.class);
+            pairJob.setMapOutputValueClass(HashedImage.class);
+
+            pairJob.setOutputKeyClass(Text.class);
+            pairJob.setOutputValueClass(Text.class);
+
+            FileInputFormat.addInputPath(pairJob, candidatesPath);
+            FileOutputFormat.setOutputPath(pairJob, outputPath);
+
+            ret = pairJob.waitForCompletion(true);
+        }
+
+        candidatesPath.getFileSystem(conf).delete(candidatesPath, true);
+
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 2) ||
+            !parser.has(nonOptional)       ||
+            !ImageInputFormat.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        // Each hash is sent to 4 * (number of 16-bit values within r / 4) buckets, so keep the radius small.
+        if (parser.has("r") && ((parser.getAsInt("r") < 0) || (parser.getAsInt("r") > 11)))
+        {
+            System.out.println("r must be between 0 and 11.");
+            System.exit(2);
+        }
+
+        if (parser.has("maxbucket") && (parser.getAsInt("maxbucket") < 2))
+        {
+            System.out.println("maxbucket must be greater than or equal to 2.");
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new ImageDedup(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision imagededup -i <input path of the sequence file> -o <output path for the duplicate pairs> [-r <Hamming radius, default 4>] [-maxbucket <max images per bucket, default " + defaultMaxBucket + ">] " + ImageInputFormat.usage + " " + MultithreadedImageMapper.usage);
+    }
+}
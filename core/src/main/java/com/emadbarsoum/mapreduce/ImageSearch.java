@@ -2,10 +2,16 @@ package com.emadbarsoum.mapreduce;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.emadbarsoum.common.CommandParser;
 import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageKeyWritable;
+import com.emadbarsoum.common.ImagePool;
+import com.emadbarsoum.common.MatData;
 import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.TaskTimeCounter;
 import com.emadbarsoum.lib.*;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -13,11 +19,11 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -36,6 +42,13 @@ import static org.bytedeco.javacpp.opencv_imgproc.*;
  * And it returns the same sequence file with its image sorted in such a way that the top ones are closed in similarity
  * to the input image.
  *
+ * The input can also be a feature sequence file generated by featurize, in which case the images aren't decoded
+ * and the precomputed features are compared directly to the query feature.
+ *
+ * With "-m cascade", the images go through a cascade of methods, i.e. "-stages hist:200,surf". Every image is scored
+ * by the first (cheap) method, only the best N images of each task are kept, and each following stage re-ranks the
+ * survivors of the previous one. The final ranking uses the distance of the last stage.
+ *
  * Entry: com.emadbarsoum.mapreduce.ImageSearch
  *
  */
@@ -43,94 +56,335 @@ public class ImageSearch extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(ImageSearch.class);
 
-    public static class ImageSearchMapper extends Mapper<Text, BytesWritable, DoubleWritable, Text>
+    public static class ImageSearchMapper extends Mapper<Writable, Writable, DoubleWritable, Text>
     {
+        private ImageSimilarity imageSimilarity;
+        private String method;
+        private Mat queryFeature;
+        private TopResults<Text> topResults;
+        private ImagePool imagePool = new ImagePool();
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        protected void setup(Context context) throws IOException, InterruptedException
         {
-            context.setStatus("Status: map started");
+            long start = System.nanoTime();
 
             Configuration conf = context.getConfiguration();
-            ImageSimilarity imageSimilarity;
-            String method = conf.get("method");
 
-            if (method.equals("surf"))
+            this.method = conf.get("method", "hist");
+            this.imageSimilarity = ImageSimilarityFactory.create(this.method);
+
+            // With top K, only the best K images of this task are emitted in cleanup().
+            int top = conf.getInt("top", 0);
+            if (top > 0)
             {
-                Loader.load(opencv_nonfree.class);
+                this.topResults = new TopResults<Text>(top);
+            }
 
-                imageSimilarity = new SurfImageSimilarity();
+            URI[] uriPaths = context.getCacheFiles();
+            if ((uriPaths == null) || (uriPaths.length == 0))
+            {
+                throw new IOException("The query image is missing from the distributed cache.");
             }
-            else
+
+            IplImage queryImage = cvLoadImage("queryImageFile");
+            if (queryImage == null)
             {
-                imageSimilarity = new HistogramImageSimilarity();
+                context.setStatus("Status: Loading Query image failed");
+                throw new NullPointerException();
             }
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            // The query feature is computed once per task and reused for every image.
+            this.queryFeature = this.imageSimilarity.computeFeature(queryImage, context);
+            cvReleaseImage(queryImage);
+
+            TaskTimeCounter.modelLoaded(context, start);
+            context.setStatus("Status: Query image loaded");
+            context.progress();
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException,InterruptedException
+        {
+            long start = System.nanoTime();
+
+            context.setStatus("Status: map started");
+
+            MetadataParser metadata = MetadataParser.from(key);
 
             context.setStatus("Status: Metadata parsed");
 
-            URI[] uriPaths = context.getCacheFiles();
-            if (uriPaths.length > 0)
+            Mat feature;
+            if (value instanceof MatData)
             {
-                boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-                IplImage queryImage = cvLoadImage("queryImageFile");
-                IplImage image;
-
-                if (queryImage == null)
+                // Precomputed feature store, generated by featurize.
+                if (metadata.has("feature") && !metadata.get("feature").equals(this.method))
                 {
-                    context.setStatus("Status: Loading Query image failed");
-                    throw new NullPointerException();
+                    throw new IOException("The feature store was computed using " + metadata.get("feature") +
+                        " but the search method is " + this.method + ".");
                 }
 
-                context.setStatus("Status: Query image loaded");
+                feature = ((MatData)value).toMat();
+            }
+            else
+            {
+                BytesWritable imageData = (BytesWritable)value;
+                IplImage image = ImageHelper.createIplImage(imageData.getBytes(), imageData.getLength(), metadata, this.imagePool, context);
+
+                context.setStatus("Status: Image loaded");
                 context.progress();
 
-                if (isRaw)
+                feature = this.imageSimilarity.computeFeature(image, context);
+
+                // Releasing the image...
+                ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+            }
+
+            double distance = this.imageSimilarity.computeDistance(feature, this.queryFeature, context);
+            if (this.topResults == null)
+            {
+                context.write(new DoubleWritable(distance), ImageKeyWritable.toText(key));
+            }
+            else if (this.topResults.accept(distance))
+            {
+                this.topResults.offer(distance, new Text(ImageKeyWritable.toText(key)));
+            }
+
+            feature.release();
+
+            context.setStatus("Status: map completed");
+
+            TaskTimeCounter.imageProcessed(context, start);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            if (this.topResults != null)
+            {
+                for (TopResults.Result<Text> result : this.topResults.sorted())
                 {
-                    int width = metadata.getAsInt("width");
-                    int height = metadata.getAsInt("height");
-                    int channelCount = metadata.getAsInt("channel_count");
-                    int depth =  metadata.getAsInt("depth");
-
-                    image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                        value.getLength(),
-                        width,
-                        height,
-                        channelCount,
-                        depth);
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
+                    context.write(new DoubleWritable(result.distance()), result.item());
                 }
-                else
+
+                this.topResults.clear();
+            }
+
+            if (this.queryFeature != null)
+            {
+                this.queryFeature.release();
+                this.queryFeature = null;
+            }
+
+            this.imageSimilarity.close();
+            this.imagePool.close();
+        }
+    }
+
+    public static class ImageSearchCascadeMapper extends Mapper<Writable, Writable, DoubleWritable, Text>
+    {
+        // An image that survived a stage, its bytes are copied because Hadoop reuse the value object.
+        private static class Candidate
+        {
+            private Text key;
+            private byte[] image;
+
+            public Candidate(Writable key, BytesWritable image)
+            {
+                this.key = new Text(ImageKeyWritable.toText(key));
+                this.image = Arrays.copyOf(image.getBytes(), image.getLength());
+            }
+        }
+
+        private ArrayList<CascadeStage> stages;
+        private ArrayList<ImageSimilarity> imageSimilarities = new ArrayList<ImageSimilarity>();
+        private ArrayList<Mat> queryFeatures = new ArrayList<Mat>();
+        private TopResults<Candidate> survivors;
+        private ImagePool imagePool = new ImagePool();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            long start = System.nanoTime();
+
+            Configuration conf = context.getConfiguration();
+
+            this.stages = parseStages(conf.get("stages"));
+            for (CascadeStage stage : this.stages)
+            {
+                this.imageSimilarities.add(ImageSimilarityFactory.create(stage.method()));
+            }
+
+            this.survivors = new TopResults<Candidate>(this.stages.get(0).keep());
+
+            URI[] uriPaths = context.getCacheFiles();
+            if ((uriPaths == null) || (uriPaths.length == 0))
+            {
+                throw new IOException("The query image is missing from the distributed cache.");
+            }
+
+            IplImage queryImage = cvLoadImage("queryImageFile");
+            if (queryImage == null)
+            {
+                context.setStatus("Status: Loading Query image failed");
+                throw new NullPointerException();
+            }
+
+            // The query feature of each stage is computed once per task.
+            for (ImageSimilarity imageSimilarity : this.imageSimilarities)
+            {
+                this.queryFeatures.add(imageSimilarity.computeFeature(queryImage, context));
+            }
+
+            cvReleaseImage(queryImage);
+
+            TaskTimeCounter.modelLoaded(context, start);
+            context.setStatus("Status: Query image loaded");
+            context.progress();
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException,InterruptedException
+        {
+            long start = System.nanoTime();
+
+            context.setStatus("Status: map started");
+
+            if (!(value instanceof BytesWritable))
+            {
+                throw new IOException("Cascade search needs the images, a feature sequence file can't be used.");
+            }
+
+            MetadataParser metadata = MetadataParser.from(key);
+
+            // First stage, every image is scored.
+            BytesWritable imageData = (BytesWritable)value;
+            double distance = computeDistance(0, imageData.getBytes(), imageData.getLength(), metadata, context);
+
+            context.getCounter("Image Search Cascade", stageName(0)).increment(1);
+
+            if (this.survivors.accept(distance))
+            {
+                this.survivors.offer(distance, new Candidate(key, imageData));
+            }
+
+            context.setStatus("Status: map completed");
+
+            TaskTimeCounter.imageProcessed(context, start);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            ArrayList<TopResults.Result<Candidate>> results = this.survivors.sorted();
+
+            // Following stages, each one re-rank the survivors of the previous one.
+            for (int i = 1; i < this.stages.size(); ++i)
+            {
+                context.setStatus("Status: cascade stage " + stageName(i));
+
+                int keep = this.stages.get(i).keep();
+                TopResults<Candidate> stageSurvivors = new TopResults<Candidate>(keep > 0 ? keep : Math.max(results.size(), 1));
+
+                for (TopResults.Result<Candidate> result : results)
                 {
-                    image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
+                    Candidate candidate = result.item();
+
+                    MetadataParser metadata = new MetadataParser(candidate.key.toString());
+                    metadata.parse();
 
-                    context.setStatus("Status: Image loaded");
+                    double distance = computeDistance(i, candidate.image, candidate.image.length, metadata, context);
+                    stageSurvivors.offer(distance, candidate);
+
+                    context.getCounter("Image Search Cascade", stageName(i)).increment(1);
                     context.progress();
                 }
 
-                double distance = imageSimilarity.computeDistance(image, queryImage, context);
-                context.write(new DoubleWritable(distance), key);
+                results = stageSurvivors.sorted();
+            }
 
-                context.setStatus("Status: map completed");
+            for (TopResults.Result<Candidate> result : results)
+            {
+                context.write(new DoubleWritable(result.distance()), result.item().key);
+            }
 
-                // Releasing the images...
-                if (isRaw)
-                {
-                    image.release();
-                }
-                else
-                {
-                    cvReleaseImage(image);
-                }
+            this.survivors.clear();
+
+            for (Mat queryFeature : this.queryFeatures)
+            {
+                queryFeature.release();
+            }
 
-                cvReleaseImage(queryImage);
+            this.queryFeatures.clear();
+
+            for (ImageSimilarity imageSimilarity : this.imageSimilarities)
+            {
+                imageSimilarity.close();
             }
+
+            this.imagePool.close();
+        }
+
+        private double computeDistance(int stage, byte[] data, int length, MetadataParser metadata, Context context)
+        {
+            ImageSimilarity imageSimilarity = this.imageSimilarities.get(stage);
+
+            IplImage image = ImageHelper.createIplImage(data, length, metadata, this.imagePool, context);
+            Mat feature = imageSimilarity.computeFeature(image, context);
+            ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+
+            double distance = imageSimilarity.computeDistance(feature, this.queryFeatures.get(stage), context);
+            feature.release();
+
+            return distance;
+        }
+
+        private String stageName(int stage)
+        {
+            return "Stage " + (stage + 1) + " (" + this.stages.get(stage).method() + ") images";
         }
     }
 
+    /**
+     * One stage of the cascade, the method and the number of images kept per task (0 means keep all).
+     */
+    public static class CascadeStage
+    {
+        private String method;
+        private int keep;
+
+        public CascadeStage(String method, int keep)
+        {
+            this.method = method;
+            this.keep = keep;
+        }
+
+        public String method()
+        {
+            return this.method;
+        }
+
+        public int keep()
+        {
+            return this.keep;
+        }
+    }
+
+    // Parse the stages in the format "method1:N1,method2:N2,...,methodK[:NK]".
+    public static ArrayList<CascadeStage> parseStages(String stages)
+    {
+        ArrayList<CascadeStage> result = new ArrayList<CascadeStage>();
+        for (String stage : stages.split(","))
+        {
+            String[] parts = stage.trim().split(":");
+            int keep = (parts.length > 1) ? Integer.parseInt(parts[1]) : 0;
+
+            result.add(new CascadeStage(parts[0], keep));
+        }
+
+        return result;
+    }
+
     public static class ImageSearchReducer extends Reducer<DoubleWritable, Text, DoubleWritable, Text>
     {
         @Override
@@ -143,6 +397,37 @@ public class ImageSearch extends Configured implements Tool
         }
     }
 
+    /**
+     * Used as a combiner and a reducer for top K search. The keys arrive sorted by distance, so the
+     * first K values are the best K.
+     */
+    public static class ImageSearchTopReducer extends Reducer<DoubleWritable, Text, DoubleWritable, Text>
+    {
+        private int top;
+        private int count = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.top = context.getConfiguration().getInt("top", 0);
+        }
+
+        @Override
+        public void reduce(DoubleWritable key, Iterable<Text> values, Context context) throws IOException, InterruptedException
+        {
+            for (Text val : values)
+            {
+                if (this.count >= this.top)
+                {
+                    return;
+                }
+
+                context.write(key, val);
+                ++this.count;
+            }
+        }
+    }
+
     @Override
     public final int run(final String[] args) throws Exception
     {
@@ -159,16 +444,33 @@ public class ImageSearch extends Configured implements Tool
             conf.set("method", "hist");
         }
 
-        Job job = Job.getInstance(conf, "Image Search");
+        boolean cascade = conf.get("method").equals("cascade");
+        if (cascade)
+        {
+            conf.set("stages", parser.get("stages"));
+        }
+
+        Job job = Job.getInstance(conf, cascade ? "Image Search Cascade" : "Image Search");
         job.setJarByClass(ImageSearch.class);
 
-        job.setMapperClass(ImageSearchMapper.class);
-        // job.setCombinerClass(ImageSearchReducer.class);
-        job.setReducerClass(ImageSearchReducer.class);
-        // job.setNumReduceTasks(0);
+        MultithreadedImageMapper.setMapperClass(job, cascade ? ImageSearchCascadeMapper.class : ImageSearchMapper.class, parser);
+
+        if (parser.has("top"))
+        {
+            // Each mapper emit its best K, the combiner trim each spill to K and a single
+            // reducer merge them into the final K.
+            job.getConfiguration().setInt("top", parser.getAsInt("top"));
+            job.setCombinerClass(ImageSearchTopReducer.class);
+            job.setReducerClass(ImageSearchTopReducer.class);
+            job.setNumReduceTasks(1);
+        }
+        else
+        {
+            job.setReducerClass(ImageSearchReducer.class);
+        }
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
+        ImageInputFormat.setInputFormat(job, parser);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
         job.setMapOutputKeyClass(DoubleWritable.class);
@@ -185,6 +487,12 @@ public class ImageSearch extends Configured implements Tool
         // job.addCacheFile(new URI(parser.get("q")));
         job.addCacheFile(new URI(parser.get("q") + "#queryImageFile"));
 
+        // BOW method need the BOW cluster file, use symbolic link "bowClusterFile".
+        if (parser.has("cf"))
+        {
+            job.addCacheFile(new URI(parser.get("cf") + "#bowClusterFile"));
+        }
+
         boolean ret = job.waitForCompletion(true);
         return ret ? 0 : 1;
     }
@@ -195,17 +503,66 @@ public class ImageSearch extends Configured implements Tool
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                ||
             (parser.getNumberOfArgs() < 3) ||
-            !parser.has(nonOptional))
+            !parser.has(nonOptional)       ||
+            !ImageInputFormat.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser))
         {
             showUsage();
             System.exit(2);
         }
 
+        if (parser.has("top") && (parser.getAsInt("top") < 1))
+        {
+            System.out.println("top must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
+        if (parser.has("m") && parser.get("m").equals("cascade") && !validStages(parser.get("stages")))
+        {
+            System.out.println("cascade method requires at least 2 stages (-stages) of hist, surf, bow or dhash, and every stage but the last must keep at least 1 image, i.e. -stages hist:200,surf");
+            System.exit(2);
+        }
+
         ToolRunner.run(new Configuration(), new ImageSearch(), args);
     }
 
+    private static boolean validStages(String stages)
+    {
+        if (stages == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            ArrayList<CascadeStage> cascadeStages = parseStages(stages);
+            if (cascadeStages.size() < 2)
+            {
+                return false;
+            }
+
+            for (int i = 0; i < cascadeStages.size(); ++i)
+            {
+                int keep = cascadeStages.get(i).keep();
+                if (!ImageSimilarityFactory.isValid(cascadeStages.get(i).method()) ||
+                    (keep < 0) || ((keep == 0) && (i < cascadeStages.size() - 1)))
+                {
+                    return false;
+                }
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            return false;
+        }
+
+        return true;
+    }
+
     private static void showUsage()
     {
-        System.out.println("Usage: hvision imagesearch -i <input path of the sequence file> -q <query image> -o <output path for the result> [-m <hist or surf>]");
+        System.out.println("Usage: hvision imagesearch -i <input path of the sequence file> -q <query image> -o <output path for the result> [-m <hist, surf, bow or dhash>] [-cf <BOW cluster file>] [-top <number of images>] " + ImageInputFormat.usage + " " + MultithreadedImageMapper.usage);
+        System.out.println("       -i can also be a feature sequence file generated by: hvision featurize -m <hist, surf, bow or dhash>");
+        System.out.println("       -m cascade -stages <method1:N1,method2:N2,...,methodK> scores every image with method1, keeps the best N1 per task, re-ranks them with method2, and so on.");
     }
 }
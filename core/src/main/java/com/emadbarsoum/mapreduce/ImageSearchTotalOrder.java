@@ -5,7 +5,10 @@ import java.net.URI;
 
 import com.emadbarsoum.common.CommandParser;
 import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageKeyWritable;
+import com.emadbarsoum.common.ImagePool;
 import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.TaskTimeCounter;
 import com.emadbarsoum.lib.*;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -13,11 +16,11 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.partition.InputSampler;
@@ -46,91 +49,90 @@ public class ImageSearchTotalOrder extends Configured implements Tool
 {
     private static final Logger log = LoggerFactory.getLogger(ImageSearchTotalOrder.class);
 
-    public static class ImageSearchTotalOrderMapper extends Mapper<Text, BytesWritable, DoubleWritable, Text>
+    public static class ImageSearchTotalOrderMapper extends Mapper<Writable, BytesWritable, DoubleWritable, Text>
     {
+        private ImageSimilarity imageSimilarity;
+        private Mat queryFeature;
+        private ImagePool imagePool = new ImagePool();
+
         @Override
-        public void map(Text key, BytesWritable value, Context context) throws IOException,InterruptedException
+        protected void setup(Context context) throws IOException, InterruptedException
         {
-            context.setStatus("Status: map started");
+            URI[] uriPaths = context.getCacheFiles();
+            if ((uriPaths == null) || (uriPaths.length == 0))
+            {
+                return;
+            }
 
-            Configuration conf = context.getConfiguration();
-            ImageSimilarity imageSimilarity;
-            String method = conf.get("method");
+            // The query feature is computed once per task.
+            long start = System.nanoTime();
 
-            if (method.equals("surf"))
-            {
-                Loader.load(opencv_nonfree.class);
+            this.imageSimilarity = ImageSimilarityFactory.create(context.getConfiguration().get("method"));
 
-                imageSimilarity = new SurfImageSimilarity();
+            IplImage queryImage = cvLoadImage("queryImageFile");
+            if (queryImage == null)
+            {
+                context.setStatus("Status: Loading Query image failed");
+                throw new NullPointerException();
             }
-            else
+
+            this.queryFeature = this.imageSimilarity.computeFeature(queryImage, context);
+            cvReleaseImage(queryImage);
+
+            TaskTimeCounter.modelLoaded(context, start);
+            context.setStatus("Status: Query image loaded");
+        }
+
+        @Override
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
+        {
+            if (this.queryFeature == null)
             {
-                imageSimilarity = new HistogramImageSimilarity();
+                return;
             }
 
-            MetadataParser metadata = new MetadataParser(key.toString());
-            metadata.parse();
+            long start = System.nanoTime();
+
+            context.setStatus("Status: map started");
+
+            MetadataParser metadata = MetadataParser.from(key);
 
             context.setStatus("Status: Metadata parsed");
 
-            URI[] uriPaths = context.getCacheFiles();
-            if (uriPaths.length > 0)
+            IplImage image = ImageHelper.createIplImage(value.getBytes(), value.getLength(), metadata, this.imagePool, context);
+
+            context.setStatus("Status: Image loaded");
+            context.progress();
+
+            Mat feature = this.imageSimilarity.computeFeature(image, context);
+            double distance = this.imageSimilarity.computeDistance(feature, this.queryFeature, context);
+            context.write(new DoubleWritable(distance), ImageKeyWritable.toText(key));
+
+            context.setStatus("Status: map completed");
+
+            // Releasing the image...
+            feature.release();
+            ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+
+            TaskTimeCounter.imageProcessed(context, start);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            if (this.queryFeature != null)
             {
-                boolean isRaw = metadata.has("type") && metadata.get("type").equals("raw");
-                IplImage queryImage = cvLoadImage("queryImageFile");
-                IplImage image;
-
-                if (queryImage == null)
-                {
-                    context.setStatus("Status: Loading Query image failed");
-                    throw new NullPointerException();
-                }
-
-                context.setStatus("Status: Query image loaded");
-                context.progress();
-
-                if (isRaw)
-                {
-                    int width = metadata.getAsInt("width");
-                    int height = metadata.getAsInt("height");
-                    int channelCount = metadata.getAsInt("channel_count");
-                    int depth =  metadata.getAsInt("depth");
-
-                    image = ImageHelper.createIplImageFromRawBytes(value.getBytes(),
-                            value.getLength(),
-                            width,
-                            height,
-                            channelCount,
-                            depth);
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
-                else
-                {
-                    image = cvDecodeImage(cvMat(1, value.getLength(), CV_8UC1, new BytePointer(value.getBytes())));
-
-                    context.setStatus("Status: Image loaded");
-                    context.progress();
-                }
-
-                double distance = imageSimilarity.computeDistance(image, queryImage, context);
-                context.write(new DoubleWritable(distance), key);
-
-                context.setStatus("Status: map completed");
-
-                // Releasing the images...
-                if (isRaw)
-                {
-                    image.release();
-                }
-                else
-                {
-                    cvReleaseImage(image);
-                }
-
-                cvReleaseImage(queryImage);
+                this.queryFeature.release();
+                this.queryFeature = null;
             }
+
+            if (this.imageSimilarity != null)
+            {
+                this.imageSimilarity.close();
+                this.imageSimilarity = null;
+            }
+
+            this.imagePool.close();
         }
     }
 
@@ -165,12 +167,12 @@ public class ImageSearchTotalOrder extends Configured implements Tool
         Job job = Job.getInstance(conf, "Image Search Total Order");
         job.setJarByClass(ImageSearchTotalOrder.class);
 
-        job.setMapperClass(ImageSearchTotalOrderMapper.class);
+        MultithreadedImageMapper.setMapperClass(job, ImageSearchTotalOrderMapper.class, parser);
         job.setReducerClass(ImageSearchTotalOrderReducer.class);
         job.setPartitionerClass(TotalOrderPartitioner.class);
 
         // Input Output format
-        job.setInputFormatClass(SequenceFileInputFormat.class);
+        ImageInputFormat.setInputFormat(job, parser);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
         job.setMapOutputKeyClass(DoubleWritable.class);
@@ -213,7 +215,9 @@ public class ImageSearchTotalOrder extends Configured implements Tool
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                ||
             (parser.getNumberOfArgs() < 4) ||
-            !parser.has(nonOptional))
+            !parser.has(nonOptional)       ||
+            !ImageInputFormat.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser))
         {
             showUsage();
             System.exit(2);
@@ -224,6 +228,6 @@ public class ImageSearchTotalOrder extends Configured implements Tool
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision imagesearchtotal -i <input path of the sequence file> -q <query image> -p <folder path of partition file> -o <output path for the result> [-m <hist or surf>]");
+        System.out.println("Usage: hvision imagesearchtotal -i <input path of the sequence file> -q <query image> -p <folder path of partition file> -o <output path for the result> [-m <hist or surf>] " + ImageInputFormat.usage + " " + MultithreadedImageMapper.usage);
     }
 }
@@ -0,0 +1,128 @@
+package com.emadbarsoum.mapreduce;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.lib.ImageColumnarInputFormat;
+import com.emadbarsoum.lib.ImageInputFormat;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * MetadataStat is a Hadoop MapReduce task that count the images per value of a metadata entry, i.e. the images
+ * per label, or per facecount in the output of findfaces. It only needs the metadata, so with
+ * -inputformat columnar it reads the metadata column of the containers and never the image bytes.
+ *
+ * Entry: com.emadbarsoum.mapreduce.MetadataStat
+ */
+public class MetadataStat extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(MetadataStat.class);
+
+    public static class MetadataStatMapper extends Mapper<Writable, BytesWritable, Text, LongWritable>
+    {
+        private final static LongWritable one = new LongWritable(1);
+        private String name;
+        private Text outputKey = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.name = context.getConfiguration().get("metadata_key");
+        }
+
+        @Override
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
+        {
+            MetadataParser metadata = MetadataParser.from(key);
+
+            // The images without this metadata are counted together.
+            this.outputKey.set(metadata.has(this.name) ? metadata.get(this.name) : "none");
+            context.write(this.outputKey, one);
+        }
+    }
+
+    public static class MetadataStatReducer extends Reducer<Text, LongWritable, Text, LongWritable>
+    {
+        @Override
+        public void reduce(Text key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException
+        {
+            long sum = 0;
+            for (LongWritable val : values)
+            {
+                sum += val.get();
+            }
+
+            context.write(key, new LongWritable(sum));
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        conf.set("metadata_key", parser.get("key"));
+
+        Job job = Job.getInstance(conf, "Metadata Stat");
+        job.setJarByClass(MetadataStat.class);
+
+        job.setMapperClass(MetadataStatMapper.class);
+        job.setCombinerClass(MetadataStatReducer.class);
+        job.setReducerClass(MetadataStatReducer.class);
+
+        // Input Output format, only the metadata column of the columnar containers is read.
+        ImageInputFormat.setInputFormat(job, parser);
+        ImageColumnarInputFormat.setReadPayload(job, false);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(LongWritable.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(LongWritable.class);
+
+        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o", "key"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 3) ||
+            !parser.has(nonOptional)       ||
+            !ImageInputFormat.isValid(parser))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new MetadataStat(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision metastat -i <input path of the sequence file or columnar containers> -o <output path for the counts> -key <metadata name, i.e. label or facecount> " + ImageInputFormat.usage);
+    }
+}
@@ -0,0 +1,430 @@
+package com.emadbarsoum.mapreduce;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImageKeyWritable;
+import com.emadbarsoum.common.ImagePool;
+import com.emadbarsoum.common.MatData;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.TaskTimeCounter;
+import com.emadbarsoum.lib.ImageFeature;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageSimilarity;
+import com.emadbarsoum.lib.ImageSimilarityFactory;
+import com.emadbarsoum.lib.MultithreadedImageMapper;
+import com.emadbarsoum.lib.SurfShard;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_flann.*;
+
+/**
+ *
+ * A MapReduce task, that extracts the SURF descriptors of all the images of a sequence file into a sharded
+ * approximate nearest neighbour index. Each image is assigned to a shard by the hash of its metadata, and each
+ * reducer stacks the descriptors of its shard and builds a FLANN KD-tree index over them. A shard is split into
+ * parts of at most -partsize descriptors (1M by default, 512 MB of 128 floats), each with its own FLANN index, so
+ * a reducer never holds more than one part. Without -shards there is one shard per GB of input.
+ *
+ * The output folder contains the SurfShard records of the parts of each shard (part-r-NNNNN), and for each part the
+ * raw descriptors (shard-NNNNN-PPPP.desc) and the FLANN index (shard-NNNNN-PPPP.flann). It is searched by
+ * surfindexsearch, which matches the query descriptors against each part once instead of building a FLANN index
+ * for every image.
+ *
+ * The input can be an image sequence file or a feature sequence file generated by featurize -m surf.
+ *
+ * Entry: com.emadbarsoum.mapreduce.SurfIndex
+ *
+ */
+public class SurfIndex extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(SurfIndex.class);
+
+    public static final String descriptorsExtension = ".desc";
+    public static final String indexExtension = ".flann";
+
+    private static final int defaultMaxPartDescriptors = 1000000;
+    private static final long inputBytesPerShard = 1L << 30;
+
+    public static class SurfIndexMapper extends Mapper<Writable, Writable, IntWritable, ImageFeature>
+    {
+        private ImageSimilarity imageSimilarity;
+        private int shards;
+        private int maxDescriptors;
+        private IntWritable shard = new IntWritable();
+        private ImagePool imagePool = new ImagePool();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            Configuration conf = context.getConfiguration();
+
+            this.shards = conf.getInt("shards", 1);
+            this.maxDescriptors = conf.getInt("max_descriptors", 0);
+            this.imageSimilarity = ImageSimilarityFactory.create("surf");
+        }
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException,InterruptedException
+        {
+            long start = System.nanoTime();
+
+            context.setStatus("Status: map started");
+
+            MetadataParser metadata = MetadataParser.from(key);
+
+            Mat feature;
+            if (value instanceof MatData)
+            {
+                // Precomputed feature store, generated by featurize.
+                if (!metadata.has("feature") || !metadata.get("feature").equals("surf"))
+                {
+                    throw new IOException("The feature store must be computed using surf.");
+                }
+
+                feature = ((MatData)value).toMat();
+            }
+            else
+            {
+                BytesWritable imageData = (BytesWritable)value;
+                IplImage image = ImageHelper.createIplImage(imageData.getBytes(), imageData.getLength(), metadata, this.imagePool, context);
+
+                context.setStatus("Status: Image loaded");
+                context.progress();
+
+                feature = this.imageSimilarity.computeFeature(image, context);
+
+                ImageHelper.releaseIplImage(image, metadata, this.imagePool);
+            }
+
+            if (feature.rows() > 0)
+            {
+                MatData matData;
+                if ((this.maxDescriptors > 0) && (feature.rows() > this.maxDescriptors))
+                {
+                    Mat firstDescriptors = feature.rowRange(0, this.maxDescriptors).clone();
+                    matData = MatData.create(firstDescriptors);
+                    firstDescriptors.release();
+                }
+                else
+                {
+                    matData = MatData.create(feature);
+                }
+
+                this.shard.set((key.hashCode() & Integer.MAX_VALUE) % this.shards);
+                context.write(this.shard, new ImageFeature(ImageKeyWritable.toText(key), matData));
+            }
+
+            feature.release();
+
+            context.setStatus("Status: map completed");
+
+            TaskTimeCounter.imageProcessed(context, start);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.imageSimilarity.close();
+            this.imagePool.close();
+        }
+    }
+
+    public static class SurfIndexReducer extends Reducer<IntWritable, ImageFeature, IntWritable, SurfShard>
+    {
+        private int maxPartDescriptors;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.maxPartDescriptors = context.getConfiguration().getInt("max_part_descriptors", defaultMaxPartDescriptors);
+        }
+
+        @Override
+        public void reduce(IntWritable key, Iterable<ImageFeature> values, Context context) throws IOException, InterruptedException
+        {
+            Part part = null;
+            int partCount = 0;
+
+            for (ImageFeature val : values)
+            {
+                // Hadoop reuse the value object, the descriptors are written to the local file of the part right away.
+                MatData feature = val.feature();
+
+                // A part of the shard is full, build its index and start the next one.
+                if ((part != null) && !part.fits(feature.rows()))
+                {
+                    part.close(context, key);
+                    part = null;
+                }
+
+                if (part == null)
+                {
+                    part = new Part(partName(key.get(), partCount++), feature.cols(), this.maxPartDescriptors);
+                }
+
+                part.add(val.image().toString(), feature);
+
+                context.progress();
+            }
+
+            if (part != null)
+            {
+                part.close(context, key);
+            }
+
+            context.setStatus("Status: shard " + key.get() + " completed");
+        }
+    }
+
+    /**
+     * A part of a shard, the descriptors of its images are streamed into a local file while the shard is read, then
+     * loaded once into a native Mat to build the FLANN index. Both files are committed next to the shards.
+     */
+    private static class Part
+    {
+        private String name;
+        private int cols;
+        private int maxRows;
+        private int rows = 0;
+        private int[] descriptorImages = new int[1024];
+        private ArrayList<String> images = new ArrayList<String>();
+        private File localFile;
+        private DataOutputStream out;
+
+        public Part(String name, int cols, int maxDescriptors) throws IOException
+        {
+            this.name = name;
+            this.cols = cols;
+
+            // The descriptors are read through a single ByteBuffer, so they must fit in 2 GB.
+            this.maxRows = (int)Math.min(maxDescriptors, Integer.MAX_VALUE / (4L * Math.max(cols, 1)));
+
+            this.localFile = File.createTempFile("surfindex", descriptorsExtension);
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.localFile), 1 << 20));
+        }
+
+        // True if the descriptors of one more image fit, an empty part takes any image.
+        public boolean fits(int descriptorCount)
+        {
+            return (this.rows == 0) || (this.rows + descriptorCount <= this.maxRows);
+        }
+
+        public void add(String image, MatData feature) throws IOException
+        {
+            // The images with more descriptors than a part keep the first ones, like -d.
+            int count = Math.min(feature.rows(), this.maxRows - this.rows);
+
+            this.out.write(feature.getBytes(), 0, count * this.cols * 4);
+
+            if (this.rows + count > this.descriptorImages.length)
+            {
+                this.descriptorImages = Arrays.copyOf(this.descriptorImages, Math.max(this.rows + count, 2 * this.descriptorImages.length));
+            }
+
+            Arrays.fill(this.descriptorImages, this.rows, this.rows + count, this.images.size());
+            this.images.add(image);
+            this.rows += count;
+        }
+
+        public void close(Reducer<IntWritable, ImageFeature, IntWritable, SurfShard>.Context context, IntWritable key) throws IOException, InterruptedException
+        {
+            this.out.close();
+
+            context.setStatus("Status: building the index of " + this.images.size() + " images in " + this.name);
+
+            Mat descriptors = new Mat(this.rows, this.cols, CV_32F);
+            InputStream in = new FileInputStream(this.localFile);
+            try
+            {
+                readDescriptors(in, descriptors, this.name);
+            }
+            finally
+            {
+                in.close();
+            }
+
+            Index index = new Index();
+            index.build(descriptors, new KDTreeIndexParams(4), FLANN_DIST_L2);
+
+            File localIndexFile = File.createTempFile("surfindex", indexExtension);
+            index.save(localIndexFile.getAbsolutePath());
+
+            index.release();
+            descriptors.release();
+
+            // Saved in the task work folder so they are committed with the task output.
+            Path workPath = FileOutputFormat.getWorkOutputPath(context);
+            FileSystem fs = workPath.getFileSystem(context.getConfiguration());
+            fs.copyFromLocalFile(true, true, new Path(localIndexFile.getAbsolutePath()), new Path(workPath, this.name + indexExtension));
+            fs.copyFromLocalFile(true, true, new Path(this.localFile.getAbsolutePath()), new Path(workPath, this.name + descriptorsExtension));
+
+            context.write(key, new SurfShard(this.name, this.rows, this.cols, Arrays.copyOf(this.descriptorImages, this.rows), this.images));
+            context.getCounter("SURF Index", "Parts").increment(1);
+        }
+    }
+
+    // The name of the side files of a part of a shard, without extension.
+    public static String partName(int shard, int part)
+    {
+        return String.format("shard-%05d-%04d", shard, part);
+    }
+
+    // Load the descriptors of a part from its side file.
+    public static Mat readDescriptors(Configuration conf, Path indexPath, SurfShard shard) throws IOException
+    {
+        Path path = new Path(indexPath, shard.name() + descriptorsExtension);
+        FileSystem fs = path.getFileSystem(conf);
+
+        Mat descriptors = new Mat(shard.rows(), shard.cols(), CV_32F);
+        InputStream in = fs.open(path);
+        try
+        {
+            readDescriptors(in, descriptors, shard.name());
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return descriptors;
+    }
+
+    // Copy the raw descriptor rows into the native Mat, through a small buffer.
+    private static void readDescriptors(InputStream in, Mat descriptors, String name) throws IOException
+    {
+        ByteBuffer buffer = descriptors.getByteBuffer();
+        byte[] chunk = new byte[1 << 20];
+        while (buffer.hasRemaining())
+        {
+            int count = in.read(chunk, 0, Math.min(chunk.length, buffer.remaining()));
+            if (count < 0)
+            {
+                throw new IOException("The descriptors of " + name + " are truncated.");
+            }
+
+            buffer.put(chunk, 0, count);
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        // One shard per GB of input by default, so the search runs as many map tasks.
+        int shards;
+        if (parser.has("shards"))
+        {
+            shards = parser.getAsInt("shards");
+        }
+        else
+        {
+            Path inputPath = new Path(parser.get("i"));
+            long inputBytes = inputPath.getFileSystem(conf).getContentSummary(inputPath).getLength();
+            shards = (int)Math.max(1, (inputBytes + inputBytesPerShard - 1) / inputBytesPerShard);
+
+            log.info("Using " + shards + " shards for " + inputBytes + " bytes of input.");
+        }
+
+        conf.setInt("shards", shards);
+
+        if (parser.has("partsize"))
+        {
+            conf.setInt("max_part_descriptors", parser.getAsInt("partsize"));
+        }
+
+        if (parser.has("d"))
+        {
+            conf.setInt("max_descriptors", parser.getAsInt("d"));
+        }
+
+        Job job = Job.getInstance(conf, "SURF Index");
+        job.setJarByClass(SurfIndex.class);
+
+        MultithreadedImageMapper.setMapperClass(job, SurfIndexMapper.class, parser);
+        job.setReducerClass(SurfIndexReducer.class);
+
+        // One reducer per shard.
+        job.setNumReduceTasks(shards);
+
+        // Input Output format
+        ImageInputFormat.setInputFormat(job, parser);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(ImageFeature.class);
+
+        job.setOutputKeyClass(IntWritable.class);
+        job.setOutputValueClass(SurfShard.class);
+
+        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 2) ||
+            !parser.has(nonOptional)       ||
+            !ImageInputFormat.isValid(parser) ||
+            !MultithreadedImageMapper.isValid(parser))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        if (parser.has("shards") && (parser.getAsInt("shards") < 1))
+        {
+            System.out.println("shards must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
+        if (parser.has("partsize") && (parser.getAsInt("partsize") < 1))
+        {
+            System.out.println("partsize must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new SurfIndex(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision surfindex -i <input path of the sequence file> -o <output folder for the index> [-shards <number of shards>] [-partsize <max descriptors per FLANN index>] [-d <max descriptors per image>] " + ImageInputFormat.usage + " " + MultithreadedImageMapper.usage);
+    }
+}
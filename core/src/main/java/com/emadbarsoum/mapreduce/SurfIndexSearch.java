@@ -0,0 +1,248 @@
+package com.emadbarsoum.mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.TaskTimeCounter;
+import com.emadbarsoum.lib.ImageSimilarityFactory;
+import com.emadbarsoum.lib.SurfImageSimilarity;
+import com.emadbarsoum.lib.SurfShard;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_flann.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ *
+ * A MapReduce task, that search the SURF descriptor index created by surfindex. For each part of its shard, a map
+ * task loads the descriptors and the FLANN index of the part, matches the query descriptors against it once, and
+ * each query descriptor that pass the ratio test
+ * votes for the image of its nearest neighbour. The distance of an image is 1 - votes / number of query descriptors,
+ * the same measure as imagesearch -m surf, so the output has the same format as imagesearch. Only the images with at
+ * least one vote are returned.
+ *
+ * Entry: com.emadbarsoum.mapreduce.SurfIndexSearch
+ *
+ */
+public class SurfIndexSearch extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(SurfIndexSearch.class);
+
+    public static class SurfIndexSearchMapper extends Mapper<IntWritable, SurfShard, DoubleWritable, Text>
+    {
+        private SurfImageSimilarity imageSimilarity;
+        private Mat queryFeature;
+        private Path indexPath;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            long start = System.nanoTime();
+
+            this.indexPath = new Path(context.getConfiguration().get("index_path"));
+            this.imageSimilarity = (SurfImageSimilarity)ImageSimilarityFactory.create("surf");
+
+            URI[] uriPaths = context.getCacheFiles();
+            if ((uriPaths == null) || (uriPaths.length == 0))
+            {
+                throw new IOException("The query image is missing from the distributed cache.");
+            }
+
+            IplImage queryImage = cvLoadImage("queryImageFile");
+            if (queryImage == null)
+            {
+                context.setStatus("Status: Loading Query image failed");
+                throw new NullPointerException();
+            }
+
+            this.queryFeature = this.imageSimilarity.computeFeature(queryImage, context);
+            cvReleaseImage(queryImage);
+
+            TaskTimeCounter.modelLoaded(context, start);
+            context.setStatus("Status: Query image loaded");
+        }
+
+        @Override
+        public void map(IntWritable key, SurfShard value, Context context) throws IOException,InterruptedException
+        {
+            int queryCount = this.queryFeature.rows();
+            if (queryCount == 0)
+            {
+                return;
+            }
+
+            // Load the descriptors and the FLANN index of the part, the index is rebuilt if it can't be loaded.
+            context.setStatus("Status: loading " + value.name());
+
+            Mat descriptors = SurfIndex.readDescriptors(context.getConfiguration(), this.indexPath, value);
+
+            File localIndexFile = File.createTempFile("surfindex", SurfIndex.indexExtension);
+            Path shardIndexPath = new Path(this.indexPath, value.name() + SurfIndex.indexExtension);
+            FileSystem fs = shardIndexPath.getFileSystem(context.getConfiguration());
+
+            Index index = new Index();
+            boolean loaded = false;
+            if (fs.exists(shardIndexPath))
+            {
+                fs.copyToLocalFile(false, shardIndexPath, new Path(localIndexFile.getAbsolutePath()), true);
+                loaded = index.load(descriptors, localIndexFile.getAbsolutePath());
+            }
+
+            localIndexFile.delete();
+
+            if (!loaded)
+            {
+                index.build(descriptors, new KDTreeIndexParams(4), FLANN_DIST_L2);
+            }
+
+            context.setStatus("Status: searching " + value.name());
+            context.progress();
+
+            // Match all the query descriptors against the shard at once. The ratio test needs a second neighbor, a
+            // part with a single descriptor is matched with the nearest one only.
+            int k = (descriptors.rows() < 2) ? 1 : 2;
+            Mat indices = new Mat(queryCount, k, CV_32S);
+            Mat distances = new Mat(queryCount, k, CV_32F);
+            index.knnSearch(this.queryFeature, indices, distances, k, new SearchParams(64, 0, true));
+            index.release();
+
+            int[] descriptorImages = value.descriptorImages();
+            int[] votes = new int[value.images().size()];
+            IntBuffer indicesBuf = indices.getIntBuffer();
+            FloatBuffer distsBuf = distances.getFloatBuffer();
+            for (int i = 0; i < queryCount; ++i)
+            {
+                int nearest = indicesBuf.get(k * i);
+                if ((nearest >= 0) &&
+                    (nearest < descriptorImages.length) &&
+                    ((k < 2) || (distsBuf.get(k * i) < this.imageSimilarity.getThreshold() * distsBuf.get(k * i + 1))))
+                {
+                    ++votes[descriptorImages[nearest]];
+                }
+            }
+
+            for (int i = 0; i < votes.length; ++i)
+            {
+                if (votes[i] > 0)
+                {
+                    double distance = Math.max(1.0 - (double)votes[i] / (double)queryCount, 0.0);
+                    context.write(new DoubleWritable(distance), new Text(value.images().get(i)));
+                }
+            }
+
+            indices.release();
+            distances.release();
+            descriptors.release();
+
+            context.setStatus("Status: " + value.name() + " completed");
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            if (this.queryFeature != null)
+            {
+                this.queryFeature.release();
+                this.queryFeature = null;
+            }
+
+            this.imageSimilarity.close();
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        Path indexPath = new Path(parser.get("i"));
+        conf.set("index_path", indexPath.toString());
+
+        Job job = Job.getInstance(conf, "SURF Index Search");
+        job.setJarByClass(SurfIndexSearch.class);
+
+        job.setMapperClass(SurfIndexSearchMapper.class);
+
+        if (parser.has("top"))
+        {
+            // Same as imagesearch -top.
+            job.getConfiguration().setInt("top", parser.getAsInt("top"));
+            job.setCombinerClass(ImageSearch.ImageSearchTopReducer.class);
+            job.setReducerClass(ImageSearch.ImageSearchTopReducer.class);
+            job.setNumReduceTasks(1);
+        }
+        else
+        {
+            job.setReducerClass(ImageSearch.ImageSearchReducer.class);
+        }
+
+        // Input Output format
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+        job.setMapOutputKeyClass(DoubleWritable.class);
+        job.setMapOutputValueClass(Text.class);
+
+        job.setOutputKeyClass(DoubleWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        // Only the shards, not the descriptors and FLANN index files.
+        FileInputFormat.addInputPath(job, new Path(indexPath, "part-*"));
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        // Use symbolic link "queryImageFile" to support different platform formats
+        // and protocols.
+        job.addCacheFile(new URI(parser.get("q") + "#queryImageFile"));
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o", "q"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 3) ||
+            !parser.has(nonOptional))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        if (parser.has("top") && (parser.getAsInt("top") < 1))
+        {
+            System.out.println("top must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new SurfIndexSearch(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision surfindexsearch -i <index folder created by surfindex> -q <query image> -o <output path for the result> [-top <number of images>]");
+    }
+}
@@ -0,0 +1,230 @@
+package com.emadbarsoum.mapreduce;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.ImageEncoding;
+import com.emadbarsoum.common.ImageHelper;
+import com.emadbarsoum.common.ImagePool;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.common.SequenceFileCompression;
+import com.emadbarsoum.lib.ImageColumnarOutputFormat;
+import com.emadbarsoum.lib.ImageInputFormat;
+import com.emadbarsoum.lib.ImageTiles;
+import com.emadbarsoum.lib.Tuple;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.bytedeco.javacpp.opencv_core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Untile is a Hadoop MapReduce task that stitch the tiles written by the tile job, and filtered by other jobs,
+ * back into whole images. The tiles are grouped by the path of their image, since two images from different folders
+ * can have the same name, and the inside of each tile (without its halo) is copied to its place in the image. The
+ * other images are written as is.
+ *
+ * A stitched image is a single record, so it must fit in the memory of a reduce task, and its raw bytes must be
+ * at most ImageTiles.maxImageBytes (about 1.4 GB). The tiles of a larger image are written as they are, and the
+ * image is counted in "Images too large to stitch", so its tiles can still be processed or exported one by one.
+ *
+ * Entry: com.emadbarsoum.mapreduce.Untile
+ */
+public class Untile extends Configured implements Tool
+{
+    private static final Logger log = LoggerFactory.getLogger(Untile.class);
+
+    public static class UntileMapper extends Mapper<Writable, BytesWritable, Text, Tuple>
+    {
+        @Override
+        public void map(Writable key, BytesWritable value, Context context) throws IOException,InterruptedException
+        {
+            MetadataParser metadata = MetadataParser.from(key);
+
+            Writable[] writables =
+                {
+                    new Text(metadata.toMetadata()),
+                    value
+                };
+
+            context.write(new Text(ImageTiles.imageKey(metadata)), new Tuple(writables));
+        }
+    }
+
+    public static class UntileReducer extends Reducer<Text, Tuple, Text, BytesWritable>
+    {
+        private ImagePool imagePool = new ImagePool();
+        private ImageEncoding encoding;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException
+        {
+            this.encoding = new ImageEncoding(context.getConfiguration());
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<Tuple> values, Context context) throws IOException, InterruptedException
+        {
+            IplImage image = null;
+            MetadataParser imageMetadata = null;
+            int tileCount = 0;
+            int stitched = 0;
+            boolean tooLarge = false;
+
+            for (Tuple val : values)
+            {
+                MetadataParser metadata = new MetadataParser(val.get(0).toString());
+                metadata.parse();
+
+                BytesWritable data = (BytesWritable)val.get(1);
+                if (!ImageTiles.isTile(metadata) || tooLarge)
+                {
+                    context.write(new Text(metadata.toMetadata()), data);
+                    continue;
+                }
+
+                IplImage tileImage = ImageHelper.createIplImage(data.getBytes(), data.getLength(), metadata, this.imagePool, context);
+                if (tileImage == null)
+                {
+                    context.getCounter(ImageTiles.counterGroup, "Skipped tiles").increment(1);
+                    continue;
+                }
+
+                // The whole image is created with the first tile, with the channels and depth of the filtered tiles.
+                if (image == null)
+                {
+                    long size = ImageTiles.rawSize(metadata.getAsInt("image_width"), metadata.getAsInt("image_height"), tileImage.nChannels(), tileImage.depth());
+                    if (size > ImageTiles.maxImageBytes)
+                    {
+                        log.warn("The image " + key + " is too large to stitch, " + size + " bytes, its tiles are written as they are.");
+                        context.getCounter(ImageTiles.counterGroup, "Images too large to stitch").increment(1);
+
+                        ImageHelper.releaseIplImage(tileImage, metadata, this.imagePool);
+                        context.write(new Text(metadata.toMetadata()), data);
+
+                        tooLarge = true;
+                        continue;
+                    }
+
+                    image = this.imagePool.acquire(metadata.getAsInt("image_width"), metadata.getAsInt("image_height"), tileImage.depth(), tileImage.nChannels(), context);
+                    imageMetadata = metadata;
+                    tileCount = metadata.getAsInt("tile_count");
+                }
+
+                ImageTiles.Tile tile = ImageTiles.fromMetadata(metadata);
+                if ((tile.right < 0) || (tile.bottom < 0))
+                {
+                    // The tile was resized, its inside isn't where the tile job put it.
+                    context.getCounter(ImageTiles.counterGroup, "Resized tiles").increment(1);
+                    ImageHelper.releaseIplImage(tileImage, metadata, this.imagePool);
+                    continue;
+                }
+
+                cvSetImageROI(tileImage, cvRect(tile.left, tile.top, tile.width, tile.height));
+                cvSetImageROI(image, cvRect(tile.x, tile.y, tile.width, tile.height));
+                cvCopy(tileImage, image);
+                cvResetImageROI(image);
+                cvResetImageROI(tileImage);
+
+                ImageHelper.releaseIplImage(tileImage, metadata, this.imagePool);
+
+                ++stitched;
+                context.progress();
+            }
+
+            if (image == null)
+            {
+                return;
+            }
+
+            if (stitched != tileCount)
+            {
+                log.warn("The image " + key + " has " + stitched + " of its " + tileCount + " tiles.");
+                context.getCounter(ImageTiles.counterGroup, "Incomplete images").increment(1);
+            }
+
+            ImageTiles.toImageMetadata(imageMetadata);
+
+            // Write the result, raw or encoded.
+            byte[] data = this.encoding.encode(image, imageMetadata);
+
+            context.write(new Text(imageMetadata.toMetadata()), new BytesWritable(data));
+
+            this.imagePool.release(image);
+            context.getCounter(ImageTiles.counterGroup, "Stitched images").increment(1);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            this.imagePool.close();
+        }
+    }
+
+    @Override
+    public final int run(final String[] args) throws Exception
+    {
+        Configuration conf = this.getConf();
+        CommandParser parser = new CommandParser(args);
+        parser.parse();
+
+        Job job = Job.getInstance(conf, "Image Untiling");
+        job.setJarByClass(Untile.class);
+
+        job.setMapperClass(UntileMapper.class);
+        job.setReducerClass(UntileReducer.class);
+
+        // Input Output format
+        ImageInputFormat.setInputFormat(job, parser);
+        ImageColumnarOutputFormat.setOutputFormat(job, parser);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(Tuple.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(BytesWritable.class);
+
+        FileInputFormat.addInputPath(job, new Path(parser.get("i")));
+        FileOutputFormat.setOutputPath(job, new Path(parser.get("o")));
+
+        // Raw or encoded output images, and optional compression of the output sequence file.
+        ImageEncoding.configure(job, parser);
+        SequenceFileCompression.setOutputCompression(job, parser);
+
+        boolean ret = job.waitForCompletion(true);
+        return ret ? 0 : 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "o"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                ||
+            (parser.getNumberOfArgs() < 2) ||
+            !parser.has(nonOptional)       ||
+            !ImageInputFormat.isValid(parser) ||
+            !ImageEncoding.isValid(parser) ||
+            !SequenceFileCompression.isValid(parser))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        ToolRunner.run(new Configuration(), new Untile(), args);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision untile -i <input path of the sequence file of tiles> -o <output path for the sequence file of images> " + ImageInputFormat.usage + " " + ImageColumnarOutputFormat.usage + " " + ImageEncoding.usage + " " + SequenceFileCompression.usage);
+    }
+}
@@ -0,0 +1,155 @@
+package com.emadbarsoum.tools;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.lib.BOWImageSimilarity;
+import com.emadbarsoum.lib.Posting;
+import com.emadbarsoum.lib.PostingList;
+import com.emadbarsoum.lib.TopResults;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core.*;
+import org.bytedeco.javacpp.opencv_nonfree;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * A command line tool that search the BOW inverted index created by bowindex. Only the posting lists of the
+ * visual words of the query image are read, and the images are ranked by the cosine similarity of their
+ * TF-IDF weights. The result is a sequence file in the same format as imagesearch, so it can be dumped by isrdump.
+ *
+ * Here the main entry point: com.emadbarsoum.tools.BOWIndexSearch
+ */
+public class BOWIndexSearch
+{
+    public static void main(String[] args) throws Exception
+    {
+        // Needed for SURF feature.
+        Loader.load(opencv_nonfree.class);
+
+        String[] nonOptional = {"i", "cf", "q", "o"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                 ||
+            (parser.getNumberOfArgs() < 4)  ||
+            !parser.has(nonOptional))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        int top = parser.has("top") ? parser.getAsInt("top") : 100;
+        if (top < 1)
+        {
+            System.out.println("top must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
+        Configuration conf = new Configuration();
+
+        // Compute the BOW descriptor of the query image.
+        BOWImageSimilarity bowSimilarity = new BOWImageSimilarity(parser.get("cf"));
+        IplImage queryImage = cvLoadImage(parser.get("q"));
+        if (queryImage == null)
+        {
+            System.out.println("Failed to load the query image.");
+            System.exit(2);
+        }
+
+        Mat queryFeature = bowSimilarity.computeFeature(queryImage, null);
+        FloatBuffer queryBow = queryFeature.getFloatBuffer();
+
+        cvReleaseImage(queryImage);
+
+        // Accumulate the score of each image, using only the posting lists of the query visual words.
+        MapFile.Reader[] readers = MapFileOutputFormat.getReaders(new Path(new Path(parser.get("i")), "index"), conf);
+        HashPartitioner<IntWritable, PostingList> partitioner = new HashPartitioner<IntWritable, PostingList>();
+
+        Map<String, Double> scores = new HashMap<String, Double>();
+        IntWritable word = new IntWritable();
+        IntWritable nextWord = new IntWritable();
+        PostingList postingList = new PostingList();
+        double queryNorm = 0.0;
+
+        for (int i = 0; i < bowSimilarity.getWordCount(); ++i)
+        {
+            float tf = queryBow.get(i);
+            if (tf <= 0.0f)
+            {
+                continue;
+            }
+
+            // A frequent word has several posting lists with the same key, one after the other in its partition.
+            word.set(i);
+            MapFile.Reader reader = readers[partitioner.getPartition(word, postingList, readers.length)];
+            if (reader.get(word, postingList) == null)
+            {
+                continue;
+            }
+
+            double queryWeight = tf * postingList.idf();
+            queryNorm += queryWeight * queryWeight;
+
+            do
+            {
+                for (Posting posting : postingList.postings())
+                {
+                    String image = posting.image().toString();
+                    Double score = scores.get(image);
+
+                    scores.put(image, (score == null ? 0.0 : score) + queryWeight * posting.weight());
+                }
+            }
+            while (reader.next(nextWord, postingList) && (nextWord.get() == i));
+        }
+
+        for (MapFile.Reader reader : readers)
+        {
+            reader.close();
+        }
+
+        queryFeature.release();
+        bowSimilarity.close();
+
+        // Keep the best images, the distance is 1 - cosine similarity.
+        queryNorm = Math.sqrt(queryNorm);
+
+        TopResults<String> topResults = new TopResults<String>(top);
+        for (Map.Entry<String, Double> entry : scores.entrySet())
+        {
+            double distance = (queryNorm > 0.0) ? Math.max(1.0 - entry.getValue() / queryNorm, 0.0) : 1.0;
+            topResults.offer(distance, entry.getKey());
+        }
+
+        SequenceFile.Writer writer = SequenceFile.createWriter(
+            conf,
+            SequenceFile.Writer.file(new Path(parser.get("o"))),
+            SequenceFile.Writer.keyClass(DoubleWritable.class),
+            SequenceFile.Writer.valueClass(Text.class));
+
+        for (TopResults.Result<String> result : topResults.sorted())
+        {
+            writer.append(new DoubleWritable(result.distance()), new Text(result.item()));
+        }
+
+        writer.close();
+
+        System.out.format("%d images share at least one visual word with the query.\n", scores.size());
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision bowsearch -i <index folder created by bowindex> -cf <BOW cluster file> -q <query image> -o <output path for the result sequence file> [-top <number of images>]");
+    }
+}
@@ -0,0 +1,119 @@
+package com.emadbarsoum.tools;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.MatData;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.lib.HashIndex;
+import com.emadbarsoum.lib.PerceptualHashImageSimilarity;
+import com.emadbarsoum.lib.TopResults;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * A command line tool that find the near duplicates of a query image. It loads the hashes of a feature sequence
+ * file created by featurize -m dhash into a HashIndex, so the search is a few table lookups and popcounts instead
+ * of a scan of the whole corpus. The result is a sequence file in the same format as imagesearch, so it can be
+ * dumped by isrdump.
+ *
+ * Here the main entry point: com.emadbarsoum.tools.DuplicateSearch
+ */
+public class DuplicateSearch
+{
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"i", "q", "o"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                 ||
+            (parser.getNumberOfArgs() < 3)  ||
+            !parser.has(nonOptional))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        int radius = parser.has("r") ? parser.getAsInt("r") : 4;
+        if ((radius < 0) || (radius > PerceptualHashImageSimilarity.hashBits))
+        {
+            System.out.println("r must be between 0 and 64.");
+            System.exit(2);
+        }
+
+        Configuration conf = new Configuration();
+
+        // Load the hash of each image, the input is either a single sequence file or a job output folder.
+        HashIndex<String> hashIndex = new HashIndex<String>();
+
+        Path inputPath = new Path(parser.get("i"));
+        FileSystem fs = inputPath.getFileSystem(conf);
+        for (FileStatus status : fs.listStatus(inputPath))
+        {
+            if (status.isDirectory() || status.getPath().getName().startsWith("_") || status.getPath().getName().startsWith("."))
+            {
+                continue;
+            }
+
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()));
+
+            Text key = new Text();
+            MatData value = new MatData();
+            while (reader.next(key, value))
+            {
+                MetadataParser metadata = new MetadataParser(key.toString());
+                metadata.parse();
+
+                if (!metadata.has("feature") || !metadata.get("feature").equals("dhash"))
+                {
+                    reader.close();
+                    throw new Exception("The feature store must be computed using dhash.");
+                }
+
+                hashIndex.add(PerceptualHashImageSimilarity.toHash(ByteBuffer.wrap(value.getBytes())), key.toString());
+            }
+
+            reader.close();
+        }
+
+        IplImage queryImage = cvLoadImage(parser.get("q"));
+        if (queryImage == null)
+        {
+            System.out.println("Failed to load the query image.");
+            System.exit(2);
+        }
+
+        long queryHash = PerceptualHashImageSimilarity.computeHash(queryImage);
+        cvReleaseImage(queryImage);
+
+        SequenceFile.Writer writer = SequenceFile.createWriter(
+            conf,
+            SequenceFile.Writer.file(new Path(parser.get("o"))),
+            SequenceFile.Writer.keyClass(DoubleWritable.class),
+            SequenceFile.Writer.valueClass(Text.class));
+
+        int count = 0;
+        for (TopResults.Result<String> result : hashIndex.search(queryHash, radius))
+        {
+            writer.append(new DoubleWritable(result.distance() / PerceptualHashImageSimilarity.hashBits), new Text(result.item()));
+            ++count;
+        }
+
+        writer.close();
+
+        System.out.format("%d near duplicates found out of %d images.\n", count, hashIndex.size());
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision dupsearch -i <feature sequence file created by featurize -m dhash> -q <query image> -o <output path for the result sequence file> [-r <Hamming radius, default 4>]");
+    }
+}
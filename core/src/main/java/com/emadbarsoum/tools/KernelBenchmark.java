@@ -0,0 +1,344 @@
+package com.emadbarsoum.tools;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.lib.JavaImage;
+import com.emadbarsoum.lib.JavaKernels;
+import org.bytedeco.javacpp.opencv_core.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * A command line tool that compares the pure Java kernels (JavaKernels) with the OpenCV calls of the map only jobs
+ * on a sample folder of images: Gaussian and median blur, erode, dilate, color to gray and thumbnail resize. Both
+ * engines filter the same decoded pixels, each kernel is warmed up (-warmup runs) for the JIT before the timed runs
+ * (-n), and the best run is reported with the largest pixel difference between the two results.
+ *
+ * Here the main entry point: com.emadbarsoum.tools.KernelBenchmark
+ */
+public class KernelBenchmark
+{
+    private interface Kernel
+    {
+        void run(int image);
+    }
+
+    private static List<IplImage> sources = new ArrayList<IplImage>();
+    private static List<JavaImage> javaSources = new ArrayList<JavaImage>();
+    private static IplImage[] targets;
+    private static JavaImage[] javaTargets;
+
+    public static void main(String[] args) throws Exception
+    {
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                 ||
+            (parser.getNumberOfArgs() < 1)  ||
+            !parser.has("i"))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        int runs = parser.has("n") ? parser.getAsInt("n") : 5;
+        int warmup = parser.has("warmup") ? parser.getAsInt("warmup") : 3;
+        final int size = parser.has("size") ? parser.getAsInt("size") : 5;
+        final int thumbnailSize = 256;
+        if ((runs < 1) || (warmup < 0) || (size < 3) || (size % 2 == 0))
+        {
+            System.out.println("n must be greater than or equal to 1, warmup greater than or equal to 0 and size an odd number greater than or equal to 3.");
+            System.exit(2);
+        }
+
+        // Iterate through image files only.
+        FilenameFilter fileNameFilter = new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                String lowerName = name.toLowerCase();
+                return lowerName.endsWith(".jpg") || lowerName.endsWith(".jpeg") || lowerName.endsWith(".png");
+            }
+        };
+
+        File[] files = new File(parser.get("i")).listFiles(fileNameFilter);
+        if ((files == null) || (files.length == 0))
+        {
+            System.out.println("No image found in " + parser.get("i"));
+            System.exit(2);
+        }
+
+        // Both engines start from the pixels decoded by OpenCV.
+        long pixels = 0;
+        for (File file : files)
+        {
+            IplImage image = cvLoadImage(file.getAbsolutePath());
+            if (image == null)
+            {
+                continue;
+            }
+
+            byte[] data = new byte[image.imageSize()];
+            image.getByteBuffer().get(data);
+
+            MetadataParser metadata = new MetadataParser();
+            metadata.put("type", "raw");
+            metadata.put("width", image.width());
+            metadata.put("height", image.height());
+            metadata.put("channel_count", image.nChannels());
+            metadata.put("depth", image.depth());
+
+            JavaImage javaImage = new JavaImage();
+            javaImage.decode(data, data.length, metadata);
+
+            sources.add(image);
+            javaSources.add(javaImage);
+            pixels += (long)image.width() * image.height();
+        }
+
+        int count = sources.size();
+        targets = new IplImage[count];
+        javaTargets = new JavaImage[count];
+        for (int i = 0; i < count; ++i)
+        {
+            javaTargets[i] = new JavaImage();
+        }
+
+        final JavaKernels kernels = new JavaKernels();
+
+        System.out.format("%d images, %.1f MPixels, %d warm up and best of %d runs.\n", count, pixels / 1e6, warmup, runs);
+        System.out.format("%-12s %14s %14s %12s %12s %10s\n", "kernel", "opencv (ms)", "java (ms)", "opencv MP/s", "java MP/s", "max diff");
+
+        benchmark("gaussian", pixels, runs, warmup,
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    cvSmooth(sources.get(i), target(i, sources.get(i).nChannels()), CV_GAUSSIAN, size, size, 0, 0);
+                }
+            },
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    kernels.gaussian(javaSources.get(i), javaTargets[i], size, 0);
+                }
+            });
+
+        benchmark("median", pixels, runs, warmup,
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    cvSmooth(sources.get(i), target(i, sources.get(i).nChannels()), CV_MEDIAN, size, 0, 0, 0);
+                }
+            },
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    kernels.median(javaSources.get(i), javaTargets[i], size);
+                }
+            });
+
+        benchmark("erode", pixels, runs, warmup,
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    cvErode(sources.get(i), target(i, sources.get(i).nChannels()));
+                }
+            },
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    kernels.erode(javaSources.get(i), javaTargets[i], 1);
+                }
+            });
+
+        benchmark("dilate", pixels, runs, warmup,
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    cvDilate(sources.get(i), target(i, sources.get(i).nChannels()));
+                }
+            },
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    kernels.dilate(javaSources.get(i), javaTargets[i], 1);
+                }
+            });
+
+        benchmark("gray", pixels, runs, warmup,
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    cvCvtColor(sources.get(i), target(i, 1), CV_BGR2GRAY);
+                }
+            },
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    kernels.gray(javaSources.get(i), javaTargets[i]);
+                }
+            });
+
+        benchmark("thumbnail", pixels, runs, warmup,
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    IplImage source = sources.get(i);
+                    cvResize(source, thumbnail(i, source.width(), source.height(), source.nChannels(), thumbnailSize), CV_INTER_AREA);
+                }
+            },
+            new Kernel()
+            {
+                public void run(int i)
+                {
+                    JavaImage source = javaSources.get(i);
+                    IplImage target = targets[i];
+                    javaTargets[i].reset(target.width(), target.height(), source.channels());
+                    kernels.resizeArea(source, javaTargets[i]);
+                }
+            });
+
+        for (IplImage image : sources)
+        {
+            cvReleaseImage(image);
+        }
+
+        releaseTargets();
+    }
+
+    private static void benchmark(String name, long pixels, int runs, int warmup, Kernel openCV, Kernel java)
+    {
+        releaseTargets();
+
+        long openCVNanos = time(openCV, runs, warmup);
+        long javaNanos = time(java, runs, warmup);
+
+        System.out.format("%-12s %14.1f %14.1f %12.1f %12.1f %10d\n",
+            name,
+            openCVNanos / 1e6,
+            javaNanos / 1e6,
+            pixels / 1e6 / (openCVNanos / 1e9),
+            pixels / 1e6 / (javaNanos / 1e9),
+            maxDifference());
+    }
+
+    // The best time of runs over all the images, after the warm up.
+    private static long time(Kernel kernel, int runs, int warmup)
+    {
+        for (int run = 0; run < warmup; ++run)
+        {
+            for (int i = 0; i < sources.size(); ++i)
+            {
+                kernel.run(i);
+            }
+        }
+
+        long bestNanos = Long.MAX_VALUE;
+        for (int run = 0; run < runs; ++run)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < sources.size(); ++i)
+            {
+                kernel.run(i);
+            }
+
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+
+        return bestNanos;
+    }
+
+    // The largest difference of a pixel between the results of the two engines, both use rows aligned to 4 bytes.
+    private static int maxDifference()
+    {
+        int difference = 0;
+        for (int i = 0; i < targets.length; ++i)
+        {
+            IplImage target = targets[i];
+            JavaImage javaTarget = javaTargets[i];
+
+            byte[] data = new byte[target.imageSize()];
+            target.getByteBuffer().get(data);
+
+            int rowSize = target.width() * target.nChannels();
+            for (int y = 0; y < target.height(); ++y)
+            {
+                for (int x = 0; x < rowSize; ++x)
+                {
+                    int a = data[y * target.widthStep() + x] & 0xff;
+                    int b = javaTarget.data()[y * javaTarget.stride() + x] & 0xff;
+                    difference = Math.max(difference, Math.abs(a - b));
+                }
+            }
+        }
+
+        return difference;
+    }
+
+    // The OpenCV result image of a source image, created once per kernel.
+    private static IplImage target(int i, int channels)
+    {
+        if (targets[i] == null)
+        {
+            IplImage source = sources.get(i);
+            targets[i] = cvCreateImage(cvGetSize(source), source.depth(), channels);
+        }
+
+        return targets[i];
+    }
+
+    private static IplImage thumbnail(int i, int width, int height, int channels, int size)
+    {
+        if (targets[i] == null)
+        {
+            int w = size;
+            int h = size;
+            if (width > height)
+            {
+                h = Math.max((w * height) / width, 1);
+            }
+            else
+            {
+                w = Math.max((h * width) / height, 1);
+            }
+
+            targets[i] = cvCreateImage(cvSize(w, h), IPL_DEPTH_8U, channels);
+        }
+
+        return targets[i];
+    }
+
+    private static void releaseTargets()
+    {
+        for (int i = 0; i < targets.length; ++i)
+        {
+            if (targets[i] != null)
+            {
+                cvReleaseImage(targets[i]);
+                targets[i] = null;
+            }
+        }
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision kernelbench -i <input path to folder of sample images> [-size <kernel size, default 5>] [-n <number of timed runs>] [-warmup <number of warm up runs>]");
+    }
+}
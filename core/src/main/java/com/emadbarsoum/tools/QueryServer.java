@@ -0,0 +1,417 @@
+package com.emadbarsoum.tools;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.lib.BOWImageSimilarity;
+import com.emadbarsoum.lib.FeatureIndex;
+import com.emadbarsoum.lib.ImageSimilarity;
+import com.emadbarsoum.lib.ImageSimilarityFactory;
+import com.emadbarsoum.lib.TopResults;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core.*;
+import org.bytedeco.javacpp.opencv_nonfree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_highgui.*;
+
+/**
+ * A command line tool that serve query by example over HTTP, using a memory-mapped feature index. The index is built
+ * once from a feature sequence file generated by featurize (hist or bow), and then every query only decode the query
+ * image and scan the mapped features in parallel, so there is no job startup.
+ *
+ *   POST /search?top=K  with the encoded query image as body, return one "distance<TAB>metadata" line per image.
+ *                       The timing of the request is returned in the X-HVision-*-Ms headers.
+ *   GET  /stats         return the index size and the latency percentiles of the recent requests.
+ *
+ * The requests are handled by a pool of -handlers threads, each with its own ImageSimilarity since the feature
+ * computation isn't thread safe, and all of them share the -threads scan threads. When the process is stopped, the
+ * server waits for the running requests and then closes the similarities and the index.
+ *
+ * Here the main entry point: com.emadbarsoum.tools.QueryServer
+ */
+public class QueryServer
+{
+    private static final Logger log = LoggerFactory.getLogger(QueryServer.class);
+
+    private static final int latencyWindow = 1024;
+
+    private static FeatureIndex featureIndex;
+    private static String vocabularyPath;
+    private static ExecutorService handlerExecutor;
+    private static ExecutorService scanExecutor;
+    private static int parallelism;
+    private static int defaultTop;
+
+    // The similarities of all the handler threads, closed when the server stops.
+    private static final List<ImageSimilarity> similarities = new ArrayList<ImageSimilarity>();
+
+    private static long[] latencies = new long[latencyWindow];
+    private static long requestCount = 0;
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] nonOptional = {"idx"};
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                 ||
+            (parser.getNumberOfArgs() < 1)  ||
+            !parser.has(nonOptional))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        File indexFolder = new File(parser.get("idx"));
+        if (parser.has("i"))
+        {
+            System.out.println("Building the feature index...");
+            FeatureIndex.build(new Configuration(), new Path(parser.get("i")), indexFolder);
+        }
+        else if (!FeatureIndex.exists(indexFolder))
+        {
+            System.out.println("The feature index doesn't exist, use -i to build it from a feature sequence file.");
+            System.exit(2);
+        }
+
+        featureIndex = FeatureIndex.open(indexFolder);
+
+        if (featureIndex.method().equals("bow"))
+        {
+            if (!parser.has("cf"))
+            {
+                System.out.println("bow index requires the BOW cluster file (-cf).");
+                System.exit(2);
+            }
+
+            // Needed for SURF feature.
+            Loader.load(opencv_nonfree.class);
+            vocabularyPath = parser.get("cf");
+
+            // A vocabulary other than the one of featurize gives features of another size.
+            int wordCount = new BOWImageSimilarity(vocabularyPath).getWordCount();
+            if (wordCount != featureIndex.dimension())
+            {
+                System.out.println("The BOW cluster file has " + wordCount + " words, the index features have " + featureIndex.dimension() + ".");
+                System.exit(2);
+            }
+        }
+
+        int port = parser.has("p") ? parser.getAsInt("p") : 8080;
+        parallelism = parser.has("threads") ? parser.getAsInt("threads") : Runtime.getRuntime().availableProcessors();
+        int handlers = parser.has("handlers") ? parser.getAsInt("handlers") : Runtime.getRuntime().availableProcessors();
+        defaultTop = parser.has("top") ? parser.getAsInt("top") : 10;
+        if ((parallelism < 1) || (handlers < 1) || (defaultTop < 1))
+        {
+            System.out.println("threads, handlers and top must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
+        scanExecutor = Executors.newFixedThreadPool(parallelism);
+        handlerExecutor = Executors.newFixedThreadPool(handlers);
+
+        final HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/search", new SearchHandler());
+        server.createContext("/stats", new StatsHandler());
+
+        // Concurrent requests are handled in parallel, each on its own handler thread.
+        server.setExecutor(handlerExecutor);
+        server.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                shutdown(server);
+            }
+        });
+
+        System.out.format("Serving %d %s features on port %d using %d handlers and %d scan threads.\n",
+                featureIndex.count(),
+                featureIndex.method(),
+                port,
+                handlers,
+                parallelism);
+
+        // The driver exit as soon as main return, so serve until the process is killed.
+        Thread.currentThread().join();
+    }
+
+    private static class SearchHandler implements HttpHandler
+    {
+        // The feature computation isn't thread safe, so each handler thread has its own.
+        private final ThreadLocal<ImageSimilarity> imageSimilarity = new ThreadLocal<ImageSimilarity>()
+        {
+            @Override
+            protected ImageSimilarity initialValue()
+            {
+                ImageSimilarity similarity = (vocabularyPath != null) ? new BOWImageSimilarity(vocabularyPath) : ImageSimilarityFactory.create(featureIndex.method());
+                synchronized (similarities)
+                {
+                    similarities.add(similarity);
+                }
+
+                return similarity;
+            }
+        };
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            long start = System.nanoTime();
+
+            try
+            {
+                if (!exchange.getRequestMethod().equals("POST"))
+                {
+                    sendResponse(exchange, 405, "Use POST with the query image as body.\n");
+                    return;
+                }
+
+                int top = defaultTop;
+                Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+                if (parameters.containsKey("top"))
+                {
+                    try
+                    {
+                        top = Integer.parseInt(parameters.get("top"));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        top = 0;
+                    }
+
+                    if (top < 1)
+                    {
+                        sendResponse(exchange, 400, "top must be an integer greater than or equal to 1.\n");
+                        return;
+                    }
+                }
+
+                byte[] imageData = readAll(exchange.getRequestBody());
+
+                // Decode the query image and compute its feature.
+                IplImage queryImage = cvDecodeImage(cvMat(1, imageData.length, CV_8UC1, new BytePointer(imageData)));
+                if (queryImage == null)
+                {
+                    sendResponse(exchange, 400, "Failed to decode the query image.\n");
+                    return;
+                }
+
+                Mat queryFeature = null;
+                ArrayList<TopResults.Result<Integer>> results;
+                long featureTime;
+                try
+                {
+                    queryFeature = this.imageSimilarity.get().computeFeature(queryImage, null);
+                    featureTime = System.nanoTime();
+
+                    long dimension = queryFeature.total() * queryFeature.channels();
+                    if (dimension != featureIndex.dimension())
+                    {
+                        sendResponse(exchange, 400, "The query feature has " + dimension + " values, the index features have " + featureIndex.dimension() + ".\n");
+                        return;
+                    }
+
+                    // Scan the index.
+                    results = featureIndex.search(queryFeature.getFloatBuffer(), top, scanExecutor, parallelism);
+                }
+                finally
+                {
+                    if (queryFeature != null)
+                    {
+                        queryFeature.release();
+                    }
+
+                    cvReleaseImage(queryImage);
+                }
+
+                long scanTime = System.nanoTime();
+
+                StringBuilder response = new StringBuilder();
+                for (TopResults.Result<Integer> result : results)
+                {
+                    response.append(result.distance()).append('\t').append(featureIndex.metadata(result.item())).append('\n');
+                }
+
+                long end = System.nanoTime();
+                recordLatency(end - start);
+
+                exchange.getResponseHeaders().add("X-HVision-Feature-Ms", formatMs(featureTime - start));
+                exchange.getResponseHeaders().add("X-HVision-Scan-Ms", formatMs(scanTime - featureTime));
+                exchange.getResponseHeaders().add("X-HVision-Total-Ms", formatMs(end - start));
+
+                sendResponse(exchange, 200, response.toString());
+            }
+            catch (Exception e)
+            {
+                log.error("Failed to search the query image.", e);
+                sendResponse(exchange, 500, e.toString() + "\n");
+            }
+        }
+    }
+
+    private static class StatsHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            long[] window;
+            long count;
+            synchronized (latencies)
+            {
+                count = requestCount;
+                window = Arrays.copyOf(latencies, (int)Math.min(count, latencyWindow));
+            }
+
+            Arrays.sort(window);
+
+            StringBuilder response = new StringBuilder();
+            response.append("images=").append(featureIndex.count()).append('\n');
+            response.append("method=").append(featureIndex.method()).append('\n');
+            response.append("requests=").append(count).append('\n');
+            if (window.length > 0)
+            {
+                response.append("p50_ms=").append(formatMs(percentile(window, 0.50))).append('\n');
+                response.append("p99_ms=").append(formatMs(percentile(window, 0.99))).append('\n');
+                response.append("max_ms=").append(formatMs(window[window.length - 1])).append('\n');
+            }
+
+            sendResponse(exchange, 200, response.toString());
+        }
+    }
+
+    // Stop accepting requests, wait for the running ones and release the native buffers and the mapped index.
+    private static void shutdown(HttpServer server)
+    {
+        server.stop(0);
+
+        handlerExecutor.shutdown();
+        scanExecutor.shutdown();
+        try
+        {
+            handlerExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (similarities)
+        {
+            for (ImageSimilarity similarity : similarities)
+            {
+                similarity.close();
+            }
+
+            similarities.clear();
+        }
+
+        try
+        {
+            featureIndex.close();
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to close the feature index.", e);
+        }
+    }
+
+    // The parameters of a raw query string, i.e. "top=5&x=1", the last value wins for a repeated name.
+    private static Map<String, String> parseQuery(String query) throws IOException
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null)
+        {
+            return parameters;
+        }
+
+        for (String pair : query.split("&"))
+        {
+            if (pair.isEmpty())
+            {
+                continue;
+            }
+
+            int pos = pair.indexOf('=');
+            String name = (pos >= 0) ? pair.substring(0, pos) : pair;
+            String value = (pos >= 0) ? pair.substring(pos + 1) : "";
+            parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+
+        return parameters;
+    }
+
+    private static void recordLatency(long nanos)
+    {
+        synchronized (latencies)
+        {
+            latencies[(int)(requestCount % latencyWindow)] = nanos;
+            ++requestCount;
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction)
+    {
+        int index = (int)Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(Math.min(index, sorted.length - 1), 0)];
+    }
+
+    private static String formatMs(long nanos)
+    {
+        return String.format("%.3f", nanos / 1000000.0);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int count;
+        while ((count = in.read(buffer)) > 0)
+        {
+            out.write(buffer, 0, count);
+        }
+
+        in.close();
+
+        return out.toByteArray();
+    }
+
+    private static void sendResponse(HttpExchange exchange, int status, String response) throws IOException
+    {
+        byte[] body = response.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision serve -idx <local folder of the feature index> [-i <feature sequence file created by featurize -m hist or bow, to build the index>] [-cf <BOW cluster file>] [-p <port, default 8080>] [-threads <scan threads>] [-handlers <request threads>] [-top <default number of images>]");
+    }
+}
@@ -1,18 +1,24 @@
 package com.emadbarsoum.tools;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.lib.MappedSequenceFileReader;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
 /**
  * A simple command line tool that dump all SVM XML model in a given folder from a Hadoop sequence file.
  *
+ * A local uncompressed sequence file is read through MappedSequenceFileReader, the models are written straight
+ * from the mapped file.
+ *
  * Here the main entry point: com.emadbarsoum.tools.SVMModelsFromSequenceFile
  *
  */
@@ -35,6 +41,32 @@ public class SVMModelsFromSequenceFile
         File inputFile = new File(parser.get("i"));
         Path inputPath = new Path(inputFile.getAbsolutePath());
 
+        MappedSequenceFileReader mappedReader = MappedSequenceFileReader.openLocal(conf, inputPath, Text.class);
+        if (mappedReader != null)
+        {
+            while (mappedReader.next())
+            {
+                String outputPath = parser.get("o") + "/" + MappedSequenceFileReader.text(mappedReader.key()) + ".xml";
+
+                ByteBuffer model = MappedSequenceFileReader.textBytes(mappedReader.value());
+                FileOutputStream out = new FileOutputStream(outputPath);
+                try
+                {
+                    while (model.hasRemaining())
+                    {
+                        out.getChannel().write(model);
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+
+            mappedReader.close();
+            return;
+        }
+
         SequenceFile.Reader reader = new SequenceFile.Reader(
                 conf,
                 SequenceFile.Reader.file(inputPath));
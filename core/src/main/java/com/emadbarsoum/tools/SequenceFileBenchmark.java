@@ -0,0 +1,151 @@
+package com.emadbarsoum.tools;
+
+import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.SequenceFileCompression;
+import com.emadbarsoum.lib.ImageSequenceFileReader;
+import com.emadbarsoum.lib.ImageSequenceFileWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+/**
+ * A command line tool that compare the image sequence file layouts on a sample corpus: encoded images (JPEG),
+ * raw images, and raw images in a block compressed sequence file. For each layout it writes the sequence file,
+ * then reads and decodes all the images with ImageSequenceFileReader and reports the file size and the best read
+ * throughput of several runs.
+ *
+ * Here the main entry point: com.emadbarsoum.tools.SequenceFileBenchmark
+ */
+public class SequenceFileBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        CommandParser parser = new CommandParser(args);
+        if (!parser.parse()                 ||
+            (parser.getNumberOfArgs() < 2)  ||
+            !(parser.has("i") && parser.has("o")) ||
+            !SequenceFileCompression.isValid(parser))
+        {
+            showUsage();
+            System.exit(2);
+        }
+
+        int runs = parser.has("n") ? parser.getAsInt("n") : 3;
+        if (runs < 1)
+        {
+            System.out.println("n must be greater than or equal to 1.");
+            System.exit(2);
+        }
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        if (parser.has("sync"))
+        {
+            conf.setInt("io.seqfile.compress.blocksize", parser.getAsInt("sync"));
+        }
+
+        // Iterate through image files only.
+        FilenameFilter fileNameFilter = new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                if (name.lastIndexOf('.') > 0)
+                {
+                    int lastIndex = name.lastIndexOf('.');
+                    String str = name.substring(lastIndex).toLowerCase();
+
+                    if (str.equals(".jpg") || str.equals(".jpeg") || str.equals(".png"))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+
+        File[] files = new File(parser.get("i")).listFiles(fileNameFilter);
+        if ((files == null) || (files.length == 0))
+        {
+            System.out.println("No image found in " + parser.get("i"));
+            System.exit(2);
+        }
+
+        File outputFolder = new File(parser.get("o"));
+        outputFolder.mkdirs();
+
+        String codec = parser.has("codec") ? parser.get("codec") : "deflate";
+
+        System.out.format("%d images, best of %d runs.\n", files.length, runs);
+        System.out.format("%-24s %14s %12s %12s %12s\n", "layout", "size (bytes)", "write (ms)", "images/s", "MB/s");
+
+        benchmark("jpeg", true, CompressionType.NONE, codec, files, outputFolder, runs, conf);
+        benchmark("raw", false, CompressionType.NONE, codec, files, outputFolder, runs, conf);
+        benchmark("raw+block(" + codec + ")", false, CompressionType.BLOCK, codec, files, outputFolder, runs, conf);
+    }
+
+    private static void benchmark(String layout,
+                                  boolean compressed,
+                                  CompressionType compressionType,
+                                  String codec,
+                                  File[] files,
+                                  File outputFolder,
+                                  int runs,
+                                  Configuration conf) throws Exception
+    {
+        File sequenceFile = new File(outputFolder, layout.replaceAll("[^a-z0-9]+", "_") + ".seq");
+
+        long start = System.nanoTime();
+
+        ImageSequenceFileWriter writer = new ImageSequenceFileWriter(conf, compressed);
+        writer.setCompression(compressionType, SequenceFileCompression.codec(codec, conf));
+        writer.create(sequenceFile.getAbsolutePath());
+        for (File file : files)
+        {
+            if (file.isFile() && !file.isHidden())
+            {
+                writer.append(file);
+            }
+        }
+
+        writer.close();
+
+        long writeMillis = (System.nanoTime() - start) / 1000000;
+
+        // Read and decode every image, the best run is reported to reduce the noise of the page cache warm up.
+        long bestNanos = Long.MAX_VALUE;
+        int count = 0;
+        for (int run = 0; run < runs; ++run)
+        {
+            ImageSequenceFileReader reader = new ImageSequenceFileReader(conf);
+
+            start = System.nanoTime();
+
+            count = 0;
+            reader.open(sequenceFile.getAbsolutePath());
+            while (reader.next())
+            {
+                ++count;
+            }
+
+            reader.close();
+
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+
+        double seconds = bestNanos / 1e9;
+        System.out.format("%-24s %14d %12d %12.1f %12.1f\n",
+            layout,
+            sequenceFile.length(),
+            writeMillis,
+            count / seconds,
+            (sequenceFile.length() / (1024.0 * 1024.0)) / seconds);
+    }
+
+    private static void showUsage()
+    {
+        System.out.println("Usage: hvision iseqbench -i <input path to folder of sample images> -o <output folder for the sequence files> [-n <number of read runs>] [-codec deflate|bzip2|snappy|lz4] [-sync <bytes>]");
+    }
+}
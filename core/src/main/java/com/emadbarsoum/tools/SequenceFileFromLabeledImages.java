@@ -1,6 +1,7 @@
 package com.emadbarsoum.tools;
 
 import com.emadbarsoum.common.CommandParser;
+import com.emadbarsoum.common.SequenceFileCompression;
 import com.emadbarsoum.lib.ImageSequenceFileWriter;
 import org.apache.hadoop.conf.Configuration;
 
@@ -23,7 +24,8 @@ public class SequenceFileFromLabeledImages
         CommandParser parser = new CommandParser(args);
         if (!parser.parse()                 ||
             (parser.getNumberOfArgs() < 2)  ||
-            !(parser.has("i") && parser.has("o")))
+            !(parser.has("i") && parser.has("o")) ||
+            !SequenceFileCompression.isValid(parser))
         {
             showUsage();
             System.exit(2);
@@ -40,7 +42,18 @@ public class SequenceFileFromLabeledImages
 
         File outputFile = new File(parser.get("o"));
 
-        ImageSequenceFileWriter writer = new ImageSequenceFileWriter(conf, compressed);
+        // Store the metadata as ImageKeyWritable instead of Text.
+        boolean binaryKey = parser.has("binarykey");
+
+        ImageSequenceFileWriter writer = new ImageSequenceFileWriter(conf, compressed, binaryKey);
+        writer.setCompression(SequenceFileCompression.type(parser), SequenceFileCompression.codec(parser, conf));
+        writer.setIndexed(parser.has("index"));
+        writer.setColumnar(parser.has("columnar"));
+        if (parser.has("sync"))
+        {
+            writer.setSyncInterval(parser.getAsInt("sync"));
+            conf.setInt("io.seqfile.compress.blocksize", parser.getAsInt("sync"));
+        }
 
         writer.create(outputFile.getAbsolutePath());
 
@@ -100,6 +113,6 @@ public class SequenceFileFromLabeledImages
 
     private static void showUsage()
     {
-        System.out.println("Usage: hvision iseqlab -i <input path to folder of images> -o <output path for sequence file> [-raw]");
+        System.out.println("Usage: hvision iseqlab -i <input path to folder of images> -o <output path for sequence file> [-raw] [-binarykey] [-index] [-columnar] " + SequenceFileCompression.usage);
     }
 }
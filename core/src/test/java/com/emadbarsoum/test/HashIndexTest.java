@@ -0,0 +1,121 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.lib.HashIndex;
+import com.emadbarsoum.lib.TopResults;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Unit test for HashIndex.
+ */
+public class HashIndexTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public HashIndexTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(HashIndexTest.class);
+    }
+
+    /**
+     */
+    public void testNeighbors()
+    {
+        assertEquals(1, HashIndex.neighbors(0x1234, 0).length);
+        assertEquals(17, HashIndex.neighbors(0x1234, 1).length);
+        assertEquals(137, HashIndex.neighbors(0x1234, 2).length);
+
+        HashSet<Integer> unique = new HashSet<Integer>();
+        for (int neighbor : HashIndex.neighbors(0x1234, 2))
+        {
+            assertTrue(Integer.bitCount(neighbor ^ 0x1234) <= 2);
+            unique.add(neighbor);
+        }
+
+        assertEquals(137, unique.size());
+    }
+
+    /**
+     */
+    public void testSearchMatchLinearScan()
+    {
+        Random random = new Random(42);
+        HashIndex<Integer> hashIndex = new HashIndex<Integer>();
+        long[] hashes = new long[2000];
+
+        long base = random.nextLong();
+        for (int i = 0; i < hashes.length; ++i)
+        {
+            // Half of the hashes are near base, so the search has something to find.
+            hashes[i] = (i % 2 == 0) ? random.nextLong() : flipBits(base, random.nextInt(12), random);
+            hashIndex.add(hashes[i], i);
+        }
+
+        assertEquals(hashes.length, hashIndex.size());
+
+        for (int radius = 0; radius <= 11; ++radius)
+        {
+            ArrayList<TopResults.Result<Integer>> results = hashIndex.search(base, radius);
+
+            HashSet<Integer> expected = new HashSet<Integer>();
+            for (int i = 0; i < hashes.length; ++i)
+            {
+                if (HashIndex.hammingDistance(base, hashes[i]) <= radius)
+                {
+                    expected.add(i);
+                }
+            }
+
+            assertEquals(expected.size(), results.size());
+
+            double previous = 0.0;
+            for (TopResults.Result<Integer> result : results)
+            {
+                assertTrue(expected.contains(result.item()));
+                assertEquals((double)HashIndex.hammingDistance(base, hashes[result.item()]), result.distance());
+                assertTrue(result.distance() >= previous);
+
+                previous = result.distance();
+            }
+        }
+    }
+
+    /**
+     */
+    public void testSearchEmpty()
+    {
+        HashIndex<String> hashIndex = new HashIndex<String>();
+        assertTrue(hashIndex.search(0L, 4).isEmpty());
+    }
+
+    private static long flipBits(long hash, int count, Random random)
+    {
+        while (count > 0)
+        {
+            long bit = 1L << random.nextInt(64);
+            if ((hash & bit) == 0)
+            {
+                hash |= bit;
+                --count;
+            }
+        }
+
+        return hash;
+    }
+}
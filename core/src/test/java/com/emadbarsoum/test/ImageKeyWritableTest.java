@@ -0,0 +1,135 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.common.ImageKeyWritable;
+import com.emadbarsoum.common.MetadataParser;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.IOException;
+
+/**
+ * Unit test for ImageKeyWritable.
+ */
+public class ImageKeyWritableTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ImageKeyWritableTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(ImageKeyWritableTest.class);
+    }
+
+    /**
+     */
+    public void testLegacyMetadata() throws IOException
+    {
+        MetadataParser legacy = new MetadataParser("name=cat1;ext=jpg;type=raw;width=640;height=480;channel_count=3;depth=8;label=cat;label_id=2;path=/images/cat1.jpg");
+        legacy.parse();
+
+        ImageKeyWritable key = ImageKeyWritable.fromMetadata(legacy);
+        assertEquals("cat1", key.name());
+        assertEquals("jpg", key.ext());
+        assertTrue(key.isRaw());
+        assertEquals(640, key.width());
+        assertEquals(480, key.height());
+        assertEquals(3, key.channels());
+        assertEquals(8, key.depth());
+        assertEquals(2, key.labelId());
+        assertEquals("cat", key.extensions().get("label"));
+        assertEquals("/images/cat1.jpg", key.path());
+
+        // Both key formats give the same metadata.
+        MetadataParser metadata = MetadataParser.from(key);
+        MetadataParser text = MetadataParser.from(new Text(key.toString()));
+        for (MetadataParser parser : new MetadataParser[] {metadata, text})
+        {
+            assertEquals("cat1", parser.get("name"));
+            assertEquals("raw", parser.get("type"));
+            assertEquals(480, parser.getAsInt("height"));
+            assertEquals(2, parser.getAsInt("label_id"));
+            assertEquals("cat", parser.get("label"));
+            assertEquals("/images/cat1.jpg", parser.get("path"));
+        }
+    }
+
+    /**
+     */
+    public void testSerialization() throws IOException
+    {
+        ImageKeyWritable key = createKey("dog", "png", "/images/dog.png");
+        key.setRaw(1024, 768, 1, 16);
+        key.extensions().put("label_count", "5");
+
+        ImageKeyWritable copy = new ImageKeyWritable();
+        DataInputBuffer in = new DataInputBuffer();
+        DataOutputBuffer out = serialize(key);
+        in.reset(out.getData(), out.getLength());
+        copy.readFields(in);
+
+        assertEquals(key, copy);
+        assertEquals(key.toString(), copy.toString());
+        assertEquals(0, key.compareTo(copy));
+    }
+
+    /**
+     */
+    public void testRawComparator() throws IOException
+    {
+        ImageKeyWritable[] keys =
+        {
+            createKey("a", "jpg", "/a.jpg"),
+            createKey("a", "png", "/a.png"),
+            createKey("ab", "jpg", "/ab.jpg"),
+            createKey("b", "jpg", "/b.jpg"),
+            createKey("b", "jpg", "/c/b.jpg")
+        };
+
+        WritableComparator comparator = WritableComparator.get(ImageKeyWritable.class);
+        for (int i = 0; i < keys.length; ++i)
+        {
+            for (int j = 0; j < keys.length; ++j)
+            {
+                DataOutputBuffer first = serialize(keys[i]);
+                DataOutputBuffer second = serialize(keys[j]);
+
+                int raw = comparator.compare(first.getData(), 0, first.getLength(), second.getData(), 0, second.getLength());
+                assertEquals(Integer.signum(Integer.compare(i, j)), Integer.signum(raw));
+                assertEquals(Integer.signum(raw), Integer.signum(keys[i].compareTo(keys[j])));
+            }
+        }
+    }
+
+    private static ImageKeyWritable createKey(String name, String ext, String path)
+    {
+        ImageKeyWritable key = new ImageKeyWritable();
+        key.setName(name);
+        key.setExt(ext);
+        key.setPath(path);
+
+        return key;
+    }
+
+    private static DataOutputBuffer serialize(ImageKeyWritable key) throws IOException
+    {
+        DataOutputBuffer out = new DataOutputBuffer();
+        key.write(out);
+
+        return out;
+    }
+}
@@ -0,0 +1,120 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.lib.ImageSequenceFileIndex;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit test for ImageSequenceFileIndex.
+ */
+public class ImageSequenceFileIndexTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ImageSequenceFileIndexTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(ImageSequenceFileIndexTest.class);
+    }
+
+    /**
+     */
+    public void testPosition() throws IOException
+    {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+        File sequenceFile = File.createTempFile("images", ".seq");
+        File indexFile = new File(ImageSequenceFileIndex.indexPath(sequenceFile.getAbsolutePath()));
+        try
+        {
+            // The images are written in any order, and two of them have the same name.
+            ImageSequenceFileIndex index = new ImageSequenceFileIndex();
+            index.add("zebra", 128);
+            index.add("cat", 512);
+            index.add("dog", 1024);
+            index.add("cat", 4096);
+            index.add("ant", 8192);
+            index.write(conf, sequenceFile.getAbsolutePath());
+
+            assertTrue(indexFile.exists());
+
+            ImageSequenceFileIndex loaded = ImageSequenceFileIndex.read(conf, sequenceFile.getAbsolutePath());
+            assertEquals(5, loaded.size());
+            assertEquals(8192, loaded.position("ant"));
+            assertEquals(512, loaded.position("cat"));
+            assertEquals(1024, loaded.position("dog"));
+            assertEquals(128, loaded.position("zebra"));
+            assertEquals(-1, loaded.position("bird"));
+            assertEquals(-1, loaded.position("zzz"));
+        }
+        finally
+        {
+            sequenceFile.delete();
+            indexFile.delete();
+            new File(indexFile.getParent(), "." + indexFile.getName() + ".crc").delete();
+        }
+    }
+
+    /**
+     */
+    public void testPathKeys() throws Exception
+    {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+        File sequenceFile = File.createTempFile("images", ".seq");
+        File indexFile = new File(ImageSequenceFileIndex.indexPath(sequenceFile.getAbsolutePath()));
+        try
+        {
+            // Two images of different folders with the same name, as written by iseq -recursive.
+            MetadataParser first = new MetadataParser("name=IMG_0001;ext=jpg;path=/photos/a/IMG_0001.jpg");
+            first.parse();
+            MetadataParser second = new MetadataParser("name=IMG_0001;ext=jpg;path=/photos/b/IMG_0001.jpg");
+            second.parse();
+
+            ImageSequenceFileIndex index = new ImageSequenceFileIndex();
+            index.add(ImageSequenceFileIndex.key(first), 128);
+            index.add(ImageSequenceFileIndex.key(second), 512);
+            index.write(conf, sequenceFile.getAbsolutePath());
+
+            ImageSequenceFileIndex loaded = ImageSequenceFileIndex.read(conf, sequenceFile.getAbsolutePath());
+            assertEquals("/photos/b/IMG_0001.jpg", ImageSequenceFileIndex.key(second));
+            assertEquals(128, loaded.position(ImageSequenceFileIndex.key(first)));
+            assertEquals(512, loaded.position(ImageSequenceFileIndex.key(second)));
+            assertEquals(-1, loaded.position("IMG_0001"));
+        }
+        finally
+        {
+            sequenceFile.delete();
+            indexFile.delete();
+            new File(indexFile.getParent(), "." + indexFile.getName() + ".crc").delete();
+        }
+    }
+
+    /**
+     */
+    public void testNoIndex() throws IOException
+    {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+        assertNull(ImageSequenceFileIndex.read(conf, new File("no_such_file.seq").getAbsolutePath()));
+    }
+}
@@ -0,0 +1,172 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.common.MetadataParser;
+import com.emadbarsoum.lib.ImageTiles;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.List;
+
+/**
+ * Unit test for ImageTiles.
+ */
+public class ImageTilesTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ImageTilesTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(ImageTilesTest.class);
+    }
+
+    /**
+     */
+    public void testSplit()
+    {
+        List<ImageTiles.Tile> tiles = ImageTiles.split(250, 120, 100, 8);
+        assertEquals(6, tiles.size());
+
+        // The first tile has no halo on the image border.
+        ImageTiles.Tile first = tiles.get(0);
+        assertEquals(0, first.x);
+        assertEquals(0, first.y);
+        assertEquals(0, first.left);
+        assertEquals(0, first.top);
+        assertEquals(8, first.right);
+        assertEquals(8, first.bottom);
+        assertEquals(108, first.outerWidth());
+
+        // The last tile is the remainder of the image, its halo is only on the top and left.
+        ImageTiles.Tile last = tiles.get(5);
+        assertEquals(200, last.x);
+        assertEquals(100, last.y);
+        assertEquals(50, last.width);
+        assertEquals(20, last.height);
+        assertEquals(8, last.left);
+        assertEquals(8, last.top);
+        assertEquals(0, last.right);
+        assertEquals(0, last.bottom);
+        assertEquals(192, last.outerX());
+        assertEquals(92, last.outerY());
+
+        // The insides of the tiles cover the image once.
+        int area = 0;
+        for (ImageTiles.Tile tile : tiles)
+        {
+            area += tile.width * tile.height;
+        }
+
+        assertEquals(250 * 120, area);
+    }
+
+    /**
+     */
+    public void testMetadata() throws Exception
+    {
+        List<ImageTiles.Tile> tiles = ImageTiles.split(250, 120, 100, 8);
+        ImageTiles.Tile tile = tiles.get(4);
+
+        MetadataParser metadata = new MetadataParser("name=scan;ext=png;path=/images/scan.png");
+        metadata.parse();
+        metadata.put("width", tile.outerWidth());
+        metadata.put("height", tile.outerHeight());
+        ImageTiles.toMetadata(tile, 4, tiles.size(), 250, 120, 8, metadata);
+
+        assertTrue(ImageTiles.isTile(metadata));
+        assertEquals("scan_4", metadata.get("name"));
+        assertEquals("scan", metadata.get("tile_of"));
+        assertTrue(metadata.toMetadata().endsWith(";path=/images/scan.png"));
+
+        ImageTiles.Tile parsed = ImageTiles.fromMetadata(metadata);
+        assertEquals(tile.x, parsed.x);
+        assertEquals(tile.y, parsed.y);
+        assertEquals(tile.width, parsed.width);
+        assertEquals(tile.height, parsed.height);
+        assertEquals(tile.left, parsed.left);
+        assertEquals(tile.top, parsed.top);
+        assertEquals(tile.right, parsed.right);
+        assertEquals(tile.bottom, parsed.bottom);
+
+        ImageTiles.toImageMetadata(metadata);
+
+        assertFalse(ImageTiles.isTile(metadata));
+        assertEquals("scan", metadata.get("name"));
+        assertEquals(250, metadata.getAsInt("width"));
+        assertEquals(120, metadata.getAsInt("height"));
+        assertTrue(metadata.toMetadata().endsWith(";path=/images/scan.png"));
+    }
+
+    /**
+     */
+    public void testImageKey() throws Exception
+    {
+        // The tiles of two images with the same name from different folders aren't grouped together.
+        ImageTiles.Tile tile = ImageTiles.split(250, 120, 100, 8).get(0);
+
+        MetadataParser cat = new MetadataParser("name=scan;ext=png;path=/images/cat/scan.png");
+        cat.parse();
+        ImageTiles.toMetadata(tile, 0, 6, 250, 120, 8, cat);
+
+        MetadataParser dog = new MetadataParser("name=scan;ext=png;path=/images/dog/scan.png");
+        dog.parse();
+        ImageTiles.toMetadata(tile, 0, 6, 250, 120, 8, dog);
+
+        assertEquals("/images/cat/scan.png", ImageTiles.imageKey(cat));
+        assertFalse(ImageTiles.imageKey(cat).equals(ImageTiles.imageKey(dog)));
+
+        // The key of a tile is the one of its image.
+        MetadataParser image = new MetadataParser("name=scan;ext=png;path=/images/cat/scan.png");
+        image.parse();
+        assertEquals(ImageTiles.imageKey(image), ImageTiles.imageKey(cat));
+
+        // Without a path, the name of the image.
+        MetadataParser unnamed = new MetadataParser("name=scan_0;tile_of=scan");
+        unnamed.parse();
+        assertEquals("scan", ImageTiles.imageKey(unnamed));
+    }
+
+    /**
+     */
+    public void testRawSize()
+    {
+        // The rows are aligned to 4 bytes.
+        assertEquals(16 * 2, ImageTiles.rawSize(5, 2, 3, 8));
+        assertEquals(12 * 2, ImageTiles.rawSize(3, 2, 1, 32));
+
+        // A 40k x 40k scan doesn't fit in a single record.
+        assertTrue(ImageTiles.rawSize(40000, 40000, 3, 8) > ImageTiles.maxImageBytes);
+        assertTrue(ImageTiles.rawSize(20000, 20000, 3, 8) < ImageTiles.maxImageBytes);
+    }
+
+    /**
+     */
+    public void testConsumeHalo() throws Exception
+    {
+        MetadataParser metadata = new MetadataParser("name=scan_0;tile_of=scan;halo=4");
+        metadata.parse();
+
+        assertTrue(ImageTiles.consumeHalo(metadata, 2));
+        assertEquals(2, metadata.getAsInt("halo"));
+
+        assertFalse(ImageTiles.consumeHalo(metadata, 3));
+        assertEquals(0, metadata.getAsInt("halo"));
+
+        // An image that isn't a tile has no halo to consume.
+        MetadataParser image = new MetadataParser("name=scan");
+        image.parse();
+        assertTrue(ImageTiles.consumeHalo(image, 3));
+        assertFalse(image.has("halo"));
+    }
+}
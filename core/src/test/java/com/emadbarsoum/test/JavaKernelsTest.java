@@ -0,0 +1,177 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.lib.JavaImage;
+import com.emadbarsoum.lib.JavaKernels;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for JavaKernels.
+ */
+public class JavaKernelsTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public JavaKernelsTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(JavaKernelsTest.class);
+    }
+
+    /**
+     */
+    public void testGaussian()
+    {
+        int[] weights = JavaKernels.gaussianWeights(5, 1.5);
+        int sum = 0;
+        for (int i = 0; i < weights.length; ++i)
+        {
+            sum += weights[i];
+            assertEquals(weights[i], weights[weights.length - 1 - i]);
+        }
+
+        assertEquals(2048, sum);
+
+        // A constant image doesn't change, the border included.
+        JavaImage image = image(7, 5, 3, 100);
+        new JavaKernels().gaussian(image, image, 5, 1.5);
+        assertImage(image, 100);
+    }
+
+    /**
+     */
+    public void testMedian()
+    {
+        JavaImage image = image(7, 5, 1, 10);
+        set(image, 3, 2, 0, 255);
+
+        JavaImage result = new JavaImage();
+        new JavaKernels().median(image, result, 3);
+        assertImage(result, 10);
+    }
+
+    /**
+     */
+    public void testMorphology()
+    {
+        JavaKernels kernels = new JavaKernels();
+
+        // A bright pixel grows to a 3x3 square with dilate, and disappears with erode.
+        JavaImage image = image(5, 5, 1, 0);
+        set(image, 2, 2, 0, 200);
+        kernels.dilate(image, image, 1);
+        for (int y = 0; y < 5; ++y)
+        {
+            for (int x = 0; x < 5; ++x)
+            {
+                boolean inside = (x >= 1) && (x <= 3) && (y >= 1) && (y <= 3);
+                assertEquals(inside ? 200 : 0, get(image, x, y, 0));
+            }
+        }
+
+        kernels.erode(image, image, 1);
+        assertEquals(200, get(image, 2, 2, 0));
+        assertEquals(0, get(image, 1, 1, 0));
+
+        kernels.erode(image, image, 1);
+        assertImage(image, 0);
+    }
+
+    /**
+     */
+    public void testGray()
+    {
+        JavaImage image = image(3, 2, 3, 0);
+        set(image, 0, 0, 0, 255);
+        set(image, 1, 0, 1, 255);
+        set(image, 2, 0, 2, 255);
+        for (int c = 0; c < 3; ++c)
+        {
+            set(image, 0, 1, c, 255);
+        }
+
+        JavaImage gray = new JavaImage();
+        new JavaKernels().gray(image, gray);
+
+        assertEquals(1, gray.channels());
+        assertEquals(29, get(gray, 0, 0, 0));
+        assertEquals(150, get(gray, 1, 0, 0));
+        assertEquals(76, get(gray, 2, 0, 0));
+        assertEquals(255, get(gray, 0, 1, 0));
+        assertEquals(0, get(gray, 1, 1, 0));
+    }
+
+    /**
+     */
+    public void testResizeArea()
+    {
+        // Each target pixel is the average of a 2x2 block.
+        JavaImage image = image(4, 2, 1, 0);
+        set(image, 0, 0, 0, 10);
+        set(image, 1, 0, 0, 20);
+        set(image, 0, 1, 0, 30);
+        set(image, 1, 1, 0, 40);
+        set(image, 2, 0, 0, 200);
+        set(image, 3, 1, 0, 100);
+
+        JavaImage thumbnail = new JavaImage(2, 1, 1);
+        new JavaKernels().resizeArea(image, thumbnail);
+
+        assertEquals(2, thumbnail.width());
+        assertEquals(1, thumbnail.height());
+        assertEquals(25, get(thumbnail, 0, 0, 0));
+        assertEquals(75, get(thumbnail, 1, 0, 0));
+    }
+
+    private static JavaImage image(int width, int height, int channels, int value)
+    {
+        JavaImage image = new JavaImage(width, height, channels);
+        for (int y = 0; y < height; ++y)
+        {
+            for (int x = 0; x < width; ++x)
+            {
+                for (int c = 0; c < channels; ++c)
+                {
+                    set(image, x, y, c, value);
+                }
+            }
+        }
+
+        return image;
+    }
+
+    private static void set(JavaImage image, int x, int y, int c, int value)
+    {
+        image.data()[y * image.stride() + x * image.channels() + c] = (byte)value;
+    }
+
+    private static int get(JavaImage image, int x, int y, int c)
+    {
+        return image.data()[y * image.stride() + x * image.channels() + c] & 0xff;
+    }
+
+    private static void assertImage(JavaImage image, int value)
+    {
+        for (int y = 0; y < image.height(); ++y)
+        {
+            for (int x = 0; x < image.width(); ++x)
+            {
+                for (int c = 0; c < image.channels(); ++c)
+                {
+                    assertEquals(value, get(image, x, y, c));
+                }
+            }
+        }
+    }
+}
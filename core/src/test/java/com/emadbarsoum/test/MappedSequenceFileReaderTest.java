@@ -0,0 +1,182 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.lib.MappedSequenceFileReader;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unit test for MappedSequenceFileReader.
+ */
+public class MappedSequenceFileReaderTest extends TestCase
+{
+    private static final int recordCount = 200;
+
+    private Configuration conf;
+    private File sequenceFile;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MappedSequenceFileReaderTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(MappedSequenceFileReaderTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        this.conf = new Configuration();
+        this.conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+
+        this.sequenceFile = File.createTempFile("mapped", ".seq");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        this.sequenceFile.delete();
+        new File(this.sequenceFile.getParent(), "." + this.sequenceFile.getName() + ".crc").delete();
+    }
+
+    /**
+     */
+    public void testSameRecordsAsSequenceFileReader() throws IOException
+    {
+        write(SequenceFile.CompressionType.NONE);
+
+        // A small window, so the file is mapped many times and some records are larger than the window.
+        MappedSequenceFileReader reader = new MappedSequenceFileReader(this.sequenceFile, 4096);
+        assertEquals(Text.class.getName(), reader.keyClassName());
+        assertEquals(BytesWritable.class.getName(), reader.valueClassName());
+        assertFalse(reader.isCompressed());
+
+        Text key = new Text();
+        int count = 0;
+        while (reader.next())
+        {
+            assertEquals("image" + count, MappedSequenceFileReader.text(reader.key()));
+
+            reader.readKey(key);
+            assertEquals("image" + count, key.toString());
+
+            ByteBuffer value = MappedSequenceFileReader.bytesWritableBytes(reader.value());
+            byte[] expected = value(count);
+            assertEquals(expected.length, value.remaining());
+            for (byte b : expected)
+            {
+                assertEquals(b, value.get());
+            }
+
+            ++count;
+        }
+
+        reader.close();
+
+        assertEquals(recordCount, count);
+    }
+
+    /**
+     */
+    public void testSeek() throws IOException
+    {
+        write(SequenceFile.CompressionType.NONE);
+
+        MappedSequenceFileReader reader = new MappedSequenceFileReader(this.sequenceFile, 4096);
+        long position = 0;
+        for (int i = 0; i <= 100; ++i)
+        {
+            position = reader.getPosition();
+            assertTrue(reader.next());
+        }
+
+        reader.seek(position);
+        assertTrue(reader.next());
+        assertEquals("image100", MappedSequenceFileReader.text(reader.key()));
+
+        reader.close();
+    }
+
+    /**
+     */
+    public void testCompressedFileIsNotMapped() throws IOException
+    {
+        write(SequenceFile.CompressionType.RECORD);
+
+        Path path = new Path(this.sequenceFile.getAbsolutePath());
+        assertNull(MappedSequenceFileReader.openLocal(this.conf, path, BytesWritable.class));
+    }
+
+    /**
+     */
+    public void testReadVInt() throws IOException
+    {
+        long[] values = {0, 1, -1, 127, -112, -113, 128, 255, 65536, -65536, Integer.MAX_VALUE, Integer.MIN_VALUE};
+
+        DataOutputBuffer out = new DataOutputBuffer();
+        for (long value : values)
+        {
+            WritableUtils.writeVInt(out, (int)value);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(out.getData(), 0, out.getLength());
+        for (long value : values)
+        {
+            assertEquals((int)value, MappedSequenceFileReader.readVInt(buffer));
+        }
+
+        assertFalse(buffer.hasRemaining());
+    }
+
+    private void write(SequenceFile.CompressionType compressionType) throws IOException
+    {
+        SequenceFile.Writer writer = SequenceFile.createWriter(
+            this.conf,
+            SequenceFile.Writer.file(new Path(this.sequenceFile.getAbsolutePath())),
+            SequenceFile.Writer.keyClass(Text.class),
+            SequenceFile.Writer.valueClass(BytesWritable.class),
+            SequenceFile.Writer.compression(compressionType, ReflectionUtils.newInstance(DefaultCodec.class, this.conf)));
+
+        // The records are large enough for the writer to add sync markers between them.
+        for (int i = 0; i < recordCount; ++i)
+        {
+            writer.append(new Text("image" + i), new BytesWritable(value(i)));
+        }
+
+        writer.close();
+    }
+
+    private static byte[] value(int index)
+    {
+        byte[] value = new byte[(index * 97) % 9000];
+        for (int i = 0; i < value.length; ++i)
+        {
+            value[i] = (byte)(index + i);
+        }
+
+        return value;
+    }
+}
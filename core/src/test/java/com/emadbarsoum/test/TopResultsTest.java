@@ -0,0 +1,71 @@
+package com.emadbarsoum.test;
+
+import com.emadbarsoum.lib.TopResults;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+
+/**
+ * Unit test for TopResults.
+ */
+public class TopResultsTest extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TopResultsTest(String testName)
+    {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite(TopResultsTest.class);
+    }
+
+    /**
+     */
+    public void testKeepSmallestDistances()
+    {
+        TopResults<String> topResults = new TopResults<String>(3);
+
+        double[] distances = {0.9, 0.1, 0.5, 0.3, 0.7, 0.2};
+        for (double distance : distances)
+        {
+            topResults.offer(distance, Double.toString(distance));
+        }
+
+        assertTrue(topResults.size() == 3);
+
+        ArrayList<TopResults.Result<String>> results = topResults.sorted();
+        assertTrue(results.get(0).distance() == 0.1);
+        assertTrue(results.get(1).distance() == 0.2);
+        assertTrue(results.get(2).distance() == 0.3);
+        assertTrue(results.get(0).item().equals("0.1"));
+    }
+
+    /**
+     */
+    public void testOfferReturnDropped()
+    {
+        TopResults<String> topResults = new TopResults<String>(1);
+
+        assertNull(topResults.offer(0.5, "a"));
+
+        TopResults.Result<String> dropped = topResults.offer(0.1, "b");
+        assertTrue(dropped.item().equals("a"));
+
+        dropped = topResults.offer(0.9, "c");
+        assertTrue(dropped.item().equals("c"));
+
+        assertFalse(topResults.accept(0.2));
+        assertTrue(topResults.accept(0.05));
+    }
+}